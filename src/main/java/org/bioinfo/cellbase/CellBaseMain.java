@@ -2,7 +2,12 @@ package org.bioinfo.cellbase;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.CodeSource;
 import java.sql.SQLException;
 import java.util.List;
 import java.util.logging.Logger;
@@ -15,10 +20,15 @@ import org.apache.commons.cli.PosixParser;
 import org.bioinfo.cellbase.parser.ConservedRegionParser;
 import org.bioinfo.cellbase.parser.GeneParser;
 import org.bioinfo.cellbase.parser.GenomeSequenceFastaParser;
+import org.bioinfo.cellbase.parser.InputFiles;
+import org.bioinfo.cellbase.parser.MongoBulkLoader;
+import org.bioinfo.cellbase.parser.OutputFiles;
 import org.bioinfo.cellbase.parser.RegulatoryParser;
 import org.bioinfo.cellbase.parser.VariationParser;
 import org.bioinfo.formats.exception.FileFormatException;
 
+import com.mongodb.MongoClient;
+
 public class CellBaseMain {
 
 	private static Options options;
@@ -37,7 +47,7 @@ public class CellBaseMain {
 
 	private static void initOptions() {
 		options = new Options();
-		options.addOption(OptionFactory.createOption("build", "Build values: core, genome_sequence, variation, protein"));
+		options.addOption(OptionFactory.createOption("build", "Build values: core, genome-sequence, genome-sequence-packed, variation, regulation, conservation"));
 		options.addOption(OptionFactory.createOption("indir", "i",  "Input directory with data files", false));
 		options.addOption(OptionFactory.createOption("outdir", "o",  "Output directory to save the JSON result", false));
 		options.addOption(OptionFactory.createOption("outfile", "Output directory to save the JSON result", false));
@@ -48,9 +58,32 @@ public class CellBaseMain {
 		options.addOption(OptionFactory.createOption("xref-file", "Output directory to save the JSON result", false));
 		options.addOption(OptionFactory.createOption("tfbs-file", "Output directory to save the JSON result", false));
 		options.addOption(OptionFactory.createOption("mirna-file", "Output directory to save the JSON result", false));
-		options.addOption(OptionFactory.createOption("genome-sequence-dir", "Output directory to save the JSON result", false));
+		options.addOption(OptionFactory.createOption("genome-sequence-dir", "Directory with the genome .fa.gz files or a packed genome sequence file", false));
 
 		options.addOption(OptionFactory.createOption("chunksize", "Output directory to save the JSON result", false));
+		options.addOption(OptionFactory.createOption("threads", "Number of threads used by the build, default 1", false));
+		options.addOption(OptionFactory.createOption("tmpdir", "Directory for temporary files, default java.io.tmpdir", false));
+		options.addOption(OptionFactory.createOption("compression", "Output compression: none or bgzf (block gzip, '.gz' is appended to the output files), default none", false));
+		options.addOption(OptionFactory.createOption("compression-threads", "Number of threads compressing the output, default the number of processors", false));
+		options.addOption(OptionFactory.createOption("decompression-threads", "Number of threads inflating block gzip (BGZF) inputs, default the number of processors", false));
+
+		// Load options
+		options.addOption(OptionFactory.createOption("load", "Load the records into a database instead of writing JSON files, values: mongodb", false));
+		options.addOption(OptionFactory.createOption("mongodb-host", "MongoDB host, default localhost", false));
+		options.addOption(OptionFactory.createOption("mongodb-port", "MongoDB port, default 27017", false));
+		options.addOption(OptionFactory.createOption("mongodb-database", "MongoDB database, default cellbase", false));
+		options.addOption(OptionFactory.createOption("mongodb-scripts", "Directory with the [collection]-indexes.js scripts run after loading, default the mongodb-scripts directory of the installation", false));
+		options.addOption(OptionFactory.createOption("load-batch-size", "Number of records per bulk insert, default " + MongoBulkLoader.DEFAULT_BATCH_SIZE, false));
+		options.addOption(OptionFactory.createOption("load-batches-in-flight", "Number of bulk inserts running at the same time, default " + MongoBulkLoader.DEFAULT_BATCHES_IN_FLIGHT, false));
+
+		// Variation options
+		options.addOption(OptionFactory.createOption("sort-merge", "Join variation tables with external sorts instead of SQLite offset lookups", false, false));
+		options.addOption(OptionFactory.createOption("shard", "Process only a slice of the variations, format: i/N with i from 0 to N-1", false));
+		options.addOption(OptionFactory.createOption("merge-shards", "Concatenate the output files of N variation shards", false));
+
+		// Regulation options
+		options.addOption(OptionFactory.createOption("combine-tables", "Write one regulation chunk per window with the features of all the GFF files indexed by feature type", false, false));
+		options.addOption(OptionFactory.createOption("regulation-index", "Also write an interval index file of the regulatory features for overlap queries without a database", false));
 
 		options.addOption(OptionFactory.createOption("species", "s",  "Sapecies...", false, true));
 
@@ -73,79 +106,176 @@ public class CellBaseMain {
 
 			buildOption = commandLine.getOptionValue("build");
 
-			if(buildOption.equals("genome-sequence")) {
-				System.out.println("In genome-sequence");
-				String indir = commandLine.getOptionValue("indir");
-				String outfile = commandLine.getOptionValue("outfile", "/tmp/genome_sequence.json");
-				if(indir != null) {
-					GenomeSequenceFastaParser genomeSequenceFastaParser = new GenomeSequenceFastaParser();
-					genomeSequenceFastaParser.parseFastaGzipFilesToJson(new File(indir), new File(outfile));
+			if(commandLine.hasOption("compression")) {
+				OutputFiles.Compression compression = getCompression(commandLine.getOptionValue("compression"));
+				if(compression == null) {
+					System.out.println("Invalid compression '" + commandLine.getOptionValue("compression") + "', values: none, bgzf");
+					return;
 				}
+				int compressionThreads = Integer.parseInt(commandLine.getOptionValue("compression-threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+				OutputFiles.setCompression(compression, compressionThreads);
+			}
+			if(commandLine.hasOption("decompression-threads")) {
+				InputFiles.setNumThreads(Integer.parseInt(commandLine.getOptionValue("decompression-threads")));
 			}
 
-			if(buildOption.equals("core")) {
-				System.out.println("In core");
-				String gtfFile = commandLine.getOptionValue("gtf-file");
-				String geneDescriptionFile = commandLine.getOptionValue("gene-description", "");
-				String xrefFile = commandLine.getOptionValue("xref-file", "");
-				String tfbsFile = commandLine.getOptionValue("tfbs-file", "");
-				String mirnaFile = commandLine.getOptionValue("mirna-file", "");
-				String genomeSequenceDir = commandLine.getOptionValue("genome-sequence-dir", "");
-				String outfile = commandLine.getOptionValue("outfile", "/tmp/gene.json");
-				if(gtfFile != null) {
-					try {
-						GeneParser geneParser = new GeneParser();
-						geneParser.parseToJson(new File(gtfFile), new File(geneDescriptionFile), new File(xrefFile), new File(tfbsFile), new File(mirnaFile), new File(genomeSequenceDir),  new File(outfile));
-					} catch (SecurityException | NoSuchMethodException | FileFormatException e) {
-						e.printStackTrace();
-					}
+			if(buildOption.equals("variation")) {
+				if(commandLine.hasOption("sort-merge") && (commandLine.hasOption("shard") || commandLine.hasOption("threads"))) {
+					System.out.println("Option -sort-merge can not be used with -shard or -threads");
+					return;
+				}
+				if(commandLine.hasOption("shard") && getShard(commandLine.getOptionValue("shard")) == null) {
+					System.out.println("Invalid shard '" + commandLine.getOptionValue("shard") + "', format: i/N with i from 0 to N-1");
+					return;
 				}
 			}
 
-			if(buildOption.equals("variation")) {
-				System.out.println("In variation");
-				String indir = commandLine.getOptionValue("indir");
-				int chunksize = Integer.parseInt(commandLine.getOptionValue("chunksize", "0"));
-				System.out.println("chunksize: "+chunksize);
-				String outfile = commandLine.getOptionValue("outfile", "/tmp/variation.json");
-				if(indir != null) {
-					VariationParser vp = new VariationParser();
-					vp.createVariationDatabase(Paths.get(indir));
+			MongoClient mongoClient = null;
+			MongoBulkLoader loader = null;
+			Path mongodbScriptsDir = null;
+			try {
+				if(commandLine.hasOption("load")) {
+					String collection = getCollectionName(buildOption);
+					if(!commandLine.getOptionValue("load").equals("mongodb") || collection == null) {
+						System.out.println("Build '" + buildOption + "' can not be loaded into '" + commandLine.getOptionValue("load") + "'");
+						return;
+					}
+					mongodbScriptsDir = getMongodbScriptsDir();
+					if(mongodbScriptsDir == null) {
+						System.out.println("Directory with the [collection]-indexes.js scripts not found, set it with -mongodb-scripts");
+						return;
+					}
+					mongoClient = new MongoClient(commandLine.getOptionValue("mongodb-host", "localhost"), Integer.parseInt(commandLine.getOptionValue("mongodb-port", "27017")));
+					loader = new MongoBulkLoader(mongoClient.getDB(commandLine.getOptionValue("mongodb-database", "cellbase")).getCollection(collection),
+							Integer.parseInt(commandLine.getOptionValue("load-batch-size", String.valueOf(MongoBulkLoader.DEFAULT_BATCH_SIZE))),
+							Integer.parseInt(commandLine.getOptionValue("load-batches-in-flight", String.valueOf(MongoBulkLoader.DEFAULT_BATCHES_IN_FLIGHT))));
+					OutputFiles.setLoader(loader);
+				}
+
+				if(buildOption.equals("genome-sequence")) {
+					System.out.println("In genome-sequence");
+					String indir = commandLine.getOptionValue("indir");
+					String outfile = commandLine.getOptionValue("outfile", "/tmp/genome_sequence.json");
+					String outdir = commandLine.getOptionValue("outdir");
+					int threads = Integer.parseInt(commandLine.getOptionValue("threads", "1"));
+					if(indir != null) {
+						GenomeSequenceFastaParser genomeSequenceFastaParser = new GenomeSequenceFastaParser();
+						if(outdir != null) {
+							// one JSON file per chromosome
+							genomeSequenceFastaParser.parseFastaGzipFilesToJsonByChromosome(new File(indir), new File(outdir), threads);
+						}else {
+							if(threads > 1) {
+								genomeSequenceFastaParser.parseFastaGzipFilesToJson(new File(indir), new File(outfile), threads);
+							}else {
+								genomeSequenceFastaParser.parseFastaGzipFilesToJson(new File(indir), new File(outfile));
+							}
+						}
+					}
+				}
+
+				if(buildOption.equals("genome-sequence-packed")) {
+					System.out.println("In genome-sequence-packed");
+					String indir = commandLine.getOptionValue("indir");
+					String outfile = commandLine.getOptionValue("outfile", "/tmp/genome_sequence.packed");
+					if(indir != null) {
+						GenomeSequenceFastaParser genomeSequenceFastaParser = new GenomeSequenceFastaParser();
+						genomeSequenceFastaParser.parseFastaGzipFilesToPackedSequence(new File(indir), new File(outfile));
+					}
+				}
+
+				if(buildOption.equals("core")) {
+					System.out.println("In core");
+					String gtfFile = commandLine.getOptionValue("gtf-file");
+					String geneDescriptionFile = commandLine.getOptionValue("gene-description", "");
+					String xrefFile = commandLine.getOptionValue("xref-file", "");
+					String tfbsFile = commandLine.getOptionValue("tfbs-file", "");
+					String mirnaFile = commandLine.getOptionValue("mirna-file", "");
+					String genomeSequenceDir = commandLine.getOptionValue("genome-sequence-dir", "");
+					String outfile = commandLine.getOptionValue("outfile", "/tmp/gene.json");
+					if(gtfFile != null) {
+						try {
+							GeneParser geneParser = new GeneParser();
+							geneParser.parseToJson(new File(gtfFile), new File(geneDescriptionFile), new File(xrefFile), new File(tfbsFile), new File(mirnaFile), new File(genomeSequenceDir),  new File(outfile));
+						} catch (SecurityException | NoSuchMethodException | FileFormatException e) {
+							e.printStackTrace();
+						}
+					}
+				}
+
+				if(buildOption.equals("variation")) {
+					System.out.println("In variation");
+					String indir = commandLine.getOptionValue("indir");
+					int chunksize = Integer.parseInt(commandLine.getOptionValue("chunksize", "0"));
+					System.out.println("chunksize: "+chunksize);
+					String outfile = commandLine.getOptionValue("outfile", "/tmp/variation.json");
+					if(commandLine.hasOption("merge-shards")) {
+						VariationParser.mergeShards(Paths.get(outfile), Integer.parseInt(commandLine.getOptionValue("merge-shards")));
+					}else if(indir != null && commandLine.hasOption("sort-merge")) {
+						String tmpdir = commandLine.getOptionValue("tmpdir", System.getProperty("java.io.tmpdir"));
+						VariationParser vp = new VariationParser();
+						vp.parseVariationToJsonSortMerge("", "", "", "", Paths.get(indir), Paths.get(outfile), Paths.get(tmpdir));
+					}else if(indir != null) {
+						VariationParser vp = new VariationParser();
+						vp.createVariationDatabase(Paths.get(indir));
 					
-					vp.connect(Paths.get(indir));
-//					List<String> res = vp.queryByVariationId(13, "variation_synonym", Paths.get(indir));
-//					System.out.println("a");
-//					 res = vp.queryByVariationId(4, "variation_synonym", Paths.get(indir));
-//					System.out.println("b");
-//					res = vp.queryByVariationId(8, "variation_synonym", Paths.get(indir));
-//					System.out.println("c");
-					vp.parseVariationToJson("", "", "", "", Paths.get(indir), Paths.get(outfile));
-					vp.disconnect();
+						vp.connect(Paths.get(indir));
+						Path outfilePath = Paths.get(outfile);
+						if(commandLine.hasOption("shard")) {
+							int[] shard = getShard(commandLine.getOptionValue("shard"));
+							vp.setShard(shard[0], shard[1], Paths.get(indir));
+							outfilePath = VariationParser.getShardOutfile(outfilePath, shard[0]);
+						}
+	//					List<String> res = vp.queryByVariationId(13, "variation_synonym", Paths.get(indir));
+	//					System.out.println("a");
+	//					 res = vp.queryByVariationId(4, "variation_synonym", Paths.get(indir));
+	//					System.out.println("b");
+	//					res = vp.queryByVariationId(8, "variation_synonym", Paths.get(indir));
+	//					System.out.println("c");
+						int threads = Integer.parseInt(commandLine.getOptionValue("threads", "1"));
+						if(threads > 1) {
+							vp.parseVariationToJson("", "", "", "", Paths.get(indir), outfilePath, threads);
+						}else {
+							vp.parseVariationToJson("", "", "", "", Paths.get(indir), outfilePath);
+						}
+						vp.disconnect();
+					}
 				}
-			}
 			
-			if(buildOption.equals("regulation")) {
-				System.out.println("In regulation");
-				String indir = commandLine.getOptionValue("indir");
-				int chunksize = Integer.parseInt(commandLine.getOptionValue("chunksize", "0"));
-				System.out.println("chunksize: "+chunksize);
-				String outfile = commandLine.getOptionValue("outfile", "/tmp/regulations.json");
-				if(indir != null) {
-					try {
-						RegulatoryParser.parseRegulatoryGzipFilesToJson(Paths.get(indir), chunksize, Paths.get(outfile));
-					} catch (ClassNotFoundException | NoSuchMethodException	| SQLException e) {
-						e.printStackTrace();
+				if(buildOption.equals("regulation")) {
+					System.out.println("In regulation");
+					String indir = commandLine.getOptionValue("indir");
+					int chunksize = Integer.parseInt(commandLine.getOptionValue("chunksize", "0"));
+					System.out.println("chunksize: "+chunksize);
+					String outfile = commandLine.getOptionValue("outfile", "/tmp/regulations.json");
+					String tmpdir = commandLine.getOptionValue("tmpdir", System.getProperty("java.io.tmpdir"));
+					int threads = Integer.parseInt(commandLine.getOptionValue("threads", "1"));
+					if(indir != null) {
+						Path indexFile = commandLine.hasOption("regulation-index") ? Paths.get(commandLine.getOptionValue("regulation-index")) : null;
+						RegulatoryParser.parseRegulatoryGzipFilesToJson(Paths.get(indir), chunksize, Paths.get(outfile), Paths.get(tmpdir), commandLine.hasOption("combine-tables"), threads, indexFile);
 					}
 				}
-			}
 
-			if(buildOption.equals("conservation")) {
-				System.out.println("In conservation");
-				String indir = commandLine.getOptionValue("indir");
-				int chunksize = Integer.parseInt(commandLine.getOptionValue("chunksize", "0"));
-				String outfile = commandLine.getOptionValue("outfile", "/tmp/conservation.json");
-				if(indir != null) {
-					ConservedRegionParser.parseConservedRegionFilesToJson(Paths.get(indir), chunksize,  Paths.get(outfile));
+				if(buildOption.equals("conservation")) {
+					System.out.println("In conservation");
+					String indir = commandLine.getOptionValue("indir");
+					int chunksize = Integer.parseInt(commandLine.getOptionValue("chunksize", "0"));
+					String outfile = commandLine.getOptionValue("outfile", "/tmp/conservation.json");
+					if(indir != null) {
+						ConservedRegionParser.parseConservedRegionFilesToJson(Paths.get(indir), chunksize,  Paths.get(outfile));
+					}
+				}
+
+				if(loader != null) {
+					// indexes are built once the collection is loaded
+					loader.close();
+					int numIndexes = loader.createIndexes(mongodbScriptsDir);
+					System.out.println(loader.getNumRecords() + " records loaded into '" + loader.getCollection().getName() + "', " + numIndexes + " indexes created");
+				}
+			} finally {
+				if(mongoClient != null) {
+					// also when the build fails, batches still in flight are dropped
+					OutputFiles.setLoader(null);
+					mongoClient.close();
 				}
 			}
 
@@ -155,6 +285,82 @@ public class CellBaseMain {
 
 	}
 
+	/**
+	 * MongoDB collection of the build records, null if the build can not be loaded.
+	 */
+	private static String getCollectionName(String buildOption) {
+		switch(buildOption) {
+		case "core":
+			return "core";
+		case "genome-sequence":
+			return "genome_sequence";
+		case "variation":
+			return "variation";
+		case "regulation":
+			return "regulation";
+		case "conservation":
+			return "conservation";
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Directory of the index scripts: -mongodb-scripts or the mongodb-scripts directory of the installation,
+	 * next to the libs directory with the CellBase jar. Null if the directory does not exist.
+	 */
+	private static Path getMongodbScriptsDir() {
+		if(commandLine.hasOption("mongodb-scripts")) {
+			Path mongodbScriptsDir = Paths.get(commandLine.getOptionValue("mongodb-scripts"));
+			return Files.isDirectory(mongodbScriptsDir) ? mongodbScriptsDir : null;
+		}
+		try {
+			CodeSource codeSource = CellBaseMain.class.getProtectionDomain().getCodeSource();
+			if(codeSource == null) {
+				return null;
+			}
+			// installation-dir/libs/cellbase.jar
+			Path installationDir = Paths.get(codeSource.getLocation().toURI()).getParent().getParent();
+			if(installationDir != null && Files.isDirectory(installationDir.resolve("mongodb-scripts"))) {
+				return installationDir.resolve("mongodb-scripts");
+			}
+		} catch (URISyntaxException | IllegalArgumentException | FileSystemNotFoundException | SecurityException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+
+	/**
+	 * Output compression of a -compression value, null if it is not valid.
+	 */
+	private static OutputFiles.Compression getCompression(String value) {
+		try {
+			return OutputFiles.Compression.valueOf(value.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Shard index and number of shards of an i/N value, null if it is not valid.
+	 */
+	private static int[] getShard(String value) {
+		String[] fields = value.split("/", -1);
+		if(fields.length != 2) {
+			return null;
+		}
+		try {
+			int shard = Integer.parseInt(fields[0].trim());
+			int numShards = Integer.parseInt(fields[1].trim());
+			if(shard < 0 || shard >= numShards) {
+				return null;
+			}
+			return new int[] {shard, numShards};
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
 	private static void parse(String[] args, boolean stopAtNoOption) throws ParseException, IOException {
 		parser = new PosixParser();
 		commandLine = parser.parse(options, args, stopAtNoOption);
@@ -22,6 +22,11 @@ public class BiopaxPathway {
 	
 	public Set<String> addedEntities = new HashSet<String>();
 	public Set<String> addedInteractions = new HashSet<String>();
+	// same maps as the ID lists, for constant time lookups
+	transient Set<Map<String, Object>> addedInteractionsIDs = new HashSet<Map<String, Object>>();
+	transient Set<Map<String, Object>> addedEntitiesIDs = new HashSet<Map<String, Object>>();
+	// elements of the BioPAX graph already walked to build the pathway
+	transient Set<String> walkedElements = new HashSet<String>();
 	
 	public BiopaxPathway(String name, String dbName, String dbSource, String dbVersion, List<Object> species, List<String> displayName, List<Object> xref) {
 		this.name = name;
@@ -77,14 +82,21 @@ public class BiopaxPathway {
 		}
 	}
 	
+	/**
+	 * Returns false if the element was already walked.
+	 */
+	public boolean addWalkedElement(String element) {
+		return walkedElements.add(element);
+	}
+	
 	public void addInteractionId(Map<String, Object> interactionObj) {
-		if(!allInteractionsIDs.contains(interactionObj)) {
+		if(addedInteractionsIDs.add(interactionObj)) {
 			allInteractionsIDs.add(interactionObj);
 		}
 	}
 	
 	public void addEntityId(Map<String, Object> entityObj) {
-		if(!allEntitiesIDs.contains(entityObj)) {
+		if(addedEntitiesIDs.add(entityObj)) {
 			allEntitiesIDs.add(entityObj);
 		}
 	}
@@ -0,0 +1,129 @@
+package org.bioinfo.cellbase.common.pathway;
+
+import java.util.Collection;
+import java.util.Map;
+
+import org.bioinfo.formats.parser.biopax.BioPaxElement;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * Builds the DBObject of a pathway without going through JSON, the documents have the same
+ * fields, in the same order, as JSON.parse(gson.toJson(pathway)): null fields and null map
+ * values are left out, maps become BasicDBObjects and collections BasicDBLists.
+ */
+public class PathwayDBObjectEncoder {
+
+	public static DBObject encode(BiopaxPathway pathway) {
+		BasicDBObject dbObject = new BasicDBObject();
+		put(dbObject, "id", pathway.id);
+		put(dbObject, "name", pathway.name);
+		put(dbObject, "dbName", pathway.dbName);
+		put(dbObject, "dbSource", pathway.dbSource);
+		put(dbObject, "dbVersion", pathway.dbVersion);
+		put(dbObject, "parentPathway", pathway.parentPathway);
+		put(dbObject, "species", pathway.species);
+		put(dbObject, "displayName", pathway.displayName);
+		put(dbObject, "xref", pathway.xref);
+		put(dbObject, "physicalEntities", pathway.physicalEntities);
+		put(dbObject, "subPathways", pathway.subPathways);
+		put(dbObject, "interactions", pathway.interactions);
+		put(dbObject, "allInteractionsIDs", pathway.allInteractionsIDs);
+		put(dbObject, "allEntitiesIDs", pathway.allEntitiesIDs);
+		put(dbObject, "addedEntities", pathway.addedEntities);
+		put(dbObject, "addedInteractions", pathway.addedInteractions);
+		return dbObject;
+	}
+
+	public static DBObject encode(SubPathway subPathway) {
+		BasicDBObject dbObject = new BasicDBObject();
+		put(dbObject, "name", subPathway.name);
+		put(dbObject, "displayName", subPathway.displayName);
+		put(dbObject, "subPathways", subPathway.subPathways);
+		return dbObject;
+	}
+
+	public static DBObject encode(Interaction interaction) {
+		BasicDBObject dbObject = new BasicDBObject();
+		put(dbObject, "id", interaction.id);
+		put(dbObject, "name", interaction.name);
+		put(dbObject, "type", interaction.type);
+		put(dbObject, "params", interaction.params);
+		return dbObject;
+	}
+
+	public static DBObject encode(PhysicalEntity physicalEntity) {
+		BasicDBObject dbObject = new BasicDBObject();
+		put(dbObject, "name", physicalEntity.name);
+		put(dbObject, "type", physicalEntity.type);
+		put(dbObject, "params", physicalEntity.params);
+		return dbObject;
+	}
+
+	public static DBObject encode(ComplexComponent complexComponent) {
+		BasicDBObject dbObject = new BasicDBObject();
+		put(dbObject, "name", complexComponent.getName());
+		put(dbObject, "type", complexComponent.getType());
+		put(dbObject, "dbName", complexComponent.getDbName());
+		put(dbObject, "dbId", complexComponent.getDbId());
+		return dbObject;
+	}
+
+	/**
+	 * Stoichiometry params hold the BioPax elements.
+	 */
+	public static DBObject encode(BioPaxElement bioPaxElement) {
+		BasicDBObject dbObject = new BasicDBObject();
+		put(dbObject, "Id", bioPaxElement.getId());
+		put(dbObject, "bioPaxClassName", bioPaxElement.getBioPaxClassName());
+		put(dbObject, "params", bioPaxElement.getParams());
+		return dbObject;
+	}
+
+	/**
+	 * Strings, numbers and booleans are stored as they are.
+	 */
+	public static Object encodeValue(Object value) {
+		if(value instanceof Map) {
+			BasicDBObject dbObject = new BasicDBObject();
+			for(Map.Entry<?, ?> entry: ((Map<?, ?>) value).entrySet()) {
+				put(dbObject, String.valueOf(entry.getKey()), entry.getValue());
+			}
+			return dbObject;
+		}
+		if(value instanceof Collection) {
+			BasicDBList dbList = new BasicDBList();
+			for(Object element: (Collection<?>) value) {
+				dbList.add(encodeValue(element));
+			}
+			return dbList;
+		}
+		if(value instanceof BiopaxPathway) {
+			return encode((BiopaxPathway) value);
+		}
+		if(value instanceof SubPathway) {
+			return encode((SubPathway) value);
+		}
+		if(value instanceof Interaction) {
+			return encode((Interaction) value);
+		}
+		if(value instanceof PhysicalEntity) {
+			return encode((PhysicalEntity) value);
+		}
+		if(value instanceof ComplexComponent) {
+			return encode((ComplexComponent) value);
+		}
+		if(value instanceof BioPaxElement) {
+			return encode((BioPaxElement) value);
+		}
+		return value;
+	}
+
+	private static void put(BasicDBObject dbObject, String key, Object value) {
+		if(value != null) {
+			dbObject.put(key, encodeValue(value));
+		}
+	}
+}
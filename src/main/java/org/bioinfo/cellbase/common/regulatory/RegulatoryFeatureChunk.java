@@ -0,0 +1,120 @@
+package org.bioinfo.cellbase.common.regulatory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.bioinfo.cellbase.lib.common.GenericFeature;
+
+/**
+ * The features of all the regulatory tables overlapping a chunk, featureTypeIndex has the
+ * positions in features of the features of each type, sorted by type. Types are values, not
+ * field names, they can have '.' as H2A.Z and MongoDB does not take it in field names.
+ */
+public class RegulatoryFeatureChunk {
+
+	private String chromosome;
+	private int chunkId;
+	private int start;
+	private int end;
+	private List<GenericFeature> features;
+	private List<FeatureTypePositions> featureTypeIndex;
+
+	public RegulatoryFeatureChunk(String chromosome, int chunkId, int start, int end, List<GenericFeature> features) {
+		this.chromosome = chromosome;
+		this.chunkId = chunkId;
+		this.start = start;
+		this.end = end;
+		this.features = features;
+		Map<String, List<Integer>> featureTypePositions = new TreeMap<>();
+		for(int i = 0; i < features.size(); i++) {
+			String featureType = features.get(i).getFeatureType();
+			List<Integer> positions = featureTypePositions.get(featureType);
+			if(positions == null) {
+				positions = new ArrayList<>();
+				featureTypePositions.put(featureType, positions);
+			}
+			positions.add(i);
+		}
+		this.featureTypeIndex = new ArrayList<>(featureTypePositions.size());
+		for(Map.Entry<String, List<Integer>> entry: featureTypePositions.entrySet()) {
+			featureTypeIndex.add(new FeatureTypePositions(entry.getKey(), entry.getValue()));
+		}
+	}
+
+	public String getChromosome() {
+		return chromosome;
+	}
+
+	public void setChromosome(String chromosome) {
+		this.chromosome = chromosome;
+	}
+
+	public int getChunkId() {
+		return chunkId;
+	}
+
+	public void setChunkId(int chunkId) {
+		this.chunkId = chunkId;
+	}
+
+	public int getStart() {
+		return start;
+	}
+
+	public void setStart(int start) {
+		this.start = start;
+	}
+
+	public int getEnd() {
+		return end;
+	}
+
+	public void setEnd(int end) {
+		this.end = end;
+	}
+
+	public List<GenericFeature> getFeatures() {
+		return features;
+	}
+
+	public void setFeatures(List<GenericFeature> features) {
+		this.features = features;
+	}
+
+	public List<FeatureTypePositions> getFeatureTypeIndex() {
+		return featureTypeIndex;
+	}
+
+	public void setFeatureTypeIndex(List<FeatureTypePositions> featureTypeIndex) {
+		this.featureTypeIndex = featureTypeIndex;
+	}
+
+	public static class FeatureTypePositions {
+
+		private String featureType;
+		private List<Integer> positions;
+
+		public FeatureTypePositions(String featureType, List<Integer> positions) {
+			this.featureType = featureType;
+			this.positions = positions;
+		}
+
+		public String getFeatureType() {
+			return featureType;
+		}
+
+		public void setFeatureType(String featureType) {
+			this.featureType = featureType;
+		}
+
+		public List<Integer> getPositions() {
+			return positions;
+		}
+
+		public void setPositions(List<Integer> positions) {
+			this.positions = positions;
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package org.bioinfo.cellbase.common.variation;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable list of consequence types stored as a bitset of codes, one bit per Sequence Ontology
+ * term of TERMS. Terms are listed in code order, the order of the consequence_types SET of the
+ * Ensembl variation schema, so a list read from Ensembl is iterated, and serialized by Gson,
+ * exactly as it was written. Testing a consequence type is a bit test.
+ */
+public class ConsequenceTypes extends AbstractList<String> {
+
+	private static final String[] TERMS = {"splice_acceptor_variant", "splice_donor_variant", "stop_lost",
+		"coding_sequence_variant", "missense_variant", "stop_gained", "synonymous_variant", "frameshift_variant",
+		"nc_transcript_variant", "non_coding_exon_variant", "mature_miRNA_variant", "NMD_transcript_variant",
+		"5_prime_UTR_variant", "3_prime_UTR_variant", "incomplete_terminal_codon_variant", "intron_variant",
+		"splice_region_variant", "downstream_gene_variant", "upstream_gene_variant", "initiator_codon_variant",
+		"stop_retained_variant", "inframe_insertion", "inframe_deletion", "transcript_ablation",
+		"transcript_fusion", "transcript_amplification", "transcript_translocation", "TFBS_ablation",
+		"TFBS_fusion", "TF_binding_site_variant", "TFBS_amplification", "TFBS_translocation",
+		"regulatory_region_ablation", "regulatory_region_fusion", "regulatory_region_variant",
+		"regulatory_region_amplification", "regulatory_region_translocation", "feature_elongation",
+		"feature_truncation", "intergenic_variant"};
+
+	private static final Map<String, Integer> CODES = new HashMap<>();
+	static {
+		for(int code = 0; code < TERMS.length; code++) {
+			CODES.put(TERMS[code], code);
+		}
+	}
+
+	private final long bits;
+
+	public ConsequenceTypes(long bits) {
+		if((bits >>> TERMS.length) != 0) {
+			throw new IllegalArgumentException("Unknown consequence type codes in " + Long.toBinaryString(bits));
+		}
+		this.bits = bits;
+	}
+
+	/**
+	 * Parses a comma separated list of consequence types. Lists with unknown or repeated terms, or not
+	 * in code order, can not be encoded without changing them and are returned as plain immutable lists.
+	 */
+	public static List<String> valueOf(String consequenceTypes) {
+		String[] terms = consequenceTypes.split(",");
+		long bits = 0;
+		int previousCode = -1;
+		for(String term: terms) {
+			int code = getCode(term);
+			if(code <= previousCode) {
+				return Collections.unmodifiableList(Arrays.asList(terms));
+			}
+			bits |= 1L << code;
+			previousCode = code;
+		}
+		return new ConsequenceTypes(bits);
+	}
+
+	/**
+	 * Returns -1 for terms not in the dictionary.
+	 */
+	public static int getCode(String term) {
+		Integer code = CODES.get(term);
+		return (code != null) ? code : -1;
+	}
+
+	public static String getTerm(int code) {
+		return TERMS[code];
+	}
+
+	public long getBits() {
+		return bits;
+	}
+
+	public boolean containsCode(int code) {
+		return code >= 0 && code < TERMS.length && (bits & (1L << code)) != 0;
+	}
+
+	@Override
+	public boolean contains(Object term) {
+		return (term instanceof String) && containsCode(getCode((String) term));
+	}
+
+	@Override
+	public String get(int index) {
+		if(index < 0 || index >= size()) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+		}
+		long remaining = bits;
+		for(int i = 0; i < index; i++) {
+			remaining &= remaining - 1;
+		}
+		return TERMS[Long.numberOfTrailingZeros(remaining)];
+	}
+
+	@Override
+	public int size() {
+		return Long.bitCount(bits);
+	}
+}
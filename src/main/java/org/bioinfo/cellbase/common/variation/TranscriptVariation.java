@@ -80,6 +80,12 @@ public class TranscriptVariation {
 	public void setConsequenceTypes(List<String> consequenceTypes) {
 		this.consequenceTypes = consequenceTypes;
 	}
+	/**
+	 * A bit test when consequence types are a ConsequenceTypes list.
+	 */
+	public boolean hasConsequenceType(String consequenceType) {
+		return consequenceTypes != null && consequenceTypes.contains(consequenceType);
+	}
 	public int getCdsStart() {
 		return cdsStart;
 	}
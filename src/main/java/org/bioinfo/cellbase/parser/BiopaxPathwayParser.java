@@ -6,9 +6,13 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 import org.bioinfo.cellbase.common.pathway.BiopaxPathway;
 import org.bioinfo.cellbase.common.pathway.Interaction;
+import org.bioinfo.cellbase.common.pathway.PathwayDBObjectEncoder;
 import org.bioinfo.cellbase.common.pathway.PhysicalEntity;
 import org.bioinfo.cellbase.common.pathway.SubPathway;
 import org.bioinfo.commons.io.utils.IOUtils;
@@ -16,10 +20,7 @@ import org.bioinfo.formats.exception.FileFormatException;
 import org.bioinfo.formats.parser.biopax.BioPax;
 import org.bioinfo.formats.parser.biopax.BioPaxParser;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import com.mongodb.DBObject;
-import com.mongodb.util.JSON;
 
 
 public class BiopaxPathwayParser {
@@ -27,18 +28,48 @@ public class BiopaxPathwayParser {
 	protected Map<String, String> parentMap = new HashMap<String, String>();
 	protected Map<String, HashMap<String, HashMap<String, String>>> ecNumberMap = new HashMap<String, HashMap<String, HashMap<String, String>>>();
 	
+	// pathways built by each fork-join task
+	private static final int PATHWAYS_PER_THREAD = 16;
+	
+	// resolved once per parse and shared by all the pathways referencing them, and the threads building them
+	protected Map<String, Map<String, Object>> idNameCache = new ConcurrentHashMap<String, Map<String, Object>>();
+	protected Map<String, PhysicalEntity> physicalEntityCache = new ConcurrentHashMap<String, PhysicalEntity>();
+	protected Map<String, Object> xrefCache = new ConcurrentHashMap<String, Object>();
+	protected Map<String, Object> cellularLocationCache = new ConcurrentHashMap<String, Object>();
+	
 	public BiopaxPathwayParser() {
 	}
 	
 	public List<DBObject> parseToJson(String filename) throws IOException, SecurityException, NoSuchMethodException, FileFormatException {
-//		String json = "";
-		List<BiopaxPathway> pathwayList = new ArrayList<BiopaxPathway>();
-		List<DBObject> dbObjList = new ArrayList<DBObject>();
-		Gson gson = new GsonBuilder().create();
+		final List<DBObject> dbObjList = new ArrayList<DBObject>();
+		parseToJson(filename, new DBObjectSink() {
+			@Override
+			public void add(DBObject dbObject) {
+				dbObjList.add(dbObject);
+			}
+		});
+		return dbObjList;
+	}
 
+	/**
+	 * Each pathway is encoded and passed to the sink as soon as it is finished, pathways are
+	 * not kept in memory.
+	 */
+	public void parseToJson(String filename, DBObjectSink sink) throws IOException, SecurityException, NoSuchMethodException, FileFormatException {
+		parseToJson(filename, sink, 1);
+	}
+
+	/**
+	 * Same pathways in the same order, built by numThreads threads.
+	 */
+	public void parseToJson(String filename, DBObjectSink sink, int numThreads) throws IOException, SecurityException, NoSuchMethodException, FileFormatException {
 		try {
 			BioPaxParser parser = new BioPaxParser(filename);
 			bioPax = parser.parse();
+			idNameCache.clear();
+			physicalEntityCache.clear();
+			xrefCache.clear();
+			cellularLocationCache.clear();
 			
 			// Calculate parents
 			for(String pathway: bioPax.getPathwayList() ) {
@@ -47,181 +78,14 @@ public class BiopaxPathwayParser {
 			}
 			
 //			int cont = 0;
-			for(String pathway: bioPax.getPathwayList()) {
-//				System.out.println("Pathway: "+pathway);
-//				if(cont++ == 10) break;
-				
-				String name = bioPax.getElementMap().get(pathway).getId();
-				Map<String, List<String>> params = bioPax.getElementMap().get(pathway).getParams();
-				List<Object> species = resolveSpecies(params.get("organism-id"));
-				List<String> displayName = params.get("displayName");
-				List<Object> xref = resolveXref(params.get("xref-id"));
-				BiopaxPathway p = new BiopaxPathway(name, "Reactome", "Reactome", "39", species, displayName, xref);
-				List<String> pathwayComponents = params.get("pathwayComponent-id");
-				
-				// loop pathway components
-				if(pathwayComponents != null) {
-					for(String component: pathwayComponents) {
-//						System.out.println("Component: "+component);
-						String type = bioPax.getElementMap().get(component).getBioPaxClassName();
-						if(type.equalsIgnoreCase("Pathway")) {
-							SubPathway sp = searchSubPathways(component, p);
-							if(sp != null) p.getSubPathways().add(sp);
-						}
-						else if(type.equalsIgnoreCase("GeneticInteraction") || type.equalsIgnoreCase("MolecularInteraction") || type.equalsIgnoreCase("TemplateReaction") || type.equalsIgnoreCase("Catalysis") || type.equalsIgnoreCase("Modulation") || type.equalsIgnoreCase("TemplateReactionRegulation") || type.equalsIgnoreCase("BiochemicalReaction") || type.equalsIgnoreCase("ComplexAssembly") || type.equalsIgnoreCase("Degradation") || type.equalsIgnoreCase("Transport") || type.equalsIgnoreCase("TransportWithBiochemicalReaction")) {
-//							Map<String, List<String>> interactionParams = bioPax.getElementMap().get(component).getParams();
-							
-							Map<String, List<Object>> interactionParams = new HashMap<String, List<Object>>();
-							for (Map.Entry<String, List<String>> entry : bioPax.getElementMap().get(component).getParams().entrySet()) {
-							    String key = entry.getKey();
-							    List<Object> values = new ArrayList<Object>(entry.getValue());
-							    
-							    interactionParams.put(key, values);
-							}
-							
-							if(interactionParams.containsKey("participantStoichiometry-id")) {
-								List<Object> stoichiometry = new ArrayList<Object>();
-								for(Object participant: interactionParams.get("participantStoichiometry-id")) {
-									stoichiometry.add(bioPax.getElementMap().get(participant));
-								}
-								interactionParams.remove("participantStoichiometry-id");
-								interactionParams.put("participantStoichiometry", stoichiometry);
-							}
-							
-							if(interactionParams.containsKey("left-id")) {
-								List<Object> left = new ArrayList<Object>();
-								for(final Object leftId: interactionParams.get("left-id")) {
-									String compId = bioPax.getElementMap().get(leftId).getId();
-									List<String> dispName = bioPax.getElementMap().get(leftId).getParams().get("displayName");
-									if(dispName == null) {
-										dispName = bioPax.getElementMap().get(leftId).getParams().get("name");
-									}
-									Map<String, Object> leftParams = new HashMap<String, Object>();
-									leftParams.put("id", compId);
-									leftParams.put("name", dispName.get(0));
-									left.add(leftParams);
-								}
-								interactionParams.remove("left-id");
-								interactionParams.put("left", left);
-							}
-							
-							if(interactionParams.containsKey("right-id")) {
-								List<Object> right = new ArrayList<Object>();
-								for(final Object rightId: interactionParams.get("right-id")) {
-									String compId = bioPax.getElementMap().get(rightId).getId();
-									List<String> dispName = bioPax.getElementMap().get(rightId).getParams().get("displayName");
-									if(dispName == null) {
-										dispName = bioPax.getElementMap().get(rightId).getParams().get("name");
-									}
-									Map<String, Object> rightParams = new HashMap<String, Object>();
-									rightParams.put("id", compId);
-									rightParams.put("name", dispName.get(0));
-									right.add(rightParams);
-								}
-								interactionParams.remove("right-id");
-								interactionParams.put("right", right);
-							}
-							
-							if(interactionParams.containsKey("participant")) {
-								List<Object> participant = new ArrayList<Object>();
-								for(final Object participantId: interactionParams.get("participant")) {
-									String compId = bioPax.getElementMap().get(participantId).getId();
-									List<String> dispName = bioPax.getElementMap().get(participantId).getParams().get("displayName");
-									if(dispName == null) {
-										dispName = bioPax.getElementMap().get(participantId).getParams().get("name");
-									}
-									Map<String, Object> participantParams = new HashMap<String, Object>();
-									participantParams.put("id", compId);
-									participantParams.put("name", dispName.get(0));
-									participant.add(participantParams);
-								}
-//								interactionParams.remove("participant");
-								interactionParams.put("participant", participant);
-							}
-							
-							if(interactionParams.containsKey("controller")) {
-								List<Object> controller = new ArrayList<Object>();
-								for(final Object controllerId: interactionParams.get("controller")) {
-									String compId = bioPax.getElementMap().get(controllerId).getId();
-									List<String> dispName = bioPax.getElementMap().get(controllerId).getParams().get("displayName");
-									if(dispName == null) {
-										dispName = bioPax.getElementMap().get(controllerId).getParams().get("name");
-									}
-									Map<String, Object> controllerParams = new HashMap<String, Object>();
-									controllerParams.put("id", compId);
-									controllerParams.put("name", dispName.get(0));
-									controller.add(controllerParams);
-								}
-//								interactionParams.remove("controller");
-								interactionParams.put("controller", controller);
-							}
-							
-							if(interactionParams.containsKey("controlled")) {
-								List<Object> controlled = new ArrayList<Object>();
-								for(final Object controlledId: interactionParams.get("controlled")) {
-									String compId = bioPax.getElementMap().get(controlledId).getId();
-									List<String> dispName = bioPax.getElementMap().get(controlledId).getParams().get("displayName");
-									if(dispName == null) {
-										dispName = bioPax.getElementMap().get(controlledId).getParams().get("name");
-									}
-									Map<String, Object> controlledParams = new HashMap<String, Object>();
-									controlledParams.put("id", compId);
-									controlledParams.put("name", dispName.get(0));
-									controlled.add(controlledParams);
-								}
-//								interactionParams.remove("controlled");
-								interactionParams.put("controlled", controlled);
-							}
-							
-							if(interactionParams.containsKey("xref-id")) {
-								List<String> xrefTmp = new ArrayList<String>();
-								for(Object o : interactionParams.get("xref-id")) xrefTmp.add((String) o);
-								interactionParams.put("xref", resolveXref(xrefTmp));
-								interactionParams.remove("xref-id");
-							}
-							
-							if(interactionParams.containsKey("eCNumber")) {
-								String ecNumber = (String) interactionParams.get("eCNumber").get(0);
-								List<Object> l = new ArrayList<Object>();
-								
-								@SuppressWarnings("unchecked")
-								HashMap<String, String> m = (HashMap<String, String>) species.get(0);
-								String speciesName = m.get("name");
-								
-								if(ecNumberMap.containsKey(speciesName) && ecNumberMap.get(speciesName).containsKey(ecNumber)){
-									l.add(ecNumberMap.get(speciesName).get(ecNumber));
-									interactionParams.put("uniprot", l);
-								}
-							}
-							
-//							interactionParams.putAll((Map<? extends String, ? extends List<Object>>) bioPax.getElementMap().get(component).getParams());
-							p.addInteraction(new Interaction(bioPax.getElementMap().get(component).getId(), type, interactionParams));
-//							System.out.println("Found interaction: "+type);
-							
-							String compId = bioPax.getElementMap().get(component).getId();
-							List<String> dispName = bioPax.getElementMap().get(component).getParams().get("displayName");
-							if(dispName == null) {
-								dispName = bioPax.getElementMap().get(component).getParams().get("name");
-							}
-							Map<String, Object> interactParams = new HashMap<String, Object>();
-							interactParams.put("id", compId);
-							interactParams.put("name", dispName.get(0));
-							p.addInteractionId(interactParams);
-							
-							addPhysicalEntities(component, p, false);
-							
-//							addPhysicalEntityToInteraction(component, p);
-						}
-					}
+			if(numThreads > 1) {
+				buildPathwaysInParallel(bioPax.getPathwayList(), sink, numThreads);
+			}else {
+				for(String pathway: bioPax.getPathwayList()) {
+//					System.out.println("Pathway: "+pathway);
+//					if(cont++ == 10) break;
+					sink.add(PathwayDBObjectEncoder.encode(buildPathway(pathway)));
 				}
-				
-				// Set parent
-				if(parentMap.containsKey(name)) p.setParentPathway(parentMap.get(name));
-				else p.setParentPathway("none");
-				p.addedEntities = null;
-				p.addedInteractions = null;
-				pathwayList.add(p);
-				dbObjList.add((DBObject)JSON.parse(gson.toJson(p)));
 			}
 //			System.out.println(gson.toJson(pathwayList));
 //			String json = g.toJson(pathwayList);
@@ -235,7 +99,169 @@ public class BiopaxPathwayParser {
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
-		return dbObjList;
+	}
+	
+	/**
+	 * Builds the pathway from the parsed BioPAX graph, only reads the shared parse results
+	 * so pathways can be built by different threads.
+	 */
+	public BiopaxPathway buildPathway(String pathway) {
+		String name = bioPax.getElementMap().get(pathway).getId();
+		Map<String, List<String>> params = bioPax.getElementMap().get(pathway).getParams();
+		List<Object> species = resolveSpecies(params.get("organism-id"));
+		List<String> displayName = params.get("displayName");
+		List<Object> xref = resolveXref(params.get("xref-id"));
+		BiopaxPathway p = new BiopaxPathway(name, "Reactome", "Reactome", "39", species, displayName, xref);
+		List<String> pathwayComponents = params.get("pathwayComponent-id");
+		
+		// loop pathway components
+		if(pathwayComponents != null) {
+			for(String component: pathwayComponents) {
+//				System.out.println("Component: "+component);
+				String type = bioPax.getElementMap().get(component).getBioPaxClassName();
+				if(type.equalsIgnoreCase("Pathway")) {
+					SubPathway sp = searchSubPathways(component, p);
+					if(sp != null) p.getSubPathways().add(sp);
+				}
+				else if(type.equalsIgnoreCase("GeneticInteraction") || type.equalsIgnoreCase("MolecularInteraction") || type.equalsIgnoreCase("TemplateReaction") || type.equalsIgnoreCase("Catalysis") || type.equalsIgnoreCase("Modulation") || type.equalsIgnoreCase("TemplateReactionRegulation") || type.equalsIgnoreCase("BiochemicalReaction") || type.equalsIgnoreCase("ComplexAssembly") || type.equalsIgnoreCase("Degradation") || type.equalsIgnoreCase("Transport") || type.equalsIgnoreCase("TransportWithBiochemicalReaction")) {
+//					Map<String, List<String>> interactionParams = bioPax.getElementMap().get(component).getParams();
+					
+					Map<String, List<Object>> interactionParams = new HashMap<String, List<Object>>();
+					for (Map.Entry<String, List<String>> entry : bioPax.getElementMap().get(component).getParams().entrySet()) {
+					    String key = entry.getKey();
+					    List<Object> values = new ArrayList<Object>(entry.getValue());
+					    
+					    interactionParams.put(key, values);
+					}
+					
+					if(interactionParams.containsKey("participantStoichiometry-id")) {
+						List<Object> stoichiometry = new ArrayList<Object>();
+						for(Object participant: interactionParams.get("participantStoichiometry-id")) {
+							stoichiometry.add(bioPax.getElementMap().get(participant));
+						}
+						interactionParams.remove("participantStoichiometry-id");
+						interactionParams.put("participantStoichiometry", stoichiometry);
+					}
+					
+					if(interactionParams.containsKey("left-id")) {
+						List<Object> left = getIdNames(interactionParams.get("left-id"));
+						interactionParams.remove("left-id");
+						interactionParams.put("left", left);
+					}
+					
+					if(interactionParams.containsKey("right-id")) {
+						List<Object> right = getIdNames(interactionParams.get("right-id"));
+						interactionParams.remove("right-id");
+						interactionParams.put("right", right);
+					}
+					
+					if(interactionParams.containsKey("participant")) {
+						List<Object> participant = getIdNames(interactionParams.get("participant"));
+//						interactionParams.remove("participant");
+						interactionParams.put("participant", participant);
+					}
+					
+					if(interactionParams.containsKey("controller")) {
+						List<Object> controller = getIdNames(interactionParams.get("controller"));
+//						interactionParams.remove("controller");
+						interactionParams.put("controller", controller);
+					}
+					
+					if(interactionParams.containsKey("controlled")) {
+						List<Object> controlled = getIdNames(interactionParams.get("controlled"));
+//						interactionParams.remove("controlled");
+						interactionParams.put("controlled", controlled);
+					}
+					
+					if(interactionParams.containsKey("xref-id")) {
+						List<String> xrefTmp = new ArrayList<String>();
+						for(Object o : interactionParams.get("xref-id")) xrefTmp.add((String) o);
+						interactionParams.put("xref", resolveXref(xrefTmp));
+						interactionParams.remove("xref-id");
+					}
+					
+					if(interactionParams.containsKey("eCNumber")) {
+						String ecNumber = (String) interactionParams.get("eCNumber").get(0);
+						List<Object> l = new ArrayList<Object>();
+						
+						@SuppressWarnings("unchecked")
+						HashMap<String, String> m = (HashMap<String, String>) species.get(0);
+						String speciesName = m.get("name");
+						
+						if(ecNumberMap.containsKey(speciesName) && ecNumberMap.get(speciesName).containsKey(ecNumber)){
+							l.add(ecNumberMap.get(speciesName).get(ecNumber));
+							interactionParams.put("uniprot", l);
+						}
+					}
+					
+//					interactionParams.putAll((Map<? extends String, ? extends List<Object>>) bioPax.getElementMap().get(component).getParams());
+					p.addInteraction(new Interaction(bioPax.getElementMap().get(component).getId(), type, interactionParams));
+//					System.out.println("Found interaction: "+type);
+					
+					p.addInteractionId(getIdName(component));
+					
+					addPhysicalEntities(component, p, false);
+					
+//					addPhysicalEntityToInteraction(component, p);
+				}
+			}
+		}
+		
+		// Set parent
+		if(parentMap.containsKey(name)) p.setParentPathway(parentMap.get(name));
+		else p.setParentPathway("none");
+		p.addedEntities = null;
+		p.addedInteractions = null;
+		return p;
+	}
+	
+	/**
+	 * Pathways are built and encoded by a fork-join pool, a window of pathways at a time, and
+	 * passed to the sink in the same order as the sequential build.
+	 */
+	private void buildPathwaysInParallel(List<String> pathways, DBObjectSink sink, int numThreads) throws IOException {
+		ForkJoinPool forkJoinPool = new ForkJoinPool(numThreads);
+		try {
+			int windowSize = numThreads * PATHWAYS_PER_THREAD;
+			for(int from = 0; from < pathways.size(); from += windowSize) {
+				List<DBObject> dbObjects = forkJoinPool.invoke(new BuildPathwaysTask(pathways, from, Math.min(from + windowSize, pathways.size())));
+				for(DBObject dbObject: dbObjects) {
+					sink.add(dbObject);
+				}
+			}
+		} finally {
+			forkJoinPool.shutdown();
+		}
+	}
+	
+	/**
+	 * Splits the pathway range in halves down to single pathways, results keep the range order.
+	 */
+	private class BuildPathwaysTask extends RecursiveTask<List<DBObject>> {
+		private static final long serialVersionUID = -3185213449542375204L;
+		private final List<String> pathways;
+		private final int from, to;
+		
+		BuildPathwaysTask(List<String> pathways, int from, int to) {
+			this.pathways = pathways;
+			this.from = from;
+			this.to = to;
+		}
+		
+		@Override
+		protected List<DBObject> compute() {
+			if(to - from == 1) {
+				List<DBObject> dbObjects = new ArrayList<DBObject>(1);
+				dbObjects.add(PathwayDBObjectEncoder.encode(buildPathway(pathways.get(from))));
+				return dbObjects;
+			}
+			int middle = (from + to) >>> 1;
+			BuildPathwaysTask right = new BuildPathwaysTask(pathways, middle, to);
+			right.fork();
+			List<DBObject> dbObjects = new BuildPathwaysTask(pathways, from, middle).compute();
+			dbObjects.addAll(right.join());
+			return dbObjects;
+		}
 	}
 	
 	public SubPathway searchSubPathways(String component, BiopaxPathway pathway) {
@@ -258,16 +284,8 @@ public class BiopaxPathwayParser {
 		else if(type.equalsIgnoreCase("GeneticInteraction") || type.equalsIgnoreCase("MolecularInteraction") || type.equalsIgnoreCase("TemplateReaction") || type.equalsIgnoreCase("Catalysis") || type.equalsIgnoreCase("Modulation") || type.equalsIgnoreCase("TemplateReactionRegulation") || type.equalsIgnoreCase("BiochemicalReaction") || type.equalsIgnoreCase("ComplexAssembly") || type.equalsIgnoreCase("Degradation") || type.equalsIgnoreCase("Transport") || type.equalsIgnoreCase("TransportWithBiochemicalReaction")) {
 //			System.out.println("Found interaction: "+type+" in subpathway");
 //			p.interactions.add(new Interaction(bioPax.getElementMap().get(component).getId()));
-			String compId = bioPax.getElementMap().get(component).getId();
-			List<String> dispName = bioPax.getElementMap().get(component).getParams().get("displayName");
-			if(dispName == null) {
-				dispName = bioPax.getElementMap().get(component).getParams().get("name");
-			}
-			Map<String, Object> interactParams = new HashMap<String, Object>();
-			interactParams.put("id", compId);
-			interactParams.put("name", dispName.get(0));
-			pathway.addInteractionId(interactParams);
-			addPhysicalEntities(compId, pathway, true);
+			pathway.addInteractionId(getIdName(component));
+			addPhysicalEntities(bioPax.getElementMap().get(component).getId(), pathway, true);
 		}
 //		else if(type.equalsIgnoreCase("PhysicalEntity") || type.equalsIgnoreCase("Complex") || type.equalsIgnoreCase("DNA") || type.equalsIgnoreCase("DNARegion") || type.equalsIgnoreCase("Protein") || type.equalsIgnoreCase("RNA") || type.equalsIgnoreCase("RNARegion") || type.equalsIgnoreCase("SmallMolecule")) {
 //			System.out.println("Found physical entity: "+type+" in subpathway");
@@ -278,6 +296,9 @@ public class BiopaxPathwayParser {
 	}
 	
 	public void addPhysicalEntities(String interaction, BiopaxPathway pathway, boolean onlyIDs) {
+		if(!walk((onlyIDs ? "ids " : "entities ") + interaction, pathway)) {
+			return;
+		}
 		String type = bioPax.getElementMap().get(interaction).getBioPaxClassName();
 		List<String> tempList = new ArrayList<String>();
 		
@@ -341,16 +362,9 @@ public class BiopaxPathwayParser {
 		
 		if(onlyIDs) {
 			for(String entity: tempList) {
-				String compId = bioPax.getElementMap().get(entity).getId();
-				List<String> dispName = bioPax.getElementMap().get(entity).getParams().get("displayName");
-				if(dispName == null) {
-					dispName = bioPax.getElementMap().get(entity).getParams().get("name");
-				}
-				Map<String, Object> entityObj = new HashMap<String, Object>();
-				entityObj.put("id", compId);
-				entityObj.put("name", dispName.get(0));
+				Map<String, Object> entityObj = getIdName(entity);
 //				pathway.addInteractionId(entityObj);
-				addPhysicalEntities(compId, pathway, true);
+				addPhysicalEntities(bioPax.getElementMap().get(entity).getId(), pathway, true);
 				pathway.addEntityId(entityObj);
 			}
 		}
@@ -364,6 +378,32 @@ public class BiopaxPathwayParser {
 	}
 	
 	public void addPhysicalEntity(String entity, BiopaxPathway pathway) {
+		if(!walk("entity " + entity, pathway)) {
+			return;
+		}
+		String entityType = bioPax.getElementMap().get(entity).getBioPaxClassName();
+		pathway.addPhysicalEntity(getPhysicalEntity(entity));
+		
+		Map<String, Object> entityObj = getIdName(entity);
+//		pathway.addInteractionId(entityObj);
+		addPhysicalEntities(bioPax.getElementMap().get(entity).getId(), pathway, true);
+		pathway.addEntityId(entityObj);
+		
+		// If entity is a complex add too the component-id entity
+		List<String> components = bioPax.getElementMap().get(entity).getParams().get("component-id");
+		if(entityType.equals("Complex") && components != null) {
+			addPhysicalEntity(components.get(0), pathway);
+		}
+	}
+	
+	/**
+	 * The entity with its xrefs, cellular locations and stoichiometry resolved, built once per parse.
+	 */
+	private PhysicalEntity getPhysicalEntity(String entity) {
+		PhysicalEntity physicalEntity = physicalEntityCache.get(entity);
+		if(physicalEntity != null) {
+			return physicalEntity;
+		}
 		String entityType = bioPax.getElementMap().get(entity).getBioPaxClassName();
 		
 //		Map<String, List<String>> entityParams = bioPax.getElementMap().get(entity).getParams();
@@ -399,24 +439,43 @@ public class BiopaxPathwayParser {
 			entityParams.put("componentStoichiometry", stoichiometry);
 		}
 		
-		pathway.addPhysicalEntity(new PhysicalEntity(entity, entityType, entityParams));
-		
-		String compId = bioPax.getElementMap().get(entity).getId();
-		List<String> dispName = bioPax.getElementMap().get(entity).getParams().get("displayName");
-		if(dispName == null) {
-			dispName = bioPax.getElementMap().get(entity).getParams().get("name");
+		physicalEntity = new PhysicalEntity(entity, entityType, entityParams);
+		physicalEntityCache.put(entity, physicalEntity);
+		return physicalEntity;
+	}
+	
+	/**
+	 * The {id, name} summary of the element, name is its first displayName or name.
+	 */
+	private Map<String, Object> getIdName(String element) {
+		Map<String, Object> idName = idNameCache.get(element);
+		if(idName == null) {
+			List<String> dispName = bioPax.getElementMap().get(element).getParams().get("displayName");
+			if(dispName == null) {
+				dispName = bioPax.getElementMap().get(element).getParams().get("name");
+			}
+			idName = new HashMap<String, Object>();
+			idName.put("id", bioPax.getElementMap().get(element).getId());
+			idName.put("name", dispName.get(0));
+			idNameCache.put(element, idName);
 		}
-		Map<String, Object> entityObj = new HashMap<String, Object>();
-		entityObj.put("id", compId);
-		entityObj.put("name", dispName.get(0));
-//		pathway.addInteractionId(entityObj);
-		addPhysicalEntities(compId, pathway, true);
-		pathway.addEntityId(entityObj);
-		
-		// If entity is a complex add too the component-id entity
-		if(entityType.equals("Complex") && entityParams.containsKey("component-id")) {
-			addPhysicalEntity((String) entityParams.get("component-id").get(0), pathway);
+		return idName;
+	}
+	
+	private List<Object> getIdNames(List<Object> elements) {
+		List<Object> idNames = new ArrayList<Object>(elements.size());
+		for(Object element: elements) {
+			idNames.add(getIdName((String) element));
 		}
+		return idNames;
+	}
+	
+	/**
+	 * Returns false if the element was already walked for the pathway. Everything a walk adds
+	 * to a pathway is added once, so walking an element again would add nothing.
+	 */
+	private boolean walk(String element, BiopaxPathway pathway) {
+		return pathway.addWalkedElement(element);
 	}
 	
 //	public void addPhysicalEntityToInteraction(String interaction, BiopaxPathway pathway) {
@@ -511,9 +570,14 @@ public class BiopaxPathwayParser {
 		List<Object> xrefObjList = new ArrayList<Object>();
 		
 		for(String xref : xrefList) {
-			Map<String, String> xrefObj = new HashMap<String, String>();
-			for(String key : bioPax.getElementMap().get(xref).getParams().keySet()) {
-				xrefObj.put(key, bioPax.getElementMap().get(xref).getParams().get(key).get(0));
+			Object xrefObj = xrefCache.get(xref);
+			if(xrefObj == null) {
+				Map<String, String> xrefMap = new HashMap<String, String>();
+				for(String key : bioPax.getElementMap().get(xref).getParams().keySet()) {
+					xrefMap.put(key, bioPax.getElementMap().get(xref).getParams().get(key).get(0));
+				}
+				xrefObj = xrefMap;
+				xrefCache.put(xref, xrefObj);
 			}
 			xrefObjList.add(xrefObj);
 		}
@@ -525,15 +589,20 @@ public class BiopaxPathwayParser {
 		List<Object> cellLocObjList = new ArrayList<Object>();
 		
 		for(String cellLoc : cellLocList) {
-			Map<String, Object> cellLocObj = new HashMap<String, Object>();
-			for(String key : bioPax.getElementMap().get(cellLoc).getParams().keySet()) {
-				List<String> value = bioPax.getElementMap().get(cellLoc).getParams().get(key);
-				if(key.equals("xref-id")) {
-					cellLocObj.put("xref", resolveXref(value));
-				}
-				else {
-					cellLocObj.put(key, value.get(0));
+			Object cellLocObj = cellularLocationCache.get(cellLoc);
+			if(cellLocObj == null) {
+				Map<String, Object> cellLocMap = new HashMap<String, Object>();
+				for(String key : bioPax.getElementMap().get(cellLoc).getParams().keySet()) {
+					List<String> value = bioPax.getElementMap().get(cellLoc).getParams().get(key);
+					if(key.equals("xref-id")) {
+						cellLocMap.put("xref", resolveXref(value));
+					}
+					else {
+						cellLocMap.put(key, value.get(0));
+					}
 				}
+				cellLocObj = cellLocMap;
+				cellularLocationCache.put(cellLoc, cellLocObj);
 			}
 			cellLocObjList.add(cellLocObj);
 		}
@@ -564,15 +633,16 @@ public class BiopaxPathwayParser {
 	public void loadECNumbers(String filename) {
 		try {
 			List<String> lines = IOUtils.readLines(new File(filename));
+			TsvFieldCursor fields = new TsvFieldCursor();
 			for(String line: lines) {
-				String[] fields = line.split("\t");
+				fields.reset(line);
 				
-				String ecNumber = fields[0];
-				String species = fields[3];
+				String ecNumber = fields.stringAt(0);
+				String species = fields.stringAt(3);
 				
 				HashMap<String, String> uniprotObj = new HashMap<String, String>();
-				uniprotObj.put("primaryAccesion", fields[1]);
-				uniprotObj.put("name", fields[2]);
+				uniprotObj.put("primaryAccesion", fields.stringAt(1));
+				uniprotObj.put("name", fields.stringAt(2));
 				
 				if(ecNumberMap.containsKey(species)) {
 					ecNumberMap.get(species).put(ecNumber, uniprotObj);
@@ -0,0 +1,194 @@
+package org.bioinfo.cellbase.parser;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Block gzip (BGZF) output: data is cut in blocks of up to 65280 bytes and every block is written
+ * as an independent gzip member with the BGZF 'BC' extra field holding its compressed size, the
+ * stream ends with the standard empty BGZF block. The output is a plain gzip file (zcat,
+ * GZIPInputStream) that can also be split at block boundaries, and files or parts of files can
+ * be concatenated as they are.
+ * Blocks are compressed by the given ExecutorService, a few blocks per stream are compressed
+ * at the same time and written in order. With a null ExecutorService blocks are compressed by
+ * the writing thread.
+ */
+public class BlockGzipOutputStream extends OutputStream {
+
+	public static final int MAX_BLOCK_DATA_SIZE = 0xff00;
+	private static final int MAX_BLOCK_SIZE = 1 << 16;
+	private static final int HEADER_SIZE = 18;
+	private static final int TRAILER_SIZE = 8;
+	private static final byte[] EMPTY_BLOCK = {0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 'B', 'C', 2, 0,
+		0x1b, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+
+	private final OutputStream out;
+	private final ExecutorService executorService;
+	private final int level;
+	private final int maxBlocksInFlight;
+	private final Deque<Future<byte[]>> blocksInFlight = new ArrayDeque<>();
+
+	private byte[] data = new byte[MAX_BLOCK_DATA_SIZE];
+	private int size;
+	private boolean closed;
+
+	public BlockGzipOutputStream(OutputStream out, ExecutorService executorService, int numThreads) {
+		this(out, executorService, numThreads, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	public BlockGzipOutputStream(OutputStream out, ExecutorService executorService, int numThreads, int level) {
+		this.out = out;
+		this.executorService = executorService;
+		this.level = level;
+		// enough blocks to keep numThreads busy while the first ones are written
+		this.maxBlocksInFlight = 2 * Math.max(1, numThreads);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if(size == data.length) {
+			writeBlock();
+		}
+		data[size++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while(len > 0) {
+			if(size == data.length) {
+				writeBlock();
+			}
+			int n = Math.min(len, data.length - size);
+			System.arraycopy(b, off, data, size, n);
+			size += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Buffered data is written as a short block, frequent flushes make the compression worse.
+	 */
+	@Override
+	public void flush() throws IOException {
+		if(size > 0) {
+			writeBlock();
+		}
+		while(!blocksInFlight.isEmpty()) {
+			out.write(getBlock(blocksInFlight.poll()));
+		}
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(!closed) {
+			closed = true;
+			try {
+				flush();
+				out.write(EMPTY_BLOCK);
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+	private void writeBlock() throws IOException {
+		final byte[] blockData = data;
+		final int blockSize = size;
+		data = new byte[MAX_BLOCK_DATA_SIZE];
+		size = 0;
+		if(executorService == null) {
+			out.write(compress(blockData, blockSize, level));
+			return;
+		}
+		blocksInFlight.add(executorService.submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() {
+				return compress(blockData, blockSize, level);
+			}
+		}));
+		while(blocksInFlight.size() > maxBlocksInFlight || (!blocksInFlight.isEmpty() && blocksInFlight.peek().isDone())) {
+			out.write(getBlock(blocksInFlight.poll()));
+		}
+	}
+
+	private static byte[] getBlock(Future<byte[]> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Returns the complete gzip member of the block.
+	 */
+	private static byte[] compress(byte[] data, int size, int level) {
+		byte[] buffer = new byte[MAX_BLOCK_SIZE];
+		int compressedSize = deflate(data, size, level, buffer);
+		if(compressedSize < 0) {
+			// incompressible data, stored blocks always fit
+			compressedSize = deflate(data, size, Deflater.NO_COMPRESSION, buffer);
+		}
+		int blockSize = HEADER_SIZE + compressedSize + TRAILER_SIZE;
+		byte[] block = new byte[blockSize];
+		block[0] = 0x1f;
+		block[1] = (byte) 0x8b;
+		block[2] = 8;
+		block[3] = 4;
+		// mtime, extra flags and OS (unknown)
+		block[9] = (byte) 0xff;
+		block[10] = 6;
+		block[12] = 'B';
+		block[13] = 'C';
+		block[14] = 2;
+		writeShort(block, 16, blockSize - 1);
+		System.arraycopy(buffer, 0, block, HEADER_SIZE, compressedSize);
+		CRC32 crc32 = new CRC32();
+		crc32.update(data, 0, size);
+		writeInt(block, HEADER_SIZE + compressedSize, (int) crc32.getValue());
+		writeInt(block, HEADER_SIZE + compressedSize + 4, size);
+		return block;
+	}
+
+	/**
+	 * Raw deflate of data into buffer, returns -1 if the block would not fit in MAX_BLOCK_SIZE.
+	 */
+	private static int deflate(byte[] data, int size, int level, byte[] buffer) {
+		Deflater deflater = new Deflater(level, true);
+		try {
+			deflater.setInput(data, 0, size);
+			deflater.finish();
+			int maxSize = MAX_BLOCK_SIZE - HEADER_SIZE - TRAILER_SIZE;
+			int compressedSize = 0;
+			while(!deflater.finished() && compressedSize < maxSize) {
+				compressedSize += deflater.deflate(buffer, compressedSize, maxSize - compressedSize);
+			}
+			return deflater.finished() ? compressedSize : -1;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static void writeShort(byte[] buffer, int offset, int value) {
+		buffer[offset] = (byte) value;
+		buffer[offset + 1] = (byte) (value >>> 8);
+	}
+
+	private static void writeInt(byte[] buffer, int offset, int value) {
+		writeShort(buffer, offset, value);
+		writeShort(buffer, offset + 2, value >>> 16);
+	}
+}
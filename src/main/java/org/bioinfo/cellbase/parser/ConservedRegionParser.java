@@ -3,13 +3,11 @@ package org.bioinfo.cellbase.parser;
 import com.google.gson.Gson;
 
 import java.io.*;
-import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.*;
-import java.util.zip.GZIPInputStream;
 import org.bioinfo.cellbase.lib.common.regulatory.ConservedRegion;
 
 public class ConservedRegionParser {
@@ -26,28 +24,29 @@ public class ConservedRegionParser {
 
         for(String chr : chromosomes){
 
-            outJsonPath = outdirPath.resolve("conservation_"+chr+".json");
+            outJsonPath = OutputFiles.getPath(outdirPath.resolve("conservation_"+chr+".json"));
             if(Files.exists(outJsonPath)){
                 Files.delete(outJsonPath);
             }
-            BufferedWriter bw = Files.newBufferedWriter(outJsonPath, Charset.defaultCharset(), StandardOpenOption.CREATE);
+            BufferedWriter bw = OutputFiles.newBufferedWriter(outJsonPath, StandardOpenOption.CREATE);
+            JsonLineWriter jsonLineWriter = new JsonLineWriter(bw, gson);
 
             inGzPath = getConservedRegionPath(conservedRegionPath.resolve(Paths.get("phastCons")), chr);
             System.out.println("processing  "+chr+" "+inGzPath+"...");
-            processFile(inGzPath, "phastCons", bw);
+            processFile(inGzPath, "phastCons", jsonLineWriter);
 
             inGzPath = getConservedRegionPath(conservedRegionPath.resolve(Paths.get("phylop")), chr);
             System.out.println("processing  "+chr+" "+inGzPath+"...");
-            processFile(inGzPath, "phylop", bw);
+            processFile(inGzPath, "phylop", jsonLineWriter);
 
             bw.close();
         }
     }
 
 
-    private static void processFile(Path inGzPath, String conservedType, BufferedWriter bw) throws IOException {
+    private static void processFile(Path inGzPath, String conservedType, JsonLineWriter jsonLineWriter) throws IOException {
 
-        BufferedReader br = new BufferedReader(new InputStreamReader(new GZIPInputStream(Files.newInputStream(inGzPath))));
+        BufferedReader br = InputFiles.newGzipBufferedReader(inGzPath);
 
         String line = null;
         int start = 0, offset = 0, step = 1, end=0;
@@ -63,7 +62,7 @@ public class ConservedRegionParser {
                 //new group, save last
                 if(conservedRegion != null){
                     conservedRegion.setEnd(end);
-                    bw.write(gson.toJson(conservedRegion)+"\n");
+                    jsonLineWriter.write(conservedRegion);
                 }
 
                 offset = 0;
@@ -94,7 +93,7 @@ public class ConservedRegionParser {
         }
         //write last
         conservedRegion.setEnd(end);
-        bw.write(gson.toJson(conservedRegion)+"\n");
+        jsonLineWriter.write(conservedRegion);
         br.close();
 
     }
@@ -0,0 +1,14 @@
+package org.bioinfo.cellbase.parser;
+
+import java.io.IOException;
+
+import com.mongodb.DBObject;
+
+/**
+ * Receives the documents of a parser as soon as each one is finished, see MongoBulkLoader.
+ */
+public interface DBObjectSink {
+
+	void add(DBObject dbObject) throws IOException;
+
+}
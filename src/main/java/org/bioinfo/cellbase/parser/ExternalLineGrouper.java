@@ -0,0 +1,125 @@
+package org.bioinfo.cellbase.parser;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * Groups lines by a key, as a chromosome, with bounded memory: lines are kept in memory until
+ * maxBufferedChars are buffered, then the largest group is spilled to a block gzip file in tmpDir.
+ * Lines of a group are read back in the order they were added. Groups are read once all the lines
+ * are added, so an input larger than maxBufferedChars is spilled even if it is already grouped by
+ * key, only inputs that fit in memory are not written anywhere. Each line is written once at most.
+ * Groups can be read from different threads.
+ */
+public class ExternalLineGrouper implements Closeable {
+
+	public static final long DEFAULT_MAX_BUFFERED_CHARS = 64L * 1024 * 1024;
+
+	private final Path tmpDir;
+	private final long maxBufferedChars;
+	private final Map<String, Group> groups = new LinkedHashMap<>();
+	private long bufferedChars;
+
+	public ExternalLineGrouper(Path tmpDir) {
+		this(tmpDir, DEFAULT_MAX_BUFFERED_CHARS);
+	}
+
+	public ExternalLineGrouper(Path tmpDir, long maxBufferedChars) {
+		this.tmpDir = tmpDir;
+		this.maxBufferedChars = maxBufferedChars;
+	}
+
+	public synchronized void add(String key, String line) throws IOException {
+		Group group = groups.get(key);
+		if(group == null) {
+			group = new Group();
+			groups.put(key, group);
+		}
+		group.lines.append(line).append('\n');
+		bufferedChars += line.length() + 1;
+		if(bufferedChars > maxBufferedChars) {
+			spillLargestGroup();
+		}
+	}
+
+	/**
+	 * Keys in the order they were first added.
+	 */
+	public Set<String> getKeys() {
+		return groups.keySet();
+	}
+
+	/**
+	 * Returns the lines of the group, an empty reader if nothing was added with the key.
+	 * The group can only be read once.
+	 */
+	public synchronized BufferedReader getLines(String key) throws IOException {
+		Group group = groups.remove(key);
+		if(group == null) {
+			return new BufferedReader(new StringReader(""));
+		}
+		bufferedChars -= group.lines.length();
+		if(group.spill == null) {
+			return new BufferedReader(new StringReader(group.lines.toString()));
+		}
+		group.spillWriter.append(group.lines);
+		group.spillWriter.close();
+		final Path spill = group.spill;
+		return new BufferedReader(InputFiles.newGzipBufferedReader(spill)) {
+			@Override
+			public synchronized void close() throws IOException {
+				super.close();
+				Files.deleteIfExists(spill);
+			}
+		};
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		for(Group group: groups.values()) {
+			if(group.spill != null) {
+				group.spillWriter.close();
+				Files.deleteIfExists(group.spill);
+			}
+		}
+		groups.clear();
+		bufferedChars = 0;
+	}
+
+	private void spillLargestGroup() throws IOException {
+		Group largest = null;
+		for(Group group: groups.values()) {
+			if(largest == null || group.lines.length() > largest.lines.length()) {
+				largest = group;
+			}
+		}
+		if(largest.spill == null) {
+			// unique names, groupers can share tmpDir
+			largest.spill = Files.createTempFile(tmpDir, "group_spill_", ".tmp.gz");
+			// spills are read once, fast compression is enough to cut the disk use
+			largest.spillWriter = new BufferedWriter(new OutputStreamWriter(new BlockGzipOutputStream(Files.newOutputStream(largest.spill), null, 1, Deflater.BEST_SPEED),
+					Charset.defaultCharset()), 1 << 16);
+		}
+		largest.spillWriter.append(largest.lines);
+		bufferedChars -= largest.lines.length();
+		// a new buffer, the old one could be as large as the whole budget
+		largest.lines = new StringBuilder();
+	}
+
+	private static class Group {
+		StringBuilder lines = new StringBuilder();
+		Path spill;
+		BufferedWriter spillWriter;
+	}
+}
@@ -0,0 +1,407 @@
+package org.bioinfo.cellbase.parser;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts tab separated text files by a numeric column with bounded memory: the file is split in
+ * sorted runs that are written to a temporary directory and k-way merged afterwards.
+ * The sort is stable, lines with the same key keep the order they had in the input file.
+ * Keys must be non-negative numbers lower than 2^32, as Ensembl ids and genomic positions are.
+ */
+public class ExternalLineSorter {
+
+	public static final long DEFAULT_MAX_RUN_CHARS = 64L * 1024 * 1024;
+	private static final int MAX_RUN_LINES = 1 << 24;
+	private static final int MAX_MERGE_RUNS = 128;
+	private static final long MAX_KEY = 0xFFFFFFFFL;
+
+	private final Path tmpDir;
+	private final long maxRunChars;
+	private int numRuns;
+
+	public ExternalLineSorter(Path tmpDir) {
+		this(tmpDir, DEFAULT_MAX_RUN_CHARS);
+	}
+
+	public ExternalLineSorter(Path tmpDir, long maxRunChars) {
+		this.tmpDir = tmpDir;
+		this.maxRunChars = maxRunChars;
+	}
+
+	public void sort(Path inputFile, Path outputFile, int column) throws IOException {
+		long start = System.currentTimeMillis();
+		List<String> lines = new ArrayList<>();
+		BufferedReader br = Files.newBufferedReader(inputFile, Charset.defaultCharset());
+		List<Path> runs = writeRuns(br, lines, column);
+		br.close();
+
+		if(runs.isEmpty()) {
+			// everything fits in memory, no merge needed
+			writeSortedLines(lines, column, outputFile);
+		}else {
+			if(!lines.isEmpty()) {
+				runs.add(writeRun(lines, column));
+			}
+			lines = null;
+			mergeRuns(runs, outputFile, column);
+		}
+		System.out.println("Sorted " + inputFile.getFileName() + " by column " + column + " in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * Returns the lines of the reader sorted, the reader is closed. Lines are sorted in memory when
+	 * they fit in a run and readLine() returns them from the list without copying them, otherwise
+	 * they are merged into a temporary file deleted when the returned reader is closed.
+	 */
+	public BufferedReader sort(BufferedReader input, int column) throws IOException {
+		List<String> lines = new ArrayList<>();
+		List<Path> runs = writeRuns(input, lines, column);
+		input.close();
+
+		if(runs.isEmpty()) {
+			return new SortedLinesReader(lines, getSortedKeys(lines, column));
+		}
+		if(!lines.isEmpty()) {
+			runs.add(writeRun(lines, column));
+		}
+		lines = null;
+		final Path sortedFile = newRunPath();
+		mergeRuns(runs, sortedFile, column);
+		return new BufferedReader(new InputStreamReader(Files.newInputStream(sortedFile), Charset.defaultCharset())) {
+			@Override
+			public void close() throws IOException {
+				super.close();
+				Files.deleteIfExists(sortedFile);
+			}
+		};
+	}
+
+	/**
+	 * Writes sorted runs while lines do not fit in memory, the lines left are returned in lines.
+	 */
+	private List<Path> writeRuns(BufferedReader br, List<String> lines, int column) throws IOException {
+		List<Path> runs = new ArrayList<>();
+		long runChars = 0;
+		String line;
+		while((line = br.readLine()) != null) {
+			lines.add(line);
+			runChars += line.length();
+			if(runChars >= maxRunChars || lines.size() == MAX_RUN_LINES) {
+				runs.add(writeRun(lines, column));
+				lines.clear();
+				runChars = 0;
+			}
+		}
+		return runs;
+	}
+
+	private void mergeRuns(List<Path> runs, Path outputFile, int column) throws IOException {
+		// consecutive runs are merged in order so stability is kept among passes
+		while(runs.size() > MAX_MERGE_RUNS) {
+			List<Path> mergedRuns = new ArrayList<>();
+			for(int i = 0; i < runs.size(); i += MAX_MERGE_RUNS) {
+				List<Path> group = runs.subList(i, Math.min(i + MAX_MERGE_RUNS, runs.size()));
+				Path mergedRun = newRunPath();
+				merge(group, mergedRun, column);
+				mergedRuns.add(mergedRun);
+			}
+			runs = mergedRuns;
+		}
+		merge(runs, outputFile, column);
+	}
+
+	private Path writeRun(List<String> lines, int column) throws IOException {
+		Path run = newRunPath();
+		writeSortedLines(lines, column, run);
+		return run;
+	}
+
+	private synchronized Path newRunPath() {
+		return tmpDir.resolve("sort_run_" + (numRuns++) + ".tmp");
+	}
+
+	private static void writeSortedLines(List<String> lines, int column, Path outputFile) throws IOException {
+		BufferedWriter bw = Files.newBufferedWriter(outputFile, Charset.defaultCharset());
+		for(long key: getSortedKeys(lines, column)) {
+			bw.write(lines.get((int) (key & Integer.MAX_VALUE)));
+			bw.write('\n');
+		}
+		bw.close();
+	}
+
+	private static long[] getSortedKeys(List<String> lines, int column) throws IOException {
+		// key and original position are packed in a long, sorting primitives keeps the sort stable
+		long[] keys = new long[lines.size()];
+		for(int i = 0; i < keys.length; i++) {
+			keys[i] = (checkKey(getLongField(lines.get(i), column), lines.get(i)) << 31) | i;
+		}
+		Arrays.sort(keys);
+		return keys;
+	}
+
+	private static void merge(List<Path> runs, Path outputFile, int column) throws IOException {
+		PriorityQueue<RunCursor> queue = new PriorityQueue<>(runs.size());
+		for(int i = 0; i < runs.size(); i++) {
+			RunCursor cursor = new RunCursor(runs.get(i), i, column);
+			if(cursor.next()) {
+				queue.add(cursor);
+			}else {
+				cursor.close();
+			}
+		}
+		BufferedWriter bw = Files.newBufferedWriter(outputFile, Charset.defaultCharset());
+		RunCursor cursor;
+		while((cursor = queue.poll()) != null) {
+			bw.write(cursor.line);
+			bw.write('\n');
+			if(cursor.next()) {
+				queue.add(cursor);
+			}else {
+				cursor.close();
+			}
+		}
+		bw.close();
+		for(Path run: runs) {
+			Files.deleteIfExists(run);
+		}
+	}
+
+	private static long checkKey(long key, String line) throws IOException {
+		if(key < 0 || key > MAX_KEY) {
+			throw new IOException("Sort key out of range in line: " + line);
+		}
+		return key;
+	}
+
+	/**
+	 * Parses the numeric value of a tab separated column without splitting the whole line.
+	 */
+	public static long getLongField(String line, int column) {
+		int start = 0;
+		for(int i = 0; i < column; i++) {
+			start = line.indexOf('\t', start) + 1;
+			if(start == 0) {
+				throw new NumberFormatException("Column " + column + " not found in line: " + line);
+			}
+		}
+		int end = line.indexOf('\t', start);
+		if(end < 0) {
+			end = line.length();
+		}
+		if(start == end) {
+			throw new NumberFormatException("Empty column " + column + " in line: " + line);
+		}
+		long value = 0;
+		for(int i = start; i < end; i++) {
+			char c = line.charAt(i);
+			if(c < '0' || c > '9') {
+				return Long.parseLong(line.substring(start, end));
+			}
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	/**
+	 * Reads the lines of the list in the order of the sorted keys. readLine() returns the Strings of
+	 * the list, read() returns each line followed by a newline. Mark is not supported.
+	 */
+	private static class SortedLinesReader extends BufferedReader {
+		private List<String> lines;
+		private final long[] keys;
+		private int next;
+		private String line = "";
+		// position in line, line.length() is the newline
+		private int position = 1;
+
+		SortedLinesReader(List<String> lines, long[] keys) {
+			// nothing is read from the underlying reader
+			super(new StringReader(""), 1);
+			this.lines = lines;
+			this.keys = keys;
+		}
+
+		@Override
+		public String readLine() throws IOException {
+			checkOpen();
+			if(position <= line.length()) {
+				// rest of a line partially returned by read()
+				String rest = line.substring(position);
+				position = line.length() + 1;
+				return rest;
+			}
+			if(next == keys.length) {
+				return null;
+			}
+			line = lines.get((int) (keys[next++] & Integer.MAX_VALUE));
+			position = line.length() + 1;
+			return line;
+		}
+
+		@Override
+		public int read() throws IOException {
+			char[] c = new char[1];
+			return (read(c, 0, 1) == -1) ? -1 : c[0];
+		}
+
+		@Override
+		public int read(char[] cbuf, int off, int len) throws IOException {
+			checkOpen();
+			int read = 0;
+			while(read < len) {
+				if(position > line.length()) {
+					if(next == keys.length) {
+						break;
+					}
+					line = lines.get((int) (keys[next++] & Integer.MAX_VALUE));
+					position = 0;
+				}
+				if(position == line.length()) {
+					cbuf[off + read++] = '\n';
+					position++;
+				}else {
+					int n = Math.min(len - read, line.length() - position);
+					line.getChars(position, position + n, cbuf, off + read);
+					position += n;
+					read += n;
+				}
+			}
+			return (read == 0 && len > 0) ? -1 : read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			char[] buffer = new char[(int) Math.min(n, 8192)];
+			long skipped = 0;
+			int read;
+			while(skipped < n && (read = read(buffer, 0, (int) Math.min(n - skipped, buffer.length))) != -1) {
+				skipped += read;
+			}
+			return skipped;
+		}
+
+		@Override
+		public boolean ready() throws IOException {
+			checkOpen();
+			return position <= line.length() || next < keys.length;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		@Override
+		public void mark(int readAheadLimit) throws IOException {
+			throw new IOException("mark() not supported");
+		}
+
+		@Override
+		public void reset() throws IOException {
+			throw new IOException("reset() not supported");
+		}
+
+		@Override
+		public void close() {
+			lines = null;
+		}
+
+		private void checkOpen() throws IOException {
+			if(lines == null) {
+				throw new IOException("Reader closed");
+			}
+		}
+	}
+
+	private static class RunCursor implements Comparable<RunCursor>, Closeable {
+		private final BufferedReader br;
+		private final int runIndex;
+		private final int column;
+		private String line;
+		private long key;
+
+		RunCursor(Path run, int runIndex, int column) throws IOException {
+			this.br = Files.newBufferedReader(run, Charset.defaultCharset());
+			this.runIndex = runIndex;
+			this.column = column;
+		}
+
+		boolean next() throws IOException {
+			line = br.readLine();
+			if(line != null) {
+				key = getLongField(line, column);
+				return true;
+			}
+			return false;
+		}
+
+		@Override
+		public int compareTo(RunCursor other) {
+			if(key != other.key) {
+				return (key < other.key) ? -1 : 1;
+			}
+			// ties go to the earlier run to keep the sort stable
+			return Integer.compare(runIndex, other.runIndex);
+		}
+
+		@Override
+		public void close() throws IOException {
+			br.close();
+		}
+	}
+
+
+	/**
+	 * Reads a file sorted by a numeric column returning all the lines of each key, keys must be
+	 * requested in ascending order. Lines with smaller keys than the one requested are skipped.
+	 */
+	public static class GroupReader implements Closeable {
+
+		private final BufferedReader br;
+		private final int column;
+		private String line;
+		private long key;
+
+		public GroupReader(Path sortedFile, int column) throws IOException {
+			this.br = Files.newBufferedReader(sortedFile, Charset.defaultCharset());
+			this.column = column;
+			advance();
+		}
+
+		public List<String> next(long requestedKey) throws IOException {
+			while(line != null && key < requestedKey) {
+				advance();
+			}
+			List<String> group = new ArrayList<>(2);
+			while(line != null && key == requestedKey) {
+				group.add(line);
+				advance();
+			}
+			return group;
+		}
+
+		private void advance() throws IOException {
+			line = br.readLine();
+			if(line != null) {
+				key = getLongField(line, column);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			br.close();
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package org.bioinfo.cellbase.parser;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Loads whole chromosomes from the per-chromosome .fa.gz files of a directory and keeps them
+ * in a LRU cache bounded by the total number of nucleotides, so with unsorted or interleaved
+ * GTF files a chromosome is only decompressed once as long as it fits in the cache.
+ * The most recently used chromosome is never evicted even if it is bigger than the cache.
+ */
+public class FastaGenomeSequenceCache implements GenomeSequenceProvider {
+
+	public static final long DEFAULT_MAX_NUCLEOTIDES = 300000000L;
+
+	private final File genomeSequenceDir;
+	private final long maxNucleotides;
+	private final LinkedHashMap<String, String> chromosomeSequences;
+	private long cachedNucleotides;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long loadTime;
+
+	public FastaGenomeSequenceCache(File genomeSequenceDir) {
+		this(genomeSequenceDir, DEFAULT_MAX_NUCLEOTIDES);
+	}
+
+	public FastaGenomeSequenceCache(File genomeSequenceDir, long maxNucleotides) {
+		this.genomeSequenceDir = genomeSequenceDir;
+		this.maxNucleotides = maxNucleotides;
+		// access order, the eldest entry is the least recently used chromosome
+		this.chromosomeSequences = new LinkedHashMap<>(64, 0.75f, true);
+	}
+
+	@Override
+	public synchronized String getSequence(String chromosome, int start, int end) throws IOException {
+		String chromSequence = getChromosomeSequence(chromosome);
+		int from = Math.max(start, 1) - 1;
+		int to = Math.min(end, chromSequence.length());
+		return (from < to) ? chromSequence.substring(from, to) : "";
+	}
+
+	public synchronized String getChromosomeSequence(String chromosome) throws IOException {
+		String chromSequence = chromosomeSequences.get(chromosome);
+		if(chromSequence != null) {
+			hits++;
+			return chromSequence;
+		}
+
+		misses++;
+		long start = System.currentTimeMillis();
+		chromSequence = loadChromosomeSequence(chromosome, genomeSequenceDir);
+		loadTime += System.currentTimeMillis() - start;
+
+		chromosomeSequences.put(chromosome, chromSequence);
+		cachedNucleotides += chromSequence.length();
+		Iterator<Map.Entry<String, String>> iterator = chromosomeSequences.entrySet().iterator();
+		while(cachedNucleotides > maxNucleotides && chromosomeSequences.size() > 1) {
+			Map.Entry<String, String> eldest = iterator.next();
+			cachedNucleotides -= eldest.getValue().length();
+			iterator.remove();
+			evictions++;
+		}
+		return chromSequence;
+	}
+
+	public synchronized String getStatistics() {
+		return "Genome sequence cache: " + hits + " hits, " + misses + " misses (chromosome loads), "
+				+ evictions + " evictions, " + loadTime + " ms loading, " + cachedNucleotides + " nucleotides cached";
+	}
+
+	@Override
+	public synchronized void close() {
+		chromosomeSequences.clear();
+		cachedNucleotides = 0;
+	}
+
+	/**
+	 * Reads the first sequence of the file named *_[chrom].fa.gz or *.[chrom].fa.gz, an empty
+	 * String is returned if no file is found.
+	 */
+	public static String loadChromosomeSequence(String chrom, File genomeSequenceDir) throws IOException {
+		File[] files = genomeSequenceDir.listFiles();
+		File file = null;
+		for(File f: (files != null) ? files : new File[0]) {
+			if(f.getName().endsWith("_"+chrom+".fa.gz") || f.getName().endsWith("."+chrom+".fa.gz")) {
+				System.out.println(f.getAbsolutePath());
+				file = f;
+				break;
+			}
+		}
+		StringBuilder sb = new StringBuilder(100000);
+		if(file != null) {
+			BufferedReader br = InputFiles.newGzipBufferedReader(file.toPath());
+			String line = "";
+			boolean found = false;
+			while((line = br.readLine()) != null) {
+				if(found) {
+					if(!line.startsWith(">")) {
+						sb.append(line);
+					}else {
+						break;
+					}
+				}
+				if(line.startsWith(">")) {
+					found = true;
+				}
+			}
+			br.close();
+		}
+		return sb.toString();
+	}
+}
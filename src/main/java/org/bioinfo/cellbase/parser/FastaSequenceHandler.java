@@ -0,0 +1,20 @@
+package org.bioinfo.cellbase.parser;
+
+import java.io.IOException;
+
+/**
+ * Receives the sequence lines of a FASTA file chromosome by chromosome,
+ * implementations must not need the whole chromosome in memory.
+ */
+public interface FastaSequenceHandler {
+
+	public void startChromosome(String chromosome) throws IOException;
+
+	public void append(CharSequence sequenceLine) throws IOException;
+
+	/**
+	 * Returns the length of the chromosome just finished.
+	 */
+	public int endChromosome() throws IOException;
+
+}
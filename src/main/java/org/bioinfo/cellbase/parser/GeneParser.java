@@ -15,7 +15,6 @@ import org.bioinfo.cellbase.lib.common.core.Exon;
 import org.bioinfo.cellbase.lib.common.core.Gene;
 import org.bioinfo.cellbase.lib.common.core.Transcript;
 import org.bioinfo.cellbase.lib.common.core.Xref;
-import org.bioinfo.commons.io.TextFileWriter;
 import org.bioinfo.commons.io.utils.FileUtils;
 import org.bioinfo.commons.io.utils.IOUtils;
 import org.bioinfo.formats.core.feature.Gtf;
@@ -29,6 +28,8 @@ public class GeneParser {
 	Map<String, Integer> transcriptDict;
 	Map<String, Exon> exonDict;
 
+	private long genomeSequenceCacheSize = FastaGenomeSequenceCache.DEFAULT_MAX_NUCLEOTIDES;
+
 	public GeneParser() {
 		init();
 	}
@@ -48,7 +49,6 @@ public class GeneParser {
 		String geneId;
 		String transcriptId;
 		String chromosome = "";
-		String chromSequence = "";
 		String exonSequence = "";
 		
 		Gene gene = null;
@@ -56,14 +56,14 @@ public class GeneParser {
 		Exon exon = null;
 		int cdna = 1;
 		int cds = 1;
-		String[] fields;
+		TsvFieldCursor fieldCursor = new TsvFieldCursor();
 
 		Map<String, String> geneDescriptionMap = new HashMap<String, String>();
 		if (geneDescriptionFile != null && geneDescriptionFile.exists()) {
 			List<String> lines = IOUtils.readLines(geneDescriptionFile);
 			for (String line : lines) {
-				fields = line.split("\t", -1);
-				geneDescriptionMap.put(fields[0], fields[1]);
+				fieldCursor.reset(line);
+				geneDescriptionMap.put(fieldCursor.stringAt(0), fieldCursor.stringAt(1));
 			}
 		}
 
@@ -71,11 +71,12 @@ public class GeneParser {
 		if (xrefsFile != null && xrefsFile.exists()) {
 			List<String> lines = IOUtils.readLines(xrefsFile);
 			for (String line : lines) {
-				fields = line.split("\t", -1);
-				if (!xrefMap.containsKey(fields[0])) {
-					xrefMap.put(fields[0], new ArrayList<Xref>());
+				fieldCursor.reset(line);
+				String id = fieldCursor.stringAt(0);
+				if (!xrefMap.containsKey(id)) {
+					xrefMap.put(id, new ArrayList<Xref>());
 				}
-				xrefMap.get(fields[0]).add(new Xref(fields[1], fields[2], fields[3], fields[4]));
+				xrefMap.get(id).add(new Xref(fieldCursor.stringAt(1), fieldCursor.stringAt(2), fieldCursor.stringAt(3), fieldCursor.stringAt(4)));
 			}
 		}
 
@@ -83,11 +84,12 @@ public class GeneParser {
 		if(tfbsFile != null && tfbsFile.exists()) {
 			List<String> lines = IOUtils.readLines(tfbsFile);
 			for (String line : lines) {
-				fields = line.split("\t", -1);
-				if (!tfbsMap.containsKey(fields[0])) {
-					tfbsMap.put(fields[0], new ArrayList<TranscriptTfbs>());
+				fieldCursor.reset(line);
+				String id = fieldCursor.stringAt(0);
+				if (!tfbsMap.containsKey(id)) {
+					tfbsMap.put(id, new ArrayList<TranscriptTfbs>());
 				}
-				tfbsMap.get(fields[0]).add(new TranscriptTfbs(fields[1], fields[2], fields[3], Integer.parseInt(fields[4]), Integer.parseInt(fields[5]), fields[6], Integer.parseInt(fields[7]), Integer.parseInt(fields[8]), Float.parseFloat(fields[9])));
+				tfbsMap.get(id).add(new TranscriptTfbs(fieldCursor.stringAt(1), fieldCursor.stringAt(2), fieldCursor.stringAt(3), fieldCursor.intAt(4), fieldCursor.intAt(5), fieldCursor.stringAt(6), fieldCursor.intAt(7), fieldCursor.intAt(8), fieldCursor.floatAt(9)));
 			}
 		}
 		
@@ -98,15 +100,23 @@ public class GeneParser {
 		}
 		
 		
-		TextFileWriter tfw = new TextFileWriter(outJsonFile.getAbsolutePath());
-		// tfw.writeStringToFile("[");
+		// genomeSequenceDir can be a directory with .fa.gz files or a PackedGenomeSequence file,
+		// FASTA chromosomes are cached so each one is decompressed once
+		GenomeSequenceProvider genomeSequenceProvider;
+		FastaGenomeSequenceCache fastaGenomeSequenceCache = null;
+		if(genomeSequenceDir.isFile()) {
+			genomeSequenceProvider = new PackedGenomeSequence(genomeSequenceDir.toPath());
+		}else {
+			fastaGenomeSequenceCache = new FastaGenomeSequenceCache(genomeSequenceDir, genomeSequenceCacheSize);
+			genomeSequenceProvider = fastaGenomeSequenceCache;
+		}
 
 		// BasicBSONList list = new BasicBSONList();
 		int cont = 0;
 		Gson gson = new GsonBuilder().create(); // .setPrettyPrinting()
+		JsonLineWriter jsonLineWriter = new JsonLineWriter(OutputFiles.newBufferedWriter(OutputFiles.getPath(outJsonFile.toPath())), gson);
 		GtfReader gtfReader = new GtfReader(gtfFile);
 		Gtf gtf;
-		boolean first = false;
 		while ((gtf = gtfReader.read()) != null) {
 			geneId = gtf.getAttributes().get("gene_id");
 			transcriptId = gtf.getAttributes().get("transcript_id");
@@ -118,19 +128,12 @@ public class GeneParser {
 			if(!chromosome.equals(gtf.getSequenceName()) && !gtf.getSequenceName().startsWith("GL") && !gtf.getSequenceName().startsWith("HS") && !gtf.getSequenceName().startsWith("HG")) {
 				chromosome = gtf.getSequenceName();
 //				chromSequence = getSequenceByChromosome(chromosome, genomeSequenceFile.toPath());
-				chromSequence = getSequenceByChromosomeName(chromosome, genomeSequenceDir);
 			}
 			
 			// Check if gene exist en Map
 			if (gene == null || !geneId.equals(gene.getId())) { // !geneDict.containsKey(geneId)
 				if (gene != null) { // genes.size()>0
-					if (first) {
-						tfw.writeStringToFile("\n");
-					}
-					// tfw.writeStringToFile(gson.toJson(genes.get(genes.size()-1)));
-					// genes.remove(genes.size()-1);
-					tfw.writeStringToFile(gson.toJson(gene));
-					first = true;
+					jsonLineWriter.write(gene);
 				}
 
 //				gene = new Gene(geneId, gtf.getAttributes().get("gene_name"), gtf.getAttributes().get("gene_biotype"),
@@ -170,9 +173,8 @@ public class GeneParser {
 			if (gtf.getFeature().equalsIgnoreCase("exon")) {
 				// Obtaining the exon sequence
 				exonSequence = "";					
-				if(chromosome.equals(gtf.getSequenceName()) && chromSequence.length() > 0) {
-					// as starts is inclusive and position begins in 1 we must -1, end is OK.
-					exonSequence = chromSequence.substring(gtf.getStart()-1, gtf.getEnd());
+				if(chromosome.equals(gtf.getSequenceName())) {
+					exonSequence = genomeSequenceProvider.getSequence(chromosome, gtf.getStart(), gtf.getEnd());
 				}
 //				exon = new Exon(gtf.getAttributes().get("exon_id"), gtf.getSequenceName().replaceFirst("chr", ""),
 //						gtf.getStart(), gtf.getEnd(), gtf.getStrand(), 0, 0, 0, 0, 0, 0, -1, Integer.parseInt(gtf
@@ -342,14 +344,14 @@ public class GeneParser {
 		}
 
 		// last gene must be written
-		tfw.writeStringToFile("\n");
-		tfw.writeStringToFile(gson.toJson(gene));
-		
-		// tfw.writeStringToFile("]");
-		// tfw.writeLine("\n");
+		jsonLineWriter.write(gene);
 
 		gtfReader.close();
-		tfw.close();
+		jsonLineWriter.close();
+		genomeSequenceProvider.close();
+		if(fastaGenomeSequenceCache != null) {
+			System.out.println(fastaGenomeSequenceCache.getStatistics());
+		}
 		// return gson.toJson(genes);
 	}
 
@@ -368,37 +370,15 @@ public class GeneParser {
 		}
 	}
 
+	/**
+	 * Maximum number of nucleotides of FASTA chromosomes kept in memory by parseToJson.
+	 */
+	public void setGenomeSequenceCacheSize(long genomeSequenceCacheSize) {
+		this.genomeSequenceCacheSize = genomeSequenceCacheSize;
+	}
+
 	public String getSequenceByChromosomeName(String chrom, File genomeSequenceDir) throws IOException {
-		File[] files = genomeSequenceDir.listFiles();
-		File file = null;
-		for(File f: files) {
-			if(f.getName().endsWith("_"+chrom+".fa.gz") || f.getName().endsWith("."+chrom+".fa.gz")) {
-				System.out.println(f.getAbsolutePath());
-				file = f;
-				break;
-			}
-		}
-		StringBuilder sb = new StringBuilder(100000);
-		if(file != null) {
-	//		BufferedReader br = Files.newBufferedReader(files[0].toPath(), Charset.defaultCharset());
-			BufferedReader br = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(file))));
-			String line = "";
-			boolean found = false;
-			while((line = br.readLine()) != null) {
-				if(found) {
-					if(!line.startsWith(">")) {
-						sb.append(line);
-					}else {
-						break;
-					}
-				}
-				if(line.startsWith(">")) {
-					found = true;
-				}
-			}
-			br.close();
-		}
-		return sb.toString();
+		return FastaGenomeSequenceCache.loadChromosomeSequence(chrom, genomeSequenceDir);
 	}
 	
 	public String getSequenceByChromosome(String chrom, Path genomeSequenceFile) throws IOException {
@@ -426,22 +406,23 @@ public class GeneParser {
 		Map<String, MiRNAGene> mirnaGeneMap = new HashMap<>(3000);
 		BufferedReader br = Files.newBufferedReader(mirnaGeneFile.toPath(), Charset.defaultCharset());
 		String line = "";
-		String[] fields, mirnaMatures, mirnaMaturesFields;
+		String[] mirnaMatures, mirnaMaturesFields;
+		TsvFieldCursor fields = new TsvFieldCursor();
 		List<String> aliases;
 		MiRNAGene miRNAGene;
 		while((line = br.readLine()) != null) {
-			fields = line.split("\t");
+			fields.reset(line);
 			
 			// First, read aliases of miRNA, field #5
 			aliases = new ArrayList<>();
-			for(String alias: fields[5].split(",")) {
+			for(String alias: fields.stringAt(5).split(",")) {
 				aliases.add(alias);
 			}
 			
-			miRNAGene = new MiRNAGene(fields[1], fields[2], fields[3], fields[4], aliases, new ArrayList<MiRNAMature>());
+			miRNAGene = new MiRNAGene(fields.stringAt(1), fields.stringAt(2), fields.stringAt(3), fields.stringAt(4), aliases, new ArrayList<MiRNAMature>());
 			
 			// Second, read the miRNA matures, field #6
-			mirnaMatures = fields[6].split(",");
+			mirnaMatures = fields.stringAt(6).split(",");
 			for(String s: mirnaMatures) {
 				System.out.println(s);
 				mirnaMaturesFields = s.split("\\|");
@@ -451,7 +432,7 @@ public class GeneParser {
 			}
 			
 			// Add object to Map<EnsemblID, MiRNAGene>
-			mirnaGeneMap.put(fields[0], miRNAGene);
+			mirnaGeneMap.put(fields.stringAt(0), miRNAGene);
 		}
 		br.close();
 		return mirnaGeneMap;
@@ -690,15 +671,13 @@ public class GeneParser {
 		}
 
 		Gson gson = new Gson();
-		TextFileWriter tfw = new TextFileWriter(outJsonFile.getAbsolutePath());
+		JsonLineWriter jsonLineWriter = new JsonLineWriter(OutputFiles.newBufferedWriter(OutputFiles.getPath(outJsonFile.toPath())), gson);
 		System.out.println("");
 		System.out.println("START WRITE");
 		for (String geneId : genes.keySet()) {
-			Gene gene = genes.get(geneId);
-			tfw.writeStringToFile(gson.toJson(gene));
-			tfw.writeStringToFile("\n");
+			jsonLineWriter.write(genes.get(geneId));
 		}
-		tfw.close();
+		jsonLineWriter.close();
 
 //		System.out.println(gson.toJson(genes.get("Ciclev10007224m.g")));
 		System.out.println(gson.toJson(genes.get("Ciclev10008515m.g")));
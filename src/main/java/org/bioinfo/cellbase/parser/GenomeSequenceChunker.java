@@ -0,0 +1,92 @@
+package org.bioinfo.cellbase.parser;
+
+import com.google.gson.Gson;
+import java.io.IOException;
+import java.io.Writer;
+import org.bioinfo.cellbase.lib.common.core.GenomeSequenceChunk;
+
+/**
+ * Splits a chromosome sequence into GenomeSequenceChunk JSON lines as the FASTA lines are read,
+ * only a few chunks of sequence are kept in memory no matter how long the chromosome is.
+ * Chunk boundaries and coordinates are the same ones GenomeSequenceFastaParser.writeGenomeChunks
+ * produces from a fully loaded sequence, so the output is byte-identical.
+ */
+public class GenomeSequenceChunker implements FastaSequenceHandler {
+
+	private final int chunkSize;
+	private final JsonLineWriter jsonLineWriter;
+
+	private String chromosome;
+	private StringBuilder buffer;
+	// 1-based genomic position of buffer.charAt(0)
+	private int start;
+	private int chunkId;
+	private int length;
+	private boolean firstChunkWritten;
+
+	public GenomeSequenceChunker(int chunkSize, Writer writer, Gson gson) {
+		this.chunkSize = chunkSize;
+		this.jsonLineWriter = new JsonLineWriter(writer, gson);
+		this.buffer = new StringBuilder(2 * chunkSize + 256);
+	}
+
+	@Override
+	public void startChromosome(String chromosome) {
+		this.chromosome = chromosome;
+		this.buffer.setLength(0);
+		this.start = 1;
+		this.chunkId = 0;
+		this.length = 0;
+		this.firstChunkWritten = false;
+	}
+
+	@Override
+	public void append(CharSequence sequenceLine) throws IOException {
+		buffer.append(sequenceLine);
+		length += sequenceLine.length();
+
+		// First chunk contains chunkSize-1 nucleotides as index start at position 1 but must end at 1999
+		if(!firstChunkWritten && buffer.length() >= chunkSize) {
+			writeChunk(chunkId, 1, chunkSize - 1, chunkSize - 1);
+			start = chunkSize;
+			chunkId++;
+			firstChunkWritten = true;
+		}
+
+		// A regular chunk can only be written once we know it is not the last one,
+		// this is, at least chunkSize+2 nucleotides are buffered
+		while(firstChunkWritten && buffer.length() >= chunkSize + 2) {
+			writeChunk(chunkId, start, start + chunkSize - 1, chunkSize);
+			start += chunkSize;
+			chunkId++;
+		}
+	}
+
+	/**
+	 * Flushes the remaining nucleotides of the current chromosome and returns its length.
+	 */
+	@Override
+	public int endChromosome() throws IOException {
+		if(!firstChunkWritten) {
+			//chromosome sequence length can be less than chunkSize
+			writeChunk(0, 1, buffer.length() - 1, buffer.length());
+		}else {
+			// Last chunk of the chromosome, a single remaining nucleotide is not written
+			if(buffer.length() > 1) {
+				writeChunk(chunkId, start, length, buffer.length());
+			}
+		}
+		buffer.setLength(0);
+		return length;
+	}
+
+	private void writeChunk(int id, int chunkStart, int chunkEnd, int numNucleotides) throws IOException {
+		if(id % 10000 == 0) {
+			System.out.println("Chr:" + chromosome + " chunkId:" + id);
+		}
+		GenomeSequenceChunk chunk = new GenomeSequenceChunk(chromosome, id, chunkStart, chunkEnd, buffer.substring(0, numNucleotides));
+		jsonLineWriter.write(chunk);
+		buffer.delete(0, numNucleotides);
+	}
+
+}
@@ -5,11 +5,18 @@ import com.google.gson.GsonBuilder;
 import java.io.*;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.zip.GZIPInputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import org.bioinfo.cellbase.lib.common.core.Chromosome;
 import org.bioinfo.cellbase.lib.common.core.Cytoband;
 import org.bioinfo.cellbase.lib.common.core.GenomeSequenceChunk;
@@ -27,72 +34,198 @@ public class GenomeSequenceFastaParser {
 
 	public void parseFastaGzipFilesToJson(File genomeReferenceFastaDir, File outJsonFile) {
 		try {
-			StringBuilder sequenceStringBuilder;
-			File[] files = genomeReferenceFastaDir.listFiles();
-			BufferedWriter bw = Files.newBufferedWriter(Paths.get(outJsonFile.toURI()), Charset.defaultCharset(), StandardOpenOption.CREATE);
-			for(File file: files) {
-				if(file.getName().endsWith(".fa.gz")) {
-					System.out.println(file.getAbsolutePath());
-
-					String chromosome = "";
-					String line;
-					sequenceStringBuilder = new StringBuilder();
-					// Java 7 IO code
-					BufferedReader br = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(file))));
-					while ((line = br.readLine()) != null) {
-						if (!line.startsWith(">")) {
-							sequenceStringBuilder.append(line);
-						} else {
-							// new chromosome
-							// save data
-							if (sequenceStringBuilder.length() > 0) {
-								System.out.println(chromosome);
-								writeGenomeChunks(chromosome, sequenceStringBuilder.toString(), bw);
-							}
+			BufferedWriter bw = OutputFiles.newBufferedWriter(OutputFiles.getPath(outJsonFile.toPath()), StandardOpenOption.CREATE);
+			GenomeSequenceChunker chunker = new GenomeSequenceChunker(chunkSize, bw, gson);
+			// same order as the parallel build
+			for(File file: getFastaGzipFiles(genomeReferenceFastaDir)) {
+				System.out.println(file.getAbsolutePath());
+				// Java 7 IO code
+				BufferedReader br = InputFiles.newGzipBufferedReader(file.toPath());
+				parseFastaToChunks(br, chunker);
+				br.close();
+			}
+			bw.close();
 
-							// initialize data structures
-							chromosome = line.replace(">", "").split(" ")[0];
-							sequenceStringBuilder.delete(0, sequenceStringBuilder.length());
-						}
-					}
-					// Last chromosome must be processed
-					writeGenomeChunks(chromosome, sequenceStringBuilder.toString(), bw);
-					br.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Each .fa.gz file is parsed by a different worker into its own part file, parts are
+	 * concatenated into outJsonFile sorted by file name so the output does not depend on threads.
+	 * Compressed parts are concatenated as they are, block gzip members can be.
+	 * When loading into MongoDB the workers load their chunks in any order.
+	 */
+	public void parseFastaGzipFilesToJson(File genomeReferenceFastaDir, File outJsonFile, int numThreads) {
+		try {
+			List<File> fastaFiles = getFastaGzipFiles(genomeReferenceFastaDir);
+			List<Path> partPaths = new ArrayList<>(fastaFiles.size());
+			for(int i = 0; i < fastaFiles.size(); i++) {
+				// chromosome names can repeat, e.g. dna and dna_rm files of the same chromosome
+				partPaths.add(Paths.get(outJsonFile.getAbsolutePath() + "_" + i + ".part"));
+			}
+			parseFastaGzipFilesInParallel(fastaFiles, partPaths, numThreads);
+			if(OutputFiles.getLoader() != null) {
+				// parts were loaded, there are no files to concatenate
+				return;
+			}
+
+			OutputFiles.concatenate(partPaths, OutputFiles.getPath(outJsonFile.toPath()));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Same as parseFastaGzipFilesToJson but one JSON file is written per chromosome, named
+	 * genome_sequence_[chromosome].json, into outdir. Nothing is written if two files have the
+	 * same chromosome name.
+	 */
+	public void parseFastaGzipFilesToJsonByChromosome(File genomeReferenceFastaDir, File outdir, int numThreads) {
+		try {
+			List<File> fastaFiles = getFastaGzipFiles(genomeReferenceFastaDir);
+			List<Path> outPaths = new ArrayList<>(fastaFiles.size());
+			for(int i = 0; i < fastaFiles.size(); i++) {
+				Path outPath = OutputFiles.getPath(outdir.toPath().resolve("genome_sequence_" + getChromosomeName(fastaFiles.get(i)) + ".json"));
+				int previous = outPaths.indexOf(outPath);
+				if(previous >= 0) {
+					throw new IOException("Files " + fastaFiles.get(previous).getName() + " and " + fastaFiles.get(i).getName() + " would both be written to " + outPath);
 				}
+				outPaths.add(outPath);
 			}
-			bw.close();
+			parseFastaGzipFilesInParallel(fastaFiles, outPaths, numThreads);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
 
+	/**
+	 * Writes all the .fa.gz files of the directory into a single PackedGenomeSequence file.
+	 */
+	public void parseFastaGzipFilesToPackedSequence(File genomeReferenceFastaDir, File outPackedFile) {
+		try {
+			PackedGenomeSequence.Writer writer = new PackedGenomeSequence.Writer(outPackedFile.toPath());
+			for(File file: getFastaGzipFiles(genomeReferenceFastaDir)) {
+				System.out.println(file.getAbsolutePath());
+				BufferedReader br = InputFiles.newGzipBufferedReader(file.toPath());
+				parseFastaToChunks(br, writer);
+				br.close();
+			}
+			writer.close();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 
-	public void parseToJson(File genomeReferenceFastaFile, File outJsonFile) {
+	/**
+	 * Same JSON chunks as parseFastaGzipFilesToJson but read from a PackedGenomeSequence file,
+	 * chromosomes are written in the same order they were packed.
+	 */
+	public void parsePackedSequenceToJson(File packedGenomeFile, File outJsonFile) {
+		int regionSize = 1000000;
 		try {
-			String chromosome = "";
-			String line;
-			StringBuilder sequenceStringBuilder = new StringBuilder();
-			// Java 7 IO code
-			BufferedWriter bw = Files.newBufferedWriter(Paths.get(outJsonFile.toURI()), Charset.defaultCharset(), StandardOpenOption.CREATE);
-			BufferedReader br = Files.newBufferedReader(Paths.get(genomeReferenceFastaFile.toURI()), Charset.defaultCharset());
-			while ((line = br.readLine()) != null) {
-				if (!line.startsWith(">")) {
-					sequenceStringBuilder.append(line);
-				} else {
-					// new chromosome
-					// save data
-					if (sequenceStringBuilder.length() > 0) {
-						System.out.println(chromosome);
-						writeGenomeChunks(chromosome, sequenceStringBuilder.toString(), bw);
-					}
+			BufferedWriter bw = OutputFiles.newBufferedWriter(OutputFiles.getPath(outJsonFile.toPath()));
+			GenomeSequenceChunker chunker = new GenomeSequenceChunker(chunkSize, bw, gson);
+			PackedGenomeSequence packedGenomeSequence = new PackedGenomeSequence(packedGenomeFile.toPath());
+			for(String chromosome: packedGenomeSequence.getChromosomeNames()) {
+				System.out.println(chromosome);
+				int length = packedGenomeSequence.getChromosomeLength(chromosome);
+				chunker.startChromosome(chromosome);
+				for(int start = 1; start <= length; start += regionSize) {
+					chunker.append(packedGenomeSequence.getSequence(chromosome, start, start + regionSize - 1));
+				}
+				chunker.endChromosome();
+			}
+			packedGenomeSequence.close();
+			bw.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
 
-					// initialize data structures
-					chromosome = line.replace(">", "").split(" ")[0];
-					sequenceStringBuilder.delete(0, sequenceStringBuilder.length());
+	/**
+	 * Outputs already written are deleted if any file fails.
+	 */
+	private void parseFastaGzipFilesInParallel(List<File> fastaFiles, List<Path> outPaths, int numThreads) throws IOException {
+		ExecutorService executorService = Executors.newFixedThreadPool(Math.max(1, numThreads));
+		boolean done = false;
+		try {
+			List<Future<Void>> futures = new ArrayList<>(fastaFiles.size());
+			for(int i = 0; i < fastaFiles.size(); i++) {
+				final File file = fastaFiles.get(i);
+				final Path outPath = outPaths.get(i);
+				futures.add(executorService.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						System.out.println(file.getAbsolutePath());
+						BufferedWriter bw = OutputFiles.newBufferedWriter(outPath);
+						try {
+							BufferedReader br = InputFiles.newGzipBufferedReader(file.toPath());
+							try {
+								parseFastaToChunks(br, new GenomeSequenceChunker(chunkSize, bw, gson));
+							} finally {
+								br.close();
+							}
+						} finally {
+							bw.close();
+						}
+						return null;
+					}
+				}));
+			}
+			for(Future<Void> future: futures) {
+				future.get();
+			}
+			done = true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		} finally {
+			executorService.shutdownNow();
+			if(!done) {
+				// interrupted workers close their files before these are deleted
+				try {
+					executorService.awaitTermination(1, TimeUnit.MINUTES);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				for(Path outPath: outPaths) {
+					Files.deleteIfExists(outPath);
 				}
 			}
-			// Last chromosome must be processed
-			writeGenomeChunks(chromosome, sequenceStringBuilder.toString(), bw);
+		}
+	}
+
+	private List<File> getFastaGzipFiles(File genomeReferenceFastaDir) {
+		List<File> fastaFiles = new ArrayList<>();
+		File[] files = genomeReferenceFastaDir.listFiles();
+		Arrays.sort(files);
+		for(File file: files) {
+			if(file.getName().endsWith(".fa.gz")) {
+				fastaFiles.add(file);
+			}
+		}
+		return fastaFiles;
+	}
+
+	/**
+	 * Ensembl names files as Homo_sapiens.GRCh37.71.dna.chromosome.1.fa.gz, chromosome is the
+	 * last '.' or '_' separated token, as GeneParser expects.
+	 */
+	private String getChromosomeName(File fastaGzipFile) {
+		String name = fastaGzipFile.getName().replace(".fa.gz", "");
+		return name.substring(Math.max(name.lastIndexOf('.'), name.lastIndexOf('_')) + 1);
+	}
+
+	public void parseToJson(File genomeReferenceFastaFile, File outJsonFile) {
+		try {
+			// Java 7 IO code
+			BufferedWriter bw = OutputFiles.newBufferedWriter(OutputFiles.getPath(outJsonFile.toPath()), StandardOpenOption.CREATE);
+			BufferedReader br = Files.newBufferedReader(Paths.get(genomeReferenceFastaFile.toURI()), Charset.defaultCharset());
+			parseFastaToChunks(br, new GenomeSequenceChunker(chunkSize, bw, gson));
 			br.close();
 			bw.close();
 		} catch (IOException e) {
@@ -100,6 +233,36 @@ public class GenomeSequenceFastaParser {
 		}
 	}
 
+	/**
+	 * Sequence lines are passed to the handler as they are read, a whole chromosome is never loaded in memory.
+	 */
+	private void parseFastaToChunks(BufferedReader br, FastaSequenceHandler handler) throws IOException {
+		String chromosome = "";
+		String line;
+		boolean hasSequence = false;
+		handler.startChromosome(chromosome);
+		while ((line = br.readLine()) != null) {
+			if (!line.startsWith(">")) {
+				handler.append(line);
+				hasSequence = hasSequence || line.length() > 0;
+			} else {
+				// new chromosome
+				// save data
+				if (hasSequence) {
+					System.out.println(chromosome);
+					handler.endChromosome();
+				}
+
+				// initialize data structures
+				chromosome = line.replace(">", "").split(" ")[0];
+				handler.startChromosome(chromosome);
+				hasSequence = false;
+			}
+		}
+		// Last chromosome must be processed
+		handler.endChromosome();
+	}
+
 	public void parseToJsonCclementina(File genomeReferenceFastaFile, File outJsonFile) {
 		/*infoStats*/
 		List<Chromosome> chromosomes = new ArrayList<Chromosome>();
@@ -111,6 +274,7 @@ public class GenomeSequenceFastaParser {
 			StringBuilder sequenceStringBuilder = new StringBuilder();
 			// Java 7 IO code
 			BufferedWriter bw = Files.newBufferedWriter(Paths.get(outJsonFile.toURI()), Charset.defaultCharset(), StandardOpenOption.CREATE);
+			JsonLineWriter jsonLineWriter = new JsonLineWriter(bw, gson);
 			BufferedReader br = Files.newBufferedReader(Paths.get(genomeReferenceFastaFile.toURI()), Charset.defaultCharset());
 			/*info_stats*/
 			BufferedWriter bw_stats = Files.newBufferedWriter(Paths.get(outJsonFile.getParent()).resolve("cclementina_info_stats.json"), Charset.defaultCharset(), StandardOpenOption.CREATE);
@@ -122,7 +286,7 @@ public class GenomeSequenceFastaParser {
 					// new chromosome
 					// save data
 					if (sequenceStringBuilder.length() > 0) {
-						writeGenomeChunks(chromosome, sequenceStringBuilder.toString(), bw);
+						writeGenomeChunks(chromosome, sequenceStringBuilder.toString(), jsonLineWriter);
 
 						/*infoStats*/
 						int len = sequenceStringBuilder.length();
@@ -148,7 +312,7 @@ public class GenomeSequenceFastaParser {
 				}
 			}
 			// Last chromosome must be processed
-			writeGenomeChunks(chromosome, sequenceStringBuilder.toString(), bw);
+			writeGenomeChunks(chromosome, sequenceStringBuilder.toString(), jsonLineWriter);
 			br.close();
 			bw.close();
 
@@ -204,7 +368,7 @@ public class GenomeSequenceFastaParser {
 //	}
 
 
-	private void writeGenomeChunks(String chromosome, String sequence, BufferedWriter bw) throws IOException {
+	private void writeGenomeChunks(String chromosome, String sequence, JsonLineWriter jsonLineWriter) throws IOException {
 		int chunkId = 0;
 		int start = 1;
 		int end = chunkSize - 1;
@@ -213,7 +377,7 @@ public class GenomeSequenceFastaParser {
 		if (sequence.length() < chunkSize) {//chromosome sequence length can be less than chunkSize
 			chunkSequence = sequence;
 			GenomeSequenceChunk chunk = new GenomeSequenceChunk(chromosome, 0, start, sequence.length() - 1, chunkSequence);
-			bw.write(gson.toJson(chunk) + "\n");
+			jsonLineWriter.write(chunk);
 			start += chunkSize - 1;
 		} else {
 			while (start < sequence.length()) {
@@ -225,7 +389,7 @@ public class GenomeSequenceFastaParser {
 					// First chunk contains chunkSize-1 nucleotides as index start at position 1 but must end at 1999
 					chunkSequence = sequence.substring(start - 1, chunkSize - 1);
 					GenomeSequenceChunk chunk = new GenomeSequenceChunk(chromosome, chunkId, start, end, chunkSequence);
-					bw.write(gson.toJson(chunk) + "\n");
+					jsonLineWriter.write(chunk);
 					start += chunkSize - 1;
 
 				} else {
@@ -233,14 +397,14 @@ public class GenomeSequenceFastaParser {
 					if ((start + chunkSize) < sequence.length()) {
 						chunkSequence = sequence.substring(start - 1, start + chunkSize - 1);
 						GenomeSequenceChunk chunk = new GenomeSequenceChunk(chromosome, chunkId, start, end, chunkSequence);
-						bw.write(gson.toJson(chunk) + "\n");
+						jsonLineWriter.write(chunk);
 						start += chunkSize;
 
 					} else {
 						// Last chunk of the chromosome
 						chunkSequence = sequence.substring(start - 1, sequence.length());
 						GenomeSequenceChunk chunk = new GenomeSequenceChunk(chromosome, chunkId, start, sequence.length(), chunkSequence);
-						bw.write(gson.toJson(chunk) + "\n");
+						jsonLineWriter.write(chunk);
 						start = sequence.length();
 					}
 				}
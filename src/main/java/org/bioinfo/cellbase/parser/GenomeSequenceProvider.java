@@ -0,0 +1,17 @@
+package org.bioinfo.cellbase.parser;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Source of genomic sequence for the parsers, either FASTA files or a PackedGenomeSequence.
+ */
+public interface GenomeSequenceProvider extends Closeable {
+
+	/**
+	 * Start and end are 1-based and inclusive as in GTF files. An empty String is returned
+	 * if the chromosome is not available.
+	 */
+	public String getSequence(String chromosome, int start, int end) throws IOException;
+
+}
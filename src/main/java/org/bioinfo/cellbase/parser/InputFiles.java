@@ -0,0 +1,57 @@
+package org.bioinfo.cellbase.parser;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Opens the gzip input files of the parsers, see ParallelGzipInputStream: files are inflated by a
+ * read-ahead thread and BGZF blocks by a pool of threads shared by all the open files.
+ */
+public class InputFiles {
+
+	private static int numThreads = Runtime.getRuntime().availableProcessors();
+	private static ExecutorService executorService;
+
+	public static synchronized void setNumThreads(int numThreads) {
+		InputFiles.numThreads = Math.max(1, numThreads);
+		if(executorService != null) {
+			executorService.shutdown();
+			executorService = null;
+		}
+	}
+
+	public static InputStream newGzipInputStream(Path path) throws IOException {
+		return new ParallelGzipInputStream(path, getExecutorService());
+	}
+
+	/**
+	 * Same charset as new InputStreamReader(new GZIPInputStream(...)).
+	 */
+	public static BufferedReader newGzipBufferedReader(Path path) throws IOException {
+		return new BufferedReader(new InputStreamReader(newGzipInputStream(path)));
+	}
+
+	private static synchronized ExecutorService getExecutorService() {
+		if(numThreads == 1) {
+			// the read-ahead thread inflates
+			return null;
+		}
+		if(executorService == null) {
+			executorService = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "gzip-inflate");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return executorService;
+	}
+}
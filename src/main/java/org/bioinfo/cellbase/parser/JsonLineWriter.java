@@ -0,0 +1,59 @@
+package org.bioinfo.cellbase.parser;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonNull;
+import com.google.gson.stream.JsonWriter;
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes one JSON document per line. Records are serialized by Gson straight into the Writer
+ * through a single JsonWriter, so no String is created per record as gson.toJson(record) + "\n"
+ * does. Lines are the same ones gson.toJson(record) returns for a Gson without pretty printing.
+ * Not thread-safe, as the Writer it wraps.
+ */
+public class JsonLineWriter implements Closeable, Flushable {
+
+	private final Writer writer;
+	private final Gson gson;
+	private final JsonWriter jsonWriter;
+	private long numLines;
+
+	public JsonLineWriter(Writer writer, Gson gson) {
+		this.writer = writer;
+		this.gson = gson;
+		this.jsonWriter = new JsonWriter(writer);
+		// a JsonWriter only accepts several top level values in lenient mode
+		this.jsonWriter.setLenient(true);
+	}
+
+	public void write(Object record) throws IOException {
+		if(record != null) {
+			gson.toJson(record, record.getClass(), jsonWriter);
+		}else {
+			gson.toJson(JsonNull.INSTANCE, jsonWriter);
+		}
+		writer.write('\n');
+		numLines++;
+	}
+
+	public long getNumLines() {
+		return numLines;
+	}
+
+	public Writer getWriter() {
+		return writer;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		writer.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		writer.close();
+	}
+}
@@ -0,0 +1,271 @@
+package org.bioinfo.cellbase.parser;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+import com.mongodb.util.JSON;
+
+/**
+ * Loads the records of a build straight into a MongoDB collection instead of a JSON file.
+ * Records are inserted in batches of batchSize as unordered bulk inserts, a failed record does
+ * not stop the rest of its batch, and up to maxBatchesInFlight batches are inserted at the same
+ * time by the loader threads. Producers block when all the batches are in flight.
+ * JSON lines written to newWriter() are parsed by the loader threads, so the parsers writing
+ * through OutputFiles do not need to know where their records go.
+ */
+public class MongoBulkLoader implements DBObjectSink, Closeable {
+
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+	public static final int DEFAULT_BATCHES_IN_FLIGHT = 4;
+
+	// db.getCollection('core').ensureIndex({'id': 1})
+	private static final Pattern ENSURE_INDEX = Pattern.compile("db\\.getCollection\\(['\"](.+?)['\"]\\)\\.ensureIndex\\((\\{.*\\})\\)");
+
+	private final DBCollection collection;
+	private final int batchSize;
+	private final int maxBatchesInFlight;
+	private final Semaphore batchesInFlight;
+	private final ExecutorService executorService;
+	private final WriteConcern writeConcern = WriteConcern.ACKNOWLEDGED.continueOnError(true);
+	private final AtomicLong numRecords = new AtomicLong();
+
+	// JSON lines or DBObjects
+	private List<Object> batch;
+	private volatile RuntimeException error;
+	private boolean closed;
+
+	public MongoBulkLoader(DBCollection collection) {
+		this(collection, DEFAULT_BATCH_SIZE, DEFAULT_BATCHES_IN_FLIGHT);
+	}
+
+	public MongoBulkLoader(DBCollection collection, int batchSize, int maxBatchesInFlight) {
+		this.collection = collection;
+		this.batchSize = Math.max(1, batchSize);
+		this.maxBatchesInFlight = Math.max(1, maxBatchesInFlight);
+		this.batchesInFlight = new Semaphore(this.maxBatchesInFlight);
+		this.executorService = Executors.newFixedThreadPool(this.maxBatchesInFlight, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "mongodb-loader");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.batch = new ArrayList<>(this.batchSize);
+	}
+
+	@Override
+	public void add(DBObject dbObject) throws IOException {
+		addRecord(dbObject);
+	}
+
+	public void addAll(List<DBObject> dbObjects) throws IOException {
+		for(DBObject dbObject: dbObjects) {
+			addRecord(dbObject);
+		}
+	}
+
+	/**
+	 * Adds a record as a JSON document, it is parsed when its batch is inserted.
+	 */
+	public void addJson(String json) throws IOException {
+		addRecord(json);
+	}
+
+	/**
+	 * Returns a Writer of JSON lines, one document per line, each line is added with addJson().
+	 * Writers are not thread safe but many writers can be used from different threads.
+	 * Closing the writer does not close the loader.
+	 */
+	public Writer newWriter() {
+		return new JsonLineLoader();
+	}
+
+	/**
+	 * Inserts the current batch and waits for all the batches in flight.
+	 */
+	public synchronized void flush() throws IOException {
+		checkError();
+		if(!batch.isEmpty()) {
+			submitBatch();
+		}
+		try {
+			batchesInFlight.acquire(maxBatchesInFlight);
+			batchesInFlight.release(maxBatchesInFlight);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+		checkError();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if(!closed) {
+			try {
+				flush();
+			} finally {
+				closed = true;
+				executorService.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * Number of records inserted so far.
+	 */
+	public long getNumRecords() {
+		return numRecords.get();
+	}
+
+	public DBCollection getCollection() {
+		return collection;
+	}
+
+	/**
+	 * Runs the ensureIndex() lines of the index script of the collection, named as
+	 * [collection]-indexes.js, from mongodbScriptsDir. Data is flushed first, indexes are built
+	 * once over the loaded collection instead of being updated on every insert.
+	 * Returns the number of indexes created, 0 if there is no script for the collection.
+	 */
+	public int createIndexes(Path mongodbScriptsDir) throws IOException {
+		flush();
+		Path indexScript = getIndexScript(mongodbScriptsDir, collection.getName());
+		if(indexScript == null) {
+			return 0;
+		}
+		int numIndexes = 0;
+		BufferedReader br = Files.newBufferedReader(indexScript, Charset.defaultCharset());
+		String line;
+		while((line = br.readLine()) != null) {
+			Matcher matcher = ENSURE_INDEX.matcher(line);
+			if(matcher.find() && matcher.group(1).equals(collection.getName())) {
+				collection.ensureIndex((DBObject) JSON.parse(matcher.group(2)));
+				numIndexes++;
+			}
+		}
+		br.close();
+		return numIndexes;
+	}
+
+	private static Path getIndexScript(Path mongodbScriptsDir, String collectionName) throws IOException {
+		if(mongodbScriptsDir == null || !Files.isDirectory(mongodbScriptsDir)) {
+			return null;
+		}
+		// variation-indices.js, core-indexes.js...
+		try(DirectoryStream<Path> scripts = Files.newDirectoryStream(mongodbScriptsDir, collectionName + "-ind*.js")) {
+			for(Path script: scripts) {
+				return script;
+			}
+		}
+		return null;
+	}
+
+	private synchronized void addRecord(Object record) throws IOException {
+		if(closed) {
+			throw new IOException("Loader closed");
+		}
+		checkError();
+		batch.add(record);
+		if(batch.size() >= batchSize) {
+			submitBatch();
+		}
+	}
+
+	private void submitBatch() throws IOException {
+		final List<Object> records = batch;
+		batch = new ArrayList<>(batchSize);
+		try {
+			batchesInFlight.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+		executorService.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					List<DBObject> dbObjects = new ArrayList<>(records.size());
+					for(Object record: records) {
+						DBObject dbObject = (record instanceof String) ? (DBObject) JSON.parse((String) record) : (DBObject) record;
+						if(dbObject != null) {
+							dbObjects.add(dbObject);
+						}
+					}
+					if(!dbObjects.isEmpty()) {
+						collection.insert(dbObjects, writeConcern);
+						numRecords.addAndGet(dbObjects.size());
+					}
+				} catch (RuntimeException e) {
+					error = e;
+				} finally {
+					batchesInFlight.release();
+				}
+			}
+		});
+	}
+
+	private void checkError() throws IOException {
+		if(error != null) {
+			throw new IOException("Error loading into " + collection.getName(), error);
+		}
+	}
+
+	/**
+	 * Cuts the written chars into lines, a line is added when its '\n' is written.
+	 */
+	private class JsonLineLoader extends Writer {
+
+		private final StringBuilder line = new StringBuilder();
+
+		@Override
+		public void write(char[] cbuf, int off, int len) throws IOException {
+			int end = off + len;
+			for(int i = off; i < end; i++) {
+				if(cbuf[i] == '\n') {
+					line.append(cbuf, off, i - off);
+					addLine();
+					off = i + 1;
+				}
+			}
+			line.append(cbuf, off, end - off);
+		}
+
+		/**
+		 * A partial line is kept until its end is written.
+		 */
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() throws IOException {
+			addLine();
+		}
+
+		private void addLine() throws IOException {
+			if(line.length() > 0) {
+				addJson(line.toString());
+				line.setLength(0);
+			}
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package org.bioinfo.cellbase.parser;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Output sink of the JSON builds. Files are written uncompressed unless the compression is set
+ * to BGZF: then they get a '.gz' suffix and are written as block gzip, see BlockGzipOutputStream,
+ * by a pool of compression threads shared by all the open files.
+ * With a MongoBulkLoader set no file is written, the JSON lines are loaded into its collection.
+ * Parsers name their outputs with getPath() and open them with newBufferedWriter().
+ */
+public class OutputFiles {
+
+	public enum Compression {NONE, BGZF}
+
+	private static Compression compression = Compression.NONE;
+	private static int numThreads = 1;
+	private static ExecutorService executorService;
+	private static MongoBulkLoader loader;
+
+	public static synchronized void setCompression(Compression compression, int numThreads) {
+		OutputFiles.compression = compression;
+		OutputFiles.numThreads = Math.max(1, numThreads);
+		if(executorService != null) {
+			executorService.shutdown();
+			executorService = null;
+		}
+	}
+
+	public static Compression getCompression() {
+		return compression;
+	}
+
+	/**
+	 * Outputs opened from now on are loaded into the loader collection, null writes files again.
+	 */
+	public static synchronized void setLoader(MongoBulkLoader loader) {
+		OutputFiles.loader = loader;
+	}
+
+	public static synchronized MongoBulkLoader getLoader() {
+		return loader;
+	}
+
+	/**
+	 * Name of the file written for the output path, the path itself when there is no compression.
+	 */
+	public static Path getPath(Path path) {
+		return (compression == Compression.BGZF) ? Paths.get(path.toString() + ".gz") : path;
+	}
+
+	/**
+	 * Opens the given path with the current compression, the path is not renamed. If a loader is
+	 * set the path is not created and the lines written go to the loader.
+	 */
+	public static BufferedWriter newBufferedWriter(Path path, OpenOption... options) throws IOException {
+		MongoBulkLoader loader = getLoader();
+		if(loader != null) {
+			return new BufferedWriter(loader.newWriter(), 1 << 16);
+		}
+		if(compression == Compression.BGZF) {
+			BlockGzipOutputStream outputStream = new BlockGzipOutputStream(Files.newOutputStream(path, options), getExecutorService(), numThreads);
+			return new BufferedWriter(new OutputStreamWriter(outputStream, Charset.defaultCharset()), 1 << 16);
+		}
+		return Files.newBufferedWriter(path, Charset.defaultCharset(), options);
+	}
+
+	/**
+	 * Concatenates the part files into outPath deleting them, compressed parts are concatenated as
+	 * they are, block gzip members can be.
+	 */
+	public static void concatenate(List<Path> partPaths, Path outPath) throws IOException {
+		FileChannel out = FileChannel.open(outPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		for(Path partPath: partPaths) {
+			FileChannel part = FileChannel.open(partPath, StandardOpenOption.READ);
+			long position = 0;
+			long size = part.size();
+			while(position < size) {
+				position += part.transferTo(position, size - position, out);
+			}
+			part.close();
+			Files.delete(partPath);
+		}
+		out.close();
+	}
+
+	private static synchronized ExecutorService getExecutorService() {
+		if(numThreads == 1) {
+			// the writing thread compresses
+			return null;
+		}
+		if(executorService == null) {
+			executorService = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					// daemon threads, builds do not have to shut the pool down
+					Thread thread = new Thread(runnable, "bgzf-compression");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return executorService;
+	}
+}
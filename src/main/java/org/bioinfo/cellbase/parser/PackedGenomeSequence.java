@@ -0,0 +1,347 @@
+package org.bioinfo.cellbase.parser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary genome sequence store, nucleotides are packed in 2 bits (T=0, C=1, A=2, G=3) and
+ * memory-mapped so any region can be fetched without decompressing or parsing anything.
+ * Nucleotides other than ACGT (mostly N) and soft-masked (lower case) regions are kept
+ * as sorted side lists of runs.
+ *
+ * File layout:
+ *   header:  int magic, int version, long indexOffset
+ *   data:    packed nucleotides of each chromosome, 4 per byte, most significant bits first
+ *   index:   int numChromosomes and for each chromosome: UTF name, int length, long dataOffset,
+ *            int numExceptionRuns, [int start, int length, byte nucleotide]...,
+ *            int numMaskRuns, [int start, int length]...
+ * Run starts are 0-based.
+ */
+public class PackedGenomeSequence implements GenomeSequenceProvider {
+
+	private static final int MAGIC = 0x43424753;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 16;
+	private static final char[] NUCLEOTIDES = {'T', 'C', 'A', 'G'};
+
+	private final RandomAccessFile file;
+	private final Map<String, PackedChromosome> chromosomes;
+
+	public PackedGenomeSequence(Path packedGenomePath) throws IOException {
+		file = new RandomAccessFile(packedGenomePath.toFile(), "r");
+		FileChannel channel = file.getChannel();
+		if(file.readInt() != MAGIC || file.readInt() != VERSION) {
+			file.close();
+			throw new IOException("Not a packed genome sequence file: " + packedGenomePath);
+		}
+		long indexOffset = file.readLong();
+
+		chromosomes = new LinkedHashMap<>();
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(indexOffset))));
+		int numChromosomes = dis.readInt();
+		for(int i = 0; i < numChromosomes; i++) {
+			PackedChromosome chromosome = new PackedChromosome();
+			String name = dis.readUTF();
+			chromosome.length = dis.readInt();
+			long dataOffset = dis.readLong();
+			int numExceptionRuns = dis.readInt();
+			chromosome.exceptionStarts = new int[numExceptionRuns];
+			chromosome.exceptionLengths = new int[numExceptionRuns];
+			chromosome.exceptionNucleotides = new byte[numExceptionRuns];
+			for(int j = 0; j < numExceptionRuns; j++) {
+				chromosome.exceptionStarts[j] = dis.readInt();
+				chromosome.exceptionLengths[j] = dis.readInt();
+				chromosome.exceptionNucleotides[j] = dis.readByte();
+			}
+			int numMaskRuns = dis.readInt();
+			chromosome.maskStarts = new int[numMaskRuns];
+			chromosome.maskLengths = new int[numMaskRuns];
+			for(int j = 0; j < numMaskRuns; j++) {
+				chromosome.maskStarts[j] = dis.readInt();
+				chromosome.maskLengths[j] = dis.readInt();
+			}
+			chromosome.data = channel.map(FileChannel.MapMode.READ_ONLY, dataOffset, packedSize(chromosome.length));
+			chromosomes.put(name, chromosome);
+		}
+	}
+
+	public List<String> getChromosomeNames() {
+		return new ArrayList<>(chromosomes.keySet());
+	}
+
+	/**
+	 * Returns -1 if the chromosome is not in the file.
+	 */
+	public int getChromosomeLength(String chromosome) {
+		PackedChromosome packedChromosome = chromosomes.get(chromosome);
+		return (packedChromosome != null) ? packedChromosome.length : -1;
+	}
+
+	/**
+	 * Start and end are 1-based and inclusive as in GTF files, end is trimmed to the chromosome length.
+	 * An empty String is returned for unknown chromosomes or empty regions.
+	 */
+	public String getSequence(String chromosome, int start, int end) {
+		PackedChromosome packedChromosome = chromosomes.get(chromosome);
+		if(packedChromosome == null) {
+			return "";
+		}
+		int from = Math.max(start, 1) - 1;
+		int to = Math.min(end, packedChromosome.length);
+		if(from >= to) {
+			return "";
+		}
+
+		char[] sequence = new char[to - from];
+		MappedByteBuffer data = packedChromosome.data;
+		for(int i = from; i < to; i++) {
+			int code = (data.get(i >> 2) >> (6 - ((i & 3) << 1))) & 3;
+			sequence[i - from] = NUCLEOTIDES[code];
+		}
+
+		// Non ACGT nucleotides
+		int[] starts = packedChromosome.exceptionStarts;
+		int[] lengths = packedChromosome.exceptionLengths;
+		for(int r = firstOverlappingRun(starts, lengths, from); r < starts.length && starts[r] < to; r++) {
+			int runEnd = Math.min(starts[r] + lengths[r], to);
+			Arrays.fill(sequence, Math.max(starts[r], from) - from, runEnd - from, (char) packedChromosome.exceptionNucleotides[r]);
+		}
+
+		// Soft-masked regions
+		starts = packedChromosome.maskStarts;
+		lengths = packedChromosome.maskLengths;
+		for(int r = firstOverlappingRun(starts, lengths, from); r < starts.length && starts[r] < to; r++) {
+			int runEnd = Math.min(starts[r] + lengths[r], to);
+			for(int i = Math.max(starts[r], from); i < runEnd; i++) {
+				sequence[i - from] = Character.toLowerCase(sequence[i - from]);
+			}
+		}
+		return new String(sequence);
+	}
+
+	@Override
+	public void close() throws IOException {
+		chromosomes.clear();
+		file.close();
+	}
+
+	/**
+	 * Runs are sorted and do not overlap, binary search of the last run starting at or
+	 * before position, that run is returned only if it reaches position.
+	 */
+	private static int firstOverlappingRun(int[] starts, int[] lengths, int position) {
+		int index = Arrays.binarySearch(starts, position);
+		if(index >= 0) {
+			return index;
+		}
+		int previous = -index - 2;
+		if(previous >= 0 && starts[previous] + lengths[previous] > position) {
+			return previous;
+		}
+		return previous + 1;
+	}
+
+	private static long packedSize(int length) {
+		return (length + 3L) / 4;
+	}
+
+	private static class PackedChromosome {
+		int length;
+		MappedByteBuffer data;
+		int[] exceptionStarts;
+		int[] exceptionLengths;
+		byte[] exceptionNucleotides;
+		int[] maskStarts;
+		int[] maskLengths;
+	}
+
+
+	/**
+	 * Writes a packed genome file from FASTA lines, the packed nucleotides are streamed to disk
+	 * and only the run lists are kept in memory until close().
+	 */
+	public static class Writer implements FastaSequenceHandler, Closeable {
+
+		private final Path packedGenomePath;
+		private final DataOutputStream dos;
+		private long position;
+
+		private final List<String> names = new ArrayList<>();
+		private final List<Integer> lengths = new ArrayList<>();
+		private final List<Long> dataOffsets = new ArrayList<>();
+		private final List<IntList> exceptionRunsList = new ArrayList<>();
+		private final List<IntList> maskRunsList = new ArrayList<>();
+
+		private String chromosome;
+		private int length;
+		private int packedByte;
+		private IntList exceptionRuns;
+		private IntList maskRuns;
+		private char exceptionNucleotide;
+		private int exceptionStart;
+		private int maskStart;
+
+		public Writer(Path packedGenomePath) throws IOException {
+			this.packedGenomePath = packedGenomePath;
+			this.dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(packedGenomePath.toFile()), 1 << 16));
+			dos.writeInt(MAGIC);
+			dos.writeInt(VERSION);
+			// index offset is updated on close
+			dos.writeLong(0);
+			position = HEADER_SIZE;
+		}
+
+		@Override
+		public void startChromosome(String chromosome) {
+			this.chromosome = chromosome;
+			this.length = 0;
+			this.packedByte = 0;
+			this.exceptionRuns = new IntList();
+			this.maskRuns = new IntList();
+			this.exceptionStart = -1;
+			this.maskStart = -1;
+		}
+
+		@Override
+		public void append(CharSequence sequenceLine) throws IOException {
+			for(int i = 0; i < sequenceLine.length(); i++) {
+				char c = sequenceLine.charAt(i);
+				boolean masked = Character.isLowerCase(c);
+				char nucleotide = Character.toUpperCase(c);
+
+				if(masked && maskStart < 0) {
+					maskStart = length;
+				}else if(!masked && maskStart >= 0) {
+					maskRuns.add(maskStart);
+					maskRuns.add(length - maskStart);
+					maskStart = -1;
+				}
+
+				int code;
+				switch(nucleotide) {
+				case 'T': code = 0; break;
+				case 'C': code = 1; break;
+				case 'A': code = 2; break;
+				case 'G': code = 3; break;
+				default: code = -1; break;
+				}
+				if(exceptionStart >= 0 && (code >= 0 || nucleotide != exceptionNucleotide)) {
+					closeExceptionRun();
+				}
+				if(code < 0) {
+					if(exceptionStart < 0) {
+						exceptionStart = length;
+						exceptionNucleotide = nucleotide;
+					}
+					code = 0;
+				}
+
+				packedByte = (packedByte << 2) | code;
+				length++;
+				if((length & 3) == 0) {
+					dos.write(packedByte);
+					packedByte = 0;
+				}
+			}
+		}
+
+		@Override
+		public int endChromosome() throws IOException {
+			if(exceptionStart >= 0) {
+				closeExceptionRun();
+			}
+			if(maskStart >= 0) {
+				maskRuns.add(maskStart);
+				maskRuns.add(length - maskStart);
+				maskStart = -1;
+			}
+			if((length & 3) != 0) {
+				dos.write(packedByte << ((4 - (length & 3)) << 1));
+				packedByte = 0;
+			}
+			if(length > 0) {
+				names.add(chromosome);
+				lengths.add(length);
+				dataOffsets.add(position);
+				exceptionRunsList.add(exceptionRuns);
+				maskRunsList.add(maskRuns);
+				position += packedSize(length);
+			}
+			return length;
+		}
+
+		private void closeExceptionRun() {
+			exceptionRuns.add(exceptionStart);
+			exceptionRuns.add(length - exceptionStart);
+			exceptionRuns.add(exceptionNucleotide);
+			exceptionStart = -1;
+		}
+
+		@Override
+		public void close() throws IOException {
+			long indexOffset = position;
+			dos.writeInt(names.size());
+			for(int i = 0; i < names.size(); i++) {
+				dos.writeUTF(names.get(i));
+				dos.writeInt(lengths.get(i));
+				dos.writeLong(dataOffsets.get(i));
+				IntList runs = exceptionRunsList.get(i);
+				dos.writeInt(runs.size() / 3);
+				for(int j = 0; j < runs.size(); j += 3) {
+					dos.writeInt(runs.get(j));
+					dos.writeInt(runs.get(j + 1));
+					dos.writeByte(runs.get(j + 2));
+				}
+				runs = maskRunsList.get(i);
+				dos.writeInt(runs.size() / 2);
+				for(int j = 0; j < runs.size(); j++) {
+					dos.writeInt(runs.get(j));
+				}
+			}
+			dos.close();
+
+			FileChannel channel = FileChannel.open(packedGenomePath, StandardOpenOption.WRITE);
+			ByteBuffer offsetBuffer = ByteBuffer.allocate(8);
+			offsetBuffer.putLong(indexOffset).flip();
+			channel.write(offsetBuffer, 8);
+			channel.close();
+		}
+	}
+
+	private static class IntList {
+		private int[] values = new int[16];
+		private int size;
+
+		void add(int value) {
+			if(size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = value;
+		}
+
+		int get(int index) {
+			return values[index];
+		}
+
+		int size() {
+			return size;
+		}
+	}
+}
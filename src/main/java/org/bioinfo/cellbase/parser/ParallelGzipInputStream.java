@@ -0,0 +1,307 @@
+package org.bioinfo.cellbase.parser;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Reads a gzip file decompressed by a read-ahead thread, so inflating does not take time from the
+ * thread parsing the data. Decompressed data is handed over in chunks through a bounded queue.
+ * Block gzip (BGZF) files, as BlockGzipOutputStream and bgzip write them, are split in groups of
+ * blocks using the block sizes of their headers and the groups are inflated in parallel by the
+ * given ExecutorService. Any other gzip file, single or multi-member, is inflated by the read-ahead
+ * thread with a GZIPInputStream, as members can not be found without inflating the previous ones.
+ * Same bytes as new GZIPInputStream(Files.newInputStream(path)) are returned, an empty file is read
+ * as empty data.
+ */
+public class ParallelGzipInputStream extends InputStream {
+
+	public static final int CHUNK_SIZE = 1 << 20;
+	public static final int MAX_CHUNKS_IN_FLIGHT = 16;
+
+	private static final int BGZF_HEADER_SIZE = 18;
+	private static final int GZIP_TRAILER_SIZE = 8;
+	private static final byte[] END = new byte[0];
+
+	private final Path path;
+	private final ExecutorService executorService;
+	private final BlockingQueue<Future<byte[]>> chunks = new ArrayBlockingQueue<>(MAX_CHUNKS_IN_FLIGHT);
+	private final Thread readAheadThread;
+
+	private byte[] chunk = new byte[0];
+	private int position;
+	private boolean closed;
+
+	/**
+	 * BGZF blocks are inflated by the read-ahead thread if executorService is null.
+	 */
+	public ParallelGzipInputStream(Path path, ExecutorService executorService) throws IOException {
+		if(!Files.isReadable(path)) {
+			throw new IOException("File not readable: " + path);
+		}
+		this.path = path;
+		this.executorService = executorService;
+		this.readAheadThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				readAhead();
+			}
+		}, "gzip-read-ahead " + path.getFileName());
+		this.readAheadThread.setDaemon(true);
+		this.readAheadThread.start();
+	}
+
+	@Override
+	public int read() throws IOException {
+		if(!nextChunk()) {
+			return -1;
+		}
+		return chunk[position++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(len == 0) {
+			return 0;
+		}
+		if(!nextChunk()) {
+			return -1;
+		}
+		int n = Math.min(len, chunk.length - position);
+		System.arraycopy(chunk, position, b, off, n);
+		position += n;
+		return n;
+	}
+
+	@Override
+	public int available() {
+		return (chunk != END) ? chunk.length - position : 0;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(!closed) {
+			closed = true;
+			readAheadThread.interrupt();
+			for(Future<byte[]> future: chunks) {
+				future.cancel(true);
+			}
+			chunks.clear();
+		}
+	}
+
+	/**
+	 * Makes chunk have unread bytes, returns false at the end of the data.
+	 */
+	private boolean nextChunk() throws IOException {
+		if(closed) {
+			throw new IOException("Stream closed");
+		}
+		while(chunk != END && position == chunk.length) {
+			try {
+				chunk = chunks.take().get();
+				position = 0;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			} catch (ExecutionException e) {
+				if(e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw new IOException(e.getCause());
+			}
+		}
+		return chunk != END;
+	}
+
+	private void readAhead() {
+		try(BufferedInputStream in = new BufferedInputStream(Files.newInputStream(path), 1 << 16)) {
+			List<byte[]> blocks = new ArrayList<>();
+			int groupSize = 0;
+			byte[] block;
+			while((block = readBgzfBlock(in)) != null) {
+				blocks.add(block);
+				groupSize += block.length;
+				if(groupSize >= CHUNK_SIZE) {
+					putBlocks(blocks);
+					blocks = new ArrayList<>();
+					groupSize = 0;
+				}
+			}
+			putBlocks(blocks);
+
+			// not BGZF, or not anymore: the rest of the file is inflated here
+			if(in.available() > 0 || in.read() >= 0) {
+				in.reset();
+				GZIPInputStream gzipInputStream = new GZIPInputStream(in, 1 << 16);
+				byte[] buffer = new byte[CHUNK_SIZE];
+				int size = 0;
+				int read;
+				while((read = gzipInputStream.read(buffer, size, buffer.length - size)) >= 0) {
+					size += read;
+					if(size == buffer.length) {
+						put(completed(buffer));
+						buffer = new byte[CHUNK_SIZE];
+						size = 0;
+					}
+				}
+				if(size > 0) {
+					byte[] lastChunk = new byte[size];
+					System.arraycopy(buffer, 0, lastChunk, 0, size);
+					put(completed(lastChunk));
+				}
+			}
+			put(completed(END));
+		} catch (IOException e) {
+			putFailure(e);
+		} catch (RuntimeException e) {
+			// the executor was shut down, the reader would wait forever
+			putFailure(new IOException(e));
+		} catch (InterruptedException e) {
+			// closed
+		}
+	}
+
+	private void putFailure(IOException e) {
+		try {
+			put(failed(e));
+		} catch (InterruptedException ie) {
+			// closed
+		}
+	}
+
+	/**
+	 * Reads the next complete BGZF block, or returns null at the end of the file or if the next
+	 * member is not a BGZF block, then the stream is left marked at the start of the member.
+	 */
+	private static byte[] readBgzfBlock(BufferedInputStream in) throws IOException {
+		in.mark(BGZF_HEADER_SIZE);
+		byte[] header = new byte[BGZF_HEADER_SIZE];
+		int n = 0;
+		int read;
+		while(n < header.length && (read = in.read(header, n, header.length - n)) > 0) {
+			n += read;
+		}
+		if(n < header.length || (header[0] & 0xff) != 0x1f || (header[1] & 0xff) != 0x8b || header[2] != 8 || (header[3] & 4) == 0
+				|| header[10] != 6 || header[11] != 0 || header[12] != 'B' || header[13] != 'C' || header[14] != 2 || header[15] != 0) {
+			in.reset();
+			return null;
+		}
+		int blockSize = ((header[16] & 0xff) | ((header[17] & 0xff) << 8)) + 1;
+		if(blockSize < BGZF_HEADER_SIZE + GZIP_TRAILER_SIZE) {
+			throw new ZipException("Invalid BGZF block size " + blockSize);
+		}
+		byte[] block = new byte[blockSize];
+		System.arraycopy(header, 0, block, 0, BGZF_HEADER_SIZE);
+		try {
+			new DataInputStream(in).readFully(block, BGZF_HEADER_SIZE, blockSize - BGZF_HEADER_SIZE);
+		} catch (EOFException e) {
+			throw new ZipException("Truncated BGZF block");
+		}
+		return block;
+	}
+
+	private void putBlocks(final List<byte[]> blocks) throws IOException, InterruptedException {
+		if(blocks.isEmpty()) {
+			return;
+		}
+		Callable<byte[]> inflateTask = new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws IOException {
+				return inflateBlocks(blocks);
+			}
+		};
+		if(executorService != null) {
+			put(executorService.submit(inflateTask));
+		}else {
+			put(run(inflateTask));
+		}
+	}
+
+	private static byte[] inflateBlocks(List<byte[]> blocks) throws IOException {
+		int size = 0;
+		for(byte[] block: blocks) {
+			size += readInt(block, block.length - 4);
+		}
+		byte[] data = new byte[size];
+		int offset = 0;
+		Inflater inflater = new Inflater(true);
+		CRC32 crc32 = new CRC32();
+		try {
+			for(byte[] block: blocks) {
+				int dataSize = readInt(block, block.length - 4);
+				inflater.reset();
+				inflater.setInput(block, BGZF_HEADER_SIZE, block.length - BGZF_HEADER_SIZE - GZIP_TRAILER_SIZE);
+				int inflated = 0;
+				while(inflated < dataSize && !inflater.finished()) {
+					int n = inflater.inflate(data, offset + inflated, dataSize - inflated);
+					if(n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+						break;
+					}
+					inflated += n;
+				}
+				crc32.reset();
+				crc32.update(data, offset, inflated);
+				if(inflated != dataSize || (int) crc32.getValue() != readInt(block, block.length - 8)) {
+					throw new ZipException("Corrupt BGZF block");
+				}
+				offset += dataSize;
+			}
+		} catch (DataFormatException e) {
+			throw new ZipException(e.getMessage());
+		} finally {
+			inflater.end();
+		}
+		return data;
+	}
+
+	private void put(Future<byte[]> future) throws InterruptedException {
+		chunks.put(future);
+	}
+
+	private static Future<byte[]> run(Callable<byte[]> callable) {
+		FutureTask<byte[]> future = new FutureTask<>(callable);
+		future.run();
+		return future;
+	}
+
+	private static Future<byte[]> completed(final byte[] data) {
+		return run(new Callable<byte[]>() {
+			@Override
+			public byte[] call() {
+				return data;
+			}
+		});
+	}
+
+	private static Future<byte[]> failed(final IOException e) {
+		return run(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws IOException {
+				throw e;
+			}
+		});
+	}
+
+	private static int readInt(byte[] buffer, int offset) {
+		return (buffer[offset] & 0xff) | ((buffer[offset + 1] & 0xff) << 8) | ((buffer[offset + 2] & 0xff) << 16) | ((buffer[offset + 3] & 0xff) << 24);
+	}
+}
@@ -0,0 +1,117 @@
+package org.bioinfo.cellbase.parser;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads lines at given byte offsets of a file through a FileChannel and a block buffer,
+ * RandomAccessFile.readLine() does one read call per byte. Lines close to each other,
+ * as the rows of a variation usually are, are served from the same block.
+ * Lines are decoded exactly as RandomAccessFile.readLine() does, each byte is a char
+ * (ISO-8859-1) and lines end at '\n', '\r' or "\r\n", so the output does not change.
+ */
+public class PositionalLineReader implements Closeable {
+
+	public static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	private final FileChannel channel;
+	private final ByteBuffer buffer;
+	// file position of buffer[0], -1 when the buffer is empty
+	private long bufferStart = -1;
+	private long numReads;
+
+	public PositionalLineReader(Path file) throws IOException {
+		this(file, DEFAULT_BUFFER_SIZE);
+	}
+
+	public PositionalLineReader(Path file, int bufferSize) throws IOException {
+		this.channel = FileChannel.open(file, StandardOpenOption.READ);
+		this.buffer = ByteBuffer.allocate(bufferSize);
+	}
+
+	/**
+	 * Offsets must be sorted to take advantage of the buffer, negative offsets are skipped
+	 * as well as offsets at the end of the file.
+	 */
+	public List<String> readLines(long[] offsets) throws IOException {
+		List<String> lines = new ArrayList<>(offsets.length);
+		for(long offset: offsets) {
+			if(offset >= 0) {
+				String line = readLine(offset);
+				if(line != null) {
+					lines.add(line);
+				}
+			}
+		}
+		return lines;
+	}
+
+	/**
+	 * Returns the line starting at offset without the line terminator, or null at the end of the file.
+	 */
+	public String readLine(long offset) throws IOException {
+		if(!fill(offset)) {
+			return null;
+		}
+		int start = (int) (offset - bufferStart);
+		int limit = buffer.limit();
+		byte[] bytes = buffer.array();
+		for(int i = start; i < limit; i++) {
+			if(bytes[i] == '\n' || bytes[i] == '\r') {
+				return new String(bytes, start, i - start, ISO_8859_1);
+			}
+		}
+
+		// the line goes on in the next blocks
+		StringBuilder sb = new StringBuilder(new String(bytes, start, limit - start, ISO_8859_1));
+		long position = bufferStart + limit;
+		while(fill(position)) {
+			limit = buffer.limit();
+			for(int i = 0; i < limit; i++) {
+				if(bytes[i] == '\n' || bytes[i] == '\r') {
+					return sb.append(new String(bytes, 0, i, ISO_8859_1)).toString();
+				}
+			}
+			sb.append(new String(bytes, 0, limit, ISO_8859_1));
+			position += limit;
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Number of read calls done to the channel so far.
+	 */
+	public long getNumReads() {
+		return numReads;
+	}
+
+	/**
+	 * Makes the buffer contain position, returns false if position is at or beyond the end of the file.
+	 */
+	private boolean fill(long position) throws IOException {
+		if(bufferStart >= 0 && position >= bufferStart && position < bufferStart + buffer.limit()) {
+			return true;
+		}
+		buffer.clear();
+		int read;
+		while(buffer.hasRemaining() && (read = channel.read(buffer, position + buffer.position())) > 0) {
+			numReads++;
+		}
+		buffer.flip();
+		bufferStart = position;
+		return buffer.limit() > 0;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
@@ -26,6 +26,7 @@ public class ProteinParser {
 		Gson gson = new Gson();
 		UniprotParser up = new UniprotParser();
 		PrintWriter pw = new PrintWriter(Files.newOutputStream(Paths.get(outputFile.toURI())));
+		JsonLineWriter jsonLineWriter = new JsonLineWriter(pw, gson);
 		try {
 			Uniprot uniprot = (Uniprot) up.loadXMLInfo(uniprotPath.toString(), UniprotParser.UNIPROT_CONTEXT_v135);
 			for(Entry entry: uniprot.getEntry()) {
@@ -36,7 +37,7 @@ public class ProteinParser {
 //					System.out.println(iter.next().getValue());
 					entryOrganism = iter.next().getValue();
 					if(entryOrganism.contains(species)) {
-						pw.println(gson.toJson(entry));					
+						jsonLineWriter.write(entry);					
 					}
 				}
 			}
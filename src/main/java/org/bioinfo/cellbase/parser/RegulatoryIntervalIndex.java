@@ -0,0 +1,488 @@
+package org.bioinfo.cellbase.parser;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.bioinfo.cellbase.lib.common.GenericFeature;
+
+/**
+ * Overlap queries over the regulatory features without a database. Features of each chromosome
+ * are sorted by start and stored as an implicit augmented interval tree, as in cgranges: the
+ * sorted array is read as a binary tree where the node at rank i has level = number of trailing
+ * 1 bits of i and keeps the max end of its subtree. Queries take O(log n + k).
+ * The arrays are memory-mapped when opened, the GFF lines of the features are read from the file
+ * only for the results.
+ *
+ * File layout: int magic, int version, long directoryPosition, then for each chromosome its block:
+ * int[n] starts, int[n] ends, int[n] maxEnds, int[n] lengths, long[n] offsets in the chromosome
+ * data, followed by its data: for each feature a byte with its table and its GFF line in UTF-8.
+ * The directory has the table names and, for each chromosome, its name, block position, n, root
+ * level and data position.
+ */
+public class RegulatoryIntervalIndex implements Closeable {
+
+	private static final int MAGIC = 0x43425249;
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 16;
+	// subtrees up to this level are scanned instead of walked
+	private static final int SCAN_LEVEL = 3;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final List<String> tableNames;
+	private final Map<String, ChromosomeTree> trees;
+
+	public RegulatoryIntervalIndex(Path indexFile) throws IOException {
+		file = new RandomAccessFile(indexFile.toFile(), "r");
+		if(file.readInt() != MAGIC || file.readInt() != VERSION) {
+			file.close();
+			throw new IOException("Not a regulatory interval index file: " + indexFile);
+		}
+		channel = file.getChannel();
+		file.seek(file.readLong());
+		int numTables = file.readInt();
+		tableNames = new ArrayList<>(numTables);
+		for(int i = 0; i < numTables; i++) {
+			tableNames.add(file.readUTF());
+		}
+		int numChromosomes = file.readInt();
+		trees = new LinkedHashMap<>(numChromosomes * 2);
+		for(int i = 0; i < numChromosomes; i++) {
+			String chromosome = file.readUTF();
+			long blockPosition = file.readLong();
+			int size = file.readInt();
+			int rootLevel = file.readInt();
+			long dataPosition = file.readLong();
+			trees.put(chromosome, new ChromosomeTree(channel, blockPosition, size, rootLevel, dataPosition));
+		}
+	}
+
+	public Set<String> getChromosomes() {
+		return Collections.unmodifiableSet(trees.keySet());
+	}
+
+	/**
+	 * Number of features of the chromosome.
+	 */
+	public int size(String chromosome) {
+		ChromosomeTree tree = trees.get(chromosome);
+		return (tree == null) ? 0 : tree.size;
+	}
+
+	/**
+	 * Ranks of the features overlapping [start, end], both included, sorted by start.
+	 */
+	public int[] queryRanks(String chromosome, int start, int end) {
+		ChromosomeTree tree = trees.get(chromosome);
+		if(tree == null) {
+			return new int[0];
+		}
+		return tree.overlap(start, end);
+	}
+
+	/**
+	 * Features overlapping [start, end] sorted by start, with the 'chr' prefix removed from the
+	 * chromosome as in the regulation build.
+	 */
+	public List<GenericFeature> query(String chromosome, int start, int end) throws IOException {
+		ChromosomeTree tree = trees.get(chromosome);
+		if(tree == null) {
+			return new ArrayList<>();
+		}
+		int[] ranks = tree.overlap(start, end);
+		List<GenericFeature> genericFeatures = new ArrayList<>(ranks.length);
+		TsvFieldCursor fields = new TsvFieldCursor();
+		for(int rank: ranks) {
+			genericFeatures.add(getFeature(tree, rank, fields));
+		}
+		return genericFeatures;
+	}
+
+	public GenericFeature getFeature(String chromosome, int rank) throws IOException {
+		return getFeature(trees.get(chromosome), rank, new TsvFieldCursor());
+	}
+
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+
+	private GenericFeature getFeature(ChromosomeTree tree, int rank, TsvFieldCursor fields) throws IOException {
+		ByteBuffer record = ByteBuffer.allocate(tree.getLength(rank));
+		long position = tree.dataPosition + tree.getOffset(rank);
+		// positional reads, queries can run from different threads
+		while(record.hasRemaining()) {
+			if(channel.read(record, position + record.position()) < 0) {
+				throw new IOException("Truncated regulatory interval index");
+			}
+		}
+		byte[] bytes = record.array();
+		String line = new String(bytes, 1, bytes.length - 1, UTF8);
+		GenericFeature genericFeature = RegulatoryParser.getGenericFeature(fields.reset(line), tableNames.get(bytes[0]));
+		// remove 'chr' prefix
+		genericFeature.setChromosome(genericFeature.getChromosome().replace("chr", ""));
+		return genericFeature;
+	}
+
+	/**
+	 * Computes the max end of each node, returns the level of the root, -1 if there are no features.
+	 */
+	static int buildMaxEnds(int[] ends, int[] maxEnds, int size) {
+		if(size <= 0) {
+			return -1;
+		}
+		int lastRank = 0;
+		int lastMaxEnd = 0;
+		// leaves
+		for(int i = 0; i < size; i += 2) {
+			lastRank = i;
+			lastMaxEnd = maxEnds[i] = ends[i];
+		}
+		int level;
+		for(level = 1; (1L << level) <= size; level++) {
+			int childDistance = 1 << (level - 1);
+			long step = 1L << (level + 1);
+			for(long i = (1L << level) - 1; i < size; i += step) {
+				int node = (int) i;
+				int leftMaxEnd = maxEnds[node - childDistance];
+				// the right child can be past the last feature, its max end is the one of the last subtree
+				int rightMaxEnd = (i + childDistance < size) ? maxEnds[node + childDistance] : lastMaxEnd;
+				maxEnds[node] = Math.max(ends[node], Math.max(leftMaxEnd, rightMaxEnd));
+			}
+			// parent of the last subtree
+			lastRank = (((lastRank >> level) & 1) != 0) ? lastRank - childDistance : lastRank + childDistance;
+			if(lastRank < size && maxEnds[lastRank] > lastMaxEnd) {
+				lastMaxEnd = maxEnds[lastRank];
+			}
+		}
+		return level - 1;
+	}
+
+	/**
+	 * The mapped block of a chromosome.
+	 */
+	private static class ChromosomeTree {
+		private final int size;
+		private final int rootLevel;
+		private final long dataPosition;
+		private final MappedByteBuffer block;
+
+		ChromosomeTree(FileChannel channel, long blockPosition, int size, int rootLevel, long dataPosition) throws IOException {
+			this.size = size;
+			this.rootLevel = rootLevel;
+			this.dataPosition = dataPosition;
+			this.block = channel.map(FileChannel.MapMode.READ_ONLY, blockPosition, blockSize(size));
+		}
+
+		int getStart(long rank) {
+			return block.getInt((int) rank << 2);
+		}
+
+		int getEnd(long rank) {
+			return block.getInt((size + (int) rank) << 2);
+		}
+
+		int getMaxEnd(long rank) {
+			return block.getInt((2 * size + (int) rank) << 2);
+		}
+
+		int getLength(long rank) {
+			return block.getInt((3 * size + (int) rank) << 2);
+		}
+
+		long getOffset(long rank) {
+			return block.getLong(16 * size + ((int) rank << 3));
+		}
+
+		int[] overlap(int start, int end) {
+			if(rootLevel < 0) {
+				return new int[0];
+			}
+			int[] ranks = new int[16];
+			int numRanks = 0;
+			// nodes to visit: level, rank and if the left child was visited
+			int[] levels = new int[64];
+			long[] nodes = new long[64];
+			boolean[] leftVisited = new boolean[64];
+			int top = 0;
+			levels[top] = rootLevel;
+			nodes[top] = (1L << rootLevel) - 1;
+			leftVisited[top++] = false;
+			while(top > 0) {
+				top--;
+				int level = levels[top];
+				long node = nodes[top];
+				if(level <= SCAN_LEVEL) {
+					long first = node >> level << level;
+					long last = Math.min(first + (1L << (level + 1)) - 1, size);
+					for(long i = first; i < last && getStart(i) <= end; i++) {
+						if(start <= getEnd(i)) {
+							if(numRanks == ranks.length) {
+								ranks = Arrays.copyOf(ranks, numRanks * 2);
+							}
+							ranks[numRanks++] = (int) i;
+						}
+					}
+				}else if(!leftVisited[top]) {
+					long left = node - (1L << (level - 1));
+					levels[top] = level;
+					nodes[top] = node;
+					leftVisited[top++] = true;
+					// a left child past the last feature can still have features in its subtree
+					if(left >= size || getMaxEnd(left) >= start) {
+						levels[top] = level - 1;
+						nodes[top] = left;
+						leftVisited[top++] = false;
+					}
+				}else if(node < size && getStart(node) <= end) {
+					if(start <= getEnd(node)) {
+						if(numRanks == ranks.length) {
+							ranks = Arrays.copyOf(ranks, numRanks * 2);
+						}
+						ranks[numRanks++] = (int) node;
+					}
+					levels[top] = level - 1;
+					nodes[top] = node + (1L << (level - 1));
+					leftVisited[top++] = false;
+				}
+			}
+			return Arrays.copyOf(ranks, numRanks);
+		}
+	}
+
+	private static long blockSize(int size) {
+		return 24L * size;
+	}
+
+	/**
+	 * Writes an index. Features are added through the writer of their chromosome, chromosomes can
+	 * be written at the same time from different threads, each one to its own temporary files
+	 * next to the index, and they are put together sorted by name when the writer is closed.
+	 */
+	public static class Writer implements Closeable {
+
+		private final Path indexFile;
+		private final List<String> tableNames;
+		private final Map<String, ChromosomeWriter> chromosomeWriters = new TreeMap<>();
+		private long numFeatures;
+
+		public Writer(Path indexFile, List<String> tableNames) throws IOException {
+			if(tableNames.size() > Byte.MAX_VALUE) {
+				throw new IOException("Too many tables: " + tableNames.size());
+			}
+			this.indexFile = indexFile;
+			this.tableNames = tableNames;
+		}
+
+		public synchronized ChromosomeWriter newChromosome(String chromosome) throws IOException {
+			if(chromosomeWriters.containsKey(chromosome)) {
+				throw new IOException("Chromosome " + chromosome + " already written");
+			}
+			ChromosomeWriter chromosomeWriter = new ChromosomeWriter(chromosome);
+			chromosomeWriters.put(chromosome, chromosomeWriter);
+			return chromosomeWriter;
+		}
+
+		public synchronized long size() {
+			return numFeatures;
+		}
+
+		/**
+		 * Writes the index file, all the chromosome writers must be closed.
+		 */
+		@Override
+		public synchronized void close() throws IOException {
+			FileChannel indexChannel = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			try {
+				indexChannel.position(HEADER_SIZE);
+				ByteArrayOutputStream directoryBytes = new ByteArrayOutputStream();
+				DataOutputStream directory = new DataOutputStream(directoryBytes);
+				directory.writeInt(tableNames.size());
+				for(String tableName: tableNames) {
+					directory.writeUTF(tableName);
+				}
+				int numChromosomes = 0;
+				for(ChromosomeWriter chromosomeWriter: chromosomeWriters.values()) {
+					if(!chromosomeWriter.closed) {
+						throw new IOException("Chromosome " + chromosomeWriter.chromosome + " not closed");
+					}
+					if(chromosomeWriter.size > 0) {
+						numChromosomes++;
+					}
+				}
+				directory.writeInt(numChromosomes);
+				for(ChromosomeWriter chromosomeWriter: chromosomeWriters.values()) {
+					if(chromosomeWriter.size > 0) {
+						long blockPosition = indexChannel.position();
+						append(chromosomeWriter.blockFile, indexChannel);
+						long dataPosition = indexChannel.position();
+						append(chromosomeWriter.dataFile, indexChannel);
+						directory.writeUTF(chromosomeWriter.chromosome);
+						directory.writeLong(blockPosition);
+						directory.writeInt(chromosomeWriter.size);
+						directory.writeInt(chromosomeWriter.rootLevel);
+						directory.writeLong(dataPosition);
+					}
+				}
+				directory.close();
+				long directoryPosition = indexChannel.position();
+				write(ByteBuffer.wrap(directoryBytes.toByteArray()), indexChannel);
+
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				header.putInt(MAGIC).putInt(VERSION).putLong(directoryPosition).flip();
+				indexChannel.position(0);
+				write(header, indexChannel);
+			} finally {
+				indexChannel.close();
+				deleteTempFiles();
+			}
+		}
+
+		/**
+		 * Deletes the temporary files of the chromosomes, for when the index is not going to be closed.
+		 */
+		public synchronized void deleteTempFiles() throws IOException {
+			for(ChromosomeWriter chromosomeWriter: chromosomeWriters.values()) {
+				chromosomeWriter.deleteFiles();
+			}
+		}
+
+		private synchronized void finished(ChromosomeWriter chromosomeWriter) {
+			numFeatures += chromosomeWriter.size;
+		}
+
+		private static void append(Path file, FileChannel out) throws IOException {
+			FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+			long position = 0;
+			long size = in.size();
+			while(position < size) {
+				position += in.transferTo(position, size - position, out);
+			}
+			in.close();
+		}
+
+		private static void write(ByteBuffer buffer, FileChannel out) throws IOException {
+			while(buffer.hasRemaining()) {
+				out.write(buffer);
+			}
+		}
+
+		/**
+		 * Features of a chromosome, they can be added in any order: they are sorted by start when
+		 * closed, features with the same start keep the order they were added. Only the arrays of
+		 * the chromosome are kept in memory, the lines go to a temporary file.
+		 */
+		public class ChromosomeWriter implements Closeable {
+
+			private final String chromosome;
+			private final Path dataFile;
+			private final Path blockFile;
+			private final DataOutputStream data;
+			private long dataSize;
+			private int size;
+			private int rootLevel = -1;
+			private boolean closed;
+			private int[] starts = new int[1024];
+			private int[] ends = new int[1024];
+			private int[] lengths = new int[1024];
+			private long[] offsets = new long[1024];
+
+			private ChromosomeWriter(String chromosome) throws IOException {
+				this.chromosome = chromosome;
+				Path dir = indexFile.toAbsolutePath().getParent();
+				this.dataFile = Files.createTempFile(dir, indexFile.getFileName() + ".", ".data.tmp");
+				this.blockFile = Files.createTempFile(dir, indexFile.getFileName() + ".", ".block.tmp");
+				this.data = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(dataFile.toFile()), 1 << 16));
+			}
+
+			public void add(int tableIndex, int start, int end, String line) throws IOException {
+				if(start < 0) {
+					throw new IOException("Negative start in chromosome " + chromosome + ": " + line);
+				}
+				if(size == Integer.MAX_VALUE >> 5) {
+					throw new IOException("Too many features in chromosome " + chromosome);
+				}
+				if(size == starts.length) {
+					starts = Arrays.copyOf(starts, size * 2);
+					ends = Arrays.copyOf(ends, size * 2);
+					lengths = Arrays.copyOf(lengths, size * 2);
+					offsets = Arrays.copyOf(offsets, size * 2);
+				}
+				byte[] bytes = line.getBytes(UTF8);
+				data.writeByte(tableIndex);
+				data.write(bytes);
+				starts[size] = start;
+				ends[size] = end;
+				lengths[size] = 1 + bytes.length;
+				offsets[size] = dataSize;
+				dataSize += 1 + bytes.length;
+				size++;
+			}
+
+			@Override
+			public void close() throws IOException {
+				if(closed) {
+					return;
+				}
+				data.close();
+				// start and position are packed in a long, sorting primitives keeps the sort stable
+				long[] keys = new long[size];
+				for(int i = 0; i < size; i++) {
+					keys[i] = ((long) starts[i] << 31) | i;
+				}
+				Arrays.sort(keys);
+				ByteBuffer block = ByteBuffer.allocate((int) blockSize(size));
+				int[] sortedEnds = new int[size];
+				for(int i = 0; i < size; i++) {
+					int position = (int) (keys[i] & Integer.MAX_VALUE);
+					block.putInt(i << 2, starts[position]);
+					sortedEnds[i] = ends[position];
+					block.putInt((3 * size + i) << 2, lengths[position]);
+					block.putLong(16 * size + (i << 3), offsets[position]);
+				}
+				starts = null;
+				ends = null;
+				lengths = null;
+				offsets = null;
+				int[] maxEnds = new int[size];
+				rootLevel = buildMaxEnds(sortedEnds, maxEnds, size);
+				for(int i = 0; i < size; i++) {
+					block.putInt((size + i) << 2, sortedEnds[i]);
+					block.putInt((2 * size + i) << 2, maxEnds[i]);
+				}
+				OutputStream out = Files.newOutputStream(blockFile);
+				out.write(block.array());
+				out.close();
+				closed = true;
+				finished(this);
+			}
+
+			private void deleteFiles() throws IOException {
+				Files.deleteIfExists(dataFile);
+				Files.deleteIfExists(blockFile);
+			}
+		}
+	}
+}
@@ -3,8 +3,8 @@ package org.bioinfo.cellbase.parser;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -21,9 +21,19 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
-import java.util.zip.GZIPInputStream;
-
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import org.bioinfo.cellbase.common.regulatory.RegulatoryFeatureChunk;
 import org.bioinfo.cellbase.lib.common.GenericFeature;
 import org.bioinfo.cellbase.lib.common.GenericFeatureChunk;
 
@@ -41,6 +51,10 @@ public class RegulatoryParser {
 
 	private static Gson gson = new Gson();
 
+	private static final List<String> GFF_COLUMN_NAMES = Arrays.asList("seqname", "source", "feature", "start", "end", "score", "strand", "frame", "group");
+	private static final List<String> GFF_FILE_NAMES = Arrays.asList("AnnotatedFeatures.gff.gz", "MotifFeatures.gff.gz", "RegulatoryFeatures_MultiCell.gff.gz", "mirna_uniq.gff.gz");
+	static final List<String> TABLE_NAMES = Arrays.asList("annotated_features", "motif_features", "regulatory_features_multicell", "mirna_uniq");
+
 	public static void createSQLiteRegulatoryFiles(Path regulatoryRegionPath) throws SQLException, IOException, ClassNotFoundException, NoSuchMethodException {
 		List<String> GFFColumnNames = Arrays.asList("seqname", "source", "feature", "start", "end", "score", "strand", "frame", "group");
 		List<String> GFFColumnTypes = Arrays.asList("TEXT", "TEXT", "TEXT", "INT", "INT", "TEXT", "TEXT", "TEXT", "TEXT");
@@ -68,150 +82,309 @@ public class RegulatoryParser {
 
 	}
 
-	public static void parseRegulatoryGzipFilesToJson(Path regulatoryRegionPath, int chunksize, Path outputRegulatoryRegionJsonPath) throws SQLException, IOException, ClassNotFoundException, NoSuchMethodException {
-		// Create the SQLite databases
-		createSQLiteRegulatoryFiles(regulatoryRegionPath);
+	public static void parseRegulatoryGzipFilesToJson(Path regulatoryRegionPath, int chunksize, Path outputRegulatoryRegionJsonPath) throws IOException {
+		parseRegulatoryGzipFilesToJson(regulatoryRegionPath, chunksize, outputRegulatoryRegionJsonPath, Paths.get(System.getProperty("java.io.tmpdir")));
+	}
+
+	/**
+	 * Each .gff.gz file is read once and its lines grouped by chromosome, see ExternalLineGrouper,
+	 * groups are spilled to tmpDir once the lines of a file do not fit in memory, sorted by chromosome
+	 * or not. Chunks are the same as the ones built from the SQLite databases of
+	 * createSQLiteRegulatoryFiles, written in chunk id order with their features sorted by start,
+	 * see ChunkSweep.
+	 */
+	public static void parseRegulatoryGzipFilesToJson(Path regulatoryRegionPath, int chunksize, Path outputRegulatoryRegionJsonPath, Path tmpDir) throws IOException {
+		parseRegulatoryGzipFilesToJson(regulatoryRegionPath, chunksize, outputRegulatoryRegionJsonPath, tmpDir, false);
+	}
 
-		Path annotatedFilePath = regulatoryRegionPath.resolve("AnnotatedFeatures.gff.gz.db");
-		Path motifFilePath = regulatoryRegionPath.resolve("MotifFeatures.gff.gz.db");
-		Path regulatoryFilePath = regulatoryRegionPath.resolve("RegulatoryFeatures_MultiCell.gff.gz.db");
-		Path mirnaFilePath = regulatoryRegionPath.resolve("mirna_uniq.gff.gz.db");
+	/**
+	 * With combineTables the sorted features of the four tables are merged and each chunk is written
+	 * once, as a RegulatoryFeatureChunk with the features of all the tables indexed by feature type.
+	 * Features with the same start follow the table order.
+	 */
+	public static void parseRegulatoryGzipFilesToJson(Path regulatoryRegionPath, int chunksize, Path outputRegulatoryRegionJsonPath, Path tmpDir, boolean combineTables) throws IOException {
+		parseRegulatoryGzipFilesToJson(regulatoryRegionPath, chunksize, outputRegulatoryRegionJsonPath, tmpDir, combineTables, 1);
+	}
 
-		List<Path> filePaths = Arrays.asList(annotatedFilePath, motifFilePath, regulatoryFilePath, mirnaFilePath);
-		List<String> tableNames = Arrays.asList("annotated_features", "motif_features", "regulatory_features_multicell", "mirna_uniq");
-		
+	/**
+	 * With more than one thread the files are grouped at the same time and the chromosomes are
+	 * processed by a pool of workers, each chromosome into its own part file. Parts are concatenated
+	 * in the order chromosomes are processed by one thread, so the output does not depend on threads.
+	 * When loading into MongoDB the workers load their chunks in any order.
+	 */
+	public static void parseRegulatoryGzipFilesToJson(Path regulatoryRegionPath, int chunksize, Path outputRegulatoryRegionJsonPath, Path tmpDir, boolean combineTables, int numThreads) throws IOException {
+		parseRegulatoryGzipFilesToJson(regulatoryRegionPath, chunksize, outputRegulatoryRegionJsonPath, tmpDir, combineTables, numThreads, null);
+	}
+
+	/**
+	 * With an indexFile the features are also written to a RegulatoryIntervalIndex while the chunks
+	 * are built, the GFF files are not read again.
+	 */
+	public static void parseRegulatoryGzipFilesToJson(final Path regulatoryRegionPath, final int chunksize, Path outputRegulatoryRegionJsonPath, Path tmpDir, final boolean combineTables, int numThreads,
+			Path indexFile) throws IOException {
 		// Ouput JSON file
 		//		Path outJsonPath = regulatoryRegionPath.resolve("regulatory_region.json");
-		if(Files.exists(outputRegulatoryRegionJsonPath)) {
-			Files.delete(outputRegulatoryRegionJsonPath);
+		Path outputPath = OutputFiles.getPath(outputRegulatoryRegionJsonPath);
+		if(Files.exists(outputPath)) {
+			Files.delete(outputPath);
 		}
-		BufferedWriter bw = Files.newBufferedWriter(outputRegulatoryRegionJsonPath, Charset.defaultCharset(), StandardOpenOption.CREATE);
 
-		// Fetching and joining all chromosomes dounf in the different databases
-		Set<String> setChr = new HashSet<String>();
-		setChr.addAll(RegulatoryParser.getChromosomesList(annotatedFilePath, "annotated_features"));
-		setChr.addAll(RegulatoryParser.getChromosomesList(motifFilePath, "motif_features"));
-		setChr.addAll(RegulatoryParser.getChromosomesList(regulatoryFilePath, "regulatory_features_multicell"));
-		setChr.addAll(RegulatoryParser.getChromosomesList(mirnaFilePath, "mirna_uniq"));
-		List<String> chromosomes = new ArrayList<>();
-		chromosomes.addAll(setChr);
-
-		//		Collections.sort(chromosomes, new Comparator<String>() {
-		//			@Override
-		//			public int compare(String o1, String o2) {
-		//				if (o1.equals("X")) o1 = "23";
-		//				if (o2.equals("X")) o2 = "23";
-		//				if (o1.equals("Y")) o1 = "24";
-		//				if (o2.equals("Y")) o2 = "24";
-		//				return Integer.parseInt(o1) - Integer.parseInt(o2);
-		//			}
-		//		});
-
-//		List<GenericFeature> annotatedGenericFeatures = new ArrayList<>();
-		List<GenericFeature> genericFeatures = new ArrayList<>();
-//		List<GenericFeature> regulatoryGenericFeatures = new ArrayList<>();
-//		List<GenericFeature> mirnaGenericFeatures = new ArrayList<>();
-
-		Map<Integer, GenericFeatureChunk> genericFeatureChunks = null;
-		for (String chromosome : chromosomes) {
-
-			for (int i=0; i<tableNames.size(); i++) {
-				genericFeatureChunks = new HashMap<>();
-				genericFeatures = RegulatoryParser.queryChromosomesRegulatoryDB(filePaths.get(i), tableNames.get(i), chromosome);
-				int c = 0;
-				for(GenericFeature genericFeature: genericFeatures) {
-					int firstChunkId =  getChunkId(genericFeature.getStart(), chunksize);
-					int lastChunkId  = getChunkId(genericFeature.getEnd(), chunksize);
-
-					// remove 'chr' prefix
-					if(genericFeature.getChromosome() != null) {
-						genericFeature.setChromosome(genericFeature.getChromosome().replace("chr", ""));						
-					}else {
-						System.out.println((++c)+" => "+genericFeature.getChromosome()+":"+genericFeature.getStart()+"   "+genericFeature.getId()+" => "+chromosome+" "+genericFeatures.size()+"  "+tableNames.get(i));
+		Path groupsDir = Files.createTempDirectory(tmpDir, "regulation_groups");
+		final List<ExternalLineGrouper> lineGroupers = new ArrayList<>();
+		ExecutorService executorService = (numThreads > 1) ? Executors.newFixedThreadPool(numThreads) : null;
+		final RegulatoryIntervalIndex.Writer indexWriter = (indexFile != null) ? new RegulatoryIntervalIndex.Writer(indexFile, TABLE_NAMES) : null;
+		List<Path> partPaths = new ArrayList<>();
+		boolean done = false;
+		try {
+			// Fetching and joining all chromosomes found in the different files
+			List<Future<List<String>>> fileChromosomes = new ArrayList<>(GFF_FILE_NAMES.size());
+			for (int i=0; i<GFF_FILE_NAMES.size(); i++) {
+				final Path gffFilePath = regulatoryRegionPath.resolve(GFF_FILE_NAMES.get(i));
+				final ExternalLineGrouper lineGrouper = new ExternalLineGrouper(groupsDir, ExternalLineGrouper.DEFAULT_MAX_BUFFERED_CHARS / GFF_FILE_NAMES.size());
+				lineGroupers.add(lineGrouper);
+				fileChromosomes.add(submit(executorService, new Callable<List<String>>() {
+					@Override
+					public List<String> call() throws IOException {
+						return groupLinesByChromosome(gffFilePath, lineGrouper);
 					}
-					for(int j=firstChunkId; j<=lastChunkId; j++) {
-						if(genericFeatureChunks.get(j)==null) {
-							int chunkStart = getChunkStart(j, chunksize);
-							int chunkEnd = getChunkEnd(j, chunksize);
-							genericFeatureChunks.put(j, new GenericFeatureChunk(chromosome, j, chunkStart, chunkEnd, new ArrayList<GenericFeature>()));
+				}));
+			}
+			Set<String> setChr = new HashSet<String>();
+			for(Future<List<String>> future: fileChromosomes) {
+				setChr.addAll(getResult(future));
+			}
+			List<String> chromosomes = new ArrayList<>();
+			chromosomes.addAll(setChr);
+
+			// features are swept by start, lines with the same start keep the file order. The run
+			// budget is shared by the workers and, when combined, by the tables merged at a time
+			int numSorts = Math.max(numThreads, 1) * (combineTables ? TABLE_NAMES.size() : 1);
+			final ExternalLineSorter sorter = new ExternalLineSorter(groupsDir, ExternalLineSorter.DEFAULT_MAX_RUN_CHARS / numSorts);
+			if(executorService == null) {
+				BufferedWriter bw = OutputFiles.newBufferedWriter(outputPath, StandardOpenOption.CREATE);
+				JsonLineWriter jsonLineWriter = new JsonLineWriter(bw, gson);
+				for (String chromosome : chromosomes) {
+					writeChromosomeChunks(chromosome, lineGroupers, sorter, chunksize, combineTables, jsonLineWriter, indexWriter);
+				}
+				bw.close();
+			}else {
+				List<Future<Void>> futures = new ArrayList<>(chromosomes.size());
+				for (final String chromosome : chromosomes) {
+					final Path partPath = Paths.get(outputRegulatoryRegionJsonPath.toAbsolutePath() + "_" + chromosome + ".part");
+					partPaths.add(partPath);
+					futures.add(executorService.submit(new Callable<Void>() {
+						@Override
+						public Void call() throws IOException {
+							BufferedWriter bw = OutputFiles.newBufferedWriter(partPath);
+							try {
+								writeChromosomeChunks(chromosome, lineGroupers, sorter, chunksize, combineTables, new JsonLineWriter(bw, gson), indexWriter);
+							} finally {
+								bw.close();
+							}
+							return null;
 						}
-						genericFeatureChunks.get(j).getFeatures().add(genericFeature);
-					}
+					}));
+				}
+				for(Future<Void> future: futures) {
+					getResult(future);
 				}
-				for (Map.Entry<Integer, GenericFeatureChunk> result : genericFeatureChunks.entrySet()) {
-					bw.write(gson.toJson(result.getValue()) + "\n");
+				if(OutputFiles.getLoader() == null) {
+					OutputFiles.concatenate(partPaths, outputPath);
 				}
-				
 			}
+			if(indexWriter != null) {
+				indexWriter.close();
+				System.out.println("Regulatory interval index of " + indexWriter.size() + " features written to " + indexFile);
+			}
+			done = true;
+		} finally {
+			cleanUp(executorService, lineGroupers, groupsDir, indexWriter, done ? new ArrayList<Path>() : partPaths, done);
+		}
 
-			/*Annotated feature*/
-//			genericFeatureChunks = new HashMap<>();
-//			annotatedGenericFeatures = RegulatoryParser.queryChromosomesRegulatoryDB(annotatedFilePath, "annotated_features", chromosome);
-//			for(GenericFeature genericFeature :annotatedGenericFeatures){
-//				int firstChunkId =  getChunkId(genericFeature.getStart(), chunksize);
-//				int lastChunkId  = getChunkId(genericFeature.getEnd(), chunksize);
-//
-//				for(int i=firstChunkId; i<=lastChunkId; i++){
-//					if(genericFeatureChunks.get(i)==null){
-//						int chunkStart = getChunkStart(i, chunksize);
-//						int chunkEnd = getChunkEnd(i, chunksize);
-//						genericFeatureChunks.put(i,new GenericFeatureChunk(chromosome,i,chunkStart,chunkEnd,new ArrayList<GenericFeature>()));
-//					}
-//					genericFeatureChunks.get(i).getFeatures().add(genericFeature);
-//				}
-//			}
-//			for (Map.Entry<Integer, GenericFeatureChunk> result : genericFeatureChunks.entrySet()) {
-//				bw.write(gson.toJson(gson.toJson(result.getValue())) + "\n");
-//			}
-//			/*********/
-//
-//			/*Regulatory feature*/
-//			genericFeatureChunks = new HashMap<>();
-//			regulatoryGenericFeatures = RegulatoryParser.queryChromosomesRegulatoryDB(regulatoryFilePath, "regulatory_features_multicell", chromosome);
-//			for(GenericFeature genericFeature :regulatoryGenericFeatures){
-//				int firstChunkId =  getChunkId(genericFeature.getStart());
-//				int lastChunkId  = getChunkId(genericFeature.getEnd());
-//
-//				for(int i=firstChunkId; i<=lastChunkId; i++){
-//					if(genericFeatureChunks.get(i)==null){
-//						int chunkStart = getChunkStart(i);
-//						int chunkEnd = getChunkEnd(i);
-//						genericFeatureChunks.put(i,new GenericFeatureChunk(chromosome,i,chunkStart,chunkEnd,new ArrayList<GenericFeature>()));
-//					}
-//					genericFeatureChunks.get(i).getFeatures().add(genericFeature);
-//				}
-//			}
-//			for (Map.Entry<Integer, GenericFeatureChunk> result : genericFeatureChunks.entrySet()) {
-//				bw.write(gson.toJson(gson.toJson(result.getValue())) + "\n");
-//			}
-//			/*********/
-//
-//			/*Mirna feature*/
-//			genericFeatureChunks = new HashMap<>();
-//			mirnaGenericFeatures = RegulatoryParser.queryChromosomesRegulatoryDB(mirnaFilePath, "mirna_uniq", chromosome);
-//			for(GenericFeature genericFeature :mirnaGenericFeatures){
-//				int firstChunkId =  getChunkId(genericFeature.getStart());
-//				int lastChunkId  = getChunkId(genericFeature.getEnd());
-//
-//				for(int i=firstChunkId; i<=lastChunkId; i++){
-//					if(genericFeatureChunks.get(i)==null){
-//						int chunkStart = getChunkStart(i);
-//						int chunkEnd = getChunkEnd(i);
-//						genericFeatureChunks.put(i,new GenericFeatureChunk(chromosome,i,chunkStart,chunkEnd,new ArrayList<GenericFeature>()));
-//					}
-//					genericFeatureChunks.get(i).getFeatures().add(genericFeature);
-//				}
-//			}
-//			for (Map.Entry<Integer, GenericFeatureChunk> result : genericFeatureChunks.entrySet()) {
-//				bw.write(gson.toJson(gson.toJson(result.getValue())) + "\n");
-//			}
-			/*********/
-
-		}
-		bw.close();
+	}
 
+	/**
+	 * Every step runs even if an earlier one fails. Workers are stopped before the groups they read
+	 * and the parts they write are deleted. Cleanup errors are only thrown when the build succeeded,
+	 * otherwise they would hide the error of the build.
+	 */
+	private static void cleanUp(ExecutorService executorService, List<ExternalLineGrouper> lineGroupers, Path groupsDir, RegulatoryIntervalIndex.Writer indexWriter,
+			List<Path> partPaths, boolean done) throws IOException {
+		if(executorService != null) {
+			executorService.shutdownNow();
+			try {
+				executorService.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		IOException exception = null;
+		for(ExternalLineGrouper lineGrouper: lineGroupers) {
+			try {
+				lineGrouper.close();
+			} catch (IOException e) {
+				exception = addException(exception, e);
+			}
+		}
+		// sorter runs of a failed build can be left too
+		try(DirectoryStream<Path> files = Files.newDirectoryStream(groupsDir)) {
+			for(Path file: files) {
+				Files.deleteIfExists(file);
+			}
+		} catch (IOException e) {
+			exception = addException(exception, e);
+		}
+		try {
+			Files.deleteIfExists(groupsDir);
+		} catch (IOException e) {
+			exception = addException(exception, e);
+		}
+		if(indexWriter != null) {
+			try {
+				indexWriter.deleteTempFiles();
+			} catch (IOException e) {
+				exception = addException(exception, e);
+			}
+		}
+		for(Path partPath: partPaths) {
+			try {
+				Files.deleteIfExists(partPath);
+			} catch (IOException e) {
+				exception = addException(exception, e);
+			}
+		}
+		if(done && exception != null) {
+			throw exception;
+		}
 	}
 
+	private static IOException addException(IOException exception, IOException e) {
+		if(exception == null) {
+			return e;
+		}
+		exception.addSuppressed(e);
+		return exception;
+	}
+
+	private static void writeChromosomeChunks(String chromosome, List<ExternalLineGrouper> lineGroupers, ExternalLineSorter sorter, int chunksize, boolean combineTables,
+			JsonLineWriter jsonLineWriter, RegulatoryIntervalIndex.Writer indexWriter) throws IOException {
+		RegulatoryIntervalIndex.Writer.ChromosomeWriter chromosomeIndexWriter = (indexWriter != null) ? indexWriter.newChromosome(chromosome) : null;
+		if(combineTables) {
+			ChunkSweep chunkSweep = new ChunkSweep(chromosome, chunksize, jsonLineWriter, true);
+			PriorityQueue<FeatureReader> featureReaders = mergeTables(chromosome, lineGroupers, sorter);
+			FeatureReader featureReader;
+			while((featureReader = featureReaders.poll()) != null) {
+				chunkSweep.add(featureReader.genericFeature);
+				addToIndex(featureReader, chromosomeIndexWriter);
+				advance(featureReader, featureReaders);
+			}
+			chunkSweep.close();
+		}else {
+			for (int i=0; i<TABLE_NAMES.size(); i++) {
+				ChunkSweep chunkSweep = new ChunkSweep(chromosome, chunksize, jsonLineWriter, false);
+				FeatureReader featureReader = new FeatureReader(sorter.sort(lineGroupers.get(i).getLines(chromosome), 3), i);
+				while(featureReader.next()) {
+					chunkSweep.add(featureReader.genericFeature);
+					addToIndex(featureReader, chromosomeIndexWriter);
+				}
+				featureReader.close();
+				chunkSweep.close();
+			}
+		}
+		if(chromosomeIndexWriter != null) {
+			chromosomeIndexWriter.close();
+		}
+	}
+
+	private static void addToIndex(FeatureReader featureReader, RegulatoryIntervalIndex.Writer.ChromosomeWriter chromosomeIndexWriter) throws IOException {
+		if(chromosomeIndexWriter != null) {
+			chromosomeIndexWriter.add(featureReader.tableIndex, featureReader.genericFeature.getStart(), featureReader.genericFeature.getEnd(), featureReader.line);
+		}
+	}
+
+	/**
+	 * k-way merge of the sorted features of the tables, ties go to the first table. Readers are
+	 * polled from the queue and put back with advance().
+	 */
+	private static PriorityQueue<FeatureReader> mergeTables(String chromosome, List<ExternalLineGrouper> lineGroupers, ExternalLineSorter sorter) throws IOException {
+		PriorityQueue<FeatureReader> featureReaders = new PriorityQueue<>(TABLE_NAMES.size());
+		for (int i=0; i<TABLE_NAMES.size(); i++) {
+			advance(new FeatureReader(sorter.sort(lineGroupers.get(i).getLines(chromosome), 3), i), featureReaders);
+		}
+		return featureReaders;
+	}
+
+	private static void advance(FeatureReader featureReader, PriorityQueue<FeatureReader> featureReaders) throws IOException {
+		if(featureReader.next()) {
+			featureReaders.add(featureReader);
+		}else {
+			featureReader.close();
+		}
+	}
+
+	/**
+	 * Runs the task in the calling thread when there is no executor.
+	 */
+	private static <T> Future<T> submit(ExecutorService executorService, Callable<T> task) throws IOException {
+		if(executorService != null) {
+			return executorService.submit(task);
+		}
+		FutureTask<T> futureTask = new FutureTask<>(task);
+		futureTask.run();
+		return futureTask;
+	}
+
+	private static <T> T getResult(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Groups the lines of the file by chromosome, only the GFF lines with seqname 'chr' + chromosome.
+	 * Returns the chromosomes as getChromosomesList() does: from the seqnames like 'chr%', sorted.
+	 */
+	private static List<String> groupLinesByChromosome(Path gffFilePath, ExternalLineGrouper lineGrouper) throws IOException {
+		Set<String> seqnames = new TreeSet<>();
+		BufferedReader br = InputFiles.newGzipBufferedReader(gffFilePath);
+		String seqname = null;
+		String chromosome = null;
+		boolean grouped = false;
+		TsvFieldCursor fields = new TsvFieldCursor();
+		String line;
+		while((line = br.readLine()) != null) {
+			int tab = line.indexOf('\t');
+			int seqnameLength = (tab < 0) ? line.length() : tab;
+			// lines of a seqname usually come together
+			if(seqname == null || seqname.length() != seqnameLength || !line.startsWith(seqname)) {
+				seqname = line.substring(0, seqnameLength);
+				chromosome = seqname.replace("chr", "");
+				grouped = seqname.equals("chr" + chromosome);
+				// SQLite 'like' ignores the case
+				if(seqname.regionMatches(true, 0, "chr", 0, 3)) {
+					seqnames.add(seqname);
+				}
+			}
+			if(grouped && fields.reset(line).size() == GFF_COLUMN_NAMES.size()) {
+				lineGrouper.add(chromosome, line);
+			}
+		}
+		br.close();
+
+		List<String> chromosomes = new ArrayList<>(seqnames.size());
+		for(String name: seqnames) {
+			chromosomes.add(name.replace("chr",""));
+		}
+		return chromosomes;
+	}
 
 	public static void createSQLiteRegulatoryFiles(Path filePath, String tableName, List<String> columnNames, List<String> columnTypes, boolean gzip) throws ClassNotFoundException, IOException, SQLException {
 		int LIMITROWS = 100000;
@@ -224,7 +397,7 @@ public class RegulatoryParser {
 		
 		BufferedReader br;
 		if (gzip) {
-			br = new BufferedReader(new InputStreamReader(new GZIPInputStream(Files.newInputStream(filePath))));
+			br = InputFiles.newGzipBufferedReader(filePath);
 		} else {
 			br = Files.newBufferedReader(filePath, Charset.defaultCharset());
 		}
@@ -264,9 +437,10 @@ public class RegulatoryParser {
 
 		//Read file
 		String line = null;
+		TsvFieldCursor fields = new TsvFieldCursor();
 		while ((line = br.readLine()) != null) {
 
-			insertByType(ps, getFields(line, tableName), columnTypes);
+			insertByType(ps, fields.reset(line), columnTypes);
 			ps.addBatch();
 			BatchCount++;
 
@@ -355,6 +529,17 @@ public class RegulatoryParser {
 	}
 
 	private static GenericFeature getGenericFeature(ResultSet rs, String tableName) throws SQLException {
+		StringBuilder line = new StringBuilder();
+		for(int i = 1; i <= GFF_COLUMN_NAMES.size(); i++) {
+			if(i > 1) {
+				line.append('\t');
+			}
+			line.append(rs.getString(i));
+		}
+		return getGenericFeature(new TsvFieldCursor(line), tableName);
+	}
+
+	static GenericFeature getGenericFeature(TsvFieldCursor rs, String tableName) {
 		GenericFeature genericFeature = null;
 		switch (tableName.toLowerCase()) {
 		case "annotated_features":
@@ -373,19 +558,19 @@ public class RegulatoryParser {
 		return genericFeature;
 	}
 
-	private static GenericFeature getAnnotatedFeature(ResultSet rs)throws SQLException  {
+	private static GenericFeature getAnnotatedFeature(TsvFieldCursor rs) {
 		//   GFF     https://genome.ucsc.edu/FAQ/FAQformat.html#format3
 		GenericFeature genericFeature = new GenericFeature();
-		Map<String, String> groupFields = getGroupFields(rs.getString(9));
+		Map<String, String> groupFields = getGroupFields(rs.stringAt(8));
 
-		genericFeature.setChromosome(rs.getString(1));
-		genericFeature.setSource(rs.getString(2));
-		genericFeature.setFeatureType(rs.getString(3));
-		genericFeature.setStart(rs.getInt(4));
-		genericFeature.setEnd(rs.getInt(5));
-		genericFeature.setScore(rs.getString(6));
-		genericFeature.setStrand(rs.getString(7));
-		genericFeature.setFrame(rs.getString(8));
+		genericFeature.setChromosome(rs.stringAt(0));
+		genericFeature.setSource(rs.stringAt(1));
+		genericFeature.setFeatureType(rs.stringAt(2));
+		genericFeature.setStart(rs.intAt(3));
+		genericFeature.setEnd(rs.intAt(4));
+		genericFeature.setScore(rs.stringAt(5));
+		genericFeature.setStrand(rs.stringAt(6));
+		genericFeature.setFrame(rs.stringAt(7));
 
 		genericFeature.setName(groupFields.get("name"));
 		genericFeature.setAlias(groupFields.get("alias"));
@@ -395,37 +580,37 @@ public class RegulatoryParser {
 		return genericFeature;
 	}
 
-	private static GenericFeature getRegulatoryFeature(ResultSet rs)throws SQLException  {
+	private static GenericFeature getRegulatoryFeature(TsvFieldCursor rs) {
 		//   GFF     https://genome.ucsc.edu/FAQ/FAQformat.html#format3
 		GenericFeature genericFeature = new GenericFeature();
-		Map<String, String> groupFields = getGroupFields(rs.getString(9));
+		Map<String, String> groupFields = getGroupFields(rs.stringAt(8));
 		
-		genericFeature.setChromosome(rs.getString(1));
-		genericFeature.setSource(rs.getString(2));
-		genericFeature.setFeatureType(rs.getString(3));
-		genericFeature.setStart(rs.getInt(4));
-		genericFeature.setEnd(rs.getInt(5));
-		genericFeature.setScore(rs.getString(6));
-		genericFeature.setStrand(rs.getString(7));
-		genericFeature.setFrame(rs.getString(8));
-		genericFeature.setFrame(rs.getString(9));
+		genericFeature.setChromosome(rs.stringAt(0));
+		genericFeature.setSource(rs.stringAt(1));
+		genericFeature.setFeatureType(rs.stringAt(2));
+		genericFeature.setStart(rs.intAt(3));
+		genericFeature.setEnd(rs.intAt(4));
+		genericFeature.setScore(rs.stringAt(5));
+		genericFeature.setStrand(rs.stringAt(6));
+		genericFeature.setFrame(rs.stringAt(7));
+		genericFeature.setFrame(rs.stringAt(8));
 		
 		return genericFeature;
 	}
 
-	private static GenericFeature getMotiFeature(ResultSet rs) throws SQLException {
+	private static GenericFeature getMotiFeature(TsvFieldCursor rs) {
 		//   GFF     https://genome.ucsc.edu/FAQ/FAQformat.html#format3
 		GenericFeature genericFeature = new GenericFeature();
-		Map<String, String> groupFields = getGroupFields(rs.getString(9));
+		Map<String, String> groupFields = getGroupFields(rs.stringAt(8));
 
-		genericFeature.setChromosome(rs.getString(1));
-		genericFeature.setSource(rs.getString(2));
-		genericFeature.setFeatureType(rs.getString(3)+"_motif");
-		genericFeature.setStart(rs.getInt(4));
-		genericFeature.setEnd(rs.getInt(5));
-		genericFeature.setScore(rs.getString(6));
-		genericFeature.setStrand(rs.getString(7));
-		genericFeature.setFrame(rs.getString(8));
+		genericFeature.setChromosome(rs.stringAt(0));
+		genericFeature.setSource(rs.stringAt(1));
+		genericFeature.setFeatureType(rs.stringAt(2)+"_motif");
+		genericFeature.setStart(rs.intAt(3));
+		genericFeature.setEnd(rs.intAt(4));
+		genericFeature.setScore(rs.stringAt(5));
+		genericFeature.setStrand(rs.stringAt(6));
+		genericFeature.setFrame(rs.stringAt(7));
 
         String[] split = groupFields.get("name").split(":");
 		genericFeature.setName(split[0]);
@@ -434,19 +619,19 @@ public class RegulatoryParser {
 		return genericFeature;
 	}
 
-	private static GenericFeature getMirnaFeature(ResultSet rs) throws SQLException {
+	private static GenericFeature getMirnaFeature(TsvFieldCursor rs) {
 		//   GFF     https://genome.ucsc.edu/FAQ/FAQformat.html#format3
 		GenericFeature genericFeature = new GenericFeature();
-        Map<String, String> groupFields = getGroupFields(rs.getString(9));
+        Map<String, String> groupFields = getGroupFields(rs.stringAt(8));
 
-		genericFeature.setChromosome(rs.getString(1));
-		genericFeature.setSource(rs.getString(2));
-		genericFeature.setFeatureType(rs.getString(3));
-		genericFeature.setStart(rs.getInt(4));
-		genericFeature.setEnd(rs.getInt(5));
-		genericFeature.setScore(rs.getString(6));
-		genericFeature.setStrand(rs.getString(7));
-		genericFeature.setFrame(rs.getString(8));
+		genericFeature.setChromosome(rs.stringAt(0));
+		genericFeature.setSource(rs.stringAt(1));
+		genericFeature.setFeatureType(rs.stringAt(2));
+		genericFeature.setStart(rs.intAt(3));
+		genericFeature.setEnd(rs.intAt(4));
+		genericFeature.setScore(rs.stringAt(5));
+		genericFeature.setStrand(rs.stringAt(6));
+		genericFeature.setFrame(rs.stringAt(7));
 
         genericFeature.setName(groupFields.get("name"));
 
@@ -535,6 +720,29 @@ public class RegulatoryParser {
 
 	}
 
+	/**
+	 * Same as insertByType(PreparedStatement, List, List) without splitting the line, numbers are parsed in place.
+	 */
+	public static void insertByType(PreparedStatement ps, TsvFieldCursor fields, List<String> types) throws SQLException {
+		if (types.size() == fields.size()) {
+			for (int i = 0; i < fields.size(); i++) {//columnNames and columnTypes must have same size
+				int sqliteIndex = i+1;
+				switch (types.get(i)) {
+				case "INTEGER":
+				case "INT":
+					ps.setInt(sqliteIndex, fields.intAt(i));
+					break;
+				case "REAL":
+					ps.setFloat(sqliteIndex, fields.floatAt(i));
+					break;
+				default:
+					ps.setString(sqliteIndex, fields.stringAt(i));
+					break;
+				}
+			}
+		}
+	}
+
 	public static String repeat(String s, int n) {
 		if (s == null) {
 			return null;
@@ -567,4 +775,102 @@ public class RegulatoryParser {
 			return (id*chunksize)+chunksize-1;
 		}
 	}
+
+	/**
+	 * Builds the chunks of the features of a chromosome as they come sorted by start. Chunks before
+	 * the chunk of the last start can not get more features, they are written in chunk id order and
+	 * only the chunks of the features still open are kept in memory.
+	 */
+	private static class ChunkSweep {
+
+		private final String chromosome;
+		private final int chunksize;
+		private final JsonLineWriter jsonLineWriter;
+		private final boolean combineTables;
+		private final TreeMap<Integer, GenericFeatureChunk> openChunks = new TreeMap<>();
+		private int lastStart = Integer.MIN_VALUE;
+
+		ChunkSweep(String chromosome, int chunksize, JsonLineWriter jsonLineWriter, boolean combineTables) {
+			this.chromosome = chromosome;
+			this.chunksize = chunksize;
+			this.jsonLineWriter = jsonLineWriter;
+			this.combineTables = combineTables;
+		}
+
+		void add(GenericFeature genericFeature) throws IOException {
+			if(genericFeature.getStart() < lastStart) {
+				throw new IOException("Features of chromosome " + chromosome + " not sorted by start: " + genericFeature.getStart() + " after " + lastStart);
+			}
+			lastStart = genericFeature.getStart();
+			int firstChunkId =  getChunkId(genericFeature.getStart(), chunksize);
+			int lastChunkId  = getChunkId(genericFeature.getEnd(), chunksize);
+			writeChunksBefore(firstChunkId);
+			for(int j=firstChunkId; j<=lastChunkId; j++) {
+				GenericFeatureChunk genericFeatureChunk = openChunks.get(j);
+				if(genericFeatureChunk == null) {
+					int chunkStart = getChunkStart(j, chunksize);
+					int chunkEnd = getChunkEnd(j, chunksize);
+					genericFeatureChunk = new GenericFeatureChunk(chromosome, j, chunkStart, chunkEnd, new ArrayList<GenericFeature>());
+					openChunks.put(j, genericFeatureChunk);
+				}
+				genericFeatureChunk.getFeatures().add(genericFeature);
+			}
+		}
+
+		void close() throws IOException {
+			writeChunksBefore(Integer.MAX_VALUE);
+		}
+
+		private void writeChunksBefore(int chunkId) throws IOException {
+			while(!openChunks.isEmpty() && openChunks.firstKey() < chunkId) {
+				GenericFeatureChunk chunk = openChunks.pollFirstEntry().getValue();
+				if(combineTables) {
+					jsonLineWriter.write(new RegulatoryFeatureChunk(chunk.getChromosome(), chunk.getChunkId(), chunk.getStart(), chunk.getEnd(), chunk.getFeatures()));
+				}else {
+					jsonLineWriter.write(chunk);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the features of a table from its GFF lines sorted by start.
+	 */
+	private static class FeatureReader implements Comparable<FeatureReader> {
+
+		private final BufferedReader br;
+		private final int tableIndex;
+		private final TsvFieldCursor fields = new TsvFieldCursor();
+		private String line;
+		private GenericFeature genericFeature;
+
+		FeatureReader(BufferedReader br, int tableIndex) {
+			this.br = br;
+			this.tableIndex = tableIndex;
+		}
+
+		boolean next() throws IOException {
+			line = br.readLine();
+			if(line == null) {
+				genericFeature = null;
+				return false;
+			}
+			genericFeature = getGenericFeature(fields.reset(line), TABLE_NAMES.get(tableIndex));
+			// remove 'chr' prefix
+			genericFeature.setChromosome(genericFeature.getChromosome().replace("chr", ""));
+			return true;
+		}
+
+		@Override
+		public int compareTo(FeatureReader other) {
+			if(genericFeature.getStart() != other.genericFeature.getStart()) {
+				return (genericFeature.getStart() < other.genericFeature.getStart()) ? -1 : 1;
+			}
+			return Integer.compare(tableIndex, other.tableIndex);
+		}
+
+		void close() throws IOException {
+			br.close();
+		}
+	}
 }
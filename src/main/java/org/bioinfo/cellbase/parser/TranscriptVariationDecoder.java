@@ -0,0 +1,157 @@
+package org.bioinfo.cellbase.parser;
+
+import java.util.List;
+
+import org.bioinfo.cellbase.common.variation.ConsequenceTypes;
+import org.bioinfo.cellbase.common.variation.TranscriptVariation;
+
+/**
+ * Decodes the rows of Ensembl transcript_variation.txt into TranscriptVariations following
+ * SCHEMA, the type of each column. The line is scanned once by a TsvFieldCursor and numbers
+ * are parsed in place, \N fields become empty Strings or 0 as before.
+ * Columns with few distinct values (somatic flag, consequence types and predictions) are
+ * shared: the same String or List instance is returned for equal fields, so no String is
+ * created for them once they have been seen. Consequence types are dictionary encoded in a
+ * ConsequenceTypes bitset when possible. A decoder is not thread-safe.
+ */
+public class TranscriptVariationDecoder {
+
+	private static final int SKIP = 0;
+	private static final int STRING = 1;
+	private static final int SHARED_STRING = 2;
+	private static final int SHARED_LIST = 3;
+	private static final int INT = 4;
+	private static final int FLOAT = 5;
+
+	// transcript_variation_id, variation_feature_id, feature_stable_id, allele_string, somatic,
+	// consequence_types, cds_start, cds_end, cdna_start, cdna_end, translation_start, translation_end,
+	// distance_to_transcript, codon_allele_string, pep_allele_string, hgvs_genomic, hgvs_transcript,
+	// hgvs_protein, polyphen_prediction, polyphen_score, sift_prediction, sift_score
+	private static final int[] SCHEMA = {SKIP, SKIP, STRING, STRING, SHARED_STRING,
+		SHARED_LIST, INT, INT, INT, INT, INT, INT,
+		INT, STRING, STRING, STRING, STRING,
+		STRING, SHARED_STRING, FLOAT, SHARED_STRING, FLOAT};
+
+	// a column sharing more values than this is not a low cardinality one, new values are not kept
+	private static final int MAX_SHARED_VALUES = 1024;
+
+	private final TsvFieldCursor fields = new TsvFieldCursor();
+	private final SharedValues[] sharedValues = new SharedValues[SCHEMA.length];
+	private final String[] strings = new String[SCHEMA.length];
+	private final int[] ints = new int[SCHEMA.length];
+	private final float[] floats = new float[SCHEMA.length];
+
+	public TranscriptVariationDecoder() {
+		for(int column = 0; column < SCHEMA.length; column++) {
+			if(SCHEMA[column] == SHARED_STRING || SCHEMA[column] == SHARED_LIST) {
+				sharedValues[column] = new SharedValues();
+			}
+		}
+	}
+
+	public TranscriptVariation decode(String line) {
+		fields.reset(line);
+		if(fields.size() < SCHEMA.length) {
+			throw new ArrayIndexOutOfBoundsException("Expected " + SCHEMA.length + " columns in transcript_variation line: " + line);
+		}
+		int numStrings = 0;
+		int numInts = 0;
+		int numFloats = 0;
+		List<String> consequenceTypes = null;
+		for(int column = 0; column < SCHEMA.length; column++) {
+			switch(SCHEMA[column]) {
+			case STRING:
+				strings[numStrings++] = fields.stringAt(column, "");
+				break;
+			case SHARED_STRING:
+				strings[numStrings++] = fields.isNull(column) ? "" : (String) shared(column);
+				break;
+			case SHARED_LIST:
+				consequenceTypes = castList(shared(column));
+				break;
+			case INT:
+				ints[numInts++] = fields.intAt(column, 0);
+				break;
+			case FLOAT:
+				floats[numFloats++] = fields.floatAt(column, 0f);
+				break;
+			default:
+				break;
+			}
+		}
+		return new TranscriptVariation(strings[0], strings[1], strings[2], consequenceTypes,
+				ints[0], ints[1], ints[2], ints[3], ints[4], ints[5], ints[6],
+				strings[3], strings[4], strings[5], strings[6], strings[7],
+				strings[8], floats[0], strings[9], floats[1]);
+	}
+
+	private Object shared(int column) {
+		SharedValues values = sharedValues[column];
+		int hash = fields.hashAt(column);
+		Object value = values.get(fields, column, hash);
+		if(value == null) {
+			String key = fields.stringAt(column);
+			// lists are split as before, \N is kept as a consequence type
+			value = (SCHEMA[column] == SHARED_LIST) ? ConsequenceTypes.valueOf(key) : key;
+			if(values.size < MAX_SHARED_VALUES) {
+				values.put(key, hash, value);
+			}
+		}
+		return value;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<String> castList(Object value) {
+		return (List<String>) value;
+	}
+
+	/**
+	 * Open addressing hash table looked up by a field of the cursor, so no key String is needed.
+	 */
+	private static class SharedValues {
+		private String[] keys = new String[64];
+		private int[] hashes = new int[64];
+		private Object[] values = new Object[64];
+		private int size;
+
+		Object get(TsvFieldCursor fields, int column, int hash) {
+			int mask = keys.length - 1;
+			for(int i = hash & mask; keys[i] != null; i = (i + 1) & mask) {
+				if(hashes[i] == hash && fields.equalsAt(column, keys[i])) {
+					return values[i];
+				}
+			}
+			return null;
+		}
+
+		void put(String key, int hash, Object value) {
+			if((size + 1) * 2 > keys.length) {
+				resize();
+			}
+			int mask = keys.length - 1;
+			int i = hash & mask;
+			while(keys[i] != null) {
+				i = (i + 1) & mask;
+			}
+			keys[i] = key;
+			hashes[i] = hash;
+			values[i] = value;
+			size++;
+		}
+
+		private void resize() {
+			String[] oldKeys = keys;
+			int[] oldHashes = hashes;
+			Object[] oldValues = values;
+			keys = new String[oldKeys.length * 2];
+			hashes = new int[oldKeys.length * 2];
+			values = new Object[oldKeys.length * 2];
+			size = 0;
+			for(int i = 0; i < oldKeys.length; i++) {
+				if(oldKeys[i] != null) {
+					put(oldKeys[i], oldHashes[i], oldValues[i]);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,216 @@
+package org.bioinfo.cellbase.parser;
+
+import java.util.Arrays;
+
+/**
+ * Tab separated fields of a line without splitting it: reset() only records where each field
+ * starts and ends, numbers are parsed in place and Strings are only created for the fields
+ * that are requested. One cursor is meant to be reused for all the lines of a file, it is not
+ * thread-safe. Unlike String.split("\t") trailing empty fields are kept.
+ */
+public class TsvFieldCursor {
+
+	// Ensembl MySQL dumps write NULL as \N
+	public static final String NULL = "\\N";
+
+	private CharSequence line;
+	private int[] starts = new int[32];
+	private int[] ends = new int[32];
+	private int numFields;
+
+	public TsvFieldCursor() {
+	}
+
+	public TsvFieldCursor(CharSequence line) {
+		reset(line);
+	}
+
+	public TsvFieldCursor reset(CharSequence line) {
+		this.line = line;
+		numFields = 0;
+		int start = 0;
+		int length = line.length();
+		for(int i = 0; i < length; i++) {
+			if(line.charAt(i) == '\t') {
+				addField(start, i);
+				start = i + 1;
+			}
+		}
+		addField(start, length);
+		return this;
+	}
+
+	private void addField(int start, int end) {
+		if(numFields == starts.length) {
+			starts = Arrays.copyOf(starts, numFields * 2);
+			ends = Arrays.copyOf(ends, numFields * 2);
+		}
+		starts[numFields] = start;
+		ends[numFields] = end;
+		numFields++;
+	}
+
+	public CharSequence getLine() {
+		return line;
+	}
+
+	public int size() {
+		return numFields;
+	}
+
+	public int length(int field) {
+		checkField(field);
+		return ends[field] - starts[field];
+	}
+
+	public boolean isNull(int field) {
+		checkField(field);
+		return ends[field] - starts[field] == 2 && line.charAt(starts[field]) == '\\' && line.charAt(starts[field] + 1) == 'N';
+	}
+
+	public boolean isEmpty(int field) {
+		checkField(field);
+		return ends[field] == starts[field];
+	}
+
+	public boolean equalsAt(int field, String value) {
+		checkField(field);
+		int start = starts[field];
+		int length = ends[field] - start;
+		if(length != value.length()) {
+			return false;
+		}
+		for(int i = 0; i < length; i++) {
+			if(line.charAt(start + i) != value.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Same value as stringAt(field).hashCode() without creating the String.
+	 */
+	public int hashAt(int field) {
+		checkField(field);
+		int hash = 0;
+		for(int i = starts[field]; i < ends[field]; i++) {
+			hash = 31 * hash + line.charAt(i);
+		}
+		return hash;
+	}
+
+	public String stringAt(int field) {
+		checkField(field);
+		return line.subSequence(starts[field], ends[field]).toString();
+	}
+
+	/**
+	 * Returns nullValue if the field is \N.
+	 */
+	public String stringAt(int field, String nullValue) {
+		return isNull(field) ? nullValue : stringAt(field);
+	}
+
+	/**
+	 * Same values and errors as Integer.parseInt() without creating a String.
+	 */
+	public int intAt(int field) {
+		long value = longAt(field);
+		if(value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+			throw new NumberFormatException("For input string: \"" + stringAt(field) + "\"");
+		}
+		return (int) value;
+	}
+
+	/**
+	 * Returns nullValue if the field is \N.
+	 */
+	public int intAt(int field, int nullValue) {
+		return isNull(field) ? nullValue : intAt(field);
+	}
+
+	/**
+	 * Same values and errors as Long.parseLong() without creating a String.
+	 */
+	public long longAt(int field) {
+		checkField(field);
+		int i = starts[field];
+		int end = ends[field];
+		boolean negative = false;
+		if(i < end && (line.charAt(i) == '-' || line.charAt(i) == '+')) {
+			negative = line.charAt(i) == '-';
+			i++;
+		}
+		// up to 18 digits can not overflow, longer values are left to Long.parseLong
+		if(i == end || end - i > 18) {
+			return Long.parseLong(stringAt(field));
+		}
+		long value = 0;
+		for(; i < end; i++) {
+			char c = line.charAt(i);
+			if(c < '0' || c > '9') {
+				throw new NumberFormatException("For input string: \"" + stringAt(field) + "\"");
+			}
+			value = value * 10 + (c - '0');
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Same values as Float.parseFloat(). Plain decimals with up to 7 significant digits are parsed in
+	 * place: both the digits and the power of ten are exact floats, so a single float division gives
+	 * the same correctly rounded value. Other formats fall back to Float.parseFloat().
+	 */
+	public float floatAt(int field) {
+		checkField(field);
+		int i = starts[field];
+		int end = ends[field];
+		boolean negative = false;
+		if(i < end && (line.charAt(i) == '-' || line.charAt(i) == '+')) {
+			negative = line.charAt(i) == '-';
+			i++;
+		}
+		int mantissa = 0;
+		int significantDigits = 0;
+		int fractionDigits = -1;
+		int numDigits = 0;
+		for(; i < end; i++) {
+			char c = line.charAt(i);
+			if(c >= '0' && c <= '9') {
+				numDigits++;
+				if(mantissa > 0 || c != '0') {
+					significantDigits++;
+				}
+				mantissa = (significantDigits <= 7) ? mantissa * 10 + (c - '0') : mantissa;
+				if(fractionDigits >= 0) {
+					fractionDigits++;
+				}
+			}else if(c == '.' && fractionDigits < 0) {
+				fractionDigits = 0;
+			}else {
+				break;
+			}
+		}
+		if(i != end || numDigits == 0 || significantDigits > 7 || fractionDigits > 10) {
+			return Float.parseFloat(stringAt(field));
+		}
+		float value = (fractionDigits > 0) ? mantissa / POWERS_OF_TEN[fractionDigits] : mantissa;
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Returns nullValue if the field is \N.
+	 */
+	public float floatAt(int field, float nullValue) {
+		return isNull(field) ? nullValue : floatAt(field);
+	}
+
+	private static final float[] POWERS_OF_TEN = {1f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f};
+
+	private void checkField(int field) {
+		if(field < 0 || field >= numFields) {
+			throw new ArrayIndexOutOfBoundsException(field);
+		}
+	}
+}
@@ -0,0 +1,382 @@
+package org.bioinfo.cellbase.parser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+/**
+ * Maps variation ids to the byte offsets of the lines of an Ensembl variation table, this
+ * replaces the (variation_id, offset) SQLite tables. The index is stored as two sorted primitive
+ * arrays, all the ids followed by all the offsets, and is memory-mapped when opened so it is not
+ * loaded in the heap. Offsets of the same id are sorted ascending, this is, in file order.
+ *
+ * File layout: int magic, int version, long numEntries, int[numEntries] ids, padding to 8 bytes,
+ * long[numEntries] offsets.
+ */
+public class VariationOffsetIndex implements Closeable {
+
+	private static final int MAGIC = 0x43425649;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 16;
+	// records sorted in memory per run when building, 16 bytes each
+	private static final int RUN_SIZE = 1 << 23;
+	private static final long[] EMPTY = new long[0];
+	private static final int CHECKSUM_BLOCK_SIZE = 1 << 20;
+
+	private final RandomAccessFile file;
+	private final long numEntries;
+	private final MappedRegion ids;
+	private final MappedRegion offsets;
+
+	public VariationOffsetIndex(Path indexFile) throws IOException {
+		file = new RandomAccessFile(indexFile.toFile(), "r");
+		if(file.readInt() != MAGIC || file.readInt() != VERSION) {
+			file.close();
+			throw new IOException("Not a variation offset index file: " + indexFile);
+		}
+		numEntries = file.readLong();
+		FileChannel channel = file.getChannel();
+		ids = new MappedRegion(channel, HEADER_SIZE, numEntries * 4);
+		offsets = new MappedRegion(channel, offsetsPosition(numEntries), numEntries * 8);
+	}
+
+	public long size() {
+		return numEntries;
+	}
+
+	/**
+	 * Id of the entry at this rank, entries are sorted by id.
+	 */
+	public int getId(long rank) {
+		return ids.getInt(rank);
+	}
+
+	public long getOffset(long rank) {
+		return offsets.getLong(rank);
+	}
+
+	/**
+	 * Rank of the first entry with an id greater or equal than variationId, size() if there is none.
+	 */
+	public long lowerBound(long variationId) {
+		long low = 0;
+		long high = numEntries;
+		while(low < high) {
+			long mid = (low + high) >>> 1;
+			if(ids.getInt(mid) < variationId) {
+				low = mid + 1;
+			}else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Returns the offsets of the lines with this variation id in ascending order,
+	 * an empty array if there is none.
+	 */
+	public long[] getOffsets(int variationId) {
+		long low = lowerBound(variationId);
+		long end = low;
+		while(end < numEntries && ids.getInt(end) == variationId) {
+			end++;
+		}
+		if(end == low) {
+			return EMPTY;
+		}
+		long[] result = new long[(int) (end - low)];
+		for(int i = 0; i < result.length; i++) {
+			result[i] = offsets.getLong(low + i);
+		}
+		return result;
+	}
+
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+
+	/**
+	 * Builds the index of a tab separated file where column is the variation id, ids must be
+	 * non-negative ints. Offsets are counted in bytes, so they are valid for any line encoding
+	 * and line terminator. Memory used is bounded by RUN_SIZE no matter how large the file is.
+	 */
+	public static void build(Path tableFile, int column, Path indexFile) throws IOException {
+		build(tableFile, column, indexFile, RUN_SIZE);
+	}
+
+	static void build(Path tableFile, int column, Path indexFile, int maxRunSize) throws IOException {
+		long start = System.currentTimeMillis();
+		List<Path> runs = new ArrayList<>();
+		long[] keys = new long[maxRunSize];
+		long[] runOffsets = new long[maxRunSize];
+		int runSize = 0;
+		long numEntries = 0;
+
+		InputStream is = new FileInputStream(tableFile.toFile());
+		byte[] buffer = new byte[1 << 16];
+		long bufferStart = 0;
+		long lineStart = 0;
+		int currentColumn = 0;
+		long id = -1;
+		int read;
+		boolean pendingLine = false;
+		while((read = is.read(buffer)) > 0) {
+			for(int i = 0; i < read; i++) {
+				byte b = buffer[i];
+				pendingLine = true;
+				if(b == '\n') {
+					if(id < 0 || id > Integer.MAX_VALUE) {
+						is.close();
+						throw new IOException("No valid variation id in column " + column + " of " + tableFile + " at byte " + lineStart);
+					}
+					// the position in the run keeps the sort stable, offsets of an id stay ascending
+					keys[runSize] = (id << 32) | runSize;
+					runOffsets[runSize] = lineStart;
+					runSize++;
+					numEntries++;
+					if(runSize == maxRunSize) {
+						runs.add(writeRun(keys, runOffsets, runSize, indexFile, runs.size()));
+						runSize = 0;
+					}
+					lineStart = bufferStart + i + 1;
+					currentColumn = 0;
+					id = -1;
+					pendingLine = false;
+				}else if(b == '\t') {
+					currentColumn++;
+				}else if(currentColumn == column && b != '\r') {
+					if(b < '0' || b > '9') {
+						is.close();
+						throw new IOException("Invalid variation id in column " + column + " of " + tableFile + " at byte " + lineStart);
+					}
+					id = (id < 0) ? b - '0' : Math.min(id * 10 + (b - '0'), 1L << 32);
+				}
+			}
+			bufferStart += read;
+		}
+		is.close();
+		if(pendingLine) {
+			// last line without line terminator
+			if(id < 0 || id > Integer.MAX_VALUE) {
+				throw new IOException("No valid variation id in column " + column + " of " + tableFile + " at byte " + lineStart);
+			}
+			keys[runSize] = (id << 32) | runSize;
+			runOffsets[runSize] = lineStart;
+			runSize++;
+			numEntries++;
+		}
+
+		DataOutputStream idsOutput = openAt(indexFile, HEADER_SIZE, true);
+		DataOutputStream offsetsOutput = openAt(indexFile, offsetsPosition(numEntries), false);
+		if(runs.isEmpty()) {
+			// the whole file fits in one run, no merge needed
+			Arrays.sort(keys, 0, runSize);
+			for(int i = 0; i < runSize; i++) {
+				idsOutput.writeInt((int) (keys[i] >>> 32));
+				offsetsOutput.writeLong(runOffsets[(int) keys[i]]);
+			}
+		}else {
+			if(runSize > 0) {
+				runs.add(writeRun(keys, runOffsets, runSize, indexFile, runs.size()));
+			}
+			keys = null;
+			runOffsets = null;
+			mergeRuns(runs, idsOutput, offsetsOutput);
+		}
+		idsOutput.close();
+		offsetsOutput.close();
+
+		RandomAccessFile header = new RandomAccessFile(indexFile.toFile(), "rw");
+		header.writeInt(MAGIC);
+		header.writeInt(VERSION);
+		header.writeLong(numEntries);
+		header.close();
+		System.out.println("Variation offset index of " + tableFile.getFileName() + ": " + numEntries + " lines in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * Writes the manifest of an index, it records the size, modification time and checksum of the
+	 * indexed table and the size of the index so later runs can check if the index is still valid.
+	 */
+	public static void writeManifest(Path tableFile, int column, Path indexFile, Path manifestFile) throws IOException {
+		Properties manifest = getManifest(tableFile, column, indexFile);
+		Writer writer = Files.newBufferedWriter(manifestFile, Charset.defaultCharset());
+		manifest.store(writer, "Variation offset index of " + tableFile.getFileName());
+		writer.close();
+	}
+
+	/**
+	 * Returns true if the index and its manifest exist and the table has not changed since the index was built.
+	 */
+	public static boolean isValid(Path tableFile, int column, Path indexFile, Path manifestFile) throws IOException {
+		if(!Files.exists(indexFile) || !Files.exists(manifestFile)) {
+			return false;
+		}
+		Properties savedManifest = new Properties();
+		Reader reader = Files.newBufferedReader(manifestFile, Charset.defaultCharset());
+		savedManifest.load(reader);
+		reader.close();
+		return savedManifest.equals(getManifest(tableFile, column, indexFile));
+	}
+
+	private static Properties getManifest(Path tableFile, int column, Path indexFile) throws IOException {
+		Properties manifest = new Properties();
+		manifest.setProperty("version", String.valueOf(VERSION));
+		manifest.setProperty("column", String.valueOf(column));
+		manifest.setProperty("table.size", String.valueOf(Files.size(tableFile)));
+		manifest.setProperty("table.mtime", String.valueOf(Files.getLastModifiedTime(tableFile).toMillis()));
+		manifest.setProperty("table.checksum", Long.toHexString(getChecksum(tableFile)));
+		manifest.setProperty("index.size", String.valueOf(Files.size(indexFile)));
+		return manifest;
+	}
+
+	/**
+	 * CRC32 of the first, middle and last blocks of the file, reading the whole table
+	 * would take as long as building the index again.
+	 */
+	private static long getChecksum(Path file) throws IOException {
+		CRC32 crc = new CRC32();
+		ByteBuffer block = ByteBuffer.allocate(CHECKSUM_BLOCK_SIZE);
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		long size = channel.size();
+		long[] positions = {0, Math.max(0, size / 2 - CHECKSUM_BLOCK_SIZE / 2), Math.max(0, size - CHECKSUM_BLOCK_SIZE)};
+		for(long position: positions) {
+			block.clear();
+			while(block.hasRemaining() && channel.read(block, position + block.position()) > 0);
+			crc.update(block.array(), 0, block.position());
+		}
+		channel.close();
+		return crc.getValue();
+	}
+
+	private static long offsetsPosition(long numEntries) {
+		return (HEADER_SIZE + numEntries * 4 + 7) & ~7L;
+	}
+
+	private static DataOutputStream openAt(Path indexFile, long position, boolean truncate) throws IOException {
+		FileChannel channel = truncate
+				? FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)
+				: FileChannel.open(indexFile, StandardOpenOption.WRITE);
+		channel.position(position);
+		return new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+	}
+
+	private static Path writeRun(long[] keys, long[] runOffsets, int size, Path indexFile, int runNumber) throws IOException {
+		Arrays.sort(keys, 0, size);
+		Path run = indexFile.resolveSibling(indexFile.getFileName() + ".run" + runNumber);
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run.toFile()), 1 << 16));
+		for(int i = 0; i < size; i++) {
+			dos.writeInt((int) (keys[i] >>> 32));
+			dos.writeLong(runOffsets[(int) keys[i]]);
+		}
+		dos.close();
+		return run;
+	}
+
+	private static void mergeRuns(List<Path> runs, DataOutputStream idsOutput, DataOutputStream offsetsOutput) throws IOException {
+		PriorityQueue<RunCursor> queue = new PriorityQueue<>(runs.size());
+		for(int i = 0; i < runs.size(); i++) {
+			RunCursor cursor = new RunCursor(runs.get(i), i);
+			if(cursor.next()) {
+				queue.add(cursor);
+			}
+		}
+		RunCursor cursor;
+		while((cursor = queue.poll()) != null) {
+			idsOutput.writeInt(cursor.id);
+			offsetsOutput.writeLong(cursor.offset);
+			if(cursor.next()) {
+				queue.add(cursor);
+			}
+		}
+		for(Path run: runs) {
+			Files.deleteIfExists(run);
+		}
+	}
+
+	private static class RunCursor implements Comparable<RunCursor> {
+		private final DataInputStream dis;
+		private final int runIndex;
+		private int id;
+		private long offset;
+
+		RunCursor(Path run, int runIndex) throws IOException {
+			this.dis = new DataInputStream(new BufferedInputStream(new FileInputStream(run.toFile()), 1 << 16));
+			this.runIndex = runIndex;
+		}
+
+		boolean next() throws IOException {
+			try {
+				id = dis.readInt();
+				offset = dis.readLong();
+				return true;
+			}catch(EOFException e) {
+				dis.close();
+				return false;
+			}
+		}
+
+		@Override
+		public int compareTo(RunCursor other) {
+			if(id != other.id) {
+				return (id < other.id) ? -1 : 1;
+			}
+			// runs are in file order, ties go to the earlier run
+			return Integer.compare(runIndex, other.runIndex);
+		}
+	}
+
+	/**
+	 * A region of a file mapped in segments, a single MappedByteBuffer can not be larger than 2GB.
+	 */
+	private static class MappedRegion {
+		private static final int SEGMENT_BITS = 30;
+		private static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+		private final MappedByteBuffer[] segments;
+
+		MappedRegion(FileChannel channel, long position, long size) throws IOException {
+			int numSegments = (int) ((size + SEGMENT_MASK) >> SEGMENT_BITS);
+			segments = new MappedByteBuffer[numSegments];
+			for(int i = 0; i < numSegments; i++) {
+				long segmentStart = (long) i << SEGMENT_BITS;
+				segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position + segmentStart, Math.min(size - segmentStart, 1L << SEGMENT_BITS));
+			}
+		}
+
+		int getInt(long index) {
+			long byteIndex = index << 2;
+			return segments[(int) (byteIndex >> SEGMENT_BITS)].getInt((int) (byteIndex & SEGMENT_MASK));
+		}
+
+		long getLong(long index) {
+			long byteIndex = index << 3;
+			return segments[(int) (byteIndex >> SEGMENT_BITS)].getLong((int) (byteIndex & SEGMENT_MASK));
+		}
+	}
+}
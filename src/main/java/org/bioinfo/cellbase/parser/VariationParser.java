@@ -2,43 +2,64 @@ package org.bioinfo.cellbase.parser;
 
 import com.google.gson.Gson;
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.sql.*;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import org.bioinfo.cellbase.common.variation.TranscriptVariation;
 import org.bioinfo.cellbase.common.variation.Variation;
 import org.bioinfo.cellbase.common.variation.Xref;
 
 public class VariationParser {
 
-	private Connection sqlConn = null;
-
-//	private PreparedStatement psVariationFeature, psTranscriptVariation, psVariationSynonym;
-	private PreparedStatement psVariationFeature, psTranscriptVariation, psVariationSynonym;
-	
-	private RandomAccessFile raf,rafvariationFeature,rafTranscriptVariation,rafvariationSynonym;
+	// (variation_id, offset) indexes of the variation tables, they replace the SQLite tables
+	private VariationOffsetIndex variationFeatureIndex, transcriptVariationIndex, variationSynonymIndex;
 	
-	private int LIMITROWS = 100000;
+	private TableReaders tableReaders;
+
+	// variation_id range [shardMinId, shardMaxId) and byte range of variation.txt processed by this shard
+	private long shardMinId = Long.MIN_VALUE;
+	private long shardMaxId = Long.MAX_VALUE;
+	private long shardStartOffset = 0;
+	private long shardEndOffset = Long.MAX_VALUE;
+
+	private static final int BATCH_SIZE = 1000;
+	private static final int MAX_WRITER_THREADS = 4;
+	private static final VariationBatch NO_MORE_BATCHES = new VariationBatch(-1, null);
+	private static final List<String[]> NO_MORE_RECORDS = new ArrayList<>();
 
 	public VariationParser() {
 
 	}
 
 	public void parseVariationToJson(String species, String assembly, String source, String version, Path variationFilePath, Path outfileJson) throws IOException, SQLException {
-		BufferedReader br = Files.newBufferedReader(variationFilePath.resolve("variation.txt"), Charset.defaultCharset());
+		BufferedReader br = newVariationReader(variationFilePath);
 //		BufferedWriter bw = Files.newBufferedWriter(outfileJson, Charset.defaultCharset());
 		// We need a different file for each chromosome
-		Map<String, BufferedWriter> chromFiles = new HashMap<>(50);
+		Map<String, JsonLineWriter> chromFiles = new HashMap<>(50);
 		BufferedWriter bwLog = Files.newBufferedWriter(Paths.get(outfileJson.toFile().getAbsolutePath()+".log"), Charset.defaultCharset());
 		Gson gson = new Gson();
 		Map<String, List<String>> queryMap = null;
-		String[] variationFields = null;
-		String[] variationFeatureFields = null;
-		String[] transcriptVariationFields = null;
-		String[] variationSynonymFields = null;
+		// cursors are reused for all the lines
+		TsvFieldCursor variationFields = new TsvFieldCursor();
+		TsvFieldCursor variationFeatureFields = new TsvFieldCursor();
+		TsvFieldCursor fieldCursor = new TsvFieldCursor();
+		TranscriptVariationDecoder transcriptVariationDecoder = new TranscriptVariationDecoder();
 		StringBuffer sb = new StringBuffer();
 		String chromosome;
 		
@@ -53,8 +74,11 @@ public class VariationParser {
 		int variationId = 0;
 		String line = null;
 		while((line = br.readLine()) != null) {
-			variationFields = line.split("\t");
-			variationId = Integer.parseInt(variationFields[0]);
+			variationFields.reset(line);
+			variationId = variationFields.intAt(0);
+			if(!isInShard(variationId)) {
+				continue;
+			}
 			
 //			queryMap = queryAllByVariationId(variationId, variationFilePath);
 //			long start = System.currentTimeMillis();
@@ -67,63 +91,17 @@ public class VariationParser {
 
 			
 			if(resultVariationFeature != null && resultVariationFeature.size() > 0) {
-				transcriptVariation = new ArrayList<>();
 				List<String> resultVariationSynonym = queryByVariationId(variationId, "variation_synonym", variationFilePath);
-				variationFeatureFields = resultVariationFeature.get(0).split("\t");
+				variationFeatureFields.reset(resultVariationFeature.get(0));
 
 				// TranscriptVariation references to VariationFeature no Variation !!!
-				List<String> resultTranscriptVariations = queryByVariationId(Integer.parseInt(variationFeatureFields[0]), "transcript_variation", variationFilePath);
-				if(resultTranscriptVariations != null && resultTranscriptVariations.size() > 0) {
-					for(String rtv: resultTranscriptVariations) {
-						transcriptVariationFields = rtv.split("\t");
-						
-						TranscriptVariation tv = new TranscriptVariation((transcriptVariationFields[2] != null && !transcriptVariationFields[2].equals("\\N")) ? transcriptVariationFields[2] : ""
-								, (transcriptVariationFields[3] != null && !transcriptVariationFields[3].equals("\\N")) ? transcriptVariationFields[3] : "" 
-								, (transcriptVariationFields[4] != null && !transcriptVariationFields[4].equals("\\N")) ? transcriptVariationFields[4] : ""
-								, Arrays.asList(transcriptVariationFields[5].split(","))
-								, (transcriptVariationFields[6] != null && !transcriptVariationFields[6].equals("\\N")) ? Integer.parseInt(transcriptVariationFields[6]) : 0
-								, (transcriptVariationFields[7] != null && !transcriptVariationFields[7].equals("\\N")) ? Integer.parseInt(transcriptVariationFields[7]) : 0
-								, (transcriptVariationFields[8] != null && !transcriptVariationFields[8].equals("\\N")) ? Integer.parseInt(transcriptVariationFields[8]) : 0
-								, (transcriptVariationFields[9] != null && !transcriptVariationFields[9].equals("\\N")) ? Integer.parseInt(transcriptVariationFields[9]) : 0
-								, (transcriptVariationFields[10] != null && !transcriptVariationFields[10].equals("\\N")) ? Integer.parseInt(transcriptVariationFields[10]) : 0
-								, (transcriptVariationFields[11] != null && !transcriptVariationFields[11].equals("\\N")) ? Integer.parseInt(transcriptVariationFields[11]) : 0
-								, (transcriptVariationFields[12] != null && !transcriptVariationFields[12].equals("\\N")) ? Integer.parseInt(transcriptVariationFields[12]) : 0
-								, (transcriptVariationFields[13] != null && !transcriptVariationFields[13].equals("\\N")) ? transcriptVariationFields[13] : ""
-								, (transcriptVariationFields[14] != null && !transcriptVariationFields[14].equals("\\N")) ? transcriptVariationFields[14] : ""
-								, (transcriptVariationFields[15] != null && !transcriptVariationFields[15].equals("\\N")) ? transcriptVariationFields[15] : ""
-								, (transcriptVariationFields[16] != null && !transcriptVariationFields[16].equals("\\N")) ? transcriptVariationFields[16] : ""
-								, (transcriptVariationFields[17] != null && !transcriptVariationFields[17].equals("\\N")) ? transcriptVariationFields[17] : ""
-								, (transcriptVariationFields[18] != null && !transcriptVariationFields[18].equals("\\N")) ? transcriptVariationFields[18] : ""
-								, (transcriptVariationFields[19] != null && !transcriptVariationFields[19].equals("\\N")) ? Float.parseFloat(transcriptVariationFields[19]) : 0f 
-								, (transcriptVariationFields[20] != null && !transcriptVariationFields[20].equals("\\N")) ? transcriptVariationFields[20] :""
-								, (transcriptVariationFields[21] != null && !transcriptVariationFields[21].equals("\\N")) ? Float.parseFloat(transcriptVariationFields[21]) : 0f);
-						transcriptVariation.add(tv);
-					}
-				}
-			
-				xrefs = new ArrayList<>();
-				if(resultVariationSynonym != null && resultVariationSynonym.size() > 0) {
-					String arr[];
-					for(String rxref: resultVariationSynonym) {					
-						variationSynonymFields = rxref.split("\t");
-						if(sourceMap.get(variationSynonymFields[3]) != null) {
-							arr = sourceMap.get(variationSynonymFields[3]).split(",");
-							xrefs.add(new Xref(variationSynonymFields[4], arr[0], arr[1]));							
-						}
-					}
-					
-				}
-				
-				String[] arr;
-				if(variationFeatureFields != null && variationFeatureFields[6] != null) {
-					arr = variationFeatureFields[6].split("/");				
-				}else {
-					arr = new String[]{"", ""};
-				}
-		
-				chromosome = seqRegionMap.get(variationFeatureFields[1]);
+				List<String> resultTranscriptVariations = queryByVariationId(variationFeatureFields.intAt(0), "transcript_variation", variationFilePath);
+				transcriptVariation = getTranscriptVariations(resultTranscriptVariations, transcriptVariationDecoder);
+				xrefs = getXrefs(resultVariationSynonym, sourceMap, fieldCursor);
+
+				chromosome = seqRegionMap.get(variationFeatureFields.stringAt(1));
 				try {
-					variation = new Variation((variationFields[2] != null && !variationFields[2].equals("\\N")) ? variationFields[2] : "" , chromosome, "SNV", (variationFeatureFields != null) ? Integer.parseInt(variationFeatureFields[2]) : 0, (variationFeatureFields != null) ? Integer.parseInt(variationFeatureFields[3]) : 0, variationFeatureFields[4], (arr[0] != null && !arr[0].equals("\\N")) ? arr[0] : "" , (arr[1] != null && !arr[1].equals("\\N")) ? arr[1] : "" , variationFeatureFields[6], species, assembly, source, version, null, transcriptVariation, null, xrefs, "featureId", "featureAlias", "variantFreq", variationFields[3]);
+					variation = createVariation(variationFields, variationFeatureFields, transcriptVariation, xrefs, chromosome, species, assembly, source, version);
 
 					//				System.out.println(gson.toJson(variation));
 					//				sb.append(gson.toJson(variation)).append("\n");
@@ -134,11 +112,7 @@ public class VariationParser {
 					
 					// Each variation is stored in a different file
 					// for MongoImport optimization, chrom files names end with '_chr1'
-					if(!chromFiles.containsKey(chromosome)) {
-						BufferedWriter bw = Files.newBufferedWriter(Paths.get(outfileJson.toFile().getAbsolutePath()+"_chr"+chromosome), Charset.defaultCharset());
-						chromFiles.put(chromosome, bw);
-					}
-					chromFiles.get(chromosome).write(gson.toJson(variation)+ "\n");
+					writeVariation(chromFiles, outfileJson, chromosome, variation, gson);
 					// old code
 //					bw.write(gson.toJson(variation)+ "\n");
 				}catch(Exception e) {
@@ -156,205 +130,402 @@ public class VariationParser {
 		}
 		br.close();
 		// We need to close all chromosomes files
-		for(BufferedWriter bw: chromFiles.values()) {
-			bw.close();			
+		for(JsonLineWriter chromFile: chromFiles.values()) {
+			chromFile.close();			
 		}
 		bwLog.close();
 	}
-	
-	public void connect(Path variationFilePath) throws SQLException, ClassNotFoundException, FileNotFoundException {
-//		Class.forName("org.sqlite.JDBC");
-		//sqlConn = DriverManager.getConnection("jdbc:sqlite::memory:");
-//		sqlConn = DriverManager.getConnection("jdbc:sqlite:" + variationFilePath.toAbsolutePath().toString()+"/variation_tables.db");
-		//sqlConn.setAutoCommit(false);
-		
-		rafvariationFeature =new RandomAccessFile(variationFilePath.resolve("variation_feature.txt").toFile(), "r"); 
-		rafTranscriptVariation =new RandomAccessFile(variationFilePath.resolve("transcript_variation.txt").toFile(), "r");
-		rafvariationSynonym =new RandomAccessFile(variationFilePath.resolve("variation_synonym.txt").toFile(), "r");
-		
-		psVariationFeature = sqlConn.prepareStatement("select offset from variation_feature where variation_id = ? order by offset ASC ");
-		psTranscriptVariation = sqlConn.prepareStatement("select offset from transcript_variation where variation_id = ? order by offset ASC ");
-		psVariationSynonym = sqlConn.prepareStatement("select offset from variation_synonym where variation_id = ? order by offset ASC ");
+
+	/**
+	 * Multi-threaded version of parseVariationToJson, connect() must be called first.
+	 * This thread reads variation.txt in batches, numThreads assemblers do the lookups and build and
+	 * serialize the Variations, and every chromosome file is written by one writer thread. Stages are
+	 * connected by bounded queues and batches are written in input order, so the chromosome files are
+	 * the same ones parseVariationToJson writes.
+	 */
+	public void parseVariationToJson(String species, String assembly, String source, String version, Path variationFilePath, Path outfileJson, int numThreads) throws IOException {
+		ParallelVariationBuild build = new ParallelVariationBuild(species, assembly, source, version, variationFilePath, outfileJson, Math.max(numThreads, 1));
+		build.run();
 	}
 
-	public void disconnect() throws SQLException {
-		if(sqlConn != null && !sqlConn.isClosed()) {
-			psVariationFeature.close();
-			psTranscriptVariation.close();
-			psVariationSynonym.close();
+	/**
+	 * Same output as parseVariationToJson but without SQLite nor random seeks: variation_feature,
+	 * transcript_variation and variation_synonym are external sorted by variation id and joined
+	 * with variation.txt in a single sequential pass. Intermediate files are written in tmpDir.
+	 * Variations are written in variation id order, this is the order of Ensembl dumps.
+	 */
+	public void parseVariationToJsonSortMerge(String species, String assembly, String source, String version, Path variationFilePath, Path outfileJson, Path tmpDir) throws IOException {
+		Path sortDir = Files.createTempDirectory(tmpDir, "variation_sort");
+		ExternalLineSorter sorter = new ExternalLineSorter(sortDir);
 
-			sqlConn.close();		
-		}
-	}
+		Path variationSorted = sortDir.resolve("variation.sorted");
+		sorter.sort(variationFilePath.resolve("variation.txt"), variationSorted, 0);
+		Path variationSynonymSorted = sortDir.resolve("variation_synonym.sorted");
+		sorter.sort(variationFilePath.resolve("variation_synonym.txt"), variationSynonymSorted, 1);
 
-	public void createVariationDatabase(Path variationFilePath) {
-		try {
+		// Only the first variation_feature of each variation is used, as in parseVariationToJson
+		Path variationFeatureSorted = sortDir.resolve("variation_feature.sorted");
+		sorter.sort(variationFilePath.resolve("variation_feature.txt"), variationFeatureSorted, 5);
+		Path firstVariationFeatures = sortDir.resolve("variation_feature_first.sorted");
+		writeFirstLineOfEachKey(variationFeatureSorted, firstVariationFeatures, 5);
+		Files.delete(variationFeatureSorted);
 
-			Class.forName("org.sqlite.JDBC");
-			sqlConn = DriverManager.getConnection("jdbc:sqlite::memory:");
-//			sqlConn = DriverManager.getConnection("jdbc:sqlite:"+variationFilePath.toAbsolutePath().toString()+"/variation_tables.db");
-			if(!Files.exists(variationFilePath.resolve("variation_tables.db"))) {
-				
-				sqlConn.setAutoCommit(false);
+		// TranscriptVariation references to VariationFeature no Variation, transcript_variation lines
+		// are joined with their variation_feature and prefixed with the variation id
+		Path firstVariationFeaturesById = sortDir.resolve("variation_feature_first_by_id.sorted");
+		sorter.sort(firstVariationFeatures, firstVariationFeaturesById, 0);
+		Path transcriptVariationSorted = sortDir.resolve("transcript_variation.sorted");
+		sorter.sort(variationFilePath.resolve("transcript_variation.txt"), transcriptVariationSorted, 1);
+		Path transcriptVariationKeyed = sortDir.resolve("transcript_variation_keyed.txt");
+		joinTranscriptVariationsWithVariationId(firstVariationFeaturesById, transcriptVariationSorted, transcriptVariationKeyed);
+		Files.delete(firstVariationFeaturesById);
+		Files.delete(transcriptVariationSorted);
+		Path transcriptVariationKeyedSorted = sortDir.resolve("transcript_variation_keyed.sorted");
+		sorter.sort(transcriptVariationKeyed, transcriptVariationKeyedSorted, 0);
+		Files.delete(transcriptVariationKeyed);
 
-				createTable(5, variationFilePath.resolve("variation_feature.txt"), "variation_feature");
-				createTable(1, variationFilePath.resolve("transcript_variation.txt"), "transcript_variation");
-				createTable(1, variationFilePath.resolve("variation_synonym.txt"), "variation_synonym");
-				
-//				psVariationFeature = sqlConn.prepareStatement("select offset from variation_feature where variation_id = ? order by offset ASC ");
+		Map<String, JsonLineWriter> chromFiles = new HashMap<>(50);
+		BufferedWriter bwLog = Files.newBufferedWriter(Paths.get(outfileJson.toFile().getAbsolutePath()+".log"), Charset.defaultCharset());
+		Gson gson = new Gson();
+		Map<String, String> seqRegionMap = loadHashSeqRegion(variationFilePath);
+		Map<String, String> sourceMap = loadHashSource(variationFilePath);
 
-//				sqlConn.close();		
-			}
+		BufferedReader br = Files.newBufferedReader(variationSorted, Charset.defaultCharset());
+		ExternalLineSorter.GroupReader variationFeatureReader = new ExternalLineSorter.GroupReader(firstVariationFeatures, 5);
+		ExternalLineSorter.GroupReader transcriptVariationReader = new ExternalLineSorter.GroupReader(transcriptVariationKeyedSorted, 0);
+		ExternalLineSorter.GroupReader variationSynonymReader = new ExternalLineSorter.GroupReader(variationSynonymSorted, 1);
 
-		} catch (ClassNotFoundException e) {
-			e.printStackTrace();
-		} catch (SQLException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			e.printStackTrace();
+		TsvFieldCursor variationFields = new TsvFieldCursor();
+		TsvFieldCursor variationFeatureFields = new TsvFieldCursor();
+		TsvFieldCursor fieldCursor = new TsvFieldCursor();
+		TranscriptVariationDecoder transcriptVariationDecoder = new TranscriptVariationDecoder();
+		int countprocess = 0;
+		String line;
+		while((line = br.readLine()) != null) {
+			variationFields.reset(line);
+			int variationId = variationFields.intAt(0);
+
+			List<String> resultVariationFeature = variationFeatureReader.next(variationId);
+			List<String> resultTranscriptVariations = transcriptVariationReader.next(variationId);
+			List<String> resultVariationSynonym = variationSynonymReader.next(variationId);
+			if(resultVariationFeature.size() > 0) {
+				variationFeatureFields.reset(resultVariationFeature.get(0));
+				// remove the variation id prefix
+				for(int i = 0; i < resultTranscriptVariations.size(); i++) {
+					String keyedLine = resultTranscriptVariations.get(i);
+					resultTranscriptVariations.set(i, keyedLine.substring(keyedLine.indexOf('\t') + 1));
+				}
+				List<TranscriptVariation> transcriptVariation = getTranscriptVariations(resultTranscriptVariations, transcriptVariationDecoder);
+				List<Xref> xrefs = getXrefs(resultVariationSynonym, sourceMap, fieldCursor);
+
+				String chromosome = seqRegionMap.get(variationFeatureFields.stringAt(1));
+				try {
+					Variation variation = createVariation(variationFields, variationFeatureFields, transcriptVariation, xrefs, chromosome, species, assembly, source, version);
+					countprocess++;
+					if(countprocess % 10000 == 0 && countprocess != 0){
+						System.out.println("Processed variations: " + countprocess);
+					}
+					writeVariation(chromFiles, outfileJson, chromosome, variation, gson);
+				}catch(Exception e) {
+					e.printStackTrace();
+					bwLog.write(line+"\n");
+				}
+			}
 		}
+		br.close();
+		variationFeatureReader.close();
+		transcriptVariationReader.close();
+		variationSynonymReader.close();
+		for(JsonLineWriter chromFile: chromFiles.values()) {
+			chromFile.close();
+		}
+		bwLog.close();
 
+		Files.delete(variationSorted);
+		Files.delete(variationSynonymSorted);
+		Files.delete(firstVariationFeatures);
+		Files.delete(transcriptVariationKeyedSorted);
+		Files.delete(sortDir);
+	}
 
+	private void writeFirstLineOfEachKey(Path sortedFile, Path outputFile, int column) throws IOException {
+		BufferedReader br = Files.newBufferedReader(sortedFile, Charset.defaultCharset());
+		BufferedWriter bw = Files.newBufferedWriter(outputFile, Charset.defaultCharset());
+		long lastKey = -1;
+		String line;
+		while((line = br.readLine()) != null) {
+			long key = ExternalLineSorter.getLongField(line, column);
+			if(key != lastKey) {
+				bw.write(line);
+				bw.write('\n');
+				lastKey = key;
+			}
+		}
+		br.close();
+		bw.close();
 	}
 
-	public List<String> queryByVariationId(int variationId, String tableName, Path variationFilePath) throws IOException, SQLException {
-		// First query SQLite to get offset position
-		List<Long> offsets = new ArrayList<Long>();
-		//		PreparedStatement pst = sqlConn.statement(sql)
-		//		ResultSet rs = pst.executeQuery("select offset from "+tableName+" where variation_id = " + variationId + "");
-		ResultSet rs = null;
-//		long start = System.currentTimeMillis();
-		switch(tableName) {
-		case "variation_feature":
-			psVariationFeature.setInt(1, variationId);
-			rs = psVariationFeature.executeQuery();
-			raf = rafvariationFeature; 
-			break;
-		case "transcript_variation":
-			psTranscriptVariation.setInt(1, variationId);
-			rs = psTranscriptVariation.executeQuery();
-			raf = rafTranscriptVariation;
-			break;
-		case "variation_synonym":
-			psVariationSynonym.setInt(1, variationId);
-			rs = psVariationSynonym.executeQuery();
-			raf = rafvariationSynonym;
-			break;
+	/**
+	 * Both files are sorted by variation_feature_id, the output lines are 'variation_id TAB transcript_variation line'.
+	 */
+	private void joinTranscriptVariationsWithVariationId(Path variationFeaturesById, Path transcriptVariationsByFeatureId, Path outputFile) throws IOException {
+		BufferedReader br = Files.newBufferedReader(transcriptVariationsByFeatureId, Charset.defaultCharset());
+		ExternalLineSorter.GroupReader variationFeatureReader = new ExternalLineSorter.GroupReader(variationFeaturesById, 0);
+		BufferedWriter bw = Files.newBufferedWriter(outputFile, Charset.defaultCharset());
+		long lastVariationFeatureId = -1;
+		String variationId = null;
+		TsvFieldCursor variationFeatureFields = new TsvFieldCursor();
+		String line;
+		while((line = br.readLine()) != null) {
+			long variationFeatureId = ExternalLineSorter.getLongField(line, 1);
+			if(variationFeatureId != lastVariationFeatureId) {
+				List<String> variationFeatures = variationFeatureReader.next(variationFeatureId);
+				variationId = (variationFeatures.size() > 0) ? variationFeatureFields.reset(variationFeatures.get(0)).stringAt(5) : null;
+				lastVariationFeatureId = variationFeatureId;
+			}
+			if(variationId != null) {
+				bw.write(variationId);
+				bw.write('\t');
+				bw.write(line);
+				bw.write('\n');
+			}
 		}
-//		long end = System.currentTimeMillis();
-//		System.out.println("Tiempo: " + (end-start)/1000);
-		
-		while (rs.next()) {
-			offsets.add(rs.getLong(1));
+		br.close();
+		variationFeatureReader.close();
+		bw.close();
+	}
+
+	private List<TranscriptVariation> getTranscriptVariations(List<String> resultTranscriptVariations, TranscriptVariationDecoder transcriptVariationDecoder) {
+		List<TranscriptVariation> transcriptVariation = new ArrayList<>();
+		if(resultTranscriptVariations != null && resultTranscriptVariations.size() > 0) {
+			for(String rtv: resultTranscriptVariations) {
+				transcriptVariation.add(transcriptVariationDecoder.decode(rtv));
+			}
 		}
-		Collections.sort(offsets);
-		// Second go to file
-		String line = null;
-		List<String> results = new ArrayList<>();
-		if(offsets.size() > 0) {
-//			RandomAccessFile raf = new RandomAccessFile(variationFilePath.resolve(tableName+".txt").toFile(), "r");
-			for(Long offset: offsets){
-				if(offset >= 0) {
-					raf.seek(offset);
-					line = raf.readLine();
-					if(line != null) {
-						results.add(line);
-					}
+		return transcriptVariation;
+	}
+
+	private List<Xref> getXrefs(List<String> resultVariationSynonym, Map<String, String> sourceMap, TsvFieldCursor variationSynonymFields) {
+		List<Xref> xrefs = new ArrayList<>();
+		if(resultVariationSynonym != null && resultVariationSynonym.size() > 0) {
+			String arr[];
+			for(String rxref: resultVariationSynonym) {					
+				variationSynonymFields.reset(rxref);
+				String sourceId = variationSynonymFields.stringAt(3);
+				if(sourceMap.get(sourceId) != null) {
+					arr = sourceMap.get(sourceId).split(",");
+					xrefs.add(new Xref(variationSynonymFields.stringAt(4), arr[0], arr[1]));							
 				}
 			}
 		}
-		return results;
+		return xrefs;
 	}
 
-	public Map<String, List<String>> queryAllByVariationId(int variationId, Path variationFilePath) throws IOException, SQLException {
-		
-		List<String> tables = Arrays.asList("variation_feature", "transcript_variation", "variation_synonym");
-		Map<String, List<String>> resultMap = new HashMap<String, List<String>>();
-		List<Long> offsets;
-		for(String table: tables) {
+	private Variation createVariation(TsvFieldCursor variationFields, TsvFieldCursor variationFeatureFields, List<TranscriptVariation> transcriptVariation, List<Xref> xrefs, String chromosome,
+			String species, String assembly, String source, String version) {
+		String alleleString = variationFeatureFields.stringAt(6);
+		String[] arr = alleleString.split("/");
+		return new Variation(variationFields.stringAt(2, "") , chromosome, "SNV", variationFeatureFields.intAt(2), variationFeatureFields.intAt(3), variationFeatureFields.stringAt(4), (!arr[0].equals("\\N")) ? arr[0] : "" , (!arr[1].equals("\\N")) ? arr[1] : "" , alleleString, species, assembly, source, version, null, transcriptVariation, null, xrefs, "featureId", "featureAlias", "variantFreq", variationFields.stringAt(3));
+	}
 
-			// First query SQLite to get offset position
-			offsets = new ArrayList<Long>();
-			//		PreparedStatement pst = sqlConn.statement(sql)
-			//		ResultSet rs = pst.executeQuery("select offset from "+tableName+" where variation_id = " + variationId + "");
-			ResultSet rs = null;
-			switch(table) {
-			case "variation_feature":
-				psVariationFeature.setInt(1, variationId);
-				rs = psVariationFeature.executeQuery();
-				break;
-			case "transcript_variation":
-				psTranscriptVariation.setInt(1, variationId);
-				rs = psTranscriptVariation.executeQuery();
-				break;
-			case "variation_synonym":
-				psVariationSynonym.setInt(1, variationId);
-				rs = psVariationSynonym.executeQuery();
-				break;
-			}
-			
-			while (rs.next()) {
-				offsets.add(rs.getLong(1));
+	private void writeVariation(Map<String, JsonLineWriter> chromFiles, Path outfileJson, String chromosome, Variation variation, Gson gson) throws IOException {
+		getChromosomeFile(chromFiles, outfileJson, chromosome, gson).write(variation);
+	}
+
+	private JsonLineWriter getChromosomeFile(Map<String, JsonLineWriter> chromFiles, Path outfileJson, String chromosome, Gson gson) throws IOException {
+		JsonLineWriter chromFile = chromFiles.get(chromosome);
+		if(chromFile == null) {
+			Path chromPath = OutputFiles.getPath(Paths.get(outfileJson.toFile().getAbsolutePath()+"_chr"+chromosome));
+			chromFile = new JsonLineWriter(OutputFiles.newBufferedWriter(chromPath), gson);
+			chromFiles.put(chromosome, chromFile);
+		}
+		return chromFile;
+	}
+	
+	/**
+	 * Restricts parseVariationToJson to shard (0-based) of numShards slices of the variation_id space.
+	 * Slices contain about the same number of variations, their boundaries are taken from an offset
+	 * index of variation.txt that is also used to start reading at the first line of the shard.
+	 * Each shard must write to its own output, see getShardOutfile() and mergeShards().
+	 */
+	public void setShard(int shard, int numShards, Path variationFilePath) throws IOException {
+		if(numShards < 1 || shard < 0 || shard >= numShards) {
+			throw new IllegalArgumentException("Invalid shard " + shard + "/" + numShards);
+		}
+		createIndex(0, variationFilePath, "variation");
+		VariationOffsetIndex variationIndex = new VariationOffsetIndex(getIndexPath(variationFilePath, "variation"));
+		long numVariations = variationIndex.size();
+		long firstRank = numVariations * shard / numShards;
+		long lastRank = numVariations * (shard + 1) / numShards;
+		shardMinId = (shard == 0 || firstRank == numVariations) ? Long.MIN_VALUE : variationIndex.getId(firstRank);
+		shardMaxId = (shard == numShards - 1 || lastRank == numVariations) ? Long.MAX_VALUE : variationIndex.getId(lastRank);
+		// first rank of the shard, several ids can be equal at the boundary
+		firstRank = variationIndex.lowerBound(Math.max(shardMinId, 0));
+		lastRank = (shardMaxId == Long.MAX_VALUE) ? numVariations : variationIndex.lowerBound(shardMaxId);
+
+		// variation.txt is usually sorted by id but the byte range is computed from all the shard lines
+		shardStartOffset = 0;
+		shardEndOffset = 0;
+		if(firstRank < lastRank) {
+			long lastLineOffset = 0;
+			shardStartOffset = Long.MAX_VALUE;
+			for(long rank = firstRank; rank < lastRank; rank++) {
+				long offset = variationIndex.getOffset(rank);
+				shardStartOffset = Math.min(shardStartOffset, offset);
+				lastLineOffset = Math.max(lastLineOffset, offset);
 			}
-			
-			// Second go to file
-			String line = null;
-			List<String> results = new ArrayList<>();
-			if(offsets.size() > 0) {
-				RandomAccessFile raf = new RandomAccessFile(variationFilePath.resolve(table+".txt").toFile(), "r");
-				for(Long offset: offsets){
-					if(offset >= 0) {
-						raf.seek(offset);
-						line = raf.readLine();
-						if(line != null) {
-							results.add(line);					
-						}
+			// lines are read one byte per char, so the line length is its length in bytes
+			PositionalLineReader lineReader = new PositionalLineReader(variationFilePath.resolve("variation.txt"));
+			shardEndOffset = lastLineOffset + lineReader.readLine(lastLineOffset).length() + 1;
+			lineReader.close();
+		}
+		variationIndex.close();
+		System.out.println("Shard " + shard + "/" + numShards + ": variation_id in [" + shardMinId + ", " + shardMaxId + "), "
+				+ (lastRank - firstRank) + " variations, bytes [" + shardStartOffset + ", " + shardEndOffset + ")");
+	}
+
+	/**
+	 * Output file of a shard, its chromosome files are named as usual: outfileJson_shard<i>_chr<chromosome>.
+	 */
+	public static Path getShardOutfile(Path outfileJson, int shard) {
+		return Paths.get(outfileJson.toFile().getAbsolutePath() + "_shard" + shard);
+	}
+
+	/**
+	 * Concatenates the chromosome and log files of numShards shards in shard order into the files
+	 * a single run would have written, shard files are deleted afterwards.
+	 */
+	public static void mergeShards(Path outfileJson, int numShards) throws IOException {
+		Path outdir = outfileJson.toAbsolutePath().getParent();
+		String name = outfileJson.getFileName().toString();
+		// suffixes are '_chr<chromosome>', with '.gz' if compressed, and '.log'
+		SortedSet<String> suffixes = new TreeSet<>();
+		for(int shard = 0; shard < numShards; shard++) {
+			String prefix = name + "_shard" + shard;
+			File[] files = outdir.toFile().listFiles();
+			if(files != null) {
+				for(File file: files) {
+					if(file.getName().startsWith(prefix + "_chr") || file.getName().equals(prefix + ".log")) {
+						suffixes.add(file.getName().substring(prefix.length()));
 					}
 				}
-				raf.close();
 			}
-			resultMap.put(table, results);
 		}
-		return resultMap;
+		for(String suffix: suffixes) {
+			Path mergedFile = outdir.resolve(name + suffix);
+			List<Path> shardFiles = new ArrayList<>(numShards);
+			for(int shard = 0; shard < numShards; shard++) {
+				Path shardFile = outdir.resolve(name + "_shard" + shard + suffix);
+				// shards without variations of a chromosome have no file for it
+				if(Files.exists(shardFile)) {
+					shardFiles.add(shardFile);
+				}
+			}
+			OutputFiles.concatenate(shardFiles, mergedFile);
+			System.out.println("Merged " + mergedFile);
+		}
 	}
-	
-	
-	private void createTable(int columnIndex, Path variationFilePath, String tableName) throws SQLException, IOException {
-		Statement createTables = sqlConn.createStatement();
-		
-		// A table containing offset for files
-		createTables.executeUpdate("CREATE TABLE if not exists "+tableName+"(" + "variation_id INT , offset BIGINT)");
 
-		PreparedStatement ps = sqlConn.prepareStatement("INSERT INTO "+tableName+"(variation_id, offset) values (?, ?)");
+	private boolean isInShard(int variationId) {
+		return variationId >= shardMinId && variationId < shardMaxId;
+	}
 
-		long offset = 0;
-		int count = 0;
-		String[] fields = null;
-		String line = null;
-		BufferedReader br = Files.newBufferedReader(variationFilePath, Charset.defaultCharset());
-		while ((line = br.readLine()) != null) {
-			fields = line.split("\t");
+	/**
+	 * Reader of variation.txt limited to the byte range of the shard, if any.
+	 */
+	private BufferedReader newVariationReader(Path variationFilePath) throws IOException {
+		if(shardStartOffset == 0 && shardEndOffset == Long.MAX_VALUE) {
+			return Files.newBufferedReader(variationFilePath.resolve("variation.txt"), Charset.defaultCharset());
+		}
+		FileChannel channel = FileChannel.open(variationFilePath.resolve("variation.txt"), StandardOpenOption.READ);
+		channel.position(shardStartOffset);
+		InputStream is = new BoundedInputStream(Channels.newInputStream(channel), shardEndOffset - shardStartOffset);
+		return new BufferedReader(new InputStreamReader(is, Charset.defaultCharset()));
+	}
 
-			ps.setInt(1, Integer.parseInt(fields[columnIndex])); // motif_feature_id
-			ps.setLong(2, offset); // seq_region_id
-			ps.addBatch();
-			count++;
+	public void connect(Path variationFilePath) throws SQLException, ClassNotFoundException, IOException {
+		tableReaders = new TableReaders(variationFilePath);
+		
+		variationFeatureIndex = new VariationOffsetIndex(getIndexPath(variationFilePath, "variation_feature"));
+		transcriptVariationIndex = new VariationOffsetIndex(getIndexPath(variationFilePath, "transcript_variation"));
+		variationSynonymIndex = new VariationOffsetIndex(getIndexPath(variationFilePath, "variation_synonym"));
+	}
 
-			if (count % LIMITROWS == 0 && count != 0) {
-				ps.executeBatch();
-				sqlConn.commit();
-			}
+	public void disconnect() throws SQLException, IOException {
+		if(variationFeatureIndex != null) {
+			variationFeatureIndex.close();
+			transcriptVariationIndex.close();
+			variationSynonymIndex.close();
+			variationFeatureIndex = null;
+		}
+		if(tableReaders != null) {
+			tableReaders.close();
+			tableReaders = null;
+		}
+	}
 
-			offset += line.length() + 1;
+	/**
+	 * Builds the offset indexes of variation_feature, transcript_variation and variation_synonym,
+	 * they are saved next to the input files as <table>.idx with a <table>.idx.manifest and are
+	 * only built again when the manifest does not match the input files.
+	 */
+	public void createVariationDatabase(Path variationFilePath) {
+		try {
+			createIndex(5, variationFilePath, "variation_feature");
+			createIndex(1, variationFilePath, "transcript_variation");
+			createIndex(1, variationFilePath, "variation_synonym");
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
-		br.close();
+	}
 
-		ps.executeBatch();
-		sqlConn.commit();
+	public List<String> queryByVariationId(int variationId, String tableName, Path variationFilePath) throws IOException, SQLException {
+		return query(variationId, tableName, tableReaders);
+	}
 
-		Statement stm = sqlConn.createStatement();
-		stm.executeUpdate("CREATE INDEX "+tableName+"_idx on "+tableName+"(variation_id)");
-		sqlConn.commit();
+	/**
+	 * Indexes can be shared among threads but each thread needs its own TableReaders.
+	 */
+	private List<String> query(int variationId, String tableName, TableReaders readers) throws IOException {
+		// First query the index to get offset positions, they are sorted
+		switch(tableName) {
+		case "variation_feature":
+			return readers.variationFeatureReader.readLines(variationFeatureIndex.getOffsets(variationId));
+		case "transcript_variation":
+			return readers.transcriptVariationReader.readLines(transcriptVariationIndex.getOffsets(variationId));
+		case "variation_synonym":
+			return readers.variationSynonymReader.readLines(variationSynonymIndex.getOffsets(variationId));
+		}
+		return new ArrayList<>();
+	}
+
+	public Map<String, List<String>> queryAllByVariationId(int variationId, Path variationFilePath) throws IOException, SQLException {
+		List<String> tables = Arrays.asList("variation_feature", "transcript_variation", "variation_synonym");
+		Map<String, List<String>> resultMap = new HashMap<String, List<String>>();
+		for(String table: tables) {
+			resultMap.put(table, queryByVariationId(variationId, table, variationFilePath));
+		}
+		return resultMap;
+	}
+	
+	private Path getIndexPath(Path variationFilePath, String tableName) {
+		return variationFilePath.resolve(tableName + ".idx");
+	}
+
+	private void createIndex(int columnIndex, Path variationFilePath, String tableName) throws IOException {
+		Path tablePath = variationFilePath.resolve(tableName + ".txt");
+		Path indexPath = getIndexPath(variationFilePath, tableName);
+		Path manifestPath = variationFilePath.resolve(tableName + ".idx.manifest");
+		if(VariationOffsetIndex.isValid(tablePath, columnIndex, indexPath, manifestPath)) {
+			System.out.println("Reusing variation offset index " + indexPath);
+			return;
+		}
+		// the manifest is written last, an interrupted build is never taken as valid
+		Files.deleteIfExists(manifestPath);
+		Path tmpIndexPath = variationFilePath.resolve(tableName + ".idx.tmp");
+		VariationOffsetIndex.build(tablePath, columnIndex, tmpIndexPath);
+		Files.move(tmpIndexPath, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		VariationOffsetIndex.writeManifest(tablePath, columnIndex, indexPath, manifestPath);
 	}
 	
 	private Map<String, String> loadHashSeqRegion(Path variationFilePath) {
@@ -365,9 +536,10 @@ public class VariationParser {
 //				BufferedReader br = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(seqRegionFile))));
 				BufferedReader br = Files.newBufferedReader(seqRegionFile.toPath(), Charset.defaultCharset());
 				String readLine;
+				TsvFieldCursor readLineFields = new TsvFieldCursor();
 				while ((readLine = br.readLine()) != null) {
-					String[] readLineFields = readLine.split("\t");
-					seqRegion.put(readLineFields[0], readLineFields[1]);
+					readLineFields.reset(readLine);
+					seqRegion.put(readLineFields.stringAt(0), readLineFields.stringAt(1));
 				}
 //				System.out.println("loadHashSeqRegion: " + seqRegion.size());
 				br.close();
@@ -386,13 +558,10 @@ public class VariationParser {
 //				BufferedReader br = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(sourceFile))));
 				BufferedReader br = Files.newBufferedReader(sourceFile.toPath(), Charset.defaultCharset());
 				String readLine;
+				TsvFieldCursor readLineFields = new TsvFieldCursor();
 				while ((readLine = br.readLine()) != null) {
-					String[] readLineFields = readLine.split("\t");
-					if (readLineFields.length == 7) {
-						sourceMap.put(readLineFields[0], readLineFields[1] + "," + readLineFields[2]);
-					} else {
-						sourceMap.put(readLineFields[0], readLineFields[1] + "," + readLineFields[2]);
-					}
+					readLineFields.reset(readLine);
+					sourceMap.put(readLineFields.stringAt(0), readLineFields.stringAt(1) + "," + readLineFields.stringAt(2));
 				}
 
 //				System.out.println("loadHashSource: " + sourceMap.size());
@@ -403,4 +572,322 @@ public class VariationParser {
 		}
 		return sourceMap;
 	}
+
+	private static class BoundedInputStream extends FilterInputStream {
+		private long remaining;
+
+		BoundedInputStream(InputStream in, long length) {
+			super(in);
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if(remaining <= 0) {
+				return -1;
+			}
+			int b = in.read();
+			if(b >= 0) {
+				remaining--;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if(remaining <= 0) {
+				return -1;
+			}
+			int read = in.read(b, off, (int) Math.min(len, remaining));
+			if(read > 0) {
+				remaining -= read;
+			}
+			return read;
+		}
+	}
+
+	private static class TableReaders implements Closeable {
+		private final PositionalLineReader variationFeatureReader;
+		private final PositionalLineReader transcriptVariationReader;
+		private final PositionalLineReader variationSynonymReader;
+
+		TableReaders(Path variationFilePath) throws IOException {
+			variationFeatureReader = new PositionalLineReader(variationFilePath.resolve("variation_feature.txt"));
+			transcriptVariationReader = new PositionalLineReader(variationFilePath.resolve("transcript_variation.txt"));
+			variationSynonymReader = new PositionalLineReader(variationFilePath.resolve("variation_synonym.txt"));
+		}
+
+		@Override
+		public void close() throws IOException {
+			variationFeatureReader.close();
+			transcriptVariationReader.close();
+			variationSynonymReader.close();
+		}
+	}
+
+	/**
+	 * Lines of variation.txt and, once assembled, their JSON lines by chromosome and the lines that failed.
+	 */
+	private static class VariationBatch {
+		private final long number;
+		private List<String> lines;
+		private final Map<String, JsonLineWriter> records = new HashMap<>();
+		private final List<String> failedLines = new ArrayList<>();
+
+		VariationBatch(long number, List<String> lines) {
+			this.number = number;
+			this.lines = lines;
+		}
+
+		/**
+		 * Number of variations assembled in the batch.
+		 */
+		long getNumLines() {
+			long numLines = 0;
+			for(JsonLineWriter chromosomeRecords: records.values()) {
+				numLines += chromosomeRecords.getNumLines();
+			}
+			return numLines;
+		}
+	}
+
+	private class ParallelVariationBuild {
+		private final String species, assembly, source, version;
+		private final Path variationFilePath;
+		private final Path outfileJson;
+		private final int numThreads;
+		private final int numWriters;
+
+		private final Map<String, String> seqRegionMap;
+		private final Map<String, String> sourceMap;
+		private final BlockingQueue<VariationBatch> batchQueue;
+		private final List<BlockingQueue<List<String[]>>> writerQueues = new ArrayList<>();
+		// bounds the batches being assembled or waiting for a previous batch to be written
+		private final Semaphore batchesInFlight;
+		private final Map<Long, VariationBatch> finishedBatches = new HashMap<>();
+		private long nextBatchToWrite = 0;
+		private long countprocess = 0;
+		private BufferedWriter bwLog;
+		private volatile Exception failure;
+
+		ParallelVariationBuild(String species, String assembly, String source, String version, Path variationFilePath, Path outfileJson, int numThreads) {
+			this.species = species;
+			this.assembly = assembly;
+			this.source = source;
+			this.version = version;
+			this.variationFilePath = variationFilePath;
+			this.outfileJson = outfileJson;
+			this.numThreads = numThreads;
+			this.numWriters = Math.min(numThreads, MAX_WRITER_THREADS);
+			this.seqRegionMap = loadHashSeqRegion(variationFilePath);
+			this.sourceMap = loadHashSource(variationFilePath);
+			this.batchQueue = new ArrayBlockingQueue<>(2 * numThreads);
+			this.batchesInFlight = new Semaphore(4 * numThreads);
+			for(int i = 0; i < numWriters; i++) {
+				writerQueues.add(new ArrayBlockingQueue<List<String[]>>(4 * numThreads));
+			}
+		}
+
+		void run() throws IOException {
+			bwLog = Files.newBufferedWriter(Paths.get(outfileJson.toFile().getAbsolutePath()+".log"), Charset.defaultCharset());
+			ExecutorService executorService = Executors.newFixedThreadPool(numThreads + numWriters);
+			try {
+				List<Future<Void>> writers = new ArrayList<>();
+				for(BlockingQueue<List<String[]>> writerQueue: writerQueues) {
+					writers.add(executorService.submit(new ChromosomeWriter(writerQueue)));
+				}
+				List<Future<Void>> assemblers = new ArrayList<>();
+				for(int i = 0; i < numThreads; i++) {
+					assemblers.add(executorService.submit(new VariationAssembler()));
+				}
+
+				BufferedReader br = newVariationReader(variationFilePath);
+				long batchNumber = 0;
+				List<String> lines = new ArrayList<>(BATCH_SIZE);
+				String line;
+				while((line = br.readLine()) != null) {
+					lines.add(line);
+					if(lines.size() == BATCH_SIZE) {
+						submit(new VariationBatch(batchNumber++, lines));
+						lines = new ArrayList<>(BATCH_SIZE);
+					}
+				}
+				br.close();
+				if(!lines.isEmpty()) {
+					submit(new VariationBatch(batchNumber++, lines));
+				}
+
+				for(int i = 0; i < numThreads; i++) {
+					put(batchQueue, NO_MORE_BATCHES);
+				}
+				for(Future<Void> assembler: assemblers) {
+					assembler.get();
+				}
+				// all batches have been dispatched to the writers by now
+				for(BlockingQueue<List<String[]>> writerQueue: writerQueues) {
+					put(writerQueue, NO_MORE_RECORDS);
+				}
+				for(Future<Void> writer: writers) {
+					writer.get();
+				}
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			} catch (ExecutionException e) {
+				throw new IOException(e.getCause());
+			} finally {
+				executorService.shutdownNow();
+				bwLog.close();
+			}
+		}
+
+		private void submit(VariationBatch batch) throws InterruptedException, IOException {
+			while(!batchesInFlight.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+				checkFailure();
+			}
+			put(batchQueue, batch);
+		}
+
+		private <T> void put(BlockingQueue<T> queue, T element) throws InterruptedException, IOException {
+			// a failed stage would never take from its queue, so blocking puts are not used
+			while(!queue.offer(element, 100, TimeUnit.MILLISECONDS)) {
+				checkFailure();
+			}
+		}
+
+		private void checkFailure() throws IOException {
+			if(failure != null) {
+				throw new IOException("Variation build failed", failure);
+			}
+		}
+
+		/**
+		 * Batches are dispatched to the writers in input order, whichever assembler finishes them.
+		 */
+		private void finish(VariationBatch batch) throws InterruptedException, IOException {
+			synchronized(finishedBatches) {
+				finishedBatches.put(batch.number, batch);
+				while(finishedBatches.containsKey(nextBatchToWrite)) {
+					dispatch(finishedBatches.remove(nextBatchToWrite));
+					nextBatchToWrite++;
+					batchesInFlight.release();
+				}
+			}
+		}
+
+		private void dispatch(VariationBatch batch) throws InterruptedException, IOException {
+			List<List<String[]>> writerRecords = new ArrayList<>(numWriters);
+			for(int i = 0; i < numWriters; i++) {
+				writerRecords.add(new ArrayList<String[]>());
+			}
+			for(Map.Entry<String, JsonLineWriter> records: batch.records.entrySet()) {
+				// a chromosome is always written by the same writer
+				String chromosome = records.getKey();
+				writerRecords.get((String.valueOf(chromosome).hashCode() & Integer.MAX_VALUE) % numWriters).add(new String[]{chromosome, records.getValue().getWriter().toString()});
+			}
+			// same messages as parseVariationToJson, one per 10000 boundary crossed
+			long previousCount = countprocess;
+			countprocess += batch.getNumLines();
+			for(long count = (previousCount / 10000 + 1) * 10000; count <= countprocess; count += 10000) {
+				System.out.println("Processed variations: " + count);
+			}
+			for(int i = 0; i < numWriters; i++) {
+				if(!writerRecords.get(i).isEmpty()) {
+					put(writerQueues.get(i), writerRecords.get(i));
+				}
+			}
+			for(String failedLine: batch.failedLines) {
+				bwLog.write(failedLine+"\n");
+			}
+		}
+
+		private class VariationAssembler implements Callable<Void> {
+
+			@Override
+			public Void call() throws Exception {
+				TableReaders readers = new TableReaders(variationFilePath);
+				Gson gson = new Gson();
+				TsvFieldCursor[] cursors = {new TsvFieldCursor(), new TsvFieldCursor(), new TsvFieldCursor()};
+				TranscriptVariationDecoder transcriptVariationDecoder = new TranscriptVariationDecoder();
+				try {
+					VariationBatch batch;
+					while((batch = batchQueue.take()) != NO_MORE_BATCHES) {
+						for(String line: batch.lines) {
+							assemble(line, batch, readers, gson, cursors, transcriptVariationDecoder);
+						}
+						batch.lines = null;
+						finish(batch);
+					}
+				} catch (Exception e) {
+					failure = e;
+					throw e;
+				} finally {
+					readers.close();
+				}
+				return null;
+			}
+
+			private void assemble(String line, VariationBatch batch, TableReaders readers, Gson gson, TsvFieldCursor[] cursors, TranscriptVariationDecoder transcriptVariationDecoder) throws IOException {
+				TsvFieldCursor variationFields = cursors[0].reset(line);
+				int variationId = variationFields.intAt(0);
+				if(!isInShard(variationId)) {
+					return;
+				}
+				List<String> resultVariationFeature = query(variationId, "variation_feature", readers);
+				if(resultVariationFeature.size() > 0) {
+					List<String> resultVariationSynonym = query(variationId, "variation_synonym", readers);
+					TsvFieldCursor variationFeatureFields = cursors[1].reset(resultVariationFeature.get(0));
+
+					// TranscriptVariation references to VariationFeature no Variation !!!
+					List<String> resultTranscriptVariations = query(variationFeatureFields.intAt(0), "transcript_variation", readers);
+					List<TranscriptVariation> transcriptVariation = getTranscriptVariations(resultTranscriptVariations, transcriptVariationDecoder);
+					List<Xref> xrefs = getXrefs(resultVariationSynonym, sourceMap, cursors[2]);
+
+					String chromosome = seqRegionMap.get(variationFeatureFields.stringAt(1));
+					try {
+						Variation variation = createVariation(variationFields, variationFeatureFields, transcriptVariation, xrefs, chromosome, species, assembly, source, version);
+						// records of the batch are serialized to one buffer per chromosome
+						JsonLineWriter records = batch.records.get(chromosome);
+						if(records == null) {
+							records = new JsonLineWriter(new StringWriter(), gson);
+							batch.records.put(chromosome, records);
+						}
+						records.write(variation);
+					}catch(Exception e) {
+						e.printStackTrace();
+						batch.failedLines.add(line);
+					}
+				}
+			}
+		}
+
+		private class ChromosomeWriter implements Callable<Void> {
+			private final BlockingQueue<List<String[]>> queue;
+
+			ChromosomeWriter(BlockingQueue<List<String[]>> queue) {
+				this.queue = queue;
+			}
+
+			@Override
+			public Void call() throws Exception {
+				Map<String, JsonLineWriter> chromFiles = new HashMap<>(50);
+				Gson gson = new Gson();
+				try {
+					List<String[]> records;
+					while((records = queue.take()) != NO_MORE_RECORDS) {
+						for(String[] record: records) {
+							getChromosomeFile(chromFiles, outfileJson, record[0], gson).getWriter().write(record[1]);
+						}
+					}
+				} catch (Exception e) {
+					failure = e;
+					throw e;
+				} finally {
+					for(JsonLineWriter chromFile: chromFiles.values()) {
+						chromFile.close();
+					}
+				}
+				return null;
+			}
+		}
+	}
 }
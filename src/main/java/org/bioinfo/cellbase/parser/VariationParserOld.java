@@ -2,9 +2,7 @@ package org.bioinfo.cellbase.parser;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.sql.Connection;
@@ -18,8 +16,12 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
-import java.util.zip.GZIPInputStream;
 
+/**
+ * SQLite based loader of the Ensembl variation tables, kept for reference.
+ * @deprecated use {@link VariationParser}, it reads the tables with {@link TsvFieldCursor}
+ */
+@Deprecated
 public class VariationParserOld {
 
 	private String readLine = null;
@@ -93,7 +95,7 @@ public class VariationParserOld {
 			if (filenames.contains(file.getName())) {
 				try {
 					System.out.println("Load File: " + variationGzipPath.resolve(file.toPath()).toFile());
-					br = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(variationGzipPath.resolve(file.toPath()).toFile()))));
+					br = InputFiles.newGzipBufferedReader(variationGzipPath.resolve(file.toPath()));
 //					Paths.get(variationGzipFiles.toString(), file.getName()).toFile()))));
 
 					switch (file.getName()) {
@@ -162,7 +164,7 @@ public class VariationParserOld {
 			File alleleCodeFile = Paths.get(path.toString(), "allele_code.txt.gz").toFile();
 
 			if (alleleCodeFile.exists()) {
-				br = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(alleleCodeFile))));
+				br = InputFiles.newGzipBufferedReader(alleleCodeFile.toPath());
 
 				while ((readLine = br.readLine()) != null) {
 					String[] readLineFields = readLine.split("\t");
@@ -184,7 +186,7 @@ public class VariationParserOld {
 			File studyFile = Paths.get(path.toString(), "study.txt.gz").toFile();
 
 			if (studyFile.exists()) {
-				br = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(studyFile))));
+				br = InputFiles.newGzipBufferedReader(studyFile.toPath());
 
 				while ((readLine = br.readLine()) != null) {
 					String[] readLineFields = readLine.split("\t");
@@ -207,7 +209,7 @@ public class VariationParserOld {
 			File phenotypeFile = Paths.get(path.toString(), "phenotype.txt.gz").toFile();
 
 			if (phenotypeFile.exists()) {
-				br = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(phenotypeFile))));
+				br = InputFiles.newGzipBufferedReader(phenotypeFile.toPath());
 
 				while ((readLine = br.readLine()) != null) {
 					String[] readLineFields = readLine.split("\t");
@@ -229,7 +231,7 @@ public class VariationParserOld {
 			File sourceFile = Paths.get(path.toString(), "source.txt.gz").toFile();
 
 			if (sourceFile.exists()) {
-				br = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(sourceFile))));
+				br = InputFiles.newGzipBufferedReader(sourceFile.toPath());
 
 				while ((readLine = br.readLine()) != null) {
 					String[] readLineFields = readLine.split("\t");
@@ -259,7 +261,7 @@ public class VariationParserOld {
 			File seqRegionFile = Paths.get(path.toString(), "seq_region.txt.gz").toFile();
 
 			if (seqRegionFile.exists()) {
-				br = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(seqRegionFile))));
+				br = InputFiles.newGzipBufferedReader(seqRegionFile.toPath());
 
 				while ((readLine = br.readLine()) != null) {
 					String[] readLineFields = readLine.split("\t");
@@ -1917,8 +1919,8 @@ public class VariationParserOld {
 		String variation_id = null;
 		String readline = null;
 		try {
-			br = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(Paths.get(
-					path.toString(), "variation.txt.gz").toFile()))));
+			br = InputFiles.newGzipBufferedReader(Paths.get(
+					path.toString(), "variation.txt.gz"));
 
 			while ((readline = br.readLine()) != null) {
 				variation_id = readline.split("\t")[0];
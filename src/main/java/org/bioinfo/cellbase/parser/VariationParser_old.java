@@ -3,17 +3,14 @@ package org.bioinfo.cellbase.parser;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.LinkedHashSet;
 import java.util.Set;
-import java.util.zip.GZIPInputStream;
 
 import org.bioinfo.cellbase.common.variation.TranscriptVariation;
 import org.bioinfo.cellbase.common.variation.Variation;
@@ -159,7 +156,7 @@ public class VariationParser_old {
 		// Files.newBufferedReader(Paths.get(variationFile.toURI()),
 		// Charset.defaultCharset());
 		try {
-			BufferedReader br1 = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(variationFile))));
+			BufferedReader br1 = InputFiles.newGzipBufferedReader(Paths.get(variationFile));
 			while ((line = br1.readLine()) != null) {
 				if (!line.startsWith("##")) {
 					fields1 = line.split("\t");
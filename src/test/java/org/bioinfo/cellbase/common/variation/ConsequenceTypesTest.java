@@ -0,0 +1,129 @@
+package org.bioinfo.cellbase.common.variation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.gson.Gson;
+
+public class ConsequenceTypesTest {
+
+	@Test
+	public void testTermCodes() {
+		int numTerms = 0;
+		while(numTerms < 64 && codeExists(numTerms)) {
+			numTerms++;
+		}
+		// one bit per term of a long
+		assertTrue(numTerms > 30 && numTerms < 64);
+		for(int code = 0; code < numTerms; code++) {
+			String term = ConsequenceTypes.getTerm(code);
+			assertEquals(code, ConsequenceTypes.getCode(term));
+			ConsequenceTypes consequenceTypes = new ConsequenceTypes(1L << code);
+			assertEquals(Arrays.asList(term), consequenceTypes);
+			assertTrue(consequenceTypes.containsCode(code));
+			assertTrue(consequenceTypes.contains(term));
+			assertEquals(1L << code, ((ConsequenceTypes) ConsequenceTypes.valueOf(term)).getBits());
+		}
+		assertEquals(-1, ConsequenceTypes.getCode("unknown_variant"));
+		assertEquals(-1, ConsequenceTypes.getCode("\\N"));
+		try {
+			new ConsequenceTypes(1L << numTerms);
+			fail("Code " + numTerms + " accepted");
+		}catch(IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testValueOf() {
+		Gson gson = new Gson();
+		Random random = new Random(1);
+		int numTerms = 0;
+		while(codeExists(numTerms)) {
+			numTerms++;
+		}
+		for(int i = 0; i < 1000; i++) {
+			// terms in code order, as Ensembl writes them
+			List<String> terms = new ArrayList<>();
+			for(int code = 0; code < numTerms; code++) {
+				if(random.nextInt(10) == 0) {
+					terms.add(ConsequenceTypes.getTerm(code));
+				}
+			}
+			if(terms.isEmpty()) {
+				continue;
+			}
+			String value = join(terms);
+			List<String> consequenceTypes = ConsequenceTypes.valueOf(value);
+			assertTrue(value, consequenceTypes instanceof ConsequenceTypes);
+			assertEquals(Arrays.asList(value.split(",")), consequenceTypes);
+			assertEquals(gson.toJson(Arrays.asList(value.split(","))), gson.toJson(consequenceTypes));
+			long bits = ((ConsequenceTypes) consequenceTypes).getBits();
+			assertEquals(consequenceTypes, new ConsequenceTypes(bits));
+			for(int code = 0; code < numTerms; code++) {
+				String term = ConsequenceTypes.getTerm(code);
+				assertEquals(terms.contains(term), consequenceTypes.contains(term));
+				assertEquals(terms.contains(term), ((bits >>> code) & 1) == 1);
+			}
+			assertFalse(consequenceTypes.contains("unknown_variant"));
+			assertFalse(consequenceTypes.contains(null));
+			assertFalse(((ConsequenceTypes) consequenceTypes).containsCode(-1));
+			assertFalse(((ConsequenceTypes) consequenceTypes).containsCode(63));
+			try {
+				consequenceTypes.get(terms.size());
+				fail("Index " + terms.size() + " of " + value);
+			}catch(IndexOutOfBoundsException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void testListsNotEncoded() {
+		Gson gson = new Gson();
+		// unknown terms, \N, repeated terms and terms not in code order are kept as they are
+		String[] values = {"unknown_variant", "\\N", "", "intron_variant,unknown_variant", "intron_variant,intron_variant",
+				"splice_region_variant,missense_variant"};
+		for(String value: values) {
+			List<String> consequenceTypes = ConsequenceTypes.valueOf(value);
+			assertFalse(value, consequenceTypes instanceof ConsequenceTypes);
+			assertEquals(Arrays.asList(value.split(",")), consequenceTypes);
+			assertEquals(gson.toJson(Arrays.asList(value.split(","))), gson.toJson(consequenceTypes));
+			try {
+				consequenceTypes.set(0, "intron_variant");
+				fail(value + " can be modified");
+			}catch(UnsupportedOperationException e) {
+				// expected
+			}
+		}
+	}
+
+	private static boolean codeExists(int code) {
+		try {
+			ConsequenceTypes.getTerm(code);
+			return true;
+		}catch(ArrayIndexOutOfBoundsException e) {
+			return false;
+		}
+	}
+
+	private static String join(List<String> terms) {
+		StringBuilder value = new StringBuilder();
+		for(String term: terms) {
+			if(value.length() > 0) {
+				value.append(',');
+			}
+			value.append(term);
+		}
+		return value.toString();
+	}
+}
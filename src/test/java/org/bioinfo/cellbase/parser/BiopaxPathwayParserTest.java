@@ -1,6 +1,11 @@
 package org.bioinfo.cellbase.parser;
 
+import static org.junit.Assert.assertEquals;
+
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -35,6 +40,72 @@ public class BiopaxPathwayParserTest {
 		System.out.println(arr[4]);
 	}
 	
+	@Test
+	public void testParseToJsonInParallel() throws Exception {
+		Path owlFile = Files.createTempFile("pathways", ".owl");
+		Files.write(owlFile, getBioPax(40).getBytes("UTF-8"));
+		List<DBObject> expected = parse(owlFile, 1);
+		assertEquals(40, expected.size());
+		// more pathways than a window of a fork-join build, same pathways in the same order
+		for(int numThreads: new int[] {2, 3}) {
+			assertEquals(expected, parse(owlFile, numThreads));
+		}
+		Files.delete(owlFile);
+	}
+
+	private static List<DBObject> parse(Path owlFile, int numThreads) throws Exception {
+		final List<DBObject> dbObjects = new ArrayList<DBObject>();
+		new BiopaxPathwayParser().parseToJson(owlFile.toString(), new DBObjectSink() {
+			@Override
+			public void add(DBObject dbObject) {
+				dbObjects.add(dbObject);
+			}
+		}, numThreads);
+		return dbObjects;
+	}
+
+	/**
+	 * BioPAX level 3 pathways sharing subpathways, proteins, complexes, xrefs and locations.
+	 */
+	private static String getBioPax(int numPathways) {
+		StringBuilder owl = new StringBuilder();
+		owl.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		owl.append("<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\" xmlns:bp=\"http://www.biopax.org/release/biopax-level3.owl#\">\n");
+		owl.append("<bp:BioSource rdf:ID=\"Homo_sapiens\"><bp:name>Homo sapiens</bp:name><bp:xref rdf:resource=\"#Taxonomy\"/></bp:BioSource>\n");
+		owl.append("<bp:UnificationXref rdf:ID=\"Taxonomy\"><bp:db>NCBI Taxonomy</bp:db><bp:id>9606</bp:id></bp:UnificationXref>\n");
+		owl.append("<bp:CellularLocationVocabulary rdf:ID=\"Cytosol\"><bp:term>cytosol</bp:term><bp:xref rdf:resource=\"#GO_0005829\"/></bp:CellularLocationVocabulary>\n");
+		owl.append("<bp:UnificationXref rdf:ID=\"GO_0005829\"><bp:db>GO</bp:db><bp:id>GO:0005829</bp:id></bp:UnificationXref>\n");
+		for(int k = 0; k < 10; k++) {
+			owl.append("<bp:Protein rdf:ID=\"Protein" + k + "\"><bp:displayName>protein " + k + "</bp:displayName>"
+					+ "<bp:cellularLocation rdf:resource=\"#Cytosol\"/><bp:xref rdf:resource=\"#UniProt" + k + "\"/></bp:Protein>\n");
+			owl.append("<bp:UnificationXref rdf:ID=\"UniProt" + k + "\"><bp:db>UniProt</bp:db><bp:id>P0000" + k + "</bp:id></bp:UnificationXref>\n");
+			owl.append("<bp:Complex rdf:ID=\"Complex" + k + "\"><bp:displayName>complex " + k + "</bp:displayName>"
+					+ "<bp:component rdf:resource=\"#Protein" + k + "\"/><bp:component rdf:resource=\"#Protein" + ((k + 1) % 10) + "\"/></bp:Complex>\n");
+		}
+		for(int i = 0; i < numPathways; i++) {
+			owl.append("<bp:Pathway rdf:ID=\"Pathway" + i + "\"><bp:displayName>pathway " + i + "</bp:displayName>"
+					+ "<bp:organism rdf:resource=\"#Homo_sapiens\"/><bp:xref rdf:resource=\"#Reactome" + i + "\"/>");
+			for(int j = 0; j < 3; j++) {
+				owl.append("<bp:pathwayComponent rdf:resource=\"#Reaction" + i + "_" + j + "\"/>");
+			}
+			owl.append("<bp:pathwayComponent rdf:resource=\"#Catalysis" + i + "\"/>");
+			if(i % 5 != 4 && i + 1 < numPathways) {
+				owl.append("<bp:pathwayComponent rdf:resource=\"#Pathway" + (i + 1) + "\"/>");
+			}
+			owl.append("</bp:Pathway>\n");
+			owl.append("<bp:UnificationXref rdf:ID=\"Reactome" + i + "\"><bp:db>Reactome</bp:db><bp:id>REACT_" + i + "</bp:id></bp:UnificationXref>\n");
+			for(int j = 0; j < 3; j++) {
+				owl.append("<bp:BiochemicalReaction rdf:ID=\"Reaction" + i + "_" + j + "\"><bp:displayName>reaction " + i + "." + j + "</bp:displayName>"
+						+ "<bp:left rdf:resource=\"#Protein" + ((i + j) % 10) + "\"/><bp:right rdf:resource=\"#Complex" + ((3 * i + j) % 10) + "\"/>"
+						+ "<bp:xref rdf:resource=\"#Reactome" + i + "\"/></bp:BiochemicalReaction>\n");
+			}
+			owl.append("<bp:Catalysis rdf:ID=\"Catalysis" + i + "\"><bp:displayName>catalysis " + i + "</bp:displayName>"
+					+ "<bp:controller rdf:resource=\"#Complex" + (i % 10) + "\"/><bp:controlled rdf:resource=\"#Reaction" + i + "_0\"/></bp:Catalysis>\n");
+		}
+		owl.append("</rdf:RDF>\n");
+		return owl.toString();
+	}
+
 	@Test
 	public void testParseToJson() {
 		BiopaxPathwayParser pathwayParser = new BiopaxPathwayParser();
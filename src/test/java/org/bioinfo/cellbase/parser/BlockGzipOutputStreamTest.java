@@ -0,0 +1,190 @@
+package org.bioinfo.cellbase.parser;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+public class BlockGzipOutputStreamTest {
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		Random random = new Random(1);
+		byte[] text = text(random, 1000000);
+		byte[] incompressible = new byte[3 * BlockGzipOutputStream.MAX_BLOCK_DATA_SIZE + 17];
+		random.nextBytes(incompressible);
+		ExecutorService executorService = Executors.newFixedThreadPool(3);
+		try {
+			for(byte[] data: Arrays.asList(new byte[0], new byte[] {'A'}, text, incompressible)) {
+				byte[] inline = bgzf(data, null, 1);
+				// blocks compressed by a pool are written in order, same bytes
+				assertArrayEquals(inline, bgzf(data, executorService, 3));
+				assertArrayEquals(data, gunzip(inline));
+				assertBlocks(inline);
+			}
+		} finally {
+			executorService.shutdown();
+		}
+	}
+
+	@Test
+	public void testStoredBlocks() throws IOException {
+		byte[] data = new byte[BlockGzipOutputStream.MAX_BLOCK_DATA_SIZE];
+		new Random(2).nextBytes(data);
+		// deflated random data does not fit in a block, it is stored
+		byte[] bgzf = bgzf(data, null, 1);
+		List<Integer> blockSizes = assertBlocks(bgzf);
+		assertEquals(2, blockSizes.size());
+		assertTrue(blockSizes.get(0) > data.length);
+		assertArrayEquals(data, gunzip(bgzf));
+	}
+
+	@Test
+	public void testFlush() throws IOException {
+		ExecutorService executorService = Executors.newFixedThreadPool(2);
+		try {
+			for(ExecutorService executor: new ExecutorService[] {null, executorService}) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				OutputStream bgzf = new BlockGzipOutputStream(out, executor, 2);
+				bgzf.write("first line\n".getBytes());
+				bgzf.flush();
+				// flushed data is readable before close, as complete blocks
+				assertEquals("first line\n", new String(gunzip(out.toByteArray())));
+				assertEquals(1, getBlockSizes(out.toByteArray()).size());
+				bgzf.flush();
+				bgzf.write("second line\n".getBytes());
+				bgzf.close();
+				bgzf.close();
+				assertEquals("first line\nsecond line\n", new String(gunzip(out.toByteArray())));
+				// short block, second block and the empty block
+				assertEquals(3, assertBlocks(out.toByteArray()).size());
+			}
+		} finally {
+			executorService.shutdown();
+		}
+	}
+
+	@Test
+	public void testOutputFilesParts() throws IOException {
+		Path tmpDir = Files.createTempDirectory("bgzf_test");
+		Random random = new Random(3);
+		try {
+			for(int numThreads: new int[] {1, 3}) {
+				OutputFiles.setCompression(OutputFiles.Compression.BGZF, numThreads);
+				List<Path> partPaths = new ArrayList<>();
+				StringBuilder expected = new StringBuilder();
+				for(int i = 0; i < 4; i++) {
+					Path partPath = OutputFiles.getPath(tmpDir.resolve("part" + i));
+					assertTrue(partPath.toString().endsWith(".gz"));
+					BufferedWriter bw = OutputFiles.newBufferedWriter(partPath);
+					// an empty part too
+					String lines = (i == 2) ? "" : new String(text(random, 200000 * i + 10));
+					bw.write(lines);
+					bw.close();
+					expected.append(lines);
+					partPaths.add(partPath);
+				}
+				Path outPath = tmpDir.resolve("out.json.gz");
+				OutputFiles.concatenate(partPaths, outPath);
+				for(Path partPath: partPaths) {
+					assertTrue(Files.notExists(partPath));
+				}
+				byte[] bytes = Files.readAllBytes(outPath);
+				assertEquals(expected.toString(), new String(gunzip(bytes)));
+				assertArrayEquals(gunzip(bytes), ParallelGzipInputStreamTest.readAll(new ParallelGzipInputStream(outPath, null)));
+				assertBlocks(bytes);
+				Files.delete(outPath);
+			}
+		} finally {
+			OutputFiles.setCompression(OutputFiles.Compression.NONE, 1);
+			Files.delete(tmpDir);
+		}
+	}
+
+	/**
+	 * Checks the BGZF blocks end with the empty block, returns the block sizes.
+	 */
+	private static List<Integer> assertBlocks(byte[] bgzf) {
+		List<Integer> blockSizes = getBlockSizes(bgzf);
+		// last block is the empty one, its data size is 0
+		assertEquals(28, (int) blockSizes.get(blockSizes.size() - 1));
+		assertEquals(0, bgzf[bgzf.length - 1] | bgzf[bgzf.length - 2] | bgzf[bgzf.length - 3] | bgzf[bgzf.length - 4]);
+		return blockSizes;
+	}
+
+	/**
+	 * Checks the BGZF headers and that block sizes add up to the length.
+	 */
+	private static List<Integer> getBlockSizes(byte[] bgzf) {
+		List<Integer> blockSizes = new ArrayList<>();
+		int offset = 0;
+		while(offset < bgzf.length) {
+			assertEquals(0x1f, bgzf[offset] & 0xff);
+			assertEquals(0x8b, bgzf[offset + 1] & 0xff);
+			assertEquals('B', bgzf[offset + 12]);
+			assertEquals('C', bgzf[offset + 13]);
+			int blockSize = ((bgzf[offset + 16] & 0xff) | ((bgzf[offset + 17] & 0xff) << 8)) + 1;
+			assertTrue(blockSize <= 1 << 16);
+			blockSizes.add(blockSize);
+			offset += blockSize;
+		}
+		assertEquals(bgzf.length, offset);
+		return blockSizes;
+	}
+
+	private static byte[] text(Random random, int size) {
+		StringBuilder sb = new StringBuilder(size + 100);
+		while(sb.length() < size) {
+			sb.append("{\"chromosome\":\"").append(random.nextInt(23)).append("\",\"start\":").append(random.nextInt(1000000)).append("}\n");
+		}
+		return sb.toString().getBytes();
+	}
+
+	private static byte[] bgzf(byte[] data, ExecutorService executorService, int numThreads) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		OutputStream bgzf = new BlockGzipOutputStream(out, executorService, numThreads);
+		// writes of different sizes, across block boundaries
+		Random random = new Random(4);
+		int offset = 0;
+		while(offset < data.length) {
+			if(random.nextInt(10) == 0) {
+				bgzf.write(data[offset++]);
+			}else {
+				int n = Math.min(data.length - offset, random.nextInt(100000));
+				bgzf.write(data, offset, n);
+				offset += n;
+			}
+		}
+		bgzf.close();
+		return out.toByteArray();
+	}
+
+	private static byte[] gunzip(byte[] bytes) throws IOException {
+		InputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1 << 16];
+		int read;
+		while((read = in.read(buffer)) >= 0) {
+			out.write(buffer, 0, read);
+		}
+		in.close();
+		return out.toByteArray();
+	}
+}
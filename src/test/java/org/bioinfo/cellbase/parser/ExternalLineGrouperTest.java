@@ -0,0 +1,75 @@
+package org.bioinfo.cellbase.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ExternalLineGrouperTest {
+
+	@Test
+	public void testGroupersSharingTmpDir() throws IOException {
+		Path tmpDir = Files.createTempDirectory("grouper_test");
+		List<String> keys = Arrays.asList("1", "2", "10", "X", "Y");
+		// a tiny budget so both groupers spill the same keys to the same directory
+		List<ExternalLineGrouper> groupers = Arrays.asList(new ExternalLineGrouper(tmpDir, 1000), new ExternalLineGrouper(tmpDir, 1000));
+		List<Map<String, StringBuilder>> expected = new ArrayList<>();
+		Random random = new Random(1);
+		for(int i = 0; i < groupers.size(); i++) {
+			expected.add(new LinkedHashMap<String, StringBuilder>());
+		}
+		for(int j = 0; j < 20000; j++) {
+			int i = random.nextInt(groupers.size());
+			String key = keys.get(random.nextInt(keys.size()));
+			String line = "chr" + key + "\tgrouper" + i + "\t" + j;
+			groupers.get(i).add(key, line);
+			if(!expected.get(i).containsKey(key)) {
+				expected.get(i).put(key, new StringBuilder());
+			}
+			expected.get(i).get(key).append(line).append('\n');
+		}
+
+		// groups of both groupers are open at the same time
+		for(String key: keys) {
+			List<BufferedReader> readers = new ArrayList<>();
+			for(ExternalLineGrouper grouper: groupers) {
+				readers.add(grouper.getLines(key));
+			}
+			for(int i = 0; i < groupers.size(); i++) {
+				assertEquals(expected.get(i).get(key).toString(), readAll(readers.get(i)));
+				readers.get(i).close();
+			}
+		}
+		for(ExternalLineGrouper grouper: groupers) {
+			assertEquals("", readAll(grouper.getLines("MT")));
+			grouper.close();
+		}
+		try(DirectoryStream<Path> files = Files.newDirectoryStream(tmpDir)) {
+			for(Path file: files) {
+				fail("Spill file left: " + file);
+			}
+		}
+		Files.delete(tmpDir);
+	}
+
+	private static String readAll(BufferedReader br) throws IOException {
+		StringBuilder lines = new StringBuilder();
+		String line;
+		while((line = br.readLine()) != null) {
+			lines.append(line).append('\n');
+		}
+		return lines.toString();
+	}
+}
@@ -0,0 +1,172 @@
+package org.bioinfo.cellbase.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ExternalLineSorterTest {
+
+	@Test
+	public void testSortReader() throws IOException {
+		Path tmpDir = Files.createTempDirectory("sorter_test");
+		List<String> lines = randomLines(new Random(1), 5000, 100);
+		String expected = join(stableSort(lines, 1));
+
+		// in memory and merged from runs written to tmpDir
+		for(long maxRunChars: new long[] {ExternalLineSorter.DEFAULT_MAX_RUN_CHARS, 1000}) {
+			ExternalLineSorter sorter = new ExternalLineSorter(tmpDir, maxRunChars);
+			BufferedReader sorted = sorter.sort(new BufferedReader(new StringReader(join(lines))), 1);
+			assertEquals(expected, readAll(sorted));
+			sorted.close();
+			assertEmpty(tmpDir);
+		}
+		ExternalLineSorter sorter = new ExternalLineSorter(tmpDir);
+		assertEquals("", readAll(sorter.sort(new BufferedReader(new StringReader("")), 1)));
+		// lines with no content but the key
+		assertEquals("2\n10\n", readAll(sorter.sort(new BufferedReader(new StringReader("10\n2\n")), 0)));
+		Files.delete(tmpDir);
+	}
+
+	@Test
+	public void testSortReaderReads() throws IOException {
+		Path tmpDir = Files.createTempDirectory("sorter_test");
+		// in memory and merged from runs
+		for(long maxRunChars: new long[] {ExternalLineSorter.DEFAULT_MAX_RUN_CHARS, 10}) {
+			ExternalLineSorter sorter = new ExternalLineSorter(tmpDir, maxRunChars);
+			BufferedReader sorted = sorter.sort(new BufferedReader(new StringReader("c\t3\na\t1\nb\t2\n\t4\n")), 1);
+			assertTrue(sorted.ready());
+			assertEquals('a', sorted.read());
+			// rest of the line
+			assertEquals("\t1", sorted.readLine());
+			char[] cbuf = new char[5];
+			assertEquals(5, sorted.read(cbuf, 0, 5));
+			assertEquals("b\t2\nc", new String(cbuf));
+			assertEquals("\t3", sorted.readLine());
+			assertEquals(2, sorted.skip(2));
+			assertEquals('\n', sorted.read());
+			assertEquals(-1, sorted.read());
+			assertNull(sorted.readLine());
+			assertFalse(sorted.ready());
+			sorted.close();
+			try {
+				sorted.readLine();
+				fail("Closed reader read");
+			}catch(IOException e) {
+				// expected
+			}
+			assertEmpty(tmpDir);
+		}
+		Files.delete(tmpDir);
+	}
+
+	@Test
+	public void testSortFileMultiPass() throws IOException {
+		Path tmpDir = Files.createTempDirectory("sorter_test");
+		Path inputFile = Files.createTempFile("sorter_input", ".txt");
+		Path outputFile = Files.createTempFile("sorter_output", ".txt");
+		// keys up to 2^32 - 1, ties kept in input order
+		List<String> lines = randomLines(new Random(2), 30000, 500);
+		lines.add("last\t4294967295\tmax key");
+		lines.add(0, "first\t4294967295\tmax key");
+		Files.write(inputFile, join(lines).getBytes());
+		String expected = join(stableSort(lines, 1));
+
+		// ~50 lines per run, more than 128 runs need an intermediate merge pass
+		for(long maxRunChars: new long[] {ExternalLineSorter.DEFAULT_MAX_RUN_CHARS, 100000, 1500}) {
+			new ExternalLineSorter(tmpDir, maxRunChars).sort(inputFile, outputFile, 1);
+			assertEquals(expected, new String(Files.readAllBytes(outputFile)));
+			assertEmpty(tmpDir);
+		}
+
+		// all the lines of each key are grouped in order
+		ExternalLineSorter.GroupReader groupReader = new ExternalLineSorter.GroupReader(outputFile, 1);
+		List<String> sortedLines = stableSort(lines, 1);
+		assertEquals(0, groupReader.next(-1).size());
+		for(long key = 0; key < 500; key += 7) {
+			List<String> group = new ArrayList<>();
+			for(String line: sortedLines) {
+				if(ExternalLineSorter.getLongField(line, 1) == key) {
+					group.add(line);
+				}
+			}
+			assertEquals(group, groupReader.next(key));
+		}
+		assertEquals(2, groupReader.next(4294967295L).size());
+		groupReader.close();
+
+		Files.delete(inputFile);
+		Files.delete(outputFile);
+		Files.delete(tmpDir);
+	}
+
+	@Test(expected = IOException.class)
+	public void testKeyOutOfRange() throws IOException {
+		Path tmpDir = Files.createTempDirectory("sorter_test");
+		try {
+			new ExternalLineSorter(tmpDir).sort(new BufferedReader(new StringReader("a\t1\nb\t4294967296\n")), 1);
+		} finally {
+			Files.delete(tmpDir);
+		}
+	}
+
+	static List<String> randomLines(Random random, int numLines, int maxKey) {
+		List<String> lines = new ArrayList<>(numLines);
+		for(int i = 0; i < numLines; i++) {
+			lines.add("line" + i + "\t" + random.nextInt(maxKey) + "\t" + Long.toHexString(random.nextLong()));
+		}
+		return lines;
+	}
+
+	static List<String> stableSort(List<String> lines, final int column) {
+		List<String> sortedLines = new ArrayList<>(lines);
+		// Collections.sort is stable
+		Collections.sort(sortedLines, new Comparator<String>() {
+			@Override
+			public int compare(String a, String b) {
+				return Long.compare(ExternalLineSorter.getLongField(a, column), ExternalLineSorter.getLongField(b, column));
+			}
+		});
+		return sortedLines;
+	}
+
+	static String join(List<String> lines) {
+		StringBuilder sb = new StringBuilder();
+		for(String line: lines) {
+			sb.append(line).append('\n');
+		}
+		return sb.toString();
+	}
+
+	static String readAll(BufferedReader br) throws IOException {
+		StringBuilder lines = new StringBuilder();
+		String line;
+		while((line = br.readLine()) != null) {
+			lines.append(line).append('\n');
+		}
+		return lines.toString();
+	}
+
+	static void assertEmpty(Path dir) throws IOException {
+		try(DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+			for(Path file: files) {
+				fail("Temporary file left: " + file);
+			}
+		}
+	}
+}
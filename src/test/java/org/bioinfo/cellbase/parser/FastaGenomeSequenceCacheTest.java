@@ -0,0 +1,121 @@
+package org.bioinfo.cellbase.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FastaGenomeSequenceCacheTest {
+
+	private Path fastaDir;
+	private Map<String, String> sequences = new LinkedHashMap<>();
+
+	@Before
+	public void setUp() throws IOException {
+		fastaDir = Files.createTempDirectory("sequence_cache_test");
+		Random random = new Random(1);
+		sequences.put("1", getSequence(random, 100));
+		sequences.put("2", getSequence(random, 200));
+		sequences.put("3", getSequence(random, 300));
+		for(Map.Entry<String, String> sequence: sequences.entrySet()) {
+			BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(fastaDir.resolve("Homo_sapiens.GRCh37.71.dna.chromosome." + sequence.getKey() + ".fa.gz")))));
+			bw.write(">" + sequence.getKey() + " dna:chromosome\n");
+			for(int i = 0; i < sequence.getValue().length(); i += 60) {
+				bw.write(sequence.getValue(), i, Math.min(60, sequence.getValue().length() - i));
+				bw.write('\n');
+			}
+			bw.close();
+		}
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		for(String file: fastaDir.toFile().list()) {
+			Files.delete(fastaDir.resolve(file));
+		}
+		Files.delete(fastaDir);
+	}
+
+	@Test
+	public void testLeastRecentlyUsedEviction() throws IOException {
+		FastaGenomeSequenceCache cache = new FastaGenomeSequenceCache(fastaDir.toFile(), 500);
+		String chromosome1 = cache.getChromosomeSequence("1");
+		String chromosome2 = cache.getChromosomeSequence("2");
+		assertEquals(sequences.get("1"), chromosome1);
+		// hits return the cached sequence, 1 is now more recently used than 2
+		assertSame(chromosome1, cache.getChromosomeSequence("1"));
+		// 600 nucleotides, 2 is evicted
+		cache.getChromosomeSequence("3");
+		assertSame(chromosome1, cache.getChromosomeSequence("1"));
+		assertStatistics(cache, 2, 3, 1, 400);
+		// 2 is loaded again and 3 evicted
+		String chromosome2Again = cache.getChromosomeSequence("2");
+		assertNotSame(chromosome2, chromosome2Again);
+		assertEquals(chromosome2, chromosome2Again);
+		assertStatistics(cache, 2, 4, 2, 300);
+		assertSame(chromosome1, cache.getChromosomeSequence("1"));
+		assertStatistics(cache, 3, 4, 2, 300);
+		cache.close();
+		assertStatistics(cache, 3, 4, 2, 0);
+	}
+
+	@Test
+	public void testChromosomeBiggerThanCache() throws IOException {
+		FastaGenomeSequenceCache cache = new FastaGenomeSequenceCache(fastaDir.toFile(), 150);
+		// the most recently used chromosome is kept even if it does not fit
+		String chromosome3 = cache.getChromosomeSequence("3");
+		assertSame(chromosome3, cache.getChromosomeSequence("3"));
+		assertStatistics(cache, 1, 1, 0, 300);
+		cache.getChromosomeSequence("1");
+		assertStatistics(cache, 1, 2, 1, 100);
+		// a missing chromosome is an empty sequence, it is cached too
+		assertEquals("", cache.getChromosomeSequence("MT"));
+		assertEquals("", cache.getChromosomeSequence("MT"));
+		assertStatistics(cache, 2, 3, 1, 100);
+		cache.close();
+	}
+
+	@Test
+	public void testGetSequence() throws IOException {
+		FastaGenomeSequenceCache cache = new FastaGenomeSequenceCache(fastaDir.toFile());
+		String sequence = sequences.get("2");
+		// 1-based and inclusive, clipped to the chromosome
+		assertEquals(sequence.substring(0, 10), cache.getSequence("2", 1, 10));
+		assertEquals(sequence.substring(0, 10), cache.getSequence("2", -5, 10));
+		assertEquals(sequence.substring(149, 200), cache.getSequence("2", 150, 1000));
+		assertEquals(sequence.substring(60, 61), cache.getSequence("2", 61, 61));
+		assertEquals("", cache.getSequence("2", 250, 300));
+		assertEquals("", cache.getSequence("2", 20, 10));
+		assertEquals("", cache.getSequence("MT", 1, 10));
+		assertStatistics(cache, 5, 2, 0, 200);
+		cache.close();
+	}
+
+	private static void assertStatistics(FastaGenomeSequenceCache cache, long hits, long misses, long evictions, long cachedNucleotides) {
+		String statistics = cache.getStatistics();
+		assertTrue(statistics, statistics.startsWith("Genome sequence cache: " + hits + " hits, " + misses + " misses (chromosome loads), " + evictions + " evictions, "));
+		assertTrue(statistics, statistics.endsWith(" ms loading, " + cachedNucleotides + " nucleotides cached"));
+	}
+
+	private static String getSequence(Random random, int length) {
+		StringBuilder sequence = new StringBuilder(length);
+		for(int i = 0; i < length; i++) {
+			sequence.append("ACGTN".charAt(random.nextInt(5)));
+		}
+		return sequence.toString();
+	}
+}
@@ -0,0 +1,114 @@
+package org.bioinfo.cellbase.parser;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.gson.Gson;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Random;
+import org.bioinfo.cellbase.lib.common.core.GenomeSequenceChunk;
+import org.junit.Test;
+
+public class GenomeSequenceChunkerTest {
+
+	private Gson gson = new Gson();
+
+	@Test
+	public void testChunkBoundaries() throws IOException {
+		String sequence = "ACGTACGTACGTACGTACGTACGTA";
+		StringWriter writer = new StringWriter();
+		GenomeSequenceChunker chunker = new GenomeSequenceChunker(10, writer, gson);
+		chunker.startChromosome("1");
+		chunker.append(sequence);
+		assertEquals(25, chunker.endChromosome());
+		// the first chunk ends at chunkSize-1, the last one is partial
+		assertEquals(toJson(new GenomeSequenceChunk("1", 0, 1, 9, sequence.substring(0, 9)))
+				+ toJson(new GenomeSequenceChunk("1", 1, 10, 19, sequence.substring(9, 19)))
+				+ toJson(new GenomeSequenceChunk("1", 2, 20, 25, sequence.substring(19))), writer.toString());
+	}
+
+	@Test
+	public void testSameChunksAsWholeSequence() throws IOException {
+		Random random = new Random(1);
+		for(int chunkSize: new int[] {10, 2000}) {
+			// sequences shorter than a chunk, ending exactly at or one nucleotide past a chunk boundary, a final partial chunk
+			int[] lengths = {1, 2, chunkSize - 2, chunkSize - 1, chunkSize, chunkSize + 1, chunkSize + 2, 2 * chunkSize - 1, 2 * chunkSize, 2 * chunkSize + 1,
+					2 * chunkSize + 2, 3 * chunkSize + chunkSize / 2, 10 * chunkSize + random.nextInt(chunkSize)};
+			for(int lineLength: new int[] {1, 7, 60, chunkSize, 3 * chunkSize}) {
+				// several records through the same chunker
+				StringWriter expected = new StringWriter();
+				StringWriter writer = new StringWriter();
+				GenomeSequenceChunker chunker = new GenomeSequenceChunker(chunkSize, writer, gson);
+				for(int i = 0; i < lengths.length; i++) {
+					String chromosome = "chr" + i;
+					String sequence = getSequence(random, lengths[i]);
+					writeGenomeChunks(chromosome, sequence, chunkSize, expected);
+					chunker.startChromosome(chromosome);
+					for(int start = 0; start < sequence.length(); start += lineLength) {
+						chunker.append(sequence.substring(start, Math.min(start + lineLength, sequence.length())));
+					}
+					assertEquals(sequence.length(), chunker.endChromosome());
+				}
+				assertEquals("chunkSize " + chunkSize + ", line length " + lineLength, expected.toString(), writer.toString());
+			}
+		}
+	}
+
+	/**
+	 * Chunking of a fully loaded sequence as GenomeSequenceFastaParser did before the streaming chunker.
+	 */
+	private void writeGenomeChunks(String chromosome, String sequence, int chunkSize, StringWriter writer) {
+		int chunkId = 0;
+		int start = 1;
+		int end = chunkSize - 1;
+		String chunkSequence;
+
+		if (sequence.length() < chunkSize) {//chromosome sequence length can be less than chunkSize
+			chunkSequence = sequence;
+			GenomeSequenceChunk chunk = new GenomeSequenceChunk(chromosome, 0, start, sequence.length() - 1, chunkSequence);
+			writer.write(toJson(chunk));
+			start += chunkSize - 1;
+		} else {
+			while (start < sequence.length()) {
+				// First chunk of the chromosome
+				if (start == 1) {
+					// First chunk contains chunkSize-1 nucleotides as index start at position 1 but must end at 1999
+					chunkSequence = sequence.substring(start - 1, chunkSize - 1);
+					GenomeSequenceChunk chunk = new GenomeSequenceChunk(chromosome, chunkId, start, end, chunkSequence);
+					writer.write(toJson(chunk));
+					start += chunkSize - 1;
+
+				} else {
+					// Regular chunk
+					if ((start + chunkSize) < sequence.length()) {
+						chunkSequence = sequence.substring(start - 1, start + chunkSize - 1);
+						GenomeSequenceChunk chunk = new GenomeSequenceChunk(chromosome, chunkId, start, end, chunkSequence);
+						writer.write(toJson(chunk));
+						start += chunkSize;
+
+					} else {
+						// Last chunk of the chromosome
+						chunkSequence = sequence.substring(start - 1, sequence.length());
+						GenomeSequenceChunk chunk = new GenomeSequenceChunk(chromosome, chunkId, start, sequence.length(), chunkSequence);
+						writer.write(toJson(chunk));
+						start = sequence.length();
+					}
+				}
+				end = start + chunkSize - 1;
+				chunkId++;
+			}
+		}
+	}
+
+	private String toJson(GenomeSequenceChunk chunk) {
+		return gson.toJson(chunk) + "\n";
+	}
+
+	private static String getSequence(Random random, int length) {
+		StringBuilder sequence = new StringBuilder(length);
+		for(int i = 0; i < length; i++) {
+			sequence.append("ACGTN".charAt(random.nextInt(5)));
+		}
+		return sequence.toString();
+	}
+}
@@ -1,9 +1,19 @@
 package org.bioinfo.cellbase.parser;
 
+import static org.junit.Assert.assertEquals;
+
 import com.google.gson.Gson;
 import org.junit.Test;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
 
 public class GenomeSequenceFastaParserTest {
     static int CHUNKSIZE = 2000;
@@ -20,6 +30,135 @@ public class GenomeSequenceFastaParserTest {
 //		fail("Not yet implemented");
     }
 
+    @Test
+    public void testParseFastaGzipFilesToPackedSequence() throws IOException {
+        Path fastaDir = Files.createTempDirectory("fasta_test");
+        Random random = new Random(1);
+        Map<String, String> sequences = new LinkedHashMap<>();
+        // lengths not multiple of 4 leave a partial last byte
+        sequences.put("1", getSequence(random, 10003));
+        sequences.put("MT", getSequence(random, 16569));
+        sequences.put("GL000192.1", getSequence(random, 2));
+        writeFastaGzip(fastaDir.resolve("Homo_sapiens.GRCh37.71.dna.chromosome.1.fa.gz"), sequences, "1");
+        writeFastaGzip(fastaDir.resolve("Homo_sapiens.GRCh37.71.dna.chromosome.MT.fa.gz"), sequences, "MT", "GL000192.1");
+
+        File packedFile = fastaDir.resolve("genome_sequence.packed").toFile();
+        new GenomeSequenceFastaParser().parseFastaGzipFilesToPackedSequence(fastaDir.toFile(), packedFile);
+
+        PackedGenomeSequence packedGenomeSequence = new PackedGenomeSequence(packedFile.toPath());
+        assertEquals(new ArrayList<>(sequences.keySet()), packedGenomeSequence.getChromosomeNames());
+        for(Map.Entry<String, String> entry: sequences.entrySet()) {
+            String chromosome = entry.getKey();
+            String sequence = entry.getValue();
+            assertEquals(sequence.length(), packedGenomeSequence.getChromosomeLength(chromosome));
+            assertEquals(sequence, packedGenomeSequence.getSequence(chromosome, 1, sequence.length()));
+            for(int i = 0; i < 2000; i++) {
+                int start = 1 + random.nextInt(sequence.length());
+                int end = start + random.nextInt(Math.min(300, sequence.length() - start + 1));
+                assertEquals(chromosome + ":" + start + "-" + end, sequence.substring(start - 1, end), packedGenomeSequence.getSequence(chromosome, start, end));
+            }
+            // end is trimmed to the chromosome length
+            assertEquals(sequence.substring(sequence.length() - 1), packedGenomeSequence.getSequence(chromosome, sequence.length(), sequence.length() + 10));
+        }
+        assertEquals(-1, packedGenomeSequence.getChromosomeLength("Y"));
+        assertEquals("", packedGenomeSequence.getSequence("Y", 1, 100));
+        packedGenomeSequence.close();
+
+        for(String file: fastaDir.toFile().list()) {
+            Files.delete(fastaDir.resolve(file));
+        }
+        Files.delete(fastaDir);
+    }
+
+    @Test
+    public void testParseFastaGzipFilesToJsonInParallel() throws IOException {
+        Path fastaDir = Files.createTempDirectory("fasta_test");
+        Path outDir = Files.createTempDirectory("fasta_test_out");
+        Random random = new Random(2);
+        Map<String, String> sequences = new LinkedHashMap<>();
+        sequences.put("1", getSequence(random, 5000));
+        sequences.put("MT", getSequence(random, 3000));
+        // both files are named after chromosome 1
+        String[] fileNames = {"Homo_sapiens.GRCh37.71.dna.chromosome.1.fa.gz", "Homo_sapiens.GRCh37.71.dna_rm.chromosome.1.fa.gz"};
+        writeFastaGzip(fastaDir.resolve(fileNames[0]), sequences, "1");
+        writeFastaGzip(fastaDir.resolve(fileNames[1]), sequences, "MT");
+
+        // each file alone, then both in parallel: the parts are concatenated sorted by file name
+        StringBuilder expected = new StringBuilder();
+        for(String fileName: fileNames) {
+            Path singleDir = Files.createTempDirectory("fasta_test");
+            Files.copy(fastaDir.resolve(fileName), singleDir.resolve(fileName));
+            File outFile = outDir.resolve("single.json").toFile();
+            new GenomeSequenceFastaParser().parseFastaGzipFilesToJson(singleDir.toFile(), outFile, 1);
+            expected.append(new String(Files.readAllBytes(outFile.toPath())));
+            Files.delete(outFile.toPath());
+            Files.delete(singleDir.resolve(fileName));
+            Files.delete(singleDir);
+        }
+        File outFile = outDir.resolve("genome_sequence.json").toFile();
+        new GenomeSequenceFastaParser().parseFastaGzipFilesToJson(fastaDir.toFile(), outFile, 2);
+        assertEquals(expected.toString(), new String(Files.readAllBytes(outFile.toPath())));
+        Files.delete(outFile.toPath());
+        // one thread reads the files in the same order
+        new GenomeSequenceFastaParser().parseFastaGzipFilesToJson(fastaDir.toFile(), outFile);
+        assertEquals(expected.toString(), new String(Files.readAllBytes(outFile.toPath())));
+        Files.delete(outFile.toPath());
+
+        // one file per chromosome would overwrite one of them, nothing is written
+        new GenomeSequenceFastaParser().parseFastaGzipFilesToJsonByChromosome(fastaDir.toFile(), outDir.toFile(), 2);
+        assertEquals(0, outDir.toFile().list().length);
+
+        // a corrupt file leaves no parts behind
+        byte[] bytes = Files.readAllBytes(fastaDir.resolve(fileNames[1]));
+        Files.write(fastaDir.resolve(fileNames[1]), Arrays.copyOf(bytes, bytes.length / 2));
+        new GenomeSequenceFastaParser().parseFastaGzipFilesToJson(fastaDir.toFile(), outFile, 2);
+        assertEquals(0, outDir.toFile().list().length);
+
+        for(String fileName: fileNames) {
+            Files.delete(fastaDir.resolve(fileName));
+        }
+        Files.delete(fastaDir);
+        Files.delete(outDir);
+    }
+
+    /**
+     * Random ACGT with N runs at both ends and in the middle, soft-masked runs, and a few other
+     * IUPAC codes and lower case n.
+     */
+    private static String getSequence(Random random, int length) {
+        StringBuilder sequence = new StringBuilder(length);
+        while(sequence.length() < length) {
+            int type = random.nextInt(10);
+            int runLength = 1 + random.nextInt(200);
+            for(int i = 0; i < runLength && sequence.length() < length; i++) {
+                char nucleotide = "ACGT".charAt(random.nextInt(4));
+                if(sequence.length() < 50 || sequence.length() >= length - 7 || type == 0) {
+                    sequence.append('N');
+                }else if(type == 1) {
+                    sequence.append(Character.toLowerCase(nucleotide));
+                }else if(type == 2 && random.nextInt(20) == 0) {
+                    sequence.append("RYKMn".charAt(random.nextInt(5)));
+                }else {
+                    sequence.append(nucleotide);
+                }
+            }
+        }
+        return sequence.toString();
+    }
+
+    private static void writeFastaGzip(Path fastaFile, Map<String, String> sequences, String... chromosomes) throws IOException {
+        BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(fastaFile))));
+        for(String chromosome: chromosomes) {
+            bw.write(">" + chromosome + " dna:chromosome chromosome:GRCh37:" + chromosome + "\n");
+            String sequence = sequences.get(chromosome);
+            for(int i = 0; i < sequence.length(); i += 60) {
+                bw.write(sequence, i, Math.min(60, sequence.length() - i));
+                bw.write('\n');
+            }
+        }
+        bw.close();
+    }
+
 //    @Test
 //    public void testParseFastaWithConservedRegions() {
 //        String USER_HOME = System.getProperty("user.home");
@@ -0,0 +1,142 @@
+package org.bioinfo.cellbase.parser;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.gson.Gson;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.bioinfo.cellbase.common.variation.TranscriptVariation;
+import org.bioinfo.cellbase.common.variation.Variation;
+import org.bioinfo.cellbase.common.variation.Xref;
+import org.bioinfo.cellbase.lib.common.core.GenomeSequenceChunk;
+import org.junit.Test;
+
+public class JsonLineWriterTest {
+
+	Gson gson = new Gson();
+
+	@Test
+	public void testSameLinesAsToJson() throws IOException {
+		List<Object> records = new ArrayList<>();
+		records.addAll(createGenomeSequenceChunks(100, 2000));
+		records.addAll(createVariations(100));
+		records.add(null);
+
+		StringBuilder expected = new StringBuilder();
+		for(Object record: records) {
+			expected.append(gson.toJson(record) + "\n");
+		}
+		StringWriter writer = new StringWriter();
+		JsonLineWriter jsonLineWriter = new JsonLineWriter(writer, gson);
+		for(Object record: records) {
+			jsonLineWriter.write(record);
+		}
+		jsonLineWriter.close();
+		assertEquals(expected.toString(), writer.toString());
+		assertEquals(records.size(), jsonLineWriter.getNumLines());
+	}
+
+	@Test
+	public void testThroughput() throws IOException {
+		List<? extends Object> chunks = createGenomeSequenceChunks(5000, 2000);
+		List<? extends Object> variations = createVariations(20000);
+		// first rounds warm up the JIT
+		for(int i = 0; i < 3; i++) {
+			benchmark("genome chunks", chunks, i == 2);
+			benchmark("variations", variations, i == 2);
+		}
+	}
+
+	private void benchmark(String name, List<? extends Object> records, boolean print) throws IOException {
+		CountingWriter writer = new CountingWriter();
+		long start = System.nanoTime();
+		for(Object record: records) {
+			writer.write(gson.toJson(record) + "\n");
+		}
+		long toJsonTime = System.nanoTime() - start;
+
+		CountingWriter jsonWriter = new CountingWriter();
+		JsonLineWriter jsonLineWriter = new JsonLineWriter(jsonWriter, gson);
+		start = System.nanoTime();
+		for(Object record: records) {
+			jsonLineWriter.write(record);
+		}
+		long jsonLineWriterTime = System.nanoTime() - start;
+
+		assertEquals(writer.numChars, jsonWriter.numChars);
+		if(print) {
+			System.out.println(name + ": toJson + \"\\n\" " + mbPerSecond(writer.numChars, toJsonTime) + " MB/s, JsonLineWriter "
+					+ mbPerSecond(jsonWriter.numChars, jsonLineWriterTime) + " MB/s");
+		}
+	}
+
+	private static long mbPerSecond(long numChars, long nanos) {
+		return numChars * 1000 / Math.max(nanos, 1);
+	}
+
+	private static List<GenomeSequenceChunk> createGenomeSequenceChunks(int numChunks, int chunkSize) {
+		Random random = new Random(1);
+		char[] sequence = new char[chunkSize];
+		List<GenomeSequenceChunk> chunks = new ArrayList<>(numChunks);
+		for(int i = 0; i < numChunks; i++) {
+			for(int j = 0; j < chunkSize; j++) {
+				sequence[j] = "ACGTN".charAt(random.nextInt(5));
+			}
+			chunks.add(new GenomeSequenceChunk("1", i, i * chunkSize + 1, (i + 1) * chunkSize, new String(sequence)));
+		}
+		return chunks;
+	}
+
+	private static List<Variation> createVariations(int numVariations) {
+		Random random = new Random(1);
+		List<Variation> variations = new ArrayList<>(numVariations);
+		for(int i = 0; i < numVariations; i++) {
+			List<TranscriptVariation> transcriptVariations = new ArrayList<>();
+			for(int j = random.nextInt(4); j > 0; j--) {
+				transcriptVariations.add(new TranscriptVariation("ENST0000" + random.nextInt(100000), "A/G", "0",
+						Arrays.asList("missense_variant", "splice_region_variant"), random.nextInt(5000), random.nextInt(5000), 0, 0, 0, 0, 0,
+						"", "", "", "", "", "benign", random.nextFloat(), "tolerated", random.nextFloat()));
+			}
+			List<Xref> xrefs = Arrays.asList(new Xref("rs" + i, "dbSNP", "138"));
+			int start = random.nextInt(1000000);
+			variations.add(new Variation("rs" + i, "1", "SNV", start, start, "1", "A", "G", "A/G", "hsapiens", "GRCh37", "ensembl", "71",
+					null, transcriptVariations, null, xrefs, "featureId", "featureAlias", "variantFreq", "Status"));
+		}
+		return variations;
+	}
+
+	/**
+	 * Discards the output, only the number of chars is kept.
+	 */
+	private static class CountingWriter extends Writer {
+		long numChars;
+
+		@Override
+		public void write(char[] cbuf, int off, int len) {
+			numChars += len;
+		}
+
+		@Override
+		public void write(String str, int off, int len) {
+			numChars += len;
+		}
+
+		@Override
+		public void write(int c) {
+			numChars++;
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package org.bioinfo.cellbase.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mongodb.DBCollection;
+import com.mongodb.MongoClient;
+
+/**
+ * Needs a mongod on localhost:27017, skipped otherwise.
+ */
+public class MongoBulkLoaderTest {
+
+	private MongoClient mongoClient;
+	private DBCollection collection;
+
+	@Before
+	public void setUp() throws Exception {
+		assumeTrue(isMongodRunning());
+		mongoClient = new MongoClient("localhost", 27017);
+		collection = mongoClient.getDB("cellbase_test").getCollection("variation");
+		collection.drop();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if(mongoClient != null) {
+			collection.drop();
+			mongoClient.close();
+		}
+	}
+
+	@Test
+	public void testLoadJsonLines() throws IOException {
+		MongoBulkLoader loader = new MongoBulkLoader(collection, 100, 3);
+		Writer writer = loader.newWriter();
+		for(int i = 0; i < 2500; i++) {
+			// lines cut in several writes
+			writer.write("{\"id\": \"rs" + i + "\", ");
+			writer.write("\"chromosome\": \"1\", \"start\": " + i + "}\n");
+		}
+		writer.close();
+		loader.close();
+		assertEquals(2500, loader.getNumRecords());
+		assertEquals(2500, collection.count());
+
+		Path scriptsDir = Files.createTempDirectory("mongodb-scripts");
+		Path script = scriptsDir.resolve("variation-indices.js");
+		Files.write(script, Arrays.asList("db.getCollection('variation').ensureIndex({'id': 1})",
+				"db.getCollection('variation').ensureIndex({'chromosome': 1, \"start\": 1})"), Charset.defaultCharset());
+		assertEquals(2, loader.createIndexes(scriptsDir));
+		Files.delete(script);
+		Files.delete(scriptsDir);
+	}
+
+	private static boolean isMongodRunning() {
+		try(Socket socket = new Socket()) {
+			socket.connect(new InetSocketAddress("localhost", 27017), 500);
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+}
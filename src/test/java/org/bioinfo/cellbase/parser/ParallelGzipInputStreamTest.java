@@ -0,0 +1,270 @@
+package org.bioinfo.cellbase.parser;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ParallelGzipInputStreamTest {
+
+	private Path tmpDir;
+	private ExecutorService executorService;
+	private byte[] data;
+
+	@Before
+	public void setUp() throws IOException {
+		tmpDir = Files.createTempDirectory("gzip_input_test");
+		executorService = Executors.newFixedThreadPool(3);
+		// several chunks of lines with some binary data
+		Random random = new Random(1);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		while(out.size() < 3 * ParallelGzipInputStream.CHUNK_SIZE + 12345) {
+			out.write(("chr" + random.nextInt(23) + "\t" + random.nextInt(1000000) + "\tfeature\n").getBytes());
+			if(random.nextInt(1000) == 0) {
+				byte[] bytes = new byte[random.nextInt(70000)];
+				random.nextBytes(bytes);
+				out.write(bytes);
+			}
+		}
+		data = out.toByteArray();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		executorService.shutdownNow();
+		for(String file: tmpDir.toFile().list()) {
+			Files.delete(tmpDir.resolve(file));
+		}
+		Files.delete(tmpDir);
+	}
+
+	@Test
+	public void testPlainGzip() throws IOException {
+		Path file = tmpDir.resolve("plain.gz");
+		Files.write(file, gzip(data));
+		assertSameBytes(file);
+
+		// multi-member
+		Path members = tmpDir.resolve("members.gz");
+		Files.write(members, concat(gzip(Arrays.copyOf(data, 1000)), gzip(Arrays.copyOfRange(data, 1000, data.length))));
+		assertSameBytes(members);
+	}
+
+	@Test
+	public void testBgzf() throws IOException {
+		Path file = tmpDir.resolve("bgzf.gz");
+		Files.write(file, bgzf(data));
+		assertSameBytes(file);
+	}
+
+	@Test
+	public void testMixed() throws IOException {
+		int half = data.length / 2;
+		// BGZF blocks are inflated in parallel until a plain member is found
+		Path bgzfFirst = tmpDir.resolve("bgzf_first.gz");
+		Files.write(bgzfFirst, concat(bgzf(Arrays.copyOf(data, half)), gzip(Arrays.copyOfRange(data, half, data.length))));
+		assertSameBytes(bgzfFirst);
+
+		Path plainFirst = tmpDir.resolve("plain_first.gz");
+		Files.write(plainFirst, concat(gzip(Arrays.copyOf(data, half)), bgzf(Arrays.copyOfRange(data, half, data.length))));
+		assertSameBytes(plainFirst);
+	}
+
+	@Test
+	public void testEmpty() throws IOException {
+		// no bytes at all reads as empty data, GZIPInputStream fails
+		Path empty = tmpDir.resolve("empty.gz");
+		Files.write(empty, new byte[0]);
+		for(ExecutorService executor: new ExecutorService[] {null, executorService}) {
+			assertArrayEquals(new byte[0], readAll(new ParallelGzipInputStream(empty, executor)));
+		}
+
+		Path emptyGzip = tmpDir.resolve("empty_gzip.gz");
+		Files.write(emptyGzip, gzip(new byte[0]));
+		assertSameBytes(emptyGzip);
+
+		Path emptyBgzf = tmpDir.resolve("empty_bgzf.gz");
+		Files.write(emptyBgzf, bgzf(new byte[0]));
+		assertSameBytes(emptyBgzf);
+	}
+
+	@Test
+	public void testTruncated() throws IOException {
+		byte[] bgzf = bgzf(data);
+		byte[] gzip = gzip(data);
+		// in the middle of a block and in the middle of the gzip trailer
+		assertFails(Arrays.copyOf(bgzf, bgzf.length / 2 + 7));
+		assertFails(Arrays.copyOf(gzip, gzip.length / 2));
+		assertFails(Arrays.copyOf(gzip, gzip.length - 3));
+	}
+
+	@Test
+	public void testCorrupt() throws IOException {
+		byte[] bgzf = bgzf(data);
+		bgzf[bgzf.length / 2] ^= 0x55;
+		assertFails(bgzf);
+
+		byte[] gzip = gzip(data);
+		gzip[gzip.length / 2] ^= 0x55;
+		assertFails(gzip);
+
+		// CRC of the first block
+		bgzf = bgzf(data);
+		int blockSize = ((bgzf[16] & 0xff) | ((bgzf[17] & 0xff) << 8)) + 1;
+		bgzf[blockSize - 8] ^= 1;
+		assertFails(bgzf);
+	}
+
+	@Test
+	public void testCloseBeforeEnd() throws IOException, InterruptedException {
+		Path file = tmpDir.resolve("close.gz");
+		Files.write(file, bgzf(data));
+		for(ExecutorService executor: new ExecutorService[] {null, executorService}) {
+			InputStream in = new ParallelGzipInputStream(file, executor);
+			assertEquals(data[0] & 0xff, in.read());
+			in.close();
+			in.close();
+			try {
+				in.read();
+				fail("Read after close");
+			} catch (IOException e) {
+				// expected
+			}
+		}
+		// the read-ahead threads finish, they were blocked on the full queue
+		long deadline = System.currentTimeMillis() + 10000;
+		while(hasReadAheadThread("close.gz") && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertFalse(hasReadAheadThread("close.gz"));
+	}
+
+	@Test
+	public void testInputFiles() throws IOException {
+		Path file = tmpDir.resolve("lines.gz");
+		Files.write(file, bgzf(data));
+		String expected = readLines(new BufferedReader(new InputStreamReader(new GZIPInputStream(Files.newInputStream(file)))));
+		for(int numThreads: new int[] {1, 3}) {
+			InputFiles.setNumThreads(numThreads);
+			assertEquals(expected, readLines(InputFiles.newGzipBufferedReader(file)));
+		}
+		InputFiles.setNumThreads(Runtime.getRuntime().availableProcessors());
+	}
+
+	private void assertSameBytes(Path file) throws IOException {
+		byte[] expected = readAll(new GZIPInputStream(Files.newInputStream(file)));
+		for(ExecutorService executor: new ExecutorService[] {null, executorService}) {
+			assertArrayEquals(file.getFileName().toString(), expected, readAll(new ParallelGzipInputStream(file, executor)));
+		}
+	}
+
+	private void assertFails(byte[] bytes) throws IOException {
+		Path file = tmpDir.resolve("bad.gz");
+		Files.write(file, bytes);
+		try {
+			readAll(new GZIPInputStream(Files.newInputStream(file)));
+			fail("GZIPInputStream read a bad file");
+		} catch (IOException e) {
+			// expected
+		}
+		for(ExecutorService executor: new ExecutorService[] {null, executorService}) {
+			InputStream in = new ParallelGzipInputStream(file, executor);
+			try {
+				readAll(in);
+				fail("ParallelGzipInputStream read a bad file");
+			} catch (IOException e) {
+				// expected
+			}
+			in.close();
+		}
+		Files.delete(file);
+	}
+
+	private static boolean hasReadAheadThread(String fileName) {
+		for(Thread thread: Thread.getAllStackTraces().keySet()) {
+			if(thread.getName().equals("gzip-read-ahead " + fileName) && thread.isAlive()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static byte[] gzip(byte[] bytes) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		OutputStream gzip = new GZIPOutputStream(out);
+		gzip.write(bytes);
+		gzip.close();
+		return out.toByteArray();
+	}
+
+	static byte[] bgzf(byte[] bytes) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		OutputStream bgzf = new BlockGzipOutputStream(out, null, 1);
+		bgzf.write(bytes);
+		bgzf.close();
+		return out.toByteArray();
+	}
+
+	private static byte[] concat(byte[] a, byte[] b) {
+		byte[] bytes = Arrays.copyOf(a, a.length + b.length);
+		System.arraycopy(b, 0, bytes, a.length, b.length);
+		return bytes;
+	}
+
+	/**
+	 * Reads with different buffer sizes and single bytes, the stream is closed.
+	 */
+	static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[100000];
+		int[] sizes = {1, 7, 4096, 100000};
+		int read = 0;
+		try {
+			for(int i = 0; read >= 0; i++) {
+				if(i % 5 == 0) {
+					read = in.read();
+					if(read >= 0) {
+						out.write(read);
+					}
+				}else {
+					read = in.read(buffer, 0, sizes[i % sizes.length]);
+					if(read > 0) {
+						out.write(buffer, 0, read);
+					}
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return out.toByteArray();
+	}
+
+	private static String readLines(BufferedReader br) throws IOException {
+		StringBuilder lines = new StringBuilder();
+		String line;
+		while((line = br.readLine()) != null) {
+			lines.append(line).append('\n');
+		}
+		br.close();
+		return lines.toString();
+	}
+}
@@ -0,0 +1,159 @@
+package org.bioinfo.cellbase.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PositionalLineReaderTest {
+
+	@Test
+	public void testSameLinesAsRandomAccessFile() throws IOException {
+		Path file = Files.createTempFile("positional_reader_test", ".txt");
+		Random random = new Random(1);
+		// '\n', '\r' and "\r\n" terminators, multi-byte characters, lines longer than the buffer, no terminator at the end
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		List<Long> offsets = new ArrayList<>();
+		String[] terminators = {"\n", "\r", "\r\n"};
+		for(int i = 0; i < 2000; i++) {
+			offsets.add((long) out.size());
+			int length = (random.nextInt(50) == 0) ? random.nextInt(300) : random.nextInt(40);
+			StringBuilder line = new StringBuilder().append(i).append('\t');
+			for(int j = 0; j < length; j++) {
+				line.append((random.nextInt(20) == 0) ? 'é' : (char) ('a' + random.nextInt(26)));
+			}
+			out.write(line.toString().getBytes("UTF-8"));
+			out.write(terminators[random.nextInt(3)].getBytes());
+		}
+		offsets.add((long) out.size());
+		out.write("last\tline".getBytes());
+		Files.write(file, out.toByteArray());
+
+		long[] sortedOffsets = new long[offsets.size() + 2];
+		for(int i = 0; i < offsets.size(); i++) {
+			sortedOffsets[i] = offsets.get(i);
+		}
+		// skipped offsets
+		sortedOffsets[offsets.size()] = -1;
+		sortedOffsets[offsets.size() + 1] = out.size();
+		RandomAccessFile raf = new RandomAccessFile(file.toFile(), "r");
+		List<String> expected = readLines(raf, sortedOffsets);
+		raf.close();
+		assertEquals(offsets.size(), expected.size());
+		assertEquals("last\tline", expected.get(expected.size() - 1));
+		for(int bufferSize: new int[] {PositionalLineReader.DEFAULT_BUFFER_SIZE, 100, 1}) {
+			PositionalLineReader reader = new PositionalLineReader(file, bufferSize);
+			assertEquals(expected, reader.readLines(sortedOffsets));
+			// backwards too
+			for(int i = offsets.size() - 1; i >= 0; i -= 7) {
+				assertEquals(expected.get(i), reader.readLine(offsets.get(i)));
+			}
+			assertNull(reader.readLine(out.size()));
+			reader.close();
+		}
+		Files.delete(file);
+	}
+
+	@Test
+	public void testThroughput() throws IOException {
+		Path file = Files.createTempFile("positional_reader_test", ".txt");
+		Random random = new Random(2);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		List<Long> offsets = new ArrayList<>();
+		for(int i = 0; i < 100000; i++) {
+			offsets.add((long) out.size());
+			out.write((i + "\t" + random.nextInt(1000000) + "\tENST0000" + random.nextInt(100000) + "\tmissense_variant,splice_region_variant\t" + random.nextInt(5000) + "\n").getBytes());
+		}
+		Files.write(file, out.toByteArray());
+
+		// the rows of a variation, few lines close to each other, in increasing offsets
+		List<long[]> queries = new ArrayList<>();
+		int line = 0;
+		while(line < offsets.size()) {
+			long[] query = new long[Math.min(1 + random.nextInt(4), offsets.size() - line)];
+			for(int i = 0; i < query.length; i++) {
+				query[i] = offsets.get(line + i);
+			}
+			queries.add(query);
+			line += query.length + random.nextInt(20);
+		}
+		// first rounds warm up the JIT
+		for(int i = 0; i < 3; i++) {
+			benchmark(file, queries, i == 2);
+		}
+		Files.delete(file);
+	}
+
+	private static void benchmark(Path file, List<long[]> queries, boolean print) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file.toFile(), "r");
+		long start = System.nanoTime();
+		long numChars = 0;
+		List<String> lastLines = null;
+		for(long[] query: queries) {
+			lastLines = readLines(raf, query);
+			numChars += numChars(lastLines);
+		}
+		long randomAccessFileTime = System.nanoTime() - start;
+		raf.close();
+
+		PositionalLineReader reader = new PositionalLineReader(file);
+		start = System.nanoTime();
+		long readerNumChars = 0;
+		List<String> readerLastLines = null;
+		for(long[] query: queries) {
+			readerLastLines = reader.readLines(query);
+			readerNumChars += numChars(readerLastLines);
+		}
+		long readerTime = System.nanoTime() - start;
+		long numReads = reader.getNumReads();
+		reader.close();
+
+		assertEquals(numChars, readerNumChars);
+		assertEquals(lastLines, readerLastLines);
+		// one read call per block instead of one per byte
+		assertTrue(numReads <= Files.size(file) / PositionalLineReader.DEFAULT_BUFFER_SIZE + queries.size());
+		if(print) {
+			System.out.println(queries.size() + " queries: RandomAccessFile.readLine " + mbPerSecond(numChars, randomAccessFileTime) + " MB/s, PositionalLineReader "
+					+ mbPerSecond(readerNumChars, readerTime) + " MB/s, " + numReads + " read calls");
+		}
+	}
+
+	/**
+	 * Reads the lines as the SQLite offset lookups did, RandomAccessFile seek and readLine.
+	 */
+	private static List<String> readLines(RandomAccessFile raf, long[] offsets) throws IOException {
+		List<String> lines = new ArrayList<>(offsets.length);
+		for(long offset: offsets) {
+			if(offset >= 0) {
+				raf.seek(offset);
+				String line = raf.readLine();
+				if(line != null) {
+					lines.add(line);
+				}
+			}
+		}
+		return lines;
+	}
+
+	private static long numChars(List<String> lines) {
+		long numChars = 0;
+		for(String line: lines) {
+			numChars += line.length();
+		}
+		return numChars;
+	}
+
+	private static long mbPerSecond(long numChars, long nanos) {
+		return numChars * 1000 / Math.max(nanos, 1);
+	}
+}
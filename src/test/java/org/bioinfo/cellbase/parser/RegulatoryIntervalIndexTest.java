@@ -0,0 +1,160 @@
+package org.bioinfo.cellbase.parser;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.bioinfo.cellbase.lib.common.GenericFeature;
+import org.junit.Test;
+
+import com.google.gson.Gson;
+
+public class RegulatoryIntervalIndexTest {
+
+	private static final List<String> CHROMOSOMES = Arrays.asList("X", "1", "2", "10");
+
+	@Test
+	public void testQueryRanks() throws IOException {
+		Path dir = Files.createTempDirectory("interval_index_test");
+		Path indexFile = dir.resolve("regulation.idx");
+		Random random = new Random(1);
+		List<int[][]> sortedFeatures = new ArrayList<>();
+		RegulatoryIntervalIndex.Writer indexWriter = new RegulatoryIntervalIndex.Writer(indexFile, RegulatoryParser.TABLE_NAMES);
+		for(String chromosome: CHROMOSOMES) {
+			// small trees are only scanned, big ones are walked
+			int size = chromosome.equals("10") ? 0 : (chromosome.equals("X") ? 1 + random.nextInt(20) : 1000 + random.nextInt(3000));
+			List<int[]> features = new ArrayList<>(size);
+			for(int i = 0; i < size; i++) {
+				// few distinct starts to have ties, some long features
+				int start = random.nextInt(size * 2);
+				int length = (random.nextInt(20) == 0) ? random.nextInt(size * 2) : random.nextInt(50);
+				features.add(new int[] {start, start + length, i});
+			}
+			Collections.shuffle(features, random);
+			RegulatoryIntervalIndex.Writer.ChromosomeWriter chromosomeWriter = indexWriter.newChromosome(chromosome);
+			for(int[] feature: features) {
+				chromosomeWriter.add(0, feature[0], feature[1], "line\t" + feature[2]);
+			}
+			chromosomeWriter.close();
+			// features with the same start keep the order they were added
+			sortedFeatures.add(sort(features));
+		}
+		indexWriter.close();
+		assertNoTempFiles(dir, indexFile);
+
+		RegulatoryIntervalIndex index = new RegulatoryIntervalIndex(indexFile);
+		assertEquals(Arrays.asList("1", "2", "X"), new ArrayList<>(index.getChromosomes()));
+		for(int c = 0; c < CHROMOSOMES.size(); c++) {
+			String chromosome = CHROMOSOMES.get(c);
+			int[][] features = sortedFeatures.get(c);
+			assertEquals(features.length, index.size(chromosome));
+			for(int q = 0; q < 20000; q++) {
+				int start = random.nextInt(features.length * 2 + 10) - 5;
+				int end = start + ((random.nextInt(10) == 0) ? random.nextInt(features.length + 1) : random.nextInt(10));
+				assertArrayEquals(chromosome + ":" + start + "-" + end, overlap(features, start, end), index.queryRanks(chromosome, start, end));
+			}
+		}
+		assertEquals(0, index.queryRanks("MT", 0, Integer.MAX_VALUE).length);
+		index.close();
+		Files.delete(indexFile);
+		Files.delete(dir);
+	}
+
+	@Test
+	public void testQuery() throws IOException {
+		Path dir = Files.createTempDirectory("interval_index_test");
+		Path indexFile = dir.resolve("regulation.idx");
+		int mirnaTable = RegulatoryParser.TABLE_NAMES.indexOf("mirna_uniq");
+		int annotatedTable = RegulatoryParser.TABLE_NAMES.indexOf("annotated_features");
+		Random random = new Random(2);
+		List<int[]> features = new ArrayList<>();
+		List<String> lines = new ArrayList<>();
+		RegulatoryIntervalIndex.Writer indexWriter = new RegulatoryIntervalIndex.Writer(indexFile, RegulatoryParser.TABLE_NAMES);
+		RegulatoryIntervalIndex.Writer.ChromosomeWriter chromosomeWriter = indexWriter.newChromosome("1");
+		for(int i = 0; i < 500; i++) {
+			int start = 1 + random.nextInt(10000);
+			int end = start + random.nextInt(300);
+			int table = (i % 2 == 0) ? mirnaTable : annotatedTable;
+			String line = (table == mirnaTable)
+					? "chr1\tmiRBase\tmiRNA\t" + start + "\t" + end + "\t.\t+\t.\tname=hsa-mir-" + i
+					: "chr1\tRegulatory_Build\tCTCF\t" + start + "\t" + end + "\t7.5\t.\t.\tname=CTCF;alias=ctcf_" + i + ";class=TF;cell_type=HeLa-S3";
+			chromosomeWriter.add(table, start, end, line);
+			features.add(new int[] {start, end, i, table});
+			lines.add(line);
+		}
+		chromosomeWriter.close();
+		indexWriter.close();
+		assertEquals(500, indexWriter.size());
+
+		Gson gson = new Gson();
+		int[][] sortedFeatures = sort(features);
+		RegulatoryIntervalIndex index = new RegulatoryIntervalIndex(indexFile);
+		for(int q = 0; q < 200; q++) {
+			int start = random.nextInt(10500);
+			int end = start + random.nextInt(500);
+			List<String> expected = new ArrayList<>();
+			for(int rank: overlap(sortedFeatures, start, end)) {
+				int[] feature = sortedFeatures[rank];
+				GenericFeature genericFeature = RegulatoryParser.getGenericFeature(new TsvFieldCursor(lines.get(feature[2])), RegulatoryParser.TABLE_NAMES.get(feature[3]));
+				genericFeature.setChromosome("1");
+				expected.add(gson.toJson(genericFeature));
+			}
+			List<String> actual = new ArrayList<>();
+			for(GenericFeature genericFeature: index.query("1", start, end)) {
+				actual.add(gson.toJson(genericFeature));
+			}
+			assertEquals(expected, actual);
+		}
+		assertEquals(0, index.query("2", 0, 20000).size());
+		index.close();
+		Files.delete(indexFile);
+		Files.delete(dir);
+	}
+
+	private static int[][] sort(List<int[]> features) {
+		int[][] sortedFeatures = features.toArray(new int[features.size()][]);
+		// Arrays.sort of objects is stable
+		Arrays.sort(sortedFeatures, new Comparator<int[]>() {
+			@Override
+			public int compare(int[] a, int[] b) {
+				return Integer.compare(a[0], b[0]);
+			}
+		});
+		return sortedFeatures;
+	}
+
+	private static int[] overlap(int[][] sortedFeatures, int start, int end) {
+		List<Integer> ranks = new ArrayList<>();
+		for(int i = 0; i < sortedFeatures.length; i++) {
+			if(sortedFeatures[i][0] <= end && start <= sortedFeatures[i][1]) {
+				ranks.add(i);
+			}
+		}
+		int[] result = new int[ranks.size()];
+		for(int i = 0; i < result.length; i++) {
+			result[i] = ranks.get(i);
+		}
+		return result;
+	}
+
+	private static void assertNoTempFiles(Path dir, Path indexFile) throws IOException {
+		try(DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+			for(Path file: files) {
+				if(!file.equals(indexFile)) {
+					fail("Temporary file left: " + file);
+				}
+			}
+		}
+	}
+}
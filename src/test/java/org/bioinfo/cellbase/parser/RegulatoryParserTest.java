@@ -1,10 +1,40 @@
 package org.bioinfo.cellbase.parser;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.bioinfo.cellbase.common.regulatory.RegulatoryFeatureChunk;
+import org.bioinfo.cellbase.lib.common.GenericFeature;
+import org.bioinfo.cellbase.lib.common.GenericFeatureChunk;
 import org.junit.Test;
 
 public class RegulatoryParserTest {
@@ -174,4 +204,223 @@ public class RegulatoryParserTest {
 
 	}
 
+	@Test
+	public void testChunksMatchBaseline() throws IOException {
+		Path inDir = Files.createTempDirectory("regulation_in");
+		Path outDir = Files.createTempDirectory("regulation_out");
+		writeGffFiles(inDir, new Random(2), 5000);
+		for(int chunksize: new int[] {0, 700}) {
+			String expected = getBaselineChunks(inDir, chunksize, false);
+			for(int numThreads: new int[] {1, 4}) {
+				Path outPath = outDir.resolve("regulation_" + chunksize + "_" + numThreads + ".json");
+				RegulatoryParser.parseRegulatoryGzipFilesToJson(inDir, chunksize, outPath, outDir, false, numThreads);
+				assertEquals(expected, new String(Files.readAllBytes(outPath)));
+				Files.delete(outPath);
+			}
+		}
+		assertEquals(new ArrayList<Path>(), list(outDir));
+		for(Path file: list(inDir)) {
+			Files.delete(file);
+		}
+		Files.delete(inDir);
+		Files.delete(outDir);
+	}
+
+	@Test
+	public void testCombineTables() throws IOException {
+		Path inDir = Files.createTempDirectory("regulation_in");
+		Path outDir = Files.createTempDirectory("regulation_out");
+		writeGffFiles(inDir, new Random(3), 5000);
+		String expected = getBaselineChunks(inDir, 700, true);
+		for(int numThreads: new int[] {1, 4}) {
+			Path outPath = outDir.resolve("regulation_" + numThreads + ".json");
+			RegulatoryParser.parseRegulatoryGzipFilesToJson(inDir, 700, outPath, outDir, true, numThreads);
+			String chunks = new String(Files.readAllBytes(outPath));
+			assertEquals(expected, chunks);
+			Files.delete(outPath);
+
+			int numDottedTypes = 0;
+			for(String chunk: chunks.split("\n")) {
+				JsonObject jsonChunk = new JsonParser().parse(chunk).getAsJsonObject();
+				assertNoDotInFieldNames(jsonChunk);
+				JsonArray features = jsonChunk.getAsJsonArray("features");
+				int numPositions = 0;
+				for(JsonElement featureTypePositions: jsonChunk.getAsJsonArray("featureTypeIndex")) {
+					String featureType = featureTypePositions.getAsJsonObject().get("featureType").getAsString();
+					if(featureType.contains(".")) {
+						numDottedTypes++;
+					}
+					for(JsonElement position: featureTypePositions.getAsJsonObject().getAsJsonArray("positions")) {
+						assertEquals(featureType, features.get(position.getAsInt()).getAsJsonObject().get("featureType").getAsString());
+						numPositions++;
+					}
+				}
+				assertEquals(features.size(), numPositions);
+			}
+			assertTrue(numDottedTypes > 0);
+		}
+		for(Path file: list(inDir)) {
+			Files.delete(file);
+		}
+		Files.delete(inDir);
+		Files.delete(outDir);
+	}
+
+	@Test
+	public void testFailedBuildCleansUp() throws IOException {
+		Path inDir = Files.createTempDirectory("regulation_in");
+		Path outDir = Files.createTempDirectory("regulation_out");
+		Path tmpDir = Files.createTempDirectory("regulation_tmp");
+		writeGffFiles(inDir, new Random(1), 2000, "chr2\tsrc\tfeat\t10\t20\t.\t+\t.\tName=NoMatrix");
+		try {
+			// a motif without matrix fails the worker of chromosome 2
+			RegulatoryParser.parseRegulatoryGzipFilesToJson(inDir, 0, outDir.resolve("regulation.json"), tmpDir, false, 4, outDir.resolve("regulation.idx"));
+			fail("Malformed motif line parsed");
+		} catch (IOException e) {
+			// expected
+		}
+		// no parts, index temporary files or groups are left
+		assertEquals(new ArrayList<Path>(), list(outDir));
+		assertEquals(new ArrayList<Path>(), list(tmpDir));
+		for(Path file: list(inDir)) {
+			Files.delete(file);
+		}
+		Files.delete(inDir);
+		Files.delete(outDir);
+		Files.delete(tmpDir);
+	}
+
+	/**
+	 * Chunks as the SQLite build wrote them: for each chromosome and table the features of seqname
+	 * 'chr' + chromosome in file order are put in every chunk they overlap. Chunks are sorted by id
+	 * and their features by start, keeping the file order of equal starts, as the sweep writes them.
+	 * Combined, the features of the tables of a chromosome go together in table order.
+	 */
+	private String getBaselineChunks(Path dir, int chunksize, boolean combineTables) throws IOException {
+		int size = (chunksize <= 0) ? RegulatoryParser.CHUNKSIZE : chunksize;
+		List<String> fileNames = Arrays.asList("AnnotatedFeatures.gff.gz", "MotifFeatures.gff.gz", "RegulatoryFeatures_MultiCell.gff.gz", "mirna_uniq.gff.gz");
+		List<List<String>> tables = new ArrayList<>();
+		Set<String> chromosomes = new HashSet<>();
+		for(String fileName: fileNames) {
+			List<String> lines = new ArrayList<>();
+			BufferedReader br = new BufferedReader(new InputStreamReader(new GZIPInputStream(Files.newInputStream(dir.resolve(fileName)))));
+			String line;
+			while((line = br.readLine()) != null) {
+				String seqname = line.substring(0, line.indexOf('\t'));
+				if(seqname.toLowerCase().startsWith("chr")) {
+					chromosomes.add(seqname.replace("chr", ""));
+				}
+				lines.add(line);
+			}
+			br.close();
+			tables.add(lines);
+		}
+
+		StringBuilder chunks = new StringBuilder();
+		for(String chromosome: chromosomes) {
+			List<GenericFeature> features = new ArrayList<>();
+			for(int i = 0; i < tables.size(); i++) {
+				for(String line: tables.get(i)) {
+					if(line.startsWith("chr" + chromosome + "\t")) {
+						GenericFeature feature = RegulatoryParser.getGenericFeature(new TsvFieldCursor(line), RegulatoryParser.TABLE_NAMES.get(i));
+						feature.setChromosome(chromosome);
+						features.add(feature);
+					}
+				}
+				if(!combineTables || i == tables.size() - 1) {
+					appendChunks(chromosome, features, size, combineTables, chunks);
+					features = new ArrayList<>();
+				}
+			}
+		}
+		return chunks.toString();
+	}
+
+	private void appendChunks(String chromosome, List<GenericFeature> features, int size, boolean combineTables, StringBuilder chunks) {
+		// Collections.sort is stable
+		Collections.sort(features, new Comparator<GenericFeature>() {
+			@Override
+			public int compare(GenericFeature a, GenericFeature b) {
+				return Integer.compare(a.getStart(), b.getStart());
+			}
+		});
+		TreeMap<Integer, GenericFeatureChunk> featureChunks = new TreeMap<>();
+		for(GenericFeature feature: features) {
+			for(int id = feature.getStart() / size; id <= feature.getEnd() / size; id++) {
+				if(!featureChunks.containsKey(id)) {
+					featureChunks.put(id, new GenericFeatureChunk(chromosome, id, (id == 0) ? 1 : id * size, id * size + size - 1, new ArrayList<GenericFeature>()));
+				}
+				featureChunks.get(id).getFeatures().add(feature);
+			}
+		}
+		for(GenericFeatureChunk chunk: featureChunks.values()) {
+			Object jsonChunk = combineTables ? new RegulatoryFeatureChunk(chromosome, chunk.getChunkId(), chunk.getStart(), chunk.getEnd(), chunk.getFeatures()) : chunk;
+			chunks.append(gson.toJson(jsonChunk)).append('\n');
+		}
+	}
+
+	private static void assertNoDotInFieldNames(JsonElement element) {
+		if(element.isJsonObject()) {
+			for(Map.Entry<String, JsonElement> entry: element.getAsJsonObject().entrySet()) {
+				assertFalse(entry.getKey(), entry.getKey().contains("."));
+				assertNoDotInFieldNames(entry.getValue());
+			}
+		}else if(element.isJsonArray()) {
+			for(JsonElement item: element.getAsJsonArray()) {
+				assertNoDotInFieldNames(item);
+			}
+		}
+	}
+
+	/**
+	 * Writes the four GFF files of the regulation build, lines of some chromosomes are not grouped
+	 * and some seqnames are not chromosomes. Extra lines are appended to the motif file.
+	 */
+	static void writeGffFiles(Path dir, Random random, int numLines, String... motifLines) throws IOException {
+		List<String> seqnames = Arrays.asList("chr1", "chr2", "chr10", "chrX", "chrMT", "GL000191.1", "Chr3");
+		List<String> fileNames = Arrays.asList("AnnotatedFeatures.gff.gz", "MotifFeatures.gff.gz", "RegulatoryFeatures_MultiCell.gff.gz", "mirna_uniq.gff.gz");
+		for(int f = 0; f < fileNames.size(); f++) {
+			Writer writer = new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(dir.resolve(fileNames.get(f)))));
+			for(int i = 0; i < numLines; i++) {
+				String seqname = (random.nextInt(4) == 0) ? seqnames.get(random.nextInt(seqnames.size())) : seqnames.get(i * seqnames.size() / numLines);
+				int start = 1 + random.nextInt(50000);
+				int end = start + ((random.nextInt(10) == 0) ? random.nextInt(8000) : random.nextInt(300));
+				String group;
+				switch(f) {
+				case 0:
+					group = "Name=A" + i + ";Alias=a" + i + ";Class=c" + (i % 3) + ";Cell_type=K562";
+					break;
+				case 1:
+					group = "Name=Foo" + i + ":MA" + (i % 100);
+					break;
+				case 2:
+					group = "Name=R" + i;
+					break;
+				default:
+					group = "Name=mir-" + i;
+					break;
+				}
+				// Ensembl feature types can have dots
+				String featureType = (i % 5 == 0) ? "H2A.Z" : "feat" + (i % 4);
+				writer.write(seqname + "\tsrc\t" + featureType + "\t" + start + "\t" + end + "\t.\t" + ((i % 2 == 0) ? "+" : "-") + "\t.\t" + group + "\n");
+			}
+			if(f == 1) {
+				for(String motifLine: motifLines) {
+					writer.write(motifLine + "\n");
+				}
+			}
+			writer.close();
+		}
+	}
+
+	static List<Path> list(Path dir) throws IOException {
+		List<Path> files = new ArrayList<>();
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for(Path file: stream) {
+				files.add(file);
+			}
+		}
+		return files;
+	}
+
 }
@@ -0,0 +1,105 @@
+package org.bioinfo.cellbase.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.bioinfo.cellbase.common.variation.TranscriptVariation;
+import org.junit.Test;
+
+import com.google.gson.Gson;
+
+public class TranscriptVariationDecoderTest {
+
+	private Gson gson = new Gson();
+
+	@Test
+	public void testSameFieldsAsSplit() {
+		Random random = new Random(1);
+		// known lists, lists out of code order or with unknown terms, \N
+		String[] consequenceTypes = {"missense_variant", "intron_variant", "missense_variant,splice_region_variant", "splice_region_variant,missense_variant",
+				"intron_variant,intron_variant", "unknown_variant", "intron_variant,unknown_variant", "\\N"};
+		String[] predictions = {"benign", "probably damaging", "tolerated", "\\N"};
+		TranscriptVariationDecoder decoder = new TranscriptVariationDecoder();
+		for(int i = 0; i < 5000; i++) {
+			// past the shared values limit of a column after a while
+			String polyphenPrediction = (i > 2000) ? "prediction" + random.nextInt(3000) : predictions[random.nextInt(predictions.length)];
+			String line = i + "\t" + random.nextInt(100000) + "\tENST0000" + random.nextInt(100000) + "\t" + randomNull(random, "A/G") + "\t" + randomNull(random, random.nextInt(2))
+					+ "\t" + consequenceTypes[random.nextInt(consequenceTypes.length)] + "\t" + randomNull(random, random.nextInt(5000)) + "\t" + randomNull(random, -random.nextInt(5000))
+					+ "\t\\N\t" + random.nextInt(5000) + "\t" + randomNull(random, random.nextInt(1000)) + "\t" + random.nextInt(1000) + "\t" + randomNull(random, random.nextInt(5000))
+					+ "\tgCc/gTc\t" + randomNull(random, "A/V") + "\t\\N\tENST00000456328.2:c." + random.nextInt(5000) + "A>G\t\\N\t" + polyphenPrediction + "\t"
+					+ randomNull(random, random.nextFloat()) + "\t" + predictions[random.nextInt(predictions.length)] + "\t" + (random.nextInt(100) / 100f);
+			TranscriptVariation expected = parseSplit(line);
+			TranscriptVariation transcriptVariation = decoder.decode(line);
+			assertEquals(line, gson.toJson(expected), gson.toJson(transcriptVariation));
+			assertEquals(line, expected.getConsequenceTypes(), transcriptVariation.getConsequenceTypes());
+		}
+	}
+
+	@Test
+	public void testSharedValues() {
+		TranscriptVariationDecoder decoder = new TranscriptVariationDecoder();
+		String line = "1\t2\tENST00000456328\tA/G\t0\tmissense_variant,splice_region_variant\t1\t2\t3\t4\t5\t6\t7\tgCc/gTc\tA/V\t\\N\t\\N\t\\N\tbenign\t0.1\ttolerated\t0.5";
+		TranscriptVariation first = decoder.decode(line);
+		TranscriptVariation second = decoder.decode(line.replace("ENST00000456328", "ENST00000450305"));
+		assertEquals("ENST00000450305", second.getTranscriptId());
+		assertSame(first.getSomatic(), second.getSomatic());
+		assertSame(first.getConsequenceTypes(), second.getConsequenceTypes());
+		assertSame(first.getPolyphenPrediction(), second.getPolyphenPrediction());
+		assertSame(first.getSiftPrediction(), second.getSiftPrediction());
+		// "Aa" and "BB" have the same hash code
+		assertEquals("Aa", decoder.decode(line.replace("benign", "Aa")).getPolyphenPrediction());
+		assertEquals("BB", decoder.decode(line.replace("benign", "BB")).getPolyphenPrediction());
+		try {
+			first.getConsequenceTypes().add("intron_variant");
+			fail("Shared consequence types can be modified");
+		}catch(UnsupportedOperationException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testMissingColumns() {
+		TranscriptVariationDecoder decoder = new TranscriptVariationDecoder();
+		try {
+			decoder.decode("1\t2\tENST00000456328\tA/G\t0\tmissense_variant");
+			fail("Line with 6 columns decoded");
+		}catch(ArrayIndexOutOfBoundsException e) {
+			// expected, as String.split
+		}
+	}
+
+	private static String randomNull(Random random, Object value) {
+		return (random.nextInt(5) == 0) ? "\\N" : String.valueOf(value);
+	}
+
+	/**
+	 * Parses the line with String.split as VariationParser did before the decoder.
+	 */
+	private static TranscriptVariation parseSplit(String rtv) {
+		String[] transcriptVariationFields = rtv.split("\t");
+		return new TranscriptVariation((transcriptVariationFields[2] != null && !transcriptVariationFields[2].equals("\\N")) ? transcriptVariationFields[2] : ""
+				, (transcriptVariationFields[3] != null && !transcriptVariationFields[3].equals("\\N")) ? transcriptVariationFields[3] : ""
+				, (transcriptVariationFields[4] != null && !transcriptVariationFields[4].equals("\\N")) ? transcriptVariationFields[4] : ""
+				, Arrays.asList(transcriptVariationFields[5].split(","))
+				, (transcriptVariationFields[6] != null && !transcriptVariationFields[6].equals("\\N")) ? Integer.parseInt(transcriptVariationFields[6]) : 0
+				, (transcriptVariationFields[7] != null && !transcriptVariationFields[7].equals("\\N")) ? Integer.parseInt(transcriptVariationFields[7]) : 0
+				, (transcriptVariationFields[8] != null && !transcriptVariationFields[8].equals("\\N")) ? Integer.parseInt(transcriptVariationFields[8]) : 0
+				, (transcriptVariationFields[9] != null && !transcriptVariationFields[9].equals("\\N")) ? Integer.parseInt(transcriptVariationFields[9]) : 0
+				, (transcriptVariationFields[10] != null && !transcriptVariationFields[10].equals("\\N")) ? Integer.parseInt(transcriptVariationFields[10]) : 0
+				, (transcriptVariationFields[11] != null && !transcriptVariationFields[11].equals("\\N")) ? Integer.parseInt(transcriptVariationFields[11]) : 0
+				, (transcriptVariationFields[12] != null && !transcriptVariationFields[12].equals("\\N")) ? Integer.parseInt(transcriptVariationFields[12]) : 0
+				, (transcriptVariationFields[13] != null && !transcriptVariationFields[13].equals("\\N")) ? transcriptVariationFields[13] : ""
+				, (transcriptVariationFields[14] != null && !transcriptVariationFields[14].equals("\\N")) ? transcriptVariationFields[14] : ""
+				, (transcriptVariationFields[15] != null && !transcriptVariationFields[15].equals("\\N")) ? transcriptVariationFields[15] : ""
+				, (transcriptVariationFields[16] != null && !transcriptVariationFields[16].equals("\\N")) ? transcriptVariationFields[16] : ""
+				, (transcriptVariationFields[17] != null && !transcriptVariationFields[17].equals("\\N")) ? transcriptVariationFields[17] : ""
+				, (transcriptVariationFields[18] != null && !transcriptVariationFields[18].equals("\\N")) ? transcriptVariationFields[18] : ""
+				, (transcriptVariationFields[19] != null && !transcriptVariationFields[19].equals("\\N")) ? Float.parseFloat(transcriptVariationFields[19]) : 0f
+				, (transcriptVariationFields[20] != null && !transcriptVariationFields[20].equals("\\N")) ? transcriptVariationFields[20] :""
+				, (transcriptVariationFields[21] != null && !transcriptVariationFields[21].equals("\\N")) ? Float.parseFloat(transcriptVariationFields[21]) : 0f);
+	}
+}
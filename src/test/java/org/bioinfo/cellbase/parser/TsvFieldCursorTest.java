@@ -0,0 +1,173 @@
+package org.bioinfo.cellbase.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TsvFieldCursorTest {
+
+	@Test
+	public void testFields() {
+		TsvFieldCursor cursor = new TsvFieldCursor("1\t\t\\N\tabc\t");
+		// the trailing empty field is kept, String.split("\t") drops it
+		assertEquals(5, cursor.size());
+		assertEquals("1", cursor.stringAt(0));
+		assertTrue(cursor.isEmpty(1));
+		assertFalse(cursor.isNull(1));
+		assertEquals("", cursor.stringAt(1));
+		assertTrue(cursor.isNull(2));
+		assertFalse(cursor.isEmpty(2));
+		assertEquals("\\N", cursor.stringAt(2));
+		assertEquals(null, cursor.stringAt(2, null));
+		assertEquals(-1, cursor.intAt(2, -1));
+		assertEquals(0.5f, cursor.floatAt(2, 0.5f), 0);
+		assertEquals("abc", cursor.stringAt(3, null));
+		assertEquals(3, cursor.length(3));
+		assertTrue(cursor.equalsAt(3, "abc"));
+		assertFalse(cursor.equalsAt(3, "abd"));
+		assertFalse(cursor.equalsAt(3, "ab"));
+		assertEquals("abc".hashCode(), cursor.hashAt(3));
+		assertTrue(cursor.isEmpty(4));
+		assertEquals("".hashCode(), cursor.hashAt(4));
+		assertOutOfBounds(cursor, 5);
+		assertOutOfBounds(cursor, -1);
+
+		// no trailing tab, the last field ends at the end of the line
+		cursor.reset("\\N\t42");
+		assertEquals(2, cursor.size());
+		assertTrue(cursor.isNull(0));
+		assertEquals(42, cursor.intAt(1));
+		assertEquals("42", cursor.stringAt(1));
+		assertOutOfBounds(cursor, 2);
+
+		// an empty line is a single empty field, a lone tab two of them
+		cursor.reset("");
+		assertEquals(1, cursor.size());
+		assertTrue(cursor.isEmpty(0));
+		cursor.reset("\t");
+		assertEquals(2, cursor.size());
+		assertTrue(cursor.isEmpty(0));
+		assertTrue(cursor.isEmpty(1));
+		// \N only as the whole field
+		cursor.reset("\\N1\t\\\t N");
+		assertFalse(cursor.isNull(0));
+		assertFalse(cursor.isNull(1));
+		assertFalse(cursor.isNull(2));
+	}
+
+	@Test
+	public void testSameFieldsAsSplit() {
+		Random random = new Random(1);
+		String[] values = {"", "\\N", "rs123", "ENST00000456328", "missense_variant,splice_region_variant", "A/G", " ", "é"};
+		TsvFieldCursor cursor = new TsvFieldCursor();
+		for(int i = 0; i < 1000; i++) {
+			// more fields than the initial capacity sometimes
+			int numFields = 1 + random.nextInt((random.nextInt(10) == 0) ? 100 : 25);
+			StringBuilder line = new StringBuilder();
+			for(int j = 0; j < numFields; j++) {
+				if(j > 0) {
+					line.append('\t');
+				}
+				line.append(values[random.nextInt(values.length)]);
+			}
+			String[] fields = line.toString().split("\t", -1);
+			cursor.reset(line);
+			assertEquals(fields.length, cursor.size());
+			for(int j = 0; j < fields.length; j++) {
+				assertEquals(fields[j], cursor.stringAt(j));
+				assertEquals(fields[j].isEmpty(), cursor.isEmpty(j));
+				assertEquals(fields[j].equals("\\N"), cursor.isNull(j));
+				assertEquals(fields[j].hashCode(), cursor.hashAt(j));
+				assertTrue(cursor.equalsAt(j, fields[j]));
+			}
+		}
+	}
+
+	@Test
+	public void testNumbers() {
+		String[] ints = {"0", "7", "-7", "+7", "007", "2147483647", "-2147483648", "2147483648", "-2147483649", "99999999999999999999", "", "-", "1.5", "1e3", "12a", " 1"};
+		TsvFieldCursor cursor = new TsvFieldCursor();
+		for(String value: ints) {
+			cursor.reset("x\t" + value);
+			assertEquals(value, parseInt(value), intAt(cursor, 1));
+			assertEquals(value, parseLong(value), longAt(cursor, 1));
+		}
+
+		Random random = new Random(1);
+		String[] floats = {"0", "-0", "0.0", ".5", "5.", "1.000", "0.0001234567", "3.4028235E38", "1e-3", "NaN", "-Infinity", "1.23456789", "123456789", "0.12345678901", "", ".",
+				"-", "1..2", "1.2.3", "0x1p3"};
+		for(int i = 0; i < 10000 + floats.length; i++) {
+			String value;
+			if(i < floats.length) {
+				value = floats[i];
+			}else {
+				// SIFT and PolyPhen scores, plain decimals with up to 7 significant digits
+				value = (random.nextBoolean() ? "" : "-") + random.nextInt(1000) + "." + random.nextInt(10000);
+			}
+			cursor.reset(value + "\t");
+			assertEquals(value, parseFloat(value), floatAt(cursor, 0));
+		}
+	}
+
+	private static void assertOutOfBounds(TsvFieldCursor cursor, int field) {
+		try {
+			cursor.stringAt(field);
+			fail("Field " + field + " of " + cursor.size());
+		}catch(ArrayIndexOutOfBoundsException e) {
+			// expected
+		}
+	}
+
+	private static String parseInt(String value) {
+		try {
+			return String.valueOf(Integer.parseInt(value));
+		}catch(NumberFormatException e) {
+			return e.getMessage();
+		}
+	}
+
+	private static String intAt(TsvFieldCursor cursor, int field) {
+		try {
+			return String.valueOf(cursor.intAt(field));
+		}catch(NumberFormatException e) {
+			return e.getMessage();
+		}
+	}
+
+	private static String parseLong(String value) {
+		try {
+			return String.valueOf(Long.parseLong(value));
+		}catch(NumberFormatException e) {
+			return e.getMessage();
+		}
+	}
+
+	private static String longAt(TsvFieldCursor cursor, int field) {
+		try {
+			return String.valueOf(cursor.longAt(field));
+		}catch(NumberFormatException e) {
+			return e.getMessage();
+		}
+	}
+
+	private static String parseFloat(String value) {
+		try {
+			return String.valueOf(Float.floatToIntBits(Float.parseFloat(value)));
+		}catch(NumberFormatException e) {
+			return "NumberFormatException";
+		}
+	}
+
+	private static String floatAt(TsvFieldCursor cursor, int field) {
+		try {
+			return String.valueOf(Float.floatToIntBits(cursor.floatAt(field)));
+		}catch(NumberFormatException e) {
+			return "NumberFormatException";
+		}
+	}
+}
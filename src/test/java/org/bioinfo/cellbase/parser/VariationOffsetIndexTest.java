@@ -0,0 +1,112 @@
+package org.bioinfo.cellbase.parser;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+public class VariationOffsetIndexTest {
+
+	@Test
+	public void testBuild() throws IOException {
+		Path dir = Files.createTempDirectory("offset_index_test");
+		Path tableFile = dir.resolve("variation_feature.txt");
+		Path indexFile = dir.resolve("variation_feature.idx");
+
+		// ids with many lines, offsets in bytes with multi-byte characters and \r\n terminators
+		Random random = new Random(1);
+		Map<Integer, List<Long>> expected = new TreeMap<>();
+		ByteArrayOutputStream table = new ByteArrayOutputStream();
+		for(int i = 0; i < 20000; i++) {
+			int id = (i == 0) ? Integer.MAX_VALUE : random.nextInt(3000) * 7;
+			if(!expected.containsKey(id)) {
+				expected.put(id, new ArrayList<Long>());
+			}
+			expected.get(id).add((long) table.size());
+			String line = i + "\tallele_\u00e9\t" + id + "\t" + random.nextInt(100) + ((random.nextInt(4) == 0) ? "\r\n" : "\n");
+			table.write(line.getBytes("UTF-8"));
+		}
+		// last line without terminator
+		if(!expected.containsKey(14)) {
+			expected.put(14, new ArrayList<Long>());
+		}
+		expected.get(14).add((long) table.size());
+		table.write("last\tx\t14".getBytes("UTF-8"));
+		Files.write(tableFile, table.toByteArray());
+
+		// in memory, and merged from 200 runs
+		for(int maxRunSize: new int[] {1 << 20, 100}) {
+			VariationOffsetIndex.build(tableFile, 2, indexFile, maxRunSize);
+			assertTrue(Files.notExists(dir.resolve("variation_feature.idx.run0")));
+			VariationOffsetIndex index = new VariationOffsetIndex(indexFile);
+			assertEquals(20001, index.size());
+			int previousId = -1;
+			for(long rank = 0; rank < index.size(); rank++) {
+				assertTrue(index.getId(rank) >= previousId);
+				previousId = index.getId(rank);
+			}
+			for(int id = 0; id < 3000 * 7; id++) {
+				long[] offsets = index.getOffsets(id);
+				List<Long> expectedOffsets = expected.containsKey(id) ? expected.get(id) : new ArrayList<Long>();
+				assertEquals(expectedOffsets.size(), offsets.length);
+				for(int i = 0; i < offsets.length; i++) {
+					assertEquals((long) expectedOffsets.get(i), offsets[i]);
+				}
+			}
+			assertArrayEquals(new long[] {0}, index.getOffsets(Integer.MAX_VALUE));
+			assertEquals(index.size() - 1, index.lowerBound(Integer.MAX_VALUE));
+			assertEquals(index.size(), index.lowerBound(Integer.MAX_VALUE + 1L));
+			assertEquals(0, index.lowerBound(0));
+			index.close();
+		}
+
+		// the manifest is not valid once the table changes
+		Path manifestFile = dir.resolve("variation_feature.idx.manifest");
+		VariationOffsetIndex.writeManifest(tableFile, 2, indexFile, manifestFile);
+		assertTrue(VariationOffsetIndex.isValid(tableFile, 2, indexFile, manifestFile));
+		assertFalse(VariationOffsetIndex.isValid(tableFile, 3, indexFile, manifestFile));
+		RandomAccessFile file = new RandomAccessFile(tableFile.toFile(), "rw");
+		file.seek(0);
+		file.write('9');
+		file.close();
+		assertFalse(VariationOffsetIndex.isValid(tableFile, 2, indexFile, manifestFile));
+
+		Files.delete(manifestFile);
+		Files.delete(indexFile);
+		Files.delete(tableFile);
+		Files.delete(dir);
+	}
+
+	@Test
+	public void testInvalidId() throws IOException {
+		Path dir = Files.createTempDirectory("offset_index_test");
+		Path tableFile = dir.resolve("variation.txt");
+		Path indexFile = dir.resolve("variation.idx");
+		for(String table: new String[] {"1\t5\n2\tx5\n", "1\t5\n2\t\n", "1\t2147483648\n"}) {
+			Files.write(tableFile, table.getBytes());
+			try {
+				VariationOffsetIndex.build(tableFile, 1, indexFile);
+				fail("Invalid id indexed: " + table);
+			} catch (IOException e) {
+				// expected
+			}
+		}
+		Files.deleteIfExists(indexFile);
+		Files.delete(tableFile);
+		Files.delete(dir);
+	}
+}
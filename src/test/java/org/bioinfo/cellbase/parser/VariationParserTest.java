@@ -1,13 +1,184 @@
 package org.bioinfo.cellbase.parser;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
 
 public class VariationParserTest {
 
+	private Path variationDir;
+	private Path outDir;
+
 //	@Test
 //	public void test() {
 //		System.out.println("--->");
 //		new VariationParserOld("/home/echirivella/homo_sapiens_71_37");
 //	}
 
+	@Before
+	public void setUp() throws IOException {
+		variationDir = Files.createTempDirectory("variation_test");
+		outDir = Files.createTempDirectory("variation_test_out");
+		writeVariationTables(variationDir, new Random(1), 3000);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		for(Path dir: new Path[] {variationDir, outDir}) {
+			for(Path file: list(dir)) {
+				Files.delete(file);
+			}
+			Files.delete(dir);
+		}
+	}
+
+	@Test
+	public void testShardsMatchSerial() throws Exception {
+		Map<String, String> expected = parseSerial();
+		Path outfile = outDir.resolve("variation.json");
+		int numShards = 3;
+		for(int shard = 0; shard < numShards; shard++) {
+			VariationParser vp = new VariationParser();
+			vp.createVariationDatabase(variationDir);
+			vp.connect(variationDir);
+			vp.setShard(shard, numShards, variationDir);
+			vp.parseVariationToJson("", "", "", "", variationDir, VariationParser.getShardOutfile(outfile, shard));
+			vp.disconnect();
+		}
+		VariationParser.mergeShards(outfile, numShards);
+		assertEquals(expected, readOutputs(outDir));
+	}
+
+	@Test
+	public void testParallelMatchesSerial() throws Exception {
+		Map<String, String> expected = parseSerial();
+		for(int numThreads: new int[] {1, 3}) {
+			VariationParser vp = new VariationParser();
+			vp.createVariationDatabase(variationDir);
+			vp.connect(variationDir);
+			vp.parseVariationToJson("", "", "", "", variationDir, outDir.resolve("variation.json"), numThreads);
+			vp.disconnect();
+			assertEquals(expected, readOutputs(outDir));
+			for(Path file: list(outDir)) {
+				Files.delete(file);
+			}
+		}
+	}
+
+	@Test
+	public void testSortMergeMatchesSerial() throws Exception {
+		Map<String, String> expected = parseSerial();
+		Path tmpDir = Files.createTempDirectory("variation_test_tmp");
+		new VariationParser().parseVariationToJsonSortMerge("", "", "", "", variationDir, outDir.resolve("variation.json"), tmpDir);
+		assertEquals(expected, readOutputs(outDir));
+		// the sort directory is deleted
+		assertEquals(new ArrayList<Path>(), list(tmpDir));
+		Files.delete(tmpDir);
+	}
+
+	/**
+	 * Chromosome files and log of the serial build, by file name, the output files are deleted.
+	 */
+	private Map<String, String> parseSerial() throws Exception {
+		VariationParser vp = new VariationParser();
+		vp.createVariationDatabase(variationDir);
+		vp.connect(variationDir);
+		vp.parseVariationToJson("", "", "", "", variationDir, outDir.resolve("variation.json"));
+		vp.disconnect();
+		Map<String, String> outputs = readOutputs(outDir);
+		// a few chromosomes with a few hundred variations each
+		assertTrue(outputs.size() > 3);
+		for(Path file: list(outDir)) {
+			Files.delete(file);
+		}
+		return outputs;
+	}
+
+	private static Map<String, String> readOutputs(Path dir) throws IOException {
+		Map<String, String> outputs = new TreeMap<>();
+		for(Path file: list(dir)) {
+			outputs.put(file.getFileName().toString(), new String(Files.readAllBytes(file)));
+		}
+		return outputs;
+	}
+
+	/**
+	 * Ensembl variation tables: variations sorted by id with gaps, some of them without variation
+	 * features or with several of them, transcript variations and synonyms for some features.
+	 */
+	static void writeVariationTables(Path dir, Random random, int numVariations) throws IOException {
+		write(dir.resolve("seq_region.txt"), "27500\t1", "27501\t2", "27502\tX", "27503\tMT");
+		write(dir.resolve("source.txt"), "1\tdbSNP\t138", "2\tArchive dbSNP\t138", "3\tHGMD-PUBLIC\t20124");
+
+		List<String> variations = new ArrayList<>();
+		List<String> variationFeatures = new ArrayList<>();
+		List<String> transcriptVariations = new ArrayList<>();
+		List<String> variationSynonyms = new ArrayList<>();
+		String[] alleles = {"A/G", "C/T", "-/A", "G/\\N"};
+		String[] consequenceTypes = {"missense_variant", "intron_variant", "missense_variant,splice_region_variant", "\\N"};
+		String[] predictions = {"benign", "probably damaging", "\\N"};
+		int variationId = 0;
+		for(int i = 0; i < numVariations; i++) {
+			variationId += 1 + random.nextInt(3);
+			variations.add(variationId + "\t1\trs" + variationId + "\t" + ((random.nextInt(5) == 0) ? "\\N" : "cluster,freq"));
+			int numFeatures = (random.nextInt(10) == 0) ? 0 : ((random.nextInt(10) == 0) ? 2 : 1);
+			for(int j = 0; j < numFeatures; j++) {
+				int variationFeatureId = variationFeatures.size() + 1;
+				int start = 1 + random.nextInt(1000000);
+				variationFeatures.add(variationFeatureId + "\t" + (27500 + random.nextInt(4)) + "\t" + start + "\t" + start + "\t1\t" + variationId + "\t"
+						+ alleles[random.nextInt(alleles.length)]);
+				for(int k = random.nextInt(4); k > 0; k--) {
+					transcriptVariations.add((transcriptVariations.size() + 1) + "\t" + variationFeatureId + "\tENST0000" + random.nextInt(100000) + "\tA/G\t" + random.nextInt(2) + "\t"
+							+ consequenceTypes[random.nextInt(consequenceTypes.length)] + "\t" + random.nextInt(5000) + "\t" + random.nextInt(5000) + "\t\\N\t\\N\t" + random.nextInt(1000) + "\t"
+							+ random.nextInt(1000) + "\t\\N\tgCc/gTc\tA/V\t\\N\tc." + random.nextInt(5000) + "A>G\t\\N\t" + predictions[random.nextInt(predictions.length)] + "\t"
+							+ random.nextFloat() + "\t" + predictions[random.nextInt(predictions.length)] + "\t\\N");
+				}
+			}
+			for(int j = random.nextInt(3); j > 0; j--) {
+				variationSynonyms.add((variationSynonyms.size() + 1) + "\t" + variationId + "\t\\N\t" + (1 + random.nextInt(4)) + "\tss" + random.nextInt(1000000) + "\t\\N");
+			}
+		}
+		// only variation.txt has to be sorted
+		Collections.shuffle(transcriptVariations, random);
+		Collections.shuffle(variationSynonyms, random);
+		write(dir.resolve("variation.txt"), variations.toArray(new String[variations.size()]));
+		write(dir.resolve("variation_feature.txt"), variationFeatures.toArray(new String[variationFeatures.size()]));
+		write(dir.resolve("transcript_variation.txt"), transcriptVariations.toArray(new String[transcriptVariations.size()]));
+		write(dir.resolve("variation_synonym.txt"), variationSynonyms.toArray(new String[variationSynonyms.size()]));
+	}
+
+	private static void write(Path file, String... lines) throws IOException {
+		BufferedWriter bw = Files.newBufferedWriter(file, Charset.defaultCharset());
+		for(String line: lines) {
+			bw.write(line);
+			bw.write('\n');
+		}
+		bw.close();
+	}
+
+	private static List<Path> list(Path dir) throws IOException {
+		List<Path> files = new ArrayList<>();
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for(Path file: stream) {
+				files.add(file);
+			}
+		}
+		return files;
+	}
 }